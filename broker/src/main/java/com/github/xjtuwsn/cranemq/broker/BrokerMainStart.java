@@ -47,7 +47,13 @@ public class BrokerMainStart implements ApplicationContextAware {
             log.error("BrokerController initialize error");
             System.exit(SpringApplication.exit(applicationContext));
         }
-        brokerController.start();
+        try {
+            brokerController.start();
+        } catch (IllegalStateException e) {
+            // 存储无法按当前配置恢复，例如减少了commitLog通道数，网络服务已经启动，直接退出
+            log.error("BrokerController start error", e);
+            System.exit(SpringApplication.exit(applicationContext));
+        }
     }
 
     @Override
@@ -16,7 +16,8 @@ import java.util.concurrent.atomic.AtomicInteger;
 public class ThreadPoolConfig {
     @Bean("producerMessageService")
     public ExecutorService producerMessageService() {
-        return buildThreadPool(10, 20, 10000, "Producer Message Service");
+        // 写入是异步完成的，处理线程只负责解析和提交，少量线程即可
+        return buildThreadPool(4, 4, 10000, "Producer Message Service");
 
     }
 
@@ -98,6 +98,55 @@ public class ConsumerOffsetManager {
         offsetMap.get(key).put(queueId, offset);
     }
 
+    /**
+     * 按时间重置消费者组在某个主题上的进度，在线的消费者会继续上报自己的进度，需要先停止消费者组
+     * @param topic
+     * @param group
+     * @param timestamp 重置到该时间之后写入的第一条消息
+     * @return 队列id：重置后的偏移
+     */
+    public Map<Integer, Long> resetOffsetByTime(String topic, String group, long timestamp) {
+        Map<Integer, Long> result = new HashMap<>();
+        if (StrUtil.isEmpty(topic) || StrUtil.isEmpty(group)) {
+            return result;
+        }
+        String key = BrokerUtil.offsetKey(topic, group);
+        int number = brokerController.getMessageStoreCenter().getQueueNumber(topic);
+        for (int i = 0; i < number; i++) {
+            long offset = brokerController.getMessageStoreCenter().getQueueOffsetByTime(topic, i, timestamp);
+            if (offset >= 0) {
+                result.put(i, offset);
+            }
+        }
+        ConcurrentHashMap<Integer, Long> temp = new ConcurrentHashMap<>();
+        ConcurrentHashMap<Integer, Long> map = offsetMap.putIfAbsent(key, temp);
+        if (map == null) {
+            map = temp;
+        }
+        map.putAll(result);
+        this.persistOffset();
+        log.info("Reset offset of group {} on topic {} to {}, result {}", group, topic, timestamp, result);
+        return result;
+    }
+
+    /**
+     * 过期文件删除后，把指向已删除消息的消费进度修正到队列中最早的有效偏移
+     */
+    public void correctOffsets() {
+        for (Map.Entry<String, ConcurrentHashMap<Integer, Long>> entry : offsetMap.entrySet()) {
+            String key = entry.getKey();
+            String topic = key.substring(0, key.indexOf('@'));
+            for (Map.Entry<Integer, Long> inner : entry.getValue().entrySet()) {
+                long minOffset = brokerController.getMessageStoreCenter().getQueueMinOffset(topic, inner.getKey());
+                if (minOffset > inner.getValue()) {
+                    log.info("Correct offset of {}, queue {}: {} ---> {}", key, inner.getKey(),
+                            inner.getValue(), minOffset);
+                    inner.setValue(minOffset);
+                }
+            }
+        }
+    }
+
     public Map<MessageQueue, Long> getAllGroupOffset(String group, Set<String> topics) {
         Map<MessageQueue, Long> map = new HashMap<>();
         String brokerName = this.brokerController.getBrokerConfig().getBrokerName();
@@ -7,9 +7,11 @@ import com.github.xjtuwsn.cranemq.common.command.types.*;
 import com.github.xjtuwsn.cranemq.common.entity.Message;
 import com.github.xjtuwsn.cranemq.common.entity.MessageQueue;
 import com.github.xjtuwsn.cranemq.common.entity.ReadyMessage;
+import com.github.xjtuwsn.cranemq.common.remote.codec.MessageRecordCodec;
 import com.github.xjtuwsn.cranemq.common.remote.enums.ConnectionEventType;
 import com.github.xjtuwsn.cranemq.common.remote.event.ConnectionEvent;
 import com.github.xjtuwsn.cranemq.common.remote.RemoteServer;
+import com.github.xjtuwsn.cranemq.broker.store.comm.StoreBatchMessage;
 import com.github.xjtuwsn.cranemq.broker.store.comm.StoreInnerMessage;
 import com.github.xjtuwsn.cranemq.broker.store.comm.PutMessageResponse;
 import com.github.xjtuwsn.cranemq.broker.store.comm.StoreResponseType;
@@ -30,6 +32,7 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * @project:dduomq
@@ -53,55 +56,130 @@ public class ServerProcessor implements BaseProcessor {
     }
 
     /**
-     * 处理消费者生产消息的请求
+     * 处理消费者生产消息的请求，写入完成后在回调中返回响应，不阻塞处理线程
      * @param ctx
      * @param remoteCommand
      */
     @Override
     public void processProduceMessage(ChannelHandlerContext ctx, RemoteCommand remoteCommand) {
         Header header = remoteCommand.getHeader();
-        PutMessageResponse putResp = null;
+        CompletableFuture<PutMessageResponse> putFuture = null;
         if (header.getCommandType() == RequestType.MESSAGE_PRODUCE_REQUEST) {
             MQProduceRequest messageProduceRequest = (MQProduceRequest) remoteCommand.getPayLoad();
             StoreInnerMessage storeInnerMessage = new StoreInnerMessage(messageProduceRequest.getMessage(),
                     messageProduceRequest.getWriteQueue(), header.getCorrelationId(), 0);
+            this.setBornTimestamp(storeInnerMessage, messageProduceRequest.getBornTimestamp());
             // log.info("Broker receive produce message: {}", messageProduceRequest);
-            putResp = this.brokerController.getMessageStoreCenter().putMessage(storeInnerMessage);
+            putFuture = this.brokerController.getMessageStoreCenter().asyncPutMessage(storeInnerMessage);
 
         } else if (header.getCommandType() == RequestType.MESSAGE_BATCH_PRODUCE_REAUEST) {
             // 批量消息
             MQBachProduceRequest mqBachProduceRequest = (MQBachProduceRequest) remoteCommand.getPayLoad();
             List<Message> messages = mqBachProduceRequest.getMessages();
             MessageQueue writeQueue = mqBachProduceRequest.getWriteQueue();
-
-            List<StoreInnerMessage> list = new ArrayList<>();
-
-            for (Message message : messages) {
-                StoreInnerMessage storeInnerMessage = new StoreInnerMessage(message,
-                        writeQueue, header.getCorrelationId(), 0);
-                list.add(storeInnerMessage);
+            boolean batchRecord = messages.size() > 1
+                    && this.brokerController.getPersistentConfig().isEnableBatchRecord() && this.sameTopic(messages);
+            if (mqBachProduceRequest.isCompressed() && !batchRecord) {
+                // 不能整批保存时才解压，逐条写入
+                this.decompressBodies(mqBachProduceRequest);
+            }
+            // 整批写成一条批量记录，同一批消息的主题和队列相同，压缩过的消息体原样写入
+            if (batchRecord) {
+                StoreBatchMessage batchMessage = mqBachProduceRequest.isCompressed()
+                        ? new StoreBatchMessage(messages, writeQueue, header.getCorrelationId(),
+                        mqBachProduceRequest.getCompression(), mqBachProduceRequest.getRawLength(),
+                        mqBachProduceRequest.getCompressedBodies())
+                        : new StoreBatchMessage(messages, writeQueue, header.getCorrelationId());
+                this.setBornTimestamp(batchMessage, mqBachProduceRequest.getBornTimestamp());
+                putFuture = this.brokerController.getMessageStoreCenter().asyncPutMessage(batchMessage);
+            } else {
+                putFuture = this.putEachMessage(messages, writeQueue, header.getCorrelationId(),
+                        mqBachProduceRequest.getBornTimestamp());
             }
-
-            putResp = this.brokerController.getMessageStoreCenter().putMessage(list);
         } else {
             // 延时消息
             MQProduceRequest messageProduceRequest = (MQProduceRequest) remoteCommand.getPayLoad();
             StoreInnerMessage storeInnerMessage = new StoreInnerMessage(messageProduceRequest.getMessage(),
                     messageProduceRequest.getWriteQueue(), header.getCorrelationId(), messageProduceRequest.getDelay());
-            putResp = this.brokerController.getMessageStoreCenter().putMessage(storeInnerMessage);
+            this.setBornTimestamp(storeInnerMessage, messageProduceRequest.getBornTimestamp());
+            putFuture = this.brokerController.getMessageStoreCenter().asyncPutMessage(storeInnerMessage);
         }
         if (header.getRpcType() == RpcType.ONE_WAY) {
             return;
         }
-        Header responseHeader = new Header(ResponseType.PRODUCE_MESSAGE_RESPONSE, header.getRpcType(),
-                header.getCorrelationId());
-        if (putResp.getResponseType() != StoreResponseType.STORE_OK) {
-            responseHeader.onFailure(ResponseCode.SERVER_ERROR);
+        putFuture.whenComplete((putResp, throwable) -> {
+            Header responseHeader = new Header(ResponseType.PRODUCE_MESSAGE_RESPONSE, header.getRpcType(),
+                    header.getCorrelationId());
+            if (throwable != null || putResp == null) {
+                log.error("Put message error", throwable);
+                responseHeader.onFailure(ResponseCode.SERVER_ERROR);
+            } else if (putResp.getResponseType() == StoreResponseType.SERVER_BUSY) {
+                // 组提交队列已满，消息没有写入，由生产者重发
+                responseHeader.onFailure(ResponseCode.SERVER_BUSY);
+            } else if (putResp.getResponseType() == StoreResponseType.FLUSH_DISK_TIMEOUT) {
+                // 消息已经写入，但同步刷盘超时
+                responseHeader.onFailure(ResponseCode.FLUSH_TIMEOUT);
+            } else if (putResp.getResponseType() != StoreResponseType.STORE_OK) {
+                responseHeader.onFailure(ResponseCode.SERVER_ERROR);
+            }
+            PayLoad responsePayload = new MQProduceResponse("");
+            RemoteCommand response = new RemoteCommand(responseHeader, responsePayload);
+
+            ctx.writeAndFlush(response);
+        });
+    }
+
+    private boolean sameTopic(List<Message> messages) {
+        String topic = messages.get(0).getTopic();
+        for (Message message : messages) {
+            if (!topic.equals(message.getTopic())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 把压缩的消息体还原到每条消息中
+     * @param request
+     */
+    private void decompressBodies(MQBachProduceRequest request) {
+        List<Message> messages = request.getMessages();
+        byte[] raw = request.getCompression().decompress(request.getCompressedBodies(), request.getRawLength());
+        byte[][] bodies = MessageRecordCodec.unpackBodies(raw, messages.size());
+        for (int i = 0; i < messages.size(); i++) {
+            messages.get(i).setBody(bodies[i]);
         }
-        PayLoad responsePayload = new MQProduceResponse("");
-        RemoteCommand response = new RemoteCommand(responseHeader, responsePayload);
+    }
 
-        ctx.writeAndFlush(response);
+    /**
+     * 批量消息逐条写成普通记录
+     * @param messages
+     * @param writeQueue
+     * @param id
+     * @param bornTimestamp
+     * @return
+     */
+    private CompletableFuture<PutMessageResponse> putEachMessage(List<Message> messages, MessageQueue writeQueue,
+                                                                 String id, long bornTimestamp) {
+        List<StoreInnerMessage> list = new ArrayList<>();
+        for (Message message : messages) {
+            StoreInnerMessage storeInnerMessage = new StoreInnerMessage(message, writeQueue, id, 0);
+            this.setBornTimestamp(storeInnerMessage, bornTimestamp);
+            list.add(storeInnerMessage);
+        }
+        return this.brokerController.getMessageStoreCenter().asyncPutMessage(list);
+    }
+
+    /**
+     * 旧版本生产者不携带产生时间，保留broker收到的时间
+     * @param innerMessage
+     * @param bornTimestamp
+     */
+    private void setBornTimestamp(StoreInnerMessage innerMessage, long bornTimestamp) {
+        if (bornTimestamp > 0) {
+            innerMessage.setBornTimestamp(bornTimestamp);
+        }
     }
 
     /**
@@ -280,6 +358,8 @@ public class ServerProcessor implements BaseProcessor {
         for (ReadyMessage readyMessage : readyMessages) {
             int retry = readyMessage.getRetry();
             StoreInnerMessage storeInnerMessage = new StoreInnerMessage(readyMessage, header.getCorrelationId(), 0);
+            // 重试消息保留原始的产生时间
+            this.setBornTimestamp(storeInnerMessage, readyMessage.getBornTimestamp());
             String topic = "";
             MessageQueue messageQueue = null;
             if (retry > brokerController.getBrokerConfig().getMaxRetryTime()) { // 死信队列
@@ -297,4 +377,44 @@ public class ServerProcessor implements BaseProcessor {
         }
 
     }
+
+    /**
+     * 根据key查询消息
+     * @param ctx
+     * @param remoteCommand
+     */
+    @Override
+    public void processQueryMessageRequest(ChannelHandlerContext ctx, RemoteCommand remoteCommand) {
+        Header header = remoteCommand.getHeader();
+        MQQueryMessageRequest queryRequest = (MQQueryMessageRequest) remoteCommand.getPayLoad();
+        List<StoreInnerMessage> innerMessages = brokerController.getMessageStoreCenter()
+                .queryMessageByKey(queryRequest.getKey(), queryRequest.getMaxNumber());
+        List<Message> messages = new ArrayList<>();
+        for (StoreInnerMessage innerMessage : innerMessages) {
+            messages.add(new Message(innerMessage.getTopic(), innerMessage.getTag(), innerMessage.getBody()));
+        }
+        Header responseHeader = new Header(ResponseType.QUERY_MESSAGE_RESPONSE, header.getRpcType(),
+                header.getCorrelationId());
+        ctx.writeAndFlush(new RemoteCommand(responseHeader, new MQQueryMessageResponse(queryRequest.getKey(), messages)));
+    }
+
+    /**
+     * 按时间重置消费者组进度
+     * @param ctx
+     * @param remoteCommand
+     */
+    @Override
+    public void processResetOffsetRequest(ChannelHandlerContext ctx, RemoteCommand remoteCommand) {
+        Header header = remoteCommand.getHeader();
+        MQResetOffsetRequest resetRequest = (MQResetOffsetRequest) remoteCommand.getPayLoad();
+        Map<Integer, Long> offsets = brokerController.getOffsetManager().resetOffsetByTime(resetRequest.getTopic(),
+                resetRequest.getGroup(), resetRequest.getTimestamp());
+        Header responseHeader = new Header(ResponseType.RESET_OFFSET_RESPONSE, header.getRpcType(),
+                header.getCorrelationId());
+        if (offsets.isEmpty()) {
+            responseHeader.onFailure(ResponseCode.SERVER_ERROR);
+        }
+        ctx.writeAndFlush(new RemoteCommand(responseHeader, new MQResetOffsetResponse(resetRequest.getTopic(),
+                resetRequest.getGroup(), offsets)));
+    }
 }
@@ -3,6 +3,8 @@ package com.github.xjtuwsn.cranemq.broker.push;
 import cn.hutool.core.collection.ConcurrentHashSet;
 import cn.hutool.core.lang.Pair;
 import com.github.xjtuwsn.cranemq.broker.BrokerController;
+import com.github.xjtuwsn.cranemq.broker.store.comm.RawReadResult;
+import com.github.xjtuwsn.cranemq.broker.store.comm.ReadResult;
 import com.github.xjtuwsn.cranemq.common.command.Header;
 import com.github.xjtuwsn.cranemq.common.command.PayLoad;
 import com.github.xjtuwsn.cranemq.common.command.RemoteCommand;
@@ -12,14 +14,17 @@ import com.github.xjtuwsn.cranemq.common.command.types.AcquireResultType;
 import com.github.xjtuwsn.cranemq.common.command.types.ResponseType;
 import com.github.xjtuwsn.cranemq.common.command.types.RpcType;
 import com.github.xjtuwsn.cranemq.common.entity.MessageQueue;
-import com.github.xjtuwsn.cranemq.common.entity.ReadyMessage;
+import com.github.xjtuwsn.cranemq.common.remote.codec.RawPullFrame;
 import com.github.xjtuwsn.cranemq.common.utils.BrokerUtil;
 import com.github.xjtuwsn.cranemq.common.utils.TopicUtil;
 import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.security.Key;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -115,15 +120,22 @@ public class HoldRequestService {
             return;
         }
         for (Pair<String, Integer> queue : queues) {
-            String topic = queue.getKey();
-            int queueId = queue.getValue();
-            ConcurrentHashSet<String> groups = topicQueryTable.get(topic);
-            if (groups != null && !groups.isEmpty()) {
-                for (String key : groups) {
-                    RequestWrapper wrapper = requestTable.get(key).get(queueId);
-                    if (wrapper != null) {
-                        asyncRead(wrapper);
-                    }
+            this.awakeNow(queue.getKey(), queue.getValue());
+        }
+    }
+
+    /**
+     * 唤醒单个队列上的长轮询，写入单条消息时使用，不需要为每条消息创建队列列表
+     * @param topic
+     * @param queueId
+     */
+    public void awakeNow(String topic, int queueId) {
+        ConcurrentHashSet<String> groups = topicQueryTable.get(topic);
+        if (groups != null && !groups.isEmpty()) {
+            for (String key : groups) {
+                RequestWrapper wrapper = requestTable.get(key).get(queueId);
+                if (wrapper != null) {
+                    asyncRead(wrapper);
                 }
             }
         }
@@ -143,55 +155,114 @@ public class HoldRequestService {
         long arriveTime = wrapper.getArriveTime();
         long now = System.currentTimeMillis();
         Header header = new Header(ResponseType.PULL_RESPONSE, RpcType.ONE_WAY, wrapper.getId());
-        PayLoad payLoad = null;
+        Object response = null;
+        // 零拷贝读取的结果，切片所在文件的引用在发送完成后释放
+        RawReadResult raw = null;
         // 超时
         if (now - arriveTime >= brokerController.getBrokerConfig().getLongPollingTime()) {
-            payLoad = new MQPullMessageResponse(AcquireResultType.NO_MESSAGE, wrapper.getGroup(), null, wrapper.getOffset());
+            PayLoad payLoad = new MQPullMessageResponse(AcquireResultType.NO_MESSAGE, wrapper.getGroup(), null, wrapper.getOffset());
+            response = new RemoteCommand(header, payLoad);
+        } else if (brokerController.getPersistentConfig().isEnableZeroCopyPull()) {
+            // 直接发送commitLog中的原始记录
+            raw = readRawFromFile(wrapper);
+            if (raw.isThrottled()) {
+                // 冷读并发已满，告诉消费者过一段时间再来，不占着长轮询
+                response = this.retryLater(header, wrapper, raw.getSuggestDelay());
+            } else if (raw.getResultType() != AcquireResultType.DONE) {
+                raw.release();
+                return;
+            } else if (raw.isEmpty()) {
+                raw.release();
+                // 全部被tag过滤，返回空结果让消费者跳过这段
+                if (raw.getNextOffset() == wrapper.getOffset()) {
+                    return;
+                }
+                PayLoad payLoad = new MQPullMessageResponse(raw.getResultType(), wrapper.getGroup(),
+                        new ArrayList<>(), raw.getNextOffset(), raw.getSuggestDelay());
+                response = new RemoteCommand(header, payLoad);
+            } else {
+                // 冷读时建议消费者延迟下一次拉取，把页缓存和磁盘让给实时消费者
+                MQPullMessageResponse payLoad = new MQPullMessageResponse(raw.getResultType(), wrapper.getGroup(),
+                        null, raw.getNextOffset(), raw.getSuggestDelay());
+                response = new RawPullFrame(new RemoteCommand(header, payLoad),
+                        brokerController.getBrokerConfig().getBrokerName(), raw.getQueueOffsets(),
+                        raw.getRecords(), brokerController.getMessageStoreCenter().getNameDictionary()::nameOf);
+            }
         } else {
             // 读取
-            Pair<Pair<List<ReadyMessage>, Long>, AcquireResultType> result = readFromFile(wrapper);
-            // 没读到
-            if (result == null || result.getValue() != AcquireResultType.DONE || result.getKey() == null
-                    || result.getKey().getKey() == null || result.getKey().getKey().isEmpty()) {
+            ReadResult result = readFromFile(wrapper);
+            if (result.isThrottled()) {
+                response = this.retryLater(header, wrapper, result.getSuggestDelay());
+            } else if (result.getResultType() != AcquireResultType.DONE
+                    || result.getMessages().isEmpty() && result.getNextOffset() == wrapper.getOffset()) {
+                // 没读到，或者全部被过滤但偏移没有前进
                 return;
+            } else {
+                PayLoad payLoad = new MQPullMessageResponse(result.getResultType(), wrapper.getGroup(),
+                        result.getMessages(), result.getNextOffset(), result.getSuggestDelay());
+                response = new RemoteCommand(header, payLoad);
             }
-            List<ReadyMessage> list = result.getKey().getKey();
-            long nextOffset = result.getKey().getValue();
-            payLoad = new MQPullMessageResponse(result.getValue(), wrapper.getGroup(), list, nextOffset);
-
         }
-        RemoteCommand remoteCommand = new RemoteCommand(header, payLoad);
 
+        boolean written = false;
         // 如果通道还可用，也就是消费者没断开连接
         if (wrapper.isOk() && wrapper.valid.get()) {
             synchronized (wrapper) {
                 if (wrapper.valid.get()) {
                     wrapper.valid.set(false);
                     // 写入消息
-                    wrapper.getChannel().writeAndFlush(remoteCommand);
+                    ChannelFuture future = wrapper.getChannel().writeAndFlush(response);
+                    if (raw != null) {
+                        // 切片写出socket或者写入失败之后才能释放，成功失败都会回调
+                        RawReadResult sent = raw;
+                        future.addListener(f -> sent.release());
+                    }
+                    written = true;
                 }
             }
 
         }
+        if (!written && raw != null) {
+            raw.release();
+        }
         // 删除请求
         remove(wrapper);
     }
 
+    /**
+     * 冷读被限流时的响应，偏移不变，消费者按建议的时间之后重新拉取
+     * @param header
+     * @param wrapper
+     * @param suggestDelay 毫秒
+     * @return
+     */
+    private RemoteCommand retryLater(Header header, RequestWrapper wrapper, long suggestDelay) {
+        PayLoad payLoad = new MQPullMessageResponse(AcquireResultType.NO_MESSAGE, wrapper.getGroup(), null,
+                wrapper.getOffset(), suggestDelay);
+        return new RemoteCommand(header, payLoad);
+    }
+
     /**
      * 根据给定的偏移去读
      * @param wrapper
      * @return
      */
-    private Pair<Pair<List<ReadyMessage>, Long>, AcquireResultType> readFromFile(RequestWrapper wrapper) {
+    private ReadResult readFromFile(RequestWrapper wrapper) {
         String topic = wrapper.getTopic(), group = wrapper.getGroup();
         int queueId = wrapper.getQueueId();
         long offset = wrapper.getOffset();
-        Pair<Pair<List<ReadyMessage>, Long>, AcquireResultType> result = brokerController.getMessageStoreCenter()
+        ReadResult result = brokerController.getMessageStoreCenter()
                 .read(topic, queueId, offset,
-                brokerController.getPersistentConfig().getMaxSingleReadLength());
+                brokerController.getPersistentConfig().getMaxSingleReadLength(), wrapper.getTagHashes());
         return result;
     }
 
+    private RawReadResult readRawFromFile(RequestWrapper wrapper) {
+        return brokerController.getMessageStoreCenter().readRaw(wrapper.getTopic(), wrapper.getQueueId(),
+                wrapper.getOffset(), brokerController.getPersistentConfig().getMaxSingleReadLength(),
+                wrapper.getTagHashes());
+    }
+
     /**
      * 定时扫描连接，删除超时连接
      */
@@ -244,6 +315,8 @@ public class HoldRequestService {
         private long arriveTime;
         private Channel channel;
         private String id;
+        // 订阅tag的哈希，为null不过滤
+        private Set<Integer> tagHashes;
         private AtomicBoolean valid = new AtomicBoolean(true);
         public RequestWrapper(MQPullMessageRequest request, Channel channel, String id) {
             this(request, channel, 0, id);
@@ -258,6 +331,17 @@ public class HoldRequestService {
             this.arriveTime = System.currentTimeMillis();
             this.key = BrokerUtil.holdRequestKey(topic, group, clientId);
             this.id = id;
+            Set<String> tags = request.getTags();
+            if (tags != null && !tags.isEmpty() && !tags.contains("*")) {
+                this.tagHashes = new HashSet<>();
+                for (String tag : tags) {
+                    this.tagHashes.add(BrokerUtil.tagHashCode(tag));
+                }
+            }
+        }
+
+        public Set<Integer> getTagHashes() {
+            return tagHashes;
         }
 
         public String getGroup() {
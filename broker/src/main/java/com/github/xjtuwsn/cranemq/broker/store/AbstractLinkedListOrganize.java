@@ -1,5 +1,8 @@
 package com.github.xjtuwsn.cranemq.broker.store;
 
+import com.github.xjtuwsn.cranemq.broker.store.dict.NameDictionary;
+import com.github.xjtuwsn.cranemq.broker.store.flush.DirtyFileSet;
+
 import java.util.Iterator;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
@@ -26,6 +29,10 @@ public abstract class AbstractLinkedListOrganize {
     protected MappedFile head, tail;
     protected int headIndex = -1;
     protected int tailIndex = -2;
+    // 待刷盘文件集合，加入链表的文件都登记到这里
+    protected DirtyFileSet dirtyFileSet;
+    // 名称字典，只有commitLog需要
+    protected NameDictionary nameDictionary;
 
     protected void init() {
         this.head = new MappedFile(this.headIndex);
@@ -41,6 +48,8 @@ public abstract class AbstractLinkedListOrganize {
      * @param mappedFile
      */
     protected void insertBeforeTail(MappedFile mappedFile) {
+        mappedFile.setDirtyFileSet(this.dirtyFileSet);
+        mappedFile.setNameDictionary(this.nameDictionary);
         this.tailLock.lock();
         this.mappedTable.put(mappedFile.getIndex(), mappedFile);
         this.tail.prev.next = mappedFile;
@@ -49,8 +58,67 @@ public abstract class AbstractLinkedListOrganize {
         this.tail.prev = mappedFile;
         this.tailLock.unlock();
     }
+    /**
+     * 文件序号由文件名换算，前面的文件被删除后序号不变
+     * @return 下一个文件的序号
+     */
     protected int nextIndex() {
-        return this.mappedTable.size() - 2;
+        MappedFile last = this.tail.prev;
+        return last == this.head ? 0 : last.getIndex() + 1;
+    }
+
+    /**
+     * 从链表和索引表中摘除第一个文件，至少保留一个文件
+     * 被摘除文件的后继指针保持不变，正在遍历的迭代器可以继续向后走
+     * @param mappedFile
+     * @return 不是第一个文件或者是最后一个文件时返回false
+     */
+    protected boolean removeFirst(MappedFile mappedFile) {
+        this.tailLock.lock();
+        try {
+            if (this.head.next != mappedFile || mappedFile.next == this.tail) {
+                return false;
+            }
+            this.head.next = mappedFile.next;
+            mappedFile.next.prev = this.head;
+            this.mappedTable.remove(mappedFile.getIndex());
+            return true;
+        } finally {
+            this.tailLock.unlock();
+        }
+    }
+    /**
+     * 从链表和索引表中摘除最后一个文件，只在启动恢复时调用
+     * @param mappedFile
+     * @return 不是最后一个文件时返回false
+     */
+    protected boolean removeLast(MappedFile mappedFile) {
+        this.tailLock.lock();
+        try {
+            if (this.tail.prev != mappedFile || mappedFile == this.head) {
+                return false;
+            }
+            this.tail.prev = mappedFile.prev;
+            mappedFile.prev.next = this.tail;
+            this.mappedTable.remove(mappedFile.getIndex());
+            return true;
+        } finally {
+            this.tailLock.unlock();
+        }
+    }
+    /**
+     * 设置待刷盘文件集合，需要在加载文件之前调用
+     * @param dirtyFileSet
+     */
+    public void setDirtyFileSet(DirtyFileSet dirtyFileSet) {
+        this.dirtyFileSet = dirtyFileSet;
+    }
+    /**
+     * 设置名称字典，需要在加载文件之前调用
+     * @param nameDictionary
+     */
+    public void setNameDictionary(NameDictionary nameDictionary) {
+        this.nameDictionary = nameDictionary;
     }
     public MappedIterator iterator() {
         return new MappedIterator(head);
@@ -2,12 +2,26 @@ package com.github.xjtuwsn.cranemq.broker.store;
 
 import cn.hutool.core.lang.Pair;
 import com.github.xjtuwsn.cranemq.broker.store.cmtlog.CommitEntry;
+import com.github.xjtuwsn.cranemq.broker.store.comm.IndexReadResult;
 import com.github.xjtuwsn.cranemq.broker.store.comm.PutMessageResponse;
+import com.github.xjtuwsn.cranemq.broker.store.comm.StoreBatchMessage;
 import com.github.xjtuwsn.cranemq.broker.store.comm.StoreInnerMessage;
 import com.github.xjtuwsn.cranemq.broker.store.comm.StoreResponseType;
+import com.github.xjtuwsn.cranemq.broker.store.dict.EncodedNames;
+import com.github.xjtuwsn.cranemq.broker.store.dict.NameDictionary;
+import com.github.xjtuwsn.cranemq.broker.store.flush.DirtyFileSet;
 import com.github.xjtuwsn.cranemq.broker.store.pool.OutOfHeapMemoryPool;
+import com.github.xjtuwsn.cranemq.broker.store.pool.WriteBufferPool;
+import com.github.xjtuwsn.cranemq.broker.store.queue.IdleQueueService;
+import com.github.xjtuwsn.cranemq.broker.store.write.FileChannelWriteStrategy;
+import com.github.xjtuwsn.cranemq.broker.store.write.MappedWriteStrategy;
+import com.github.xjtuwsn.cranemq.broker.store.write.TransientPoolWriteStrategy;
+import com.github.xjtuwsn.cranemq.broker.store.write.WriteSegment;
+import com.github.xjtuwsn.cranemq.broker.store.write.WriteStrategy;
 import com.github.xjtuwsn.cranemq.common.constant.MQConstant;
 import com.github.xjtuwsn.cranemq.common.entity.Message;
+import com.github.xjtuwsn.cranemq.common.remote.codec.CompressionType;
+import com.github.xjtuwsn.cranemq.common.remote.codec.MessageRecordCodec;
 import com.github.xjtuwsn.cranemq.common.utils.BrokerUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -16,15 +30,21 @@ import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
 
 /**
  * @project:dduomq
@@ -42,6 +62,29 @@ public class MappedFile {
     private static final Logger log = LoggerFactory.getLogger(MappedFile.class);
     // 页面大小
     private int OS_PAGE = 4 * 1024; // 4KB
+    // 消息记录末尾的产生时间和存储时间
+    private static final int TIMESTAMP_LENGTH = 8 + 8;
+    // 时间戳之后的延时时间和校验和，校验和覆盖记录中除自身以外的所有字节
+    private static final int DELAY_CRC_LENGTH = 8 + 4;
+    // 检查记录的结果，空白表示文件剩余部分没有写入，损坏表示长度不合法或者校验失败
+    public static final int RECORD_BLANK = 0;
+    public static final int RECORD_CORRUPT = -1;
+    // 批量记录标记，写在普通记录topic长度的位置
+    private static final int BATCH_MAGIC = MessageRecordCodec.BATCH_MAGIC;
+    // 批量记录头部固定部分：总长度int + 批量标记int + 校验和int + topic长度int + id长度int + retry + 队列号int
+    // + 产生时间long + 存储时间long + 延时时间long + 消息数int
+    private static final int BATCH_HEADER_LENGTH = 4 + 4 + 4 + 4 + 4 + 4 + 4 + TIMESTAMP_LENGTH + 8 + 4;
+    // 批量记录中每条消息：到头部的距离int(负数) + tag长度int + tag + body长度int + body
+    private static final int BATCH_ITEM_LENGTH = 4 + 4 + 4;
+    // 压缩的批量记录在消息数之后：压缩方式byte + 原始长度int + 压缩长度int + 压缩后的消息体
+    private static final int COMPRESSED_MAGIC = MessageRecordCodec.COMPRESSED_BATCH_MAGIC;
+    private static final int COMPRESSED_INFO_LENGTH = 1 + 4 + 4;
+    // 压缩的批量记录中每条消息：到头部的距离int(负数) + tag长度int + tag
+    private static final int COMPRESSED_ITEM_LENGTH = 4 + 4;
+    // topic和tag保存为字典编号的普通记录，标记写在topic长度的位置
+    private static final int NAME_ID_MAGIC = MessageRecordCodec.NAME_ID_MAGIC;
+    // 当前分片或者消费队列文件空间不足
+    public static final int NO_ENOUGH_ROOM = -2;
 
     // 以链表组织，前驱和后继
     public MappedFile next, prev;
@@ -52,23 +95,51 @@ public class MappedFile {
     private String fullPath;
     private FileChannel fileChannel;
     private String fileName;
+    // 文件名就是文件的起始偏移，创建时解析一次
+    private long fileFromOffset = -1;
     private PersistentConfig persistentConfig;
-    // mmap buffer
-    private MappedByteBuffer mappedByteBuffer;
+    // mmap buffer，延迟映射的文件在第一次访问时才创建
+    private volatile MappedByteBuffer mappedByteBuffer;
+    // 映射的大小，消费队列文件从较小的映射开始写不下时扩大，其他文件就是文件大小
+    private volatile int mappedSize;
+    // 是否延迟映射，启动时不映射较早的队列文件，第一次读取时再映射
+    private boolean lazy;
+    // 已经销毁，不能再重新映射
+    private volatile boolean destroyed = false;
+    // 映射内存管理，只有commitLog文件设置，为null不限制映射
+    private volatile MappedRegionManager regionManager;
+    // 消费队列文件扩大映射后，原来的映射交给它延迟释放，为null时由gc回收
+    private volatile IdleQueueService idleQueueService;
+    // 最近一次读取的时间，映射管理按它解除最久没有读取的文件
+    private volatile long lastAccess = System.nanoTime();
+    // 零拷贝发送中还没有写完的响应对这个文件的引用数，不为0时摘除的映射不释放，文件不销毁
+    private final AtomicInteger references = new AtomicInteger(0);
+    // 待刷盘文件集合，有数据没有刷盘时登记进去，为null时由调用者自己刷盘
+    private volatile DirtyFileSet dirtyFileSet;
+    // 是否已经登记到待刷盘集合
+    private final AtomicBoolean dirty = new AtomicBoolean(false);
+    // 最近一次登记的时间
+    private volatile long dirtyTime;
     // 可读的范围：
-    // 如果没有开启直接内存：是读指针
-    // 如果开启了：是提交指针
+    // 写入需要提交时（堆外内存）：是提交指针
+    // 否则：是写指针
     private AtomicInteger writePointer; // 当前写指针
-    private AtomicInteger commitPointer; // directBuffer中已经提交，即写到filechannel的指针
+    private AtomicInteger commitPointer; // 堆外内存中已经提交，即写到filechannel的指针
     private AtomicInteger flushPointer; // 当前刷盘指针
-    // 堆外内存
-    private ByteBuffer directBuffer;
-    // 堆外内存池
-    private OutOfHeapMemoryPool memoryPool;
+    // 写入方式，默认直接写映射，开始写入时可以切换为借用buffer的方式，归还后切回
+    private volatile WriteStrategy writeStrategy = new MappedWriteStrategy(this);
     // 写锁
     private ReentrantLock writeLock = new ReentrantLock();
+    // 提交锁，提交线程、定时提交和切换文件时都会提交
+    private ReentrantLock commitLock = new ReentrantLock();
     // 暂存所有未提交的消息
     private UnCommitEntryList unCommitEntryList;
+    // 计算记录校验和，只在写锁内使用
+    private final CRC32C crc32C = new CRC32C();
+    // 最近一次解压的批量消息体
+    private volatile BatchBodies lastBodies;
+    // topic和tag名称字典，只有commitLog文件有
+    private NameDictionary nameDictionary;
     private Status status;
 
     enum Status {
@@ -78,73 +149,270 @@ public class MappedFile {
     }
 
     public MappedFile(int index) {
-        this(index, 0, "", "", null, null);
+        this(index, 0, "", "", null);
     }
     public MappedFile(int index, int fileSize, String fileName, PersistentConfig persistentConfig) {
-        this(index, fileSize, fileName, persistentConfig.getCommitLogPath() + fileName,
-                persistentConfig, null);
-    }
-    public MappedFile(int index, int fileSize, String fileName, PersistentConfig persistentConfig,
-                      OutOfHeapMemoryPool memoryPool) {
-        this(index, fileSize, fileName, persistentConfig.getCommitLogPath() + fileName,
-                persistentConfig, memoryPool);
+        this(index, fileSize, fileName, persistentConfig.getCommitLogPath() + fileName, persistentConfig);
     }
     public MappedFile(int index, int fileSize, String fileName, String fullPath, PersistentConfig persistentConfig) {
-        this(index, fileSize, fileName, fullPath, persistentConfig, null);
+        this(index, fileSize, fileName, fullPath, persistentConfig, false);
+    }
+
+    public MappedFile(int index, int fileSize, String fileName, String fullPath, PersistentConfig persistentConfig,
+                      boolean lazy) {
+        this(index, fileSize, fileName, fullPath, persistentConfig, lazy, fileSize);
     }
 
+    /**
+     * @param initialMappedSize 初始映射大小，已有的文件更大时按文件大小映射
+     */
     public MappedFile(int index, int fileSize, String fileName, String fullPath, PersistentConfig persistentConfig,
-                      OutOfHeapMemoryPool memoryPool) {
+                      boolean lazy, int initialMappedSize) {
         this.persistentConfig = persistentConfig;
+        this.lazy = lazy;
         this.index = index;
         this.fileName = fileName;
-        this.memoryPool = memoryPool;
         if (this.fileName == "") {
             return;
         }
         this.fileSize = fileSize;
+        this.fileFromOffset = Long.parseLong(fileName);
         this.fullPath = fullPath;
 
-        // 读取文件，并从filechannel中映射byteMappedBuffer
         this.file = new File(fullPath);
-        try {
-            if (!this.file.exists()) {
-                this.file.createNewFile();
-            }
-            this.fileChannel = new RandomAccessFile(fullPath, "rw").getChannel();
-        } catch (IOException e) {
-            log.error("Create file channel error");
-        }
+        this.mappedSize = initialMappedSize >= fileSize ? fileSize
+                : (int) Math.min(fileSize, Math.max(initialMappedSize, this.file.length()));
         this.writePointer = new AtomicInteger(this.fileSize);
         this.commitPointer = new AtomicInteger(this.fileSize);
         this.flushPointer = new AtomicInteger(this.fileSize);
-        if (this.mappedByteBuffer == null) {
-            try {
-                this.mappedByteBuffer = this.fileChannel.map(FileChannel.MapMode.READ_WRITE,
-                        0, this.fileSize);
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            }
+        // 读取文件，并从filechannel中映射byteMappedBuffer
+        if (!this.lazy) {
+            this.mappedBuffer();
         }
         if (this.fileSize == this.persistentConfig.getCommitLogMaxSize()) {
             this.status = Status.FULL;
         } else {
             this.status = Status.CAN_WRITE;
         }
-        // 如果内存池存在，也就是允许堆外内存，则借用堆外内存
-        if (this.memoryPool != null) {
-            this.directBuffer = this.memoryPool.borrowMemmory();
-        }
         this.unCommitEntryList = new UnCommitEntryList();
 
     }
 
     /**
-     * 根据是否开启堆外内存，获取写的buffer
-     * @return 开启的话，就是directBuffe，mappedBuffer只读，做到读写分离
+     * 获取映射的buffer，延迟映射的文件在第一次访问时打开文件并映射
+     * @return
+     */
+    private MappedByteBuffer mappedBuffer() {
+        MappedByteBuffer buffer = this.mappedByteBuffer;
+        if (buffer != null) {
+            return buffer;
+        }
+        synchronized (this) {
+            if (this.destroyed) {
+                throw new IllegalStateException("Mapped file " + fullPath + " has been destroyed");
+            }
+            if (this.mappedByteBuffer == null) {
+                try {
+                    // 解除映射后重新映射时文件已经打开
+                    this.mappedByteBuffer = this.openChannel().map(FileChannel.MapMode.READ_WRITE,
+                            0, this.mappedSize);
+                } catch (IOException e) {
+                    log.error("Map file {} error", fullPath, e);
+                    throw new RuntimeException(e);
+                }
+                if (this.lazy) {
+                    log.info("Lazy map file {}", fullPath);
+                }
+            }
+            return this.mappedByteBuffer;
+        }
+    }
+
+    /**
+     * 打开文件通道，调用者持有文件锁
+     * @return
+     * @throws IOException
+     */
+    private FileChannel openChannel() throws IOException {
+        if (this.fileChannel == null) {
+            if (!this.file.exists()) {
+                this.file.createNewFile();
+            }
+            this.fileChannel = new RandomAccessFile(fullPath, "rw").getChannel();
+        }
+        return this.fileChannel;
+    }
+
+    /**
+     * 读取时获取映射的buffer，记录读取时间和命中情况，没有映射时重新映射
+     * @return
+     */
+    private MappedByteBuffer readBuffer() {
+        MappedRegionManager manager = this.regionManager;
+        if (manager == null) {
+            return this.mappedBuffer();
+        }
+        this.lastAccess = System.nanoTime();
+        MappedByteBuffer buffer = this.mappedByteBuffer;
+        if (buffer != null) {
+            manager.onHit();
+            return buffer;
+        }
+        buffer = this.mappedBuffer();
+        // 不持有文件锁时再检查上限，避免和解除映射互相等待
+        manager.onMiss();
+        return buffer;
+    }
+
+    /**
+     * 零拷贝读取时对文件加引用，从映射上取的切片要等发送完成才能释放
+     */
+    public void retain() {
+        this.references.incrementAndGet();
+    }
+
+    /**
+     * 发送完成后释放引用
+     */
+    public void release() {
+        this.references.decrementAndGet();
+    }
+
+    /**
+     * 是否还有没发送完的切片引用这个文件
+     * @return
+     */
+    public boolean isReferenced() {
+        return this.references.get() > 0;
+    }
+
+    /**
+     * 摘除映射，之后的读取会重新映射，正在读的请求可能还持有旧的buffer，由调用者延迟释放
+     * 正在写入或者持有堆外内存的文件不能摘除
+     * @return 摘除的buffer，没有映射或者不能摘除返回null
+     */
+    public synchronized MappedByteBuffer releaseMapping() {
+        MappedByteBuffer buffer = this.mappedByteBuffer;
+        if (this.destroyed || buffer == null || this.ownDirectMemory() || canWrite()) {
+            return null;
+        }
+        this.flushNames();
+        buffer.force();
+        this.flushPointer.set(this.writePointer.get());
+        this.mappedByteBuffer = null;
+        return buffer;
+    }
+
+    /**
+     * 长时间没有读写的消费队列文件解除映射并关闭文件，之后的读写重新打开并映射
+     * 持有写锁，不会有正在进行的写入，正在读的请求可能还持有旧的buffer，由调用者延迟释放
+     * @return 摘除的buffer，没有映射返回null
+     */
+    public MappedByteBuffer releaseIdle() {
+        writeLock.lock();
+        try {
+            synchronized (this) {
+                MappedByteBuffer buffer = this.mappedByteBuffer;
+                if (this.destroyed || buffer == null || this.ownDirectMemory()) {
+                    return null;
+                }
+                buffer.force();
+                this.flushPointer.set(this.writePointer.get());
+                this.mappedByteBuffer = null;
+                if (this.fileChannel != null) {
+                    try {
+                        this.fileChannel.close();
+                    } catch (IOException e) {
+                        log.error("Close file channel of {} error", fileName, e);
+                    }
+                    this.fileChannel = null;
+                }
+                return buffer;
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * 扩大映射直到能写到指定位置，每次翻倍，不超过文件大小，只在写锁内调用
+     * 正在读的请求可能还持有原来的映射，两个映射共享页缓存，原映射和空闲关闭摘除的映射一样延迟释放
+     * @param required 需要写到的位置
+     */
+    private synchronized void growMapping(int required) {
+        if (this.destroyed) {
+            throw new IllegalStateException("Mapped file " + fullPath + " has been destroyed");
+        }
+        // 超过文件大小时翻倍到文件大小也不够，不能再扩大
+        if (required > this.fileSize) {
+            throw new IllegalArgumentException("Mapped file " + fullPath + " can not grow to " + required
+                    + ", file size is " + this.fileSize);
+        }
+        int size = this.mappedSize;
+        while (size < required) {
+            size = (int) Math.min(size * 2L, this.fileSize);
+        }
+        MappedByteBuffer superseded = this.mappedByteBuffer;
+        try {
+            this.mappedByteBuffer = this.openChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } catch (IOException e) {
+            log.error("Grow mapping of {} error", fullPath, e);
+            throw new RuntimeException(e);
+        }
+        log.info("Grow mapping of {}, {} ---> {}", fileName, this.mappedSize, size);
+        this.mappedSize = size;
+        IdleQueueService releaser = this.idleQueueService;
+        if (superseded != null && releaser != null) {
+            releaser.deferRelease(superseded);
+        }
+    }
+
+    public void setRegionManager(MappedRegionManager regionManager) {
+        this.regionManager = regionManager;
+    }
+
+    public void setIdleQueueService(IdleQueueService idleQueueService) {
+        this.idleQueueService = idleQueueService;
+    }
+
+    public void setNameDictionary(NameDictionary nameDictionary) {
+        this.nameDictionary = nameDictionary;
+    }
+
+    public long getLastAccess() {
+        return lastAccess;
+    }
+
+    /**
+     * 文件是否已经映射
+     * @return
+     */
+    public boolean isMapped() {
+        return this.mappedByteBuffer != null;
+    }
+
+    public int getMappedSize() {
+        return mappedSize;
+    }
+
+    /**
+     * 获取映射的buffer，用于直接写映射的文件，例如消费队列
+     * @return
      */
-    public ByteBuffer getWriteBuffer() {
-        return this.directBuffer != null ? this.directBuffer : this.mappedByteBuffer;
+    public MappedByteBuffer getWriteBuffer() {
+        return this.mappedBuffer();
+    }
+
+    /**
+     * 获取文件通道，没有打开时打开文件，不映射
+     * @return
+     * @throws IOException
+     */
+    public synchronized FileChannel getFileChannel() throws IOException {
+        if (this.destroyed) {
+            throw new IOException("Mapped file " + fullPath + " has been destroyed");
+        }
+        return this.openChannel();
     }
 
     /**
@@ -157,72 +425,282 @@ public class MappedFile {
             log.error("Get error inner message null");
             return new PutMessageResponse(StoreResponseType.PARAMETER_ERROR);
         }
-        log.info("Begin put message");
+        List<PutMessageResponse> responses = new ArrayList<>(1);
+        int written = this.putMessages(Collections.singletonList(innerMessage), 0, responses);
+        if (written == 0) {
+            return new PutMessageResponse(StoreResponseType.NO_ENOUGH_SPACE);
+        }
+        return responses.get(0);
+    }
+
+    /**
+     * 向commitLog中批量写入消息，整批只加一次锁，只更新一次写指针
+     * @param innerMessages 待写入的消息
+     * @param from 从第几条开始写
+     * @param responses 每条写入消息的结果
+     * @return 写入了多少条，写不下的部分由调用者切换文件后继续写
+     */
+    public int putMessages(List<StoreInnerMessage> innerMessages, int from, List<PutMessageResponse> responses) {
         writeLock.lock();
         try {
-            // 总长度int + topic长度int + topic + tag长度int + tag + body长度int + body + id长度int + id + retry + 队列号int
-            final byte[] idData = innerMessage.getId().getBytes(MQConstant.CHARSETNAME);
-            int idLen = idData.length;
-
-            final byte[] topicData = innerMessage.getTopic().getBytes(MQConstant.CHARSETNAME);
-            int topicLen = topicData.length;
+            int pos = writePointer.get();
+            WriteStrategy strategy = this.writeStrategy;
+            boolean waitCommit = strategy.waitCommit();
+            WriteSegment segment = strategy.begin(pos);
+            ByteBuffer writeBuffer = segment.getBuffer();
+            int written = 0;
+            // 同一批消息使用同一个存储时间，写锁保证commitLog中的存储时间单调
+            long storeTimestamp = System.currentTimeMillis();
+            for (int i = from; i < innerMessages.size(); i++) {
+                StoreInnerMessage innerMessage = innerMessages.get(i);
+                if (innerMessage == null) {
+                    log.error("Get error inner message null");
+                    responses.add(new PutMessageResponse(StoreResponseType.PARAMETER_ERROR));
+                    written++;
+                    continue;
+                }
+                int total;
+                try {
+                    // 写分片时分片内的位置和文件位置不同
+                    total = this.appendMessage(writeBuffer, pos - segment.getBase(), pos, innerMessage,
+                            storeTimestamp);
+                } catch (UnsupportedEncodingException e) {
+                    log.error("UnsupportedEncodingException when decoding");
+                    responses.add(new PutMessageResponse(StoreResponseType.PARAMETER_ERROR));
+                    written++;
+                    continue;
+                }
+                // 写不下了
+                if (total == -1) {
+                    break;
+                }
+                // 当前分片写不下，换下一个分片，空分片都写不下的大消息直接写映射，然后重写这一条
+                if (total == NO_ENOUGH_ROOM) {
+                    segment = strategy.next(segment, pos, pos != segment.getStart());
+                    writeBuffer = segment.getBuffer();
+                    i--;
+                    continue;
+                }
+                long offset = BrokerUtil.calOffset(this.fileName, pos);
+                // 只有开启了堆外内存的文件才需要等待提交后转发
+                if (waitCommit && innerMessage instanceof StoreBatchMessage) {
+                    this.unCommitEntryList.appendBatch(pos, total, (StoreBatchMessage) innerMessage);
+                } else if (waitCommit) {
+                    this.unCommitEntryList.append(pos, total, innerMessage.getTopic(),
+                            innerMessage.getMessageQueue().getQueueId(), innerMessage.getTag(),
+                            innerMessage.getDelay(), innerMessage.getId());
+                }
+                PutMessageResponse response = new PutMessageResponse(StoreResponseType.STORE_OK, offset, total, this);
+                response.setWaitCommit(waitCommit);
+                responses.add(response);
+                pos += total;
+                written++;
+            }
+            // 整批写完之后再移动写指针，需要写入文件的方式在这之前写完
+            strategy.complete(segment, pos);
+            writePointer.set(pos);
+            if (written > 0) {
+                this.markDirty();
+            }
+            return written;
+        } finally {
+            writeLock.unlock();
+        }
+    }
 
-            final byte[] tagData = innerMessage.getTag().getBytes(MQConstant.CHARSETNAME);
-            int tagLen = tagData.length;
+    /**
+     * 在指定位置写入一条消息
+     * @param writeBuffer
+     * @param pos buffer中的位置
+     * @param filePos 文件中的位置
+     * @param innerMessage
+     * @param storeTimestamp 存储时间
+     * @return 消息总长度，文件空间不足返回-1，buffer空间不足返回NO_ENOUGH_ROOM
+     * @throws UnsupportedEncodingException
+     */
+    private int appendMessage(ByteBuffer writeBuffer, int pos, int filePos, StoreInnerMessage innerMessage,
+                              long storeTimestamp) throws UnsupportedEncodingException {
+        if (innerMessage instanceof StoreBatchMessage) {
+            return this.appendBatch(writeBuffer, pos, filePos, (StoreBatchMessage) innerMessage, storeTimestamp);
+        }
+        // 总长度int + topic长度int + topic + tag长度int + tag + body长度int + body + id长度int + id + retry + 队列号int
+        // + 产生时间long + 存储时间long + 延时时间long + 校验和int
+        // 有字典编号时topic和tag改为：编号标记int + topic编号int + tag编号int
+        // 消息id一般是纯ASCII，直接写入buffer，否则才编码成数组
+        final String id = innerMessage.getId();
+        int idLen = EncodedNames.asciiLength(id);
+        final byte[] idData = idLen < 0 ? id.getBytes(MQConstant.CHARSETNAME) : null;
+        if (idData != null) {
+            idLen = idData.length;
+        }
 
-            final byte[] body = innerMessage.getBody();
-            int bodyLen = body.length;
+        final byte[] body = innerMessage.getBody();
+        int bodyLen = body.length;
 
-            int queueSelected = innerMessage.getMessageQueue().getQueueId();
+        int queueSelected = innerMessage.getMessageQueue().getQueueId();
 
-            int retry = innerMessage.getRetry();
+        int retry = innerMessage.getRetry();
 
-            int total = this.calTotalLength(topicLen, tagLen, bodyLen, idLen);
+        // topic和tag都有字典编号时只写编号，否则写字符串
+        // 编号在提交之前已经查好，没有查过的只使用已有的编号，不在写锁内登记新名称
+        int topicId = innerMessage.getTopicId(), tagId = innerMessage.getTagId();
+        if (tagId == NameDictionary.NO_ID && this.nameDictionary != null
+                && this.persistentConfig.isEnableNameDictionary()) {
+            topicId = this.nameDictionary.existingIdOf(innerMessage.getTopic());
+            tagId = topicId == NameDictionary.NO_ID ? NameDictionary.NO_ID
+                    : this.nameDictionary.existingIdOf(innerMessage.getTag());
+        }
+        boolean nameIds = tagId != NameDictionary.NO_ID;
+        byte[] topicData = null, tagData = null;
+        int total;
+        if (nameIds) {
+            // 标记、topic编号、tag编号正好占用topic长度、4字节topic、tag长度的位置
+            total = this.calTotalLength(4, 0, bodyLen, idLen);
+        } else {
+            topicData = EncodedNames.encode(innerMessage.getTopic());
+            tagData = EncodedNames.encode(innerMessage.getTag());
+            total = this.calTotalLength(topicData.length, tagData.length, bodyLen, idLen);
+        }
 
-            if (this.writePointer.get() + total >= this.fileSize) { // 写不下了
-//                this.sweepThisFile();
-                return new PutMessageResponse(StoreResponseType.NO_ENOUGH_SPACE);
-            }
+        if (filePos + total >= this.fileSize) { // 写不下了
+            return -1;
+        }
+        if (pos + total > writeBuffer.capacity()) { // 分片写不下了
+            return NO_ENOUGH_ROOM;
+        }
 
-            ByteBuffer writeBuffer = this.getWriteBuffer().slice();
-            int pos = writePointer.get();
-            writeBuffer.position(pos);
+        writeBuffer.position(pos);
 
-            writeBuffer.putInt(total);
+        writeBuffer.putInt(total);
 
-            writeBuffer.putInt(topicLen);
+        if (nameIds) {
+            writeBuffer.putInt(NAME_ID_MAGIC);
+            writeBuffer.putInt(topicId);
+            writeBuffer.putInt(tagId);
+        } else {
+            writeBuffer.putInt(topicData.length);
             writeBuffer.put(topicData);
 
-            writeBuffer.putInt(tagLen);
+            writeBuffer.putInt(tagData.length);
             writeBuffer.put(tagData);
+        }
 
-            writeBuffer.putInt(bodyLen);
-            writeBuffer.put(body);
+        writeBuffer.putInt(bodyLen);
+        writeBuffer.put(body);
 
-            writeBuffer.putInt(idLen);
+        writeBuffer.putInt(idLen);
+        if (idData == null) {
+            EncodedNames.putAscii(writeBuffer, id);
+        } else {
             writeBuffer.put(idData);
+        }
 
-            writeBuffer.putInt(retry);
+        writeBuffer.putInt(retry);
 
-            writeBuffer.putInt(queueSelected);
+        writeBuffer.putInt(queueSelected);
 
-            writePointer.getAndAdd(total);
-            long offset = BrokerUtil.calOffset(this.fileName, pos);
-            this.unCommitEntryList.append(pos, total, innerMessage.getTopic(), queueSelected, innerMessage.getTag(),
-                    innerMessage.getDelay());
+        writeBuffer.putLong(innerMessage.getBornTimestamp());
+        writeBuffer.putLong(storeTimestamp);
+        innerMessage.setStoreTimestamp(storeTimestamp);
 
-            return new PutMessageResponse(StoreResponseType.STORE_OK, offset, total, this);
+        // 延时时间只用于崩溃恢复时重新转发，读取消息时不还原
+        writeBuffer.putLong(innerMessage.getDelay());
 
-        } catch (IOException e) {
-            log.error("UnsupportedEncodingException when decoding");
-            return new PutMessageResponse(StoreResponseType.PARAMETER_ERROR);
-        } finally {
-            writeLock.unlock();
+        writeBuffer.putInt(pos + total - 4, this.crc(writeBuffer, pos, total - 4));
+
+        return total;
+    }
+    /**
+     * 在指定位置写入一条批量记录，整批共用的字段只写一次，头部之后是每条消息的位置表和各条消息
+     * 消费队列中的偏移指向记录内的每条消息，消息开头记录到头部的距离，最后一条消息正好结束在记录末尾
+     * 压缩过的消息体原样写在头部和位置表之间，各条消息只保留tag
+     * @param writeBuffer
+     * @param pos buffer中的位置
+     * @param filePos 文件中的位置
+     * @param batch
+     * @param storeTimestamp 存储时间
+     * @return 记录总长度，文件空间不足返回-1，buffer空间不足返回NO_ENOUGH_ROOM
+     * @throws UnsupportedEncodingException
+     */
+    private int appendBatch(ByteBuffer writeBuffer, int pos, int filePos, StoreBatchMessage batch,
+                            long storeTimestamp) throws UnsupportedEncodingException {
+        final byte[] idData = batch.getId().getBytes(MQConstant.CHARSETNAME);
+        final byte[] topicData = EncodedNames.encode(batch.getTopic());
+        List<Message> messages = batch.getMessages();
+        int count = messages.size();
+        boolean compressed = batch.isCompressed();
+        byte[] compressedBodies = batch.getCompressedBodies();
+        int[] positions = new int[count];
+        int[] sizes = new int[count];
+
+        int total = BATCH_HEADER_LENGTH + topicData.length + idData.length + 4 * count;
+        if (compressed) {
+            total += COMPRESSED_INFO_LENGTH + compressedBodies.length;
+        }
+        for (int i = 0; i < count; i++) {
+            Message message = messages.get(i);
+            int tagLen = EncodedNames.encode(message.getTag()).length;
+            positions[i] = total;
+            sizes[i] = compressed ? COMPRESSED_ITEM_LENGTH + tagLen
+                    : BATCH_ITEM_LENGTH + tagLen + message.getBody().length;
+            total += sizes[i];
+        }
+
+        if (filePos + total >= this.fileSize) { // 写不下了
+            return -1;
+        }
+        if (pos + total > writeBuffer.capacity()) { // 分片写不下了
+            return NO_ENOUGH_ROOM;
+        }
+
+        writeBuffer.position(pos);
+        writeBuffer.putInt(total);
+        writeBuffer.putInt(compressed ? COMPRESSED_MAGIC : BATCH_MAGIC);
+        // 校验和最后写入
+        writeBuffer.putInt(0);
+
+        writeBuffer.putInt(topicData.length);
+        writeBuffer.put(topicData);
+        writeBuffer.putInt(idData.length);
+        writeBuffer.put(idData);
+
+        writeBuffer.putInt(batch.getRetry());
+        writeBuffer.putInt(batch.getMessageQueue().getQueueId());
+        writeBuffer.putLong(batch.getBornTimestamp());
+        writeBuffer.putLong(storeTimestamp);
+        batch.setStoreTimestamp(storeTimestamp);
+        writeBuffer.putLong(batch.getDelay());
+        writeBuffer.putInt(count);
+        if (compressed) {
+            writeBuffer.put(batch.getCompression().getCode());
+            writeBuffer.putInt(batch.getRawLength());
+            writeBuffer.putInt(compressedBodies.length);
+            writeBuffer.put(compressedBodies);
         }
+
+        for (int position : positions) {
+            writeBuffer.putInt(position);
+        }
+        for (int i = 0; i < count; i++) {
+            byte[] tagData = EncodedNames.encode(messages.get(i).getTag());
+            writeBuffer.putInt(-positions[i]);
+            writeBuffer.putInt(tagData.length);
+            writeBuffer.put(tagData);
+            if (!compressed) {
+                byte[] body = messages.get(i).getBody();
+                writeBuffer.putInt(body.length);
+                writeBuffer.put(body);
+            }
+        }
+        // 校验和覆盖校验和之后的所有字节
+        writeBuffer.putInt(pos + 8, this.crc(writeBuffer, pos + 12, total - 12));
+        batch.setLayout(positions, sizes);
+        return total;
     }
+
     /**
      * 读对应偏移位置的信息
-     * @param start
+     * @param start 普通记录或者批量记录中一条消息的位置，批量记录的起点读取第一条消息
      * @return
      */
     public StoreInnerMessage readSingleMessage(int start) {
@@ -232,22 +710,47 @@ public class MappedFile {
             return null;
         }
         // 定位开始读
-        ByteBuffer byteBuffer = this.mappedByteBuffer.slice();
+        ByteBuffer byteBuffer = this.readBuffer().slice();
+        try {
+            int first = byteBuffer.getInt(start);
+            // 批量记录中的消息
+            if (first < 0) {
+                return this.readBatchItem(byteBuffer, this.readBatchHeader(byteBuffer, start + first), start);
+            }
+            if (MessageRecordCodec.isBatch(byteBuffer.getInt(start + 4))) {
+                BatchHeader header = this.readBatchHeader(byteBuffer, start);
+                return this.readBatchItem(byteBuffer, header, start + byteBuffer.getInt(header.tableStart));
+            }
+        } catch (UnsupportedEncodingException e) {
+            log.warn("UnsupportedEncodingException in readSingleMessage");
+            return null;
+        }
         byteBuffer.position(start);
         StoreInnerMessage message = null;
 
         try {
             int total = byteBuffer.getInt();
 
-            int topicSize = byteBuffer.getInt();
-            byte[] topicByte = new byte[topicSize];
-            byteBuffer.get(topicByte);
-            String topic = new String(topicByte, MQConstant.CHARSETNAME);
-
-            int tagSize = byteBuffer.getInt();
-            byte[] tagByte = new byte[tagSize];
-            byteBuffer.get(tagByte);
-            String tag = new String(tagByte, MQConstant.CHARSETNAME);
+            String topic, tag;
+            if (byteBuffer.getInt(start + 4) == NAME_ID_MAGIC) {
+                byteBuffer.getInt();
+                topic = this.nameOf(byteBuffer.getInt());
+                tag = this.nameOf(byteBuffer.getInt());
+                if (topic == null || tag == null) {
+                    log.warn("Unknown name id in record {} of {}", start, fileName);
+                    return null;
+                }
+            } else {
+                int topicSize = byteBuffer.getInt();
+                byte[] topicByte = new byte[topicSize];
+                byteBuffer.get(topicByte);
+                topic = new String(topicByte, MQConstant.CHARSETNAME);
+
+                int tagSize = byteBuffer.getInt();
+                byte[] tagByte = new byte[tagSize];
+                byteBuffer.get(tagByte);
+                tag = new String(tagByte, MQConstant.CHARSETNAME);
+            }
 
             int bodySize = byteBuffer.getInt();
             byte[] body = new byte[bodySize];
@@ -262,6 +765,11 @@ public class MappedFile {
             int retry = byteBuffer.getInt();
             int queueId = byteBuffer.getInt();
             message = new StoreInnerMessage(topic, tag, id, body, retry, queueId);
+            // 旧格式的记录没有时间戳
+            if (byteBuffer.position() - start + TIMESTAMP_LENGTH <= total) {
+                message.setBornTimestamp(byteBuffer.getLong());
+                message.setStoreTimestamp(byteBuffer.getLong());
+            }
 
         } catch (UnsupportedEncodingException e) {
             log.warn("UnsupportedEncodingException in readSingleMessage");
@@ -269,41 +777,370 @@ public class MappedFile {
         return message;
     }
 
+    /**
+     * 读取对应位置记录中的所有消息，批量记录返回整批，普通记录只有一条
+     * @param start 记录起点
+     * @return
+     */
+    public List<StoreInnerMessage> readMessages(int start) {
+        if (start < 0 || start >= getReadPointer()) {
+            return null;
+        }
+        ByteBuffer byteBuffer = this.readBuffer().slice();
+        if (byteBuffer.getInt(start) < 0 || !MessageRecordCodec.isBatch(byteBuffer.getInt(start + 4))) {
+            StoreInnerMessage message = this.readSingleMessage(start);
+            return message == null ? null : Collections.singletonList(message);
+        }
+        try {
+            BatchHeader header = this.readBatchHeader(byteBuffer, start);
+            List<StoreInnerMessage> messages = new ArrayList<>(header.count);
+            for (int i = 0; i < header.count; i++) {
+                int itemStart = start + byteBuffer.getInt(header.tableStart + 4 * i);
+                messages.add(this.readBatchItem(byteBuffer, header, itemStart));
+            }
+            return messages;
+        } catch (UnsupportedEncodingException e) {
+            log.warn("UnsupportedEncodingException in readMessages");
+            return null;
+        }
+    }
+
+    /**
+     * 解析批量记录的头部
+     * @param byteBuffer
+     * @param start 记录起点
+     * @return
+     * @throws UnsupportedEncodingException
+     */
+    private BatchHeader readBatchHeader(ByteBuffer byteBuffer, int start) throws UnsupportedEncodingException {
+        ByteBuffer buffer = byteBuffer.duplicate();
+        buffer.position(start);
+        BatchHeader header = new BatchHeader();
+        header.start = start;
+        header.total = buffer.getInt();
+        int magic = buffer.getInt();
+        // 校验和
+        buffer.getInt();
+        header.topic = this.readString(buffer);
+        header.id = this.readString(buffer);
+        header.retry = buffer.getInt();
+        header.queueId = buffer.getInt();
+        header.bornTimestamp = buffer.getLong();
+        header.storeTimestamp = buffer.getLong();
+        header.delay = buffer.getLong();
+        header.count = buffer.getInt();
+        if (magic == COMPRESSED_MAGIC) {
+            header.compression = CompressionType.of(buffer.get());
+            header.rawLength = buffer.getInt();
+            header.blobLength = buffer.getInt();
+            header.blobStart = buffer.position();
+            buffer.position(header.blobStart + header.blobLength);
+        }
+        header.tableStart = buffer.position();
+        return header;
+    }
+
+    /**
+     * 批量记录头部中id长度字段的位置，在变长的topic之后
+     * @param byteBuffer
+     * @param start 记录起点
+     * @return
+     */
+    private int batchIdPosition(ByteBuffer byteBuffer, int start) {
+        return start + 4 + 4 + 4 + 4 + byteBuffer.getInt(start + 12);
+    }
+
+    private StoreInnerMessage readBatchItem(ByteBuffer byteBuffer, BatchHeader header, int itemStart)
+            throws UnsupportedEncodingException {
+        ByteBuffer buffer = byteBuffer.duplicate();
+        buffer.position(itemStart + 4);
+        String tag = this.readString(buffer);
+        byte[] body;
+        if (header.compression == CompressionType.NONE) {
+            body = new byte[buffer.getInt()];
+            buffer.get(body);
+        } else {
+            body = this.batchBodies(byteBuffer, header)[this.batchIndex(byteBuffer, header, itemStart)];
+        }
+        StoreInnerMessage message = new StoreInnerMessage(header.topic, tag, header.id, body, header.retry,
+                header.queueId);
+        message.setBornTimestamp(header.bornTimestamp);
+        message.setStoreTimestamp(header.storeTimestamp);
+        return message;
+    }
+
+    /**
+     * 压缩批量记录中消息的序号，位置表按位置递增，二分查找
+     * @param byteBuffer
+     * @param header
+     * @param itemStart 消息的文件内偏移
+     * @return
+     */
+    private int batchIndex(ByteBuffer byteBuffer, BatchHeader header, int itemStart) {
+        int position = itemStart - header.start;
+        int low = 0, high = header.count - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int value = byteBuffer.getInt(header.tableStart + 4 * mid);
+            if (value == position) {
+                return mid;
+            } else if (value < position) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        throw new IllegalStateException("Batch item " + itemStart + " not in table of " + header.start);
+    }
+
+    /**
+     * 解压批量记录中的消息体，缓存最近一批，同一批的消息依次读取时只解压一次
+     * @param byteBuffer
+     * @param header
+     * @return
+     */
+    private byte[][] batchBodies(ByteBuffer byteBuffer, BatchHeader header) {
+        BatchBodies cached = this.lastBodies;
+        if (cached != null && cached.start == header.start) {
+            return cached.bodies;
+        }
+        byte[] data = new byte[header.blobLength];
+        ByteBuffer buffer = byteBuffer.duplicate();
+        buffer.position(header.blobStart);
+        buffer.get(data);
+        byte[][] bodies = MessageRecordCodec.unpackBodies(header.compression.decompress(data, header.rawLength),
+                header.count);
+        this.lastBodies = new BatchBodies(header.start, bodies);
+        return bodies;
+    }
+
+    /**
+     * 批量记录中消息所属记录的起点
+     * @param start 文件内偏移
+     * @return 不是批量记录中的消息返回-1
+     */
+    public int batchHeaderStart(int start) {
+        if (start < 0 || start >= getReadPointer()) {
+            return -1;
+        }
+        int first = this.readBuffer().getInt(start);
+        return first < 0 ? start + first : -1;
+    }
+
+    /**
+     * 批量记录中的消息只有和记录头部一起才能解析，获取头部在映射内存上的切片，不复制数据
+     * 压缩的批量记录头部包含压缩后的消息体和位置表
+     * @param headerStart 记录起点，由batchHeaderStart得到
+     * @return
+     */
+    public ByteBuffer selectBatchHeader(int headerStart) {
+        ByteBuffer byteBuffer = this.readBuffer().slice();
+        byteBuffer.position(headerStart);
+        byteBuffer.limit(this.batchHeaderEnd(byteBuffer, headerStart));
+        return byteBuffer.slice();
+    }
+
+    /**
+     * 批量记录头部的结束位置
+     * @param byteBuffer
+     * @param headerStart 记录起点
+     * @return
+     */
+    private int batchHeaderEnd(ByteBuffer byteBuffer, int headerStart) {
+        int idStart = this.batchIdPosition(byteBuffer, headerStart);
+        // id之后是retry、队列号、时间戳、延时时间和消息数
+        int headerEnd = idStart + 4 + byteBuffer.getInt(idStart) + 4 + 4 + TIMESTAMP_LENGTH + 8 + 4;
+        if (byteBuffer.getInt(headerStart + 4) == COMPRESSED_MAGIC) {
+            int count = byteBuffer.getInt(headerEnd - 4);
+            headerEnd += COMPRESSED_INFO_LENGTH + byteBuffer.getInt(headerEnd + 1 + 4) + 4 * count;
+        }
+        return headerEnd;
+    }
+
+    /**
+     * 冷读：通过FileChannel按位置读取，不经过映射内存，已经解除映射的旧文件也不会重新映射
+     * @param start 文件内偏移
+     * @param dst 读满剩余空间
+     * @return 超出可读范围或者读取失败返回false
+     */
+    public boolean readFromChannel(int start, ByteBuffer dst) {
+        if (start < 0 || start + dst.remaining() > getReadPointer()) {
+            return false;
+        }
+        try {
+            FileChannel channel;
+            synchronized (this) {
+                if (this.destroyed) {
+                    return false;
+                }
+                channel = this.openChannel();
+            }
+            long position = start;
+            while (dst.hasRemaining()) {
+                int read = channel.read(dst, position);
+                if (read < 0) {
+                    return false;
+                }
+                position += read;
+            }
+            return true;
+        } catch (IOException e) {
+            log.warn("Read file {} from channel error", fullPath, e);
+            return false;
+        }
+    }
+
+    /**
+     * 冷读批量记录中消息所属记录的起点
+     * @param record 通过readFromChannel读到的消息
+     * @param start 消息的文件内偏移
+     * @return 不是批量记录中的消息返回-1
+     */
+    public static int batchHeaderStart(ByteBuffer record, int start) {
+        int first = record.getInt(record.position());
+        return first < 0 ? start + first : -1;
+    }
+
+    /**
+     * 冷读批量记录头部，读取记录起点到消息之间的数据，截取其中的头部
+     * @param headerStart 记录起点
+     * @param dst 剩余空间是记录起点到消息的距离
+     * @return 读取失败返回null
+     */
+    public ByteBuffer readBatchHeaderFromChannel(int headerStart, ByteBuffer dst) {
+        ByteBuffer byteBuffer = dst.slice();
+        if (!this.readFromChannel(headerStart, byteBuffer)) {
+            return null;
+        }
+        byteBuffer.flip();
+        byteBuffer.limit(this.batchHeaderEnd(byteBuffer, 0));
+        return byteBuffer.slice();
+    }
+
+    /**
+     * 只读取对应位置消息的存储时间，不解析消息体
+     * @param start 文件内偏移
+     * @return 存储时间，记录不存在或者是旧格式返回-1
+     */
+    public long readStoreTimestamp(int start) {
+        if (start < 0 || start >= getReadPointer()) {
+            return -1;
+        }
+        ByteBuffer byteBuffer = this.readBuffer().slice();
+        // 批量记录中的消息使用记录头部的存储时间
+        if (byteBuffer.getInt(start) < 0) {
+            start += byteBuffer.getInt(start);
+        }
+        byteBuffer.position(start);
+        int total = byteBuffer.getInt();
+        if (total <= 0) {
+            return -1;
+        }
+        if (MessageRecordCodec.isBatch(byteBuffer.getInt(start + 4))) {
+            int idStart = this.batchIdPosition(byteBuffer, start);
+            return byteBuffer.getLong(idStart + 4 + byteBuffer.getInt(idStart) + 4 + 4 + 8);
+        }
+        // 依次跳过topic、tag、body、id，字典编号的记录跳过标记和两个编号
+        int pos = start + 4;
+        int fields = 4;
+        if (byteBuffer.getInt(pos) == NAME_ID_MAGIC) {
+            pos += 4 + 4 + 4;
+            fields = 2;
+        }
+        for (int i = 0; i < fields; i++) {
+            pos += 4 + byteBuffer.getInt(pos);
+        }
+        // retry + 队列号
+        pos += 4 + 4;
+        if (pos - start + TIMESTAMP_LENGTH > total) {
+            return -1;
+        }
+        return byteBuffer.getLong(pos + 8);
+    }
+
+    /**
+     * 获取对应位置记录在映射内存上的切片，不复制数据
+     * @param start 文件内偏移
+     * @param size 记录长度
+     * @return
+     */
+    public ByteBuffer selectRecord(int start, int size) {
+        if (start < 0 || size <= 0 || start + size > getReadPointer()) {
+            return null;
+        }
+        ByteBuffer byteBuffer = this.readBuffer().slice();
+        byteBuffer.position(start);
+        byteBuffer.limit(start + size);
+        return byteBuffer.slice();
+    }
+
     /**
      * 将commitLog中的信息写入到消费队列中
      * @param offset log中的偏移
      * @param size 消息长度
+     * @param tagHash 消息tag的哈希
      * @return
      */
-    public PutMessageResponse putOffsetIndex(long offset, int size) {
-        if (offset < 0 || size < 0) {
+    public PutMessageResponse putOffsetIndex(long offset, int size, int tagHash) {
+        int pos = this.appendOffsetIndex(offset, size, tagHash);
+        if (pos == -1) {
             return new PutMessageResponse(StoreResponseType.PARAMETER_ERROR);
         }
-        int total = persistentConfig.getQueueUnit();
-        if (writePointer.get() + total >= persistentConfig.getMaxQueueSize()) {
+        if (pos == NO_ENOUGH_ROOM) {
             return new PutMessageResponse(StoreResponseType.NO_ENOUGH_SPACE);
         }
-        writeLock.lock();
-        int pos = writePointer.get();
-        ByteBuffer writeBuffer = this.mappedByteBuffer.slice();
-        writeBuffer.position(pos);
+        return new PutMessageResponse(StoreResponseType.STORE_OK, pos, this);
+    }
 
-        writeBuffer.putLong(offset);
-        writeBuffer.putInt(size);
+    /**
+     * 写入一条消费队列索引，直接按绝对位置写映射，不创建buffer和响应对象
+     * @param offset commitLog偏移
+     * @param size 消息长度
+     * @param tagHash tag的哈希
+     * @return 写入的位置，参数错误返回-1，空间不足返回NO_ENOUGH_ROOM
+     */
+    public int appendOffsetIndex(long offset, int size, int tagHash) {
+        if (offset < 0 || size < 0) {
+            return -1;
+        }
+        int total = persistentConfig.getQueueUnit();
+        // 每个文件正好存maxQueueItemNumber条，队列偏移才能按文件序号换算
+        if (writePointer.get() + total > persistentConfig.getMaxQueueSize()) {
+            return NO_ENOUGH_ROOM;
+        }
+        writeLock.lock();
+        int pos;
+        try {
+            pos = writePointer.get();
+            // 锁外的检查可能和其他写入同时通过，拿到锁后按实际的写指针再检查一次
+            if (pos + total > persistentConfig.getMaxQueueSize()) {
+                return NO_ENOUGH_ROOM;
+            }
+            // 映射写满后扩大映射
+            if (pos + total > this.mappedSize) {
+                this.growMapping(pos + total);
+            }
+            ByteBuffer writeBuffer = this.mappedBuffer();
+            writeBuffer.putLong(pos, offset);
+            writeBuffer.putInt(pos + 8, size);
+            writeBuffer.putInt(pos + 12, tagHash);
 
-        // 更新写指针
-        writePointer.getAndAdd(total);
-        writeLock.unlock();
+            // 更新写指针
+            writePointer.getAndAdd(total);
+        } finally {
+            writeLock.unlock();
+        }
+        this.markDirty();
 
-        return new PutMessageResponse(StoreResponseType.STORE_OK, pos, this);
+        return pos;
     }
 
     /**
      * 获取读指针
      * @return 如果开启堆外内存，那么只有提交的消息才能读，没开启的话，写过的就可以读
      */
-    private int getReadPointer() {
-        return this.directBuffer == null ? this.writePointer.get() : this.commitPointer.get();
+    public int getReadPointer() {
+        return this.writeStrategy.waitCommit() ? this.commitPointer.get() : this.writePointer.get();
     }
 
     /**
@@ -316,40 +1153,259 @@ public class MappedFile {
         if (start >= readPointer) {
             return null;
         }
-        ByteBuffer byteBuffer = this.mappedByteBuffer.slice();
-        byteBuffer.position(start);
-        long offset = byteBuffer.getLong();
-        int size = byteBuffer.getInt();
-        return new Pair<>(offset, size);
+        ByteBuffer byteBuffer = this.readBuffer();
+        return new Pair<>(byteBuffer.getLong(start), byteBuffer.getInt(start + 8));
     }
 
     /**
-     * 批量读取
-     * @param start
-     * @param number
-     * @return
+     * 批量读取索引，并只根据索引中的tag哈希过滤，不需要读commitLog
+     * 按绝对位置读映射，结果写入基本类型数组，整个过程不创建对象
+     * @param start 文件内起始位置
+     * @param number 最多扫描的索引数
+     * @param queueOffset 起始位置的索引在队列中的偏移
+     * @param tagHashes 订阅tag的哈希，升序排列，为null不过滤
+     * @param result 匹配的索引
+     * @return 实际扫描的索引数
      */
-    public List<Pair<Long, Integer>> readOffsetIndex(int start, int number) {
+    public int readOffsetIndex(int start, int number, long queueOffset, int[] tagHashes,
+                               IndexReadResult result) {
         int readPointer = getReadPointer();
         if (start >= readPointer) {
-            return null;
+            return 0;
         }
-        ByteBuffer byteBuffer = this.mappedByteBuffer.slice();
-        byteBuffer.position(start);
-        List<Pair<Long, Integer>> list = new ArrayList<>();
-
-        while (number-- > 0 && start < readPointer) {
-            long offset = byteBuffer.getLong();
-            int size = byteBuffer.getInt();
-            list.add(new Pair<>(offset, size));
-            start += persistentConfig.getQueueUnit();
+        ByteBuffer byteBuffer = this.readBuffer();
+        int queueUnit = persistentConfig.getQueueUnit();
+        int scanned = 0;
+        while (scanned < number && start < readPointer && !result.isFull()) {
+            long offset = byteBuffer.getLong(start);
+            int size = byteBuffer.getInt(start + 8);
+            int tagHash = byteBuffer.getInt(start + 12);
+            if (tagHashes == null || tagHash == BrokerUtil.UNKNOWN_TAG_HASH
+                    || Arrays.binarySearch(tagHashes, tagHash) >= 0) {
+                result.add(queueOffset + scanned, offset, size);
+            }
+            start += queueUnit;
+            scanned++;
         }
-
-        return list;
+        return scanned;
     }
     private int calTotalLength(int topicLen, int tagLen, int bodyLen, int idLen) {
-        return 4 + 4 + topicLen + 4 + tagLen + 4 + bodyLen + 4 + idLen + 4 + 4;
+        return 4 + 4 + topicLen + 4 + tagLen + 4 + bodyLen + 4 + idLen + 4 + 4 + TIMESTAMP_LENGTH + DELAY_CRC_LENGTH;
         // 总长度int + topic长度int + topic + tag长度int + tag + body长度int + body + id长度int + id + retry + 队列号int
+        // + 产生时间long + 存储时间long + 延时时间long + 校验和int
+    }
+
+    /**
+     * 计算写入buffer中一段数据的校验和，临时移动buffer的读写范围，计算完恢复，不复制buffer
+     * 写入用的buffer只在写锁内使用
+     */
+    private int crc(ByteBuffer buffer, int start, int length) {
+        int limit = buffer.limit(), position = buffer.position();
+        buffer.limit(start + length);
+        buffer.position(start);
+        crc32C.reset();
+        crc32C.update(buffer);
+        buffer.limit(limit);
+        buffer.position(position);
+        return (int) crc32C.getValue();
+    }
+
+    /**
+     * 崩溃恢复时检查对应位置的记录是否完整，直接读取映射内存，不受读写指针限制
+     * 旧格式的记录没有校验和，只检查各字段长度是否一致
+     * @param start 文件内偏移
+     * @return 记录总长度，或者RECORD_BLANK、RECORD_CORRUPT
+     */
+    public int checkRecord(int start) {
+        if (start < 0 || start + 4 > this.fileSize) {
+            return RECORD_BLANK;
+        }
+        ByteBuffer byteBuffer = this.readBuffer().slice();
+        int total = byteBuffer.getInt(start);
+        if (total == 0) {
+            return RECORD_BLANK;
+        }
+        if (total < 0 || start + total > this.fileSize) {
+            return RECORD_CORRUPT;
+        }
+        if (start + 8 <= this.fileSize && MessageRecordCodec.isBatch(byteBuffer.getInt(start + 4))) {
+            return this.checkBatchRecord(byteBuffer, start, total);
+        }
+        // 依次跳过topic、tag、body、id，字典编号的记录跳过标记和两个编号
+        int pos = start + 4;
+        int fields = 4;
+        boolean nameIds = start + 8 <= this.fileSize && byteBuffer.getInt(pos) == NAME_ID_MAGIC;
+        if (nameIds) {
+            pos += 4 + 4 + 4;
+            fields = 2;
+        }
+        for (int i = 0; i < fields; i++) {
+            if (pos + 4 > start + total) {
+                return RECORD_CORRUPT;
+            }
+            int length = byteBuffer.getInt(pos);
+            if (length < 0) {
+                return RECORD_CORRUPT;
+            }
+            pos += 4 + length;
+        }
+        // retry + 队列号之后剩余的部分只能是三种格式之一，字典编号的记录一定带校验和
+        int remain = start + total - (pos + 4 + 4);
+        if (nameIds && remain != TIMESTAMP_LENGTH + DELAY_CRC_LENGTH) {
+            return RECORD_CORRUPT;
+        }
+        if (remain == TIMESTAMP_LENGTH + DELAY_CRC_LENGTH) {
+            ByteBuffer crcBuffer = byteBuffer.duplicate();
+            crcBuffer.limit(start + total - 4);
+            crcBuffer.position(start);
+            CRC32C checksum = new CRC32C();
+            checksum.update(crcBuffer);
+            return (int) checksum.getValue() == byteBuffer.getInt(start + total - 4) ? total : RECORD_CORRUPT;
+        }
+        return remain == 0 || remain == TIMESTAMP_LENGTH ? total : RECORD_CORRUPT;
+    }
+
+    /**
+     * 检查批量记录，只校验头部长度和校验和，校验通过时内部的位置表和消息都是写入时的内容
+     * @param byteBuffer
+     * @param start 文件内偏移
+     * @param total 记录总长度
+     * @return
+     */
+    private int checkBatchRecord(ByteBuffer byteBuffer, int start, int total) {
+        if (total < BATCH_HEADER_LENGTH) {
+            return RECORD_CORRUPT;
+        }
+        ByteBuffer crcBuffer = byteBuffer.duplicate();
+        crcBuffer.limit(start + total);
+        crcBuffer.position(start + 12);
+        CRC32C checksum = new CRC32C();
+        checksum.update(crcBuffer);
+        return (int) checksum.getValue() == byteBuffer.getInt(start + 8) ? total : RECORD_CORRUPT;
+    }
+
+    /**
+     * 崩溃恢复时读取需要重新转发到消费队列的信息，调用前需要先通过checkRecord检查
+     * 批量记录中的每条消息各是一条转发信息
+     * @param start 文件内偏移
+     * @param entries 读到的转发信息
+     * @return 是否读取成功
+     */
+    public boolean readCommitEntries(int start, List<CommitEntry> entries) {
+        ByteBuffer byteBuffer = this.readBuffer().slice();
+        if (!MessageRecordCodec.isBatch(byteBuffer.getInt(start + 4))) {
+            CommitEntry entry = this.readCommitEntry(byteBuffer, start);
+            if (entry == null) {
+                return false;
+            }
+            entries.add(entry);
+            return true;
+        }
+        try {
+            BatchHeader header = this.readBatchHeader(byteBuffer, start);
+            for (int i = 0; i < header.count; i++) {
+                int itemStart = start + byteBuffer.getInt(header.tableStart + 4 * i);
+                int itemEnd = i == header.count - 1 ? start + header.total
+                        : start + byteBuffer.getInt(header.tableStart + 4 * (i + 1));
+                ByteBuffer buffer = byteBuffer.duplicate();
+                buffer.position(itemStart + 4);
+                String tag = this.readString(buffer);
+                entries.add(this.batchEntry(start, header.total, itemStart, itemEnd - itemStart, header.topic,
+                        header.queueId, tag, header.delay, header.id, i == 0));
+            }
+            return true;
+        } catch (UnsupportedEncodingException e) {
+            log.warn("UnsupportedEncodingException in readCommitEntries");
+            return false;
+        }
+    }
+
+    /**
+     * 批量记录中一条消息的转发信息，整批共用一个消息id，只由第一条消息写入key索引，指向整条记录
+     */
+    private CommitEntry batchEntry(int recordStart, int recordSize, int itemStart, int itemSize, String topic,
+                                   int queueId, String tag, long delay, String id, boolean first) {
+        CommitEntry entry = new CommitEntry(topic, fileName, queueId, itemStart, itemSize, tag, delay,
+                first ? id : null);
+        if (first) {
+            entry.setKey(BrokerUtil.calOffset(fileName, recordStart), recordSize);
+        }
+        return entry;
+    }
+
+    private CommitEntry readCommitEntry(ByteBuffer byteBuffer, int start) {
+        byteBuffer.position(start);
+        try {
+            int total = byteBuffer.getInt();
+            String topic, tag;
+            if (byteBuffer.getInt(start + 4) == NAME_ID_MAGIC) {
+                byteBuffer.getInt();
+                topic = this.nameOf(byteBuffer.getInt());
+                tag = this.nameOf(byteBuffer.getInt());
+                if (topic == null || tag == null) {
+                    log.warn("Unknown name id in record {} of {}", start, fileName);
+                    return null;
+                }
+            } else {
+                topic = this.readString(byteBuffer);
+                tag = this.readString(byteBuffer);
+            }
+            int bodySize = byteBuffer.getInt();
+            byteBuffer.position(byteBuffer.position() + bodySize);
+            String id = this.readString(byteBuffer);
+            byteBuffer.getInt();
+            int queueId = byteBuffer.getInt();
+            long delay = 0;
+            if (total == byteBuffer.position() - start + TIMESTAMP_LENGTH + DELAY_CRC_LENGTH) {
+                delay = byteBuffer.getLong(byteBuffer.position() + TIMESTAMP_LENGTH);
+            }
+            return new CommitEntry(topic, fileName, queueId, start, total, tag, delay, id);
+        } catch (UnsupportedEncodingException e) {
+            log.warn("UnsupportedEncodingException in readCommitEntry");
+            return null;
+        }
+    }
+
+    private String nameOf(int id) {
+        return this.nameDictionary == null ? null : this.nameDictionary.nameOf(id);
+    }
+
+    private String readString(ByteBuffer byteBuffer) throws UnsupportedEncodingException {
+        byte[] data = new byte[byteBuffer.getInt()];
+        byteBuffer.get(data);
+        return new String(data, MQConstant.CHARSETNAME);
+    }
+
+    /**
+     * 清空指定位置之后的内容，崩溃恢复后旧数据不能被再次扫描到
+     * 只改写不为0的部分，没有写过的稀疏区域不会被分配磁盘空间
+     * @param start 文件内偏移
+     */
+    public void clearFrom(int start) {
+        this.lastBodies = null;
+        ByteBuffer byteBuffer = this.mappedBuffer().slice();
+        // 消费队列文件只映射了一部分，映射之外没有写过
+        int limit = byteBuffer.capacity();
+        boolean dirty = false;
+        int pos = start;
+        while (pos < limit) {
+            if (pos + 8 <= limit && (pos & 7) == 0) {
+                if (byteBuffer.getLong(pos) != 0) {
+                    byteBuffer.putLong(pos, 0L);
+                    dirty = true;
+                }
+                pos += 8;
+                continue;
+            }
+            if (byteBuffer.get(pos) != 0) {
+                byteBuffer.put(pos, (byte) 0);
+                dirty = true;
+            }
+            pos++;
+        }
+        if (dirty) {
+            this.mappedBuffer().force();
+        }
     }
 
     /**
@@ -358,34 +1414,42 @@ public class MappedFile {
      * @return 提交的信息集合
      */
     public List<CommitEntry> doCommit(boolean force) {
-        // 如果没开启堆外内存就不需要提交
-        if (!persistentConfig.isEnableOutOfMemory() || this.directBuffer == null) {
+        // 如果写入不需要提交就不需要
+        if (!this.writeStrategy.waitCommit()) {
             return null;
         }
-        int last = commitPointer.get();
-        int write = writePointer.get();
-        if (last == write) {
-            return null;
-        }
-        // 如果消息过少不是强制提交就不需要
-        if (write - last < 4 * OS_PAGE && !force) {
-            return null;
-        }
-        // 拿到当前写指针之前的所有未提交信息
-        List<CommitEntry> commitEntries = this.unCommitEntryList.getCommitEntries(write);
-        ByteBuffer buffer = directBuffer.slice();
-        buffer.position(last);
-        buffer.limit(write);
+        commitLock.lock();
         try {
-            this.fileChannel.position(last);
-            this.fileChannel.write(buffer);
-            log.info("Finish one commit, commit {} --> {}", last, write);
+            // 加锁后再检查，堆外内存可能已经归还
+            WriteStrategy strategy = this.writeStrategy;
+            if (!strategy.waitCommit()) {
+                return null;
+            }
+            int last = commitPointer.get();
+            int write = writePointer.get();
+            if (last == write) {
+                return null;
+            }
+            // 如果消息过少不是强制提交就不需要
+            if (write - last < 4 * OS_PAGE && !force) {
+                return null;
+            }
+            // 拿到当前写指针之前的所有未提交信息
+            List<CommitEntry> commitEntries = this.unCommitEntryList.getCommitEntries(write);
+            int commit;
+            try {
+                commit = strategy.commit(last, write);
+            } catch (IOException e) {
+                log.error("Write file channel error", e);
+                return null;
+            }
+            log.debug("Finish one commit, commit {} --> {}", last, commit);
             // 更新提交指针
-            commitPointer.set(write);
+            commitPointer.set(commit);
+            this.markDirty();
             return commitEntries;
-        } catch (IOException e) {
-            log.error("Move file channel posistion error");
-            return null;
+        } finally {
+            commitLock.unlock();
         }
     }
 
@@ -393,30 +1457,30 @@ public class MappedFile {
      * 执行刷盘
      */
     public void doFlush() {
-        // 确定刷盘到那里为止，开启堆外内存刷到提交，否则，刷到写指针
-        if (persistentConfig.isEnableOutOfMemory() && this.directBuffer != null) {
-            int last = flushPointer.get();
-            int commit = commitPointer.get();
-            if (last == commit) {
-                return;
-            }
-            try {
-                log.info("Finish direct buffer flush, flush pointer {} ---> {}", last, commit);
-                this.fileChannel.force(false);
-                flushPointer.set(commit);
-            } catch (IOException e) {
-                log.error("Flush disk failed");
-                return;
-            }
-        } else {
-            int write = writePointer.get();
-            int flush = flushPointer.get();
-            if (flush == write) {
-                return;
-            }
-            log.info("Finish direct buffer flush, flush pointer {} ---> {}", flush, write);
-            this.mappedByteBuffer.force();
-            flushPointer.set(write);
+        // 确定刷盘到那里为止，需要提交的刷到提交指针，否则刷到写指针
+        int last = flushPointer.get();
+        int target = this.getReadPointer();
+        if (last == target) {
+            return;
+        }
+        // 记录中的名称编号要先于记录落盘
+        this.flushNames();
+        try {
+            this.writeStrategy.flush();
+        } catch (IOException e) {
+            log.error("Flush disk failed");
+            return;
+        }
+        log.info("Finish direct buffer flush, flush pointer {} ---> {}", last, target);
+        flushPointer.set(target);
+    }
+
+    /**
+     * 刷盘前先把字典刷盘，只有commitLog文件设置了字典
+     */
+    private void flushNames() {
+        if (this.nameDictionary != null) {
+            this.nameDictionary.flush();
         }
     }
 
@@ -428,14 +1492,27 @@ public class MappedFile {
     }
 
     public void returnMemory() {
-        if (this.memoryPool != null && this.directBuffer!= null) {
-            this.memoryPool.returnMemory(directBuffer);
-            this.directBuffer = null;
-            this.memoryPool = null;
+        commitLock.lock();
+        try {
+            WriteStrategy strategy = this.writeStrategy;
+            if (strategy.holdsBuffer()) {
+                // 先切回直接写映射，读指针变回写指针
+                this.writeStrategy = new MappedWriteStrategy(this);
+                strategy.release();
+                // 读指针变回写指针，可能还有没刷盘的数据
+                this.markDirty();
+            }
+        } finally {
+            commitLock.unlock();
         }
     }
+
+    /**
+     * 是否持有借用的buffer，写满后需要归还
+     * @return
+     */
     public boolean ownDirectMemory() {
-        return persistentConfig.isEnableOutOfMemory() && this.memoryPool != null && this.directBuffer != null;
+        return this.writeStrategy.holdsBuffer();
     }
     public void setStatus(Status status) {
         this.status = status;
@@ -465,6 +1542,117 @@ public class MappedFile {
         this.commitPointer.set(fileSize);
         this.flushPointer.set(fileSize);
     }
+    /**
+     * 切换文件时标记为满，刷盘指针不变，由刷盘服务在后台刷盘
+     */
+    public void markSealed() {
+        this.status = Status.FULL;
+        this.writePointer.set(fileSize);
+        this.commitPointer.set(fileSize);
+        this.markDirty();
+    }
+
+    /**
+     * 有数据没有刷盘时登记到待刷盘集合，已经登记过的不再重复登记
+     */
+    public void markDirty() {
+        DirtyFileSet set = this.dirtyFileSet;
+        if (set != null && this.dirty.compareAndSet(false, true)) {
+            this.dirtyTime = System.currentTimeMillis();
+            set.add(this);
+        }
+    }
+
+    /**
+     * 刷盘前清除登记标记，之后的写入会重新登记
+     */
+    public void clearDirty() {
+        this.dirty.set(false);
+    }
+
+    /**
+     * 是否还有可以刷盘的数据没有刷盘
+     * @return
+     */
+    public boolean needFlush() {
+        return this.getReadPointer() > this.flushPointer.get();
+    }
+
+    public long getDirtyTime() {
+        return dirtyTime;
+    }
+
+    public void setDirtyFileSet(DirtyFileSet dirtyFileSet) {
+        this.dirtyFileSet = dirtyFileSet;
+        if (dirtyFileSet != null && this.writePointer != null && this.needFlush()) {
+            this.markDirty();
+        }
+    }
+
+    /**
+     * 借用堆外内存分片，之后的写入先写分片再提交，只能由写线程调用
+     * @param memoryPool
+     * @return 是否持有堆外内存，借不到时直接写映射
+     */
+    public boolean borrowMemory(OutOfHeapMemoryPool memoryPool) {
+        commitLock.lock();
+        try {
+            if (this.writeStrategy.holdsBuffer()) {
+                return true;
+            }
+            if (!this.canWrite()) {
+                return false;
+            }
+            ByteBuffer buffer = memoryPool.borrowMemmory();
+            if (buffer == null) {
+                return false;
+            }
+            // 延迟映射的文件在这里打开，提交时需要写文件通道
+            this.mappedBuffer();
+            int write = this.writePointer.get();
+            // 之前直接写映射的数据已经可读
+            this.commitPointer.set(write);
+            this.writeStrategy = new TransientPoolWriteStrategy(this, memoryPool, buffer, write);
+            return true;
+        } finally {
+            commitLock.unlock();
+        }
+    }
+
+    /**
+     * 改为通过FileChannel写入，buffer在第一次写入时借用，只能由写线程调用
+     * @param bufferPool
+     * @return 是否切换成功
+     */
+    public boolean useChannelWrite(WriteBufferPool bufferPool) {
+        commitLock.lock();
+        try {
+            if (this.writeStrategy.holdsBuffer()) {
+                return true;
+            }
+            if (!this.canWrite()) {
+                return false;
+            }
+            // 读取和大消息仍然使用映射
+            this.mappedBuffer();
+            this.writeStrategy = new FileChannelWriteStrategy(this, bufferPool);
+            return true;
+        } finally {
+            commitLock.unlock();
+        }
+    }
+
+    /**
+     * 预热文件，逐页写入触发缺页并分配磁盘空间，之后写入时不会再缺页
+     */
+    public void warm() {
+        MappedByteBuffer buffer = this.mappedBuffer();
+        for (int i = 0; i < this.fileSize; i += OS_PAGE) {
+            buffer.put(i, (byte) 0);
+        }
+        buffer.force();
+    }
+
     public void markWrite() {
         this.status = Status.CAN_WRITE;
     }
@@ -492,23 +1680,145 @@ public class MappedFile {
         return this.file.lastModified();
     }
 
+    /**
+     * 文件名即文件起始的偏移
+     * @return
+     */
+    public long getFileFromOffset() {
+        return this.fileFromOffset;
+    }
+
+    /**
+     * 偏移是否落在这个文件中，用于连续的索引复用上一次找到的文件
+     * @param offset commitLog偏移
+     * @return
+     */
+    public boolean contains(long offset) {
+        return offset >= this.fileFromOffset && offset - this.fileFromOffset < this.fileSize;
+    }
+
+    public long fileLength() {
+        return this.file.length();
+    }
+
+    /**
+     * 删除文件，解除映射并归还堆外内存
+     * 调用前需要先从链表中摘除，并等待已经拿到该文件的读请求结束、引用释放，否则读已解除映射的内存会导致进程崩溃
+     * @return 是否删除成功
+     */
+    public synchronized boolean destroy() {
+        this.destroyed = true;
+        this.returnMemory();
+        unmap(this.mappedByteBuffer);
+        this.mappedByteBuffer = null;
+        // 延迟映射的文件可能从未打开
+        if (this.fileChannel != null) {
+            try {
+                this.fileChannel.close();
+            } catch (IOException e) {
+                log.error("Close file channel of {} error", fileName, e);
+            }
+        }
+        boolean deleted = this.file.delete();
+        log.info("Destroy mapped file {}, result {}", fullPath, deleted);
+        return deleted;
+    }
+
+    /**
+     * 立即释放mmap映射的内存，不等待gc
+     * @param buffer
+     */
+    public static void unmap(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect()) {
+            return;
+        }
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            Object unsafe = field.get(null);
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            invokeCleaner.invoke(unsafe, buffer);
+        } catch (Exception e) {
+            log.warn("Unmap buffer error, leave it to gc", e);
+        }
+    }
+
     public String getFileName() {
         return fileName;
     }
 
+    /**
+     * 批量记录头部的解析结果
+     */
+    static class BatchHeader {
+        private int total;
+        private String topic;
+        private String id;
+        private int retry;
+        private int queueId;
+        private long bornTimestamp;
+        private long storeTimestamp;
+        private long delay;
+        private int count;
+        // 位置表的起点
+        private int tableStart;
+        // 记录起点
+        private int start;
+        private CompressionType compression = CompressionType.NONE;
+        private int rawLength;
+        private int blobStart;
+        private int blobLength;
+    }
+
+    /**
+     * 解压后的一批消息体
+     */
+    static class BatchBodies {
+        private final int start;
+        private final byte[][] bodies;
+
+        BatchBodies(int start, byte[][] bodies) {
+            this.start = start;
+            this.bodies = bodies;
+        }
+    }
+
     /**
      * 保存所有未提交的信息
      */
     class UnCommitEntryList {
-        private LinkedBlockingQueue<CommitEntry> commitEntries = new LinkedBlockingQueue<>();
+        // 写线程追加，提交线程取出，数组实现的队列不会为每条消息创建节点
+        private final ArrayDeque<CommitEntry> commitEntries = new ArrayDeque<>();
 
-        public void append(int offset, int size, String topic, int queueId, String tag, long delay) {
-            commitEntries.offer(new CommitEntry(topic, fileName, queueId, offset, size, tag, delay));
+        public void append(int offset, int size, String topic, int queueId, String tag, long delay, String id) {
+            CommitEntry entry = new CommitEntry(topic, fileName, queueId, offset, size, tag, delay, id);
+            synchronized (this) {
+                commitEntries.offer(entry);
+            }
+        }
+
+        /**
+         * 批量记录中的每条消息分别等待转发
+         * @param offset 记录起点
+         * @param size 记录总长度
+         * @param batch
+         */
+        public void appendBatch(int offset, int size, StoreBatchMessage batch) {
+            List<Message> messages = batch.getMessages();
+            synchronized (this) {
+                for (int i = 0; i < messages.size(); i++) {
+                    commitEntries.offer(batchEntry(offset, size, offset + batch.getPositions()[i],
+                            batch.getSizes()[i], batch.getTopic(), batch.getQueueId(), messages.get(i).getTag(),
+                            batch.getDelay(), batch.getId(), i == 0));
+                }
+            }
         }
 
-        public List<CommitEntry> getCommitEntries(int limit) {
+        public synchronized List<CommitEntry> getCommitEntries(int limit) {
             List<CommitEntry> list = new ArrayList<>();
-            while (!commitEntries.isEmpty() && commitEntries.peek().getOffsetInPage() <= limit) {
+            // 起始位置等于limit的消息属于还没发布的下一批
+            while (!commitEntries.isEmpty() && commitEntries.peek().getOffsetInPage() < limit) {
                 list.add(commitEntries.poll());
             }
             return list;
@@ -0,0 +1,203 @@
+package com.github.xjtuwsn.cranemq.broker.store;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @project:dduomq
+ * @file:MappedRegionManager
+ * @author:dduo
+ * @create:2023/10/31-14:40
+ */
+
+/**
+ * 映射内存管理，限制同时映射的已写满文件数，超过时解除最久没有读取的文件的映射
+ * 解除映射的文件再次读取时重新映射。读请求不加锁，拿到的buffer可能已经被摘除，
+ * 所以摘除的buffer延迟一段时间后再释放，和过期文件的延迟销毁一样。零拷贝发送的切片可能在延迟之后
+ * 还在网络缓冲区中，文件还有引用时继续等待，引用释放后才解除映射
+ * @author dduo
+ */
+public class MappedRegionManager extends Thread {
+    private static final Logger log = LoggerFactory.getLogger(MappedRegionManager.class);
+
+    private PersistentConfig persistentConfig;
+    // 被管理的文件链表
+    private AbstractLinkedListOrganize organize;
+    // 已经摘除等待释放的映射
+    private ConcurrentLinkedQueue<ReleasedRegion> releasedRegions = new ConcurrentLinkedQueue<>();
+
+    private LongAdder hits = new LongAdder();
+    private LongAdder misses = new LongAdder();
+    private LongAdder unmaps = new LongAdder();
+
+    private volatile boolean isStop = false;
+
+    public MappedRegionManager(PersistentConfig persistentConfig, AbstractLinkedListOrganize organize) {
+        super("MappedRegionManager");
+        this.persistentConfig = persistentConfig;
+        this.organize = organize;
+        this.setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+        while (!isStop) {
+            try {
+                Thread.sleep(persistentConfig.getMappedRegionCheckInterval());
+            } catch (InterruptedException e) {
+                if (!isStop) {
+                    log.warn("MappedRegionManager has been Interrupted");
+                }
+            }
+            if (isStop) {
+                break;
+            }
+            try {
+                this.evictIfNecessary();
+                this.releaseExpiredRegions(false);
+            } catch (Throwable t) {
+                log.error("Evict mapped region error", t);
+            }
+        }
+        log.info("MappedRegionManager has stopped");
+    }
+
+    public void onHit() {
+        hits.increment();
+    }
+
+    /**
+     * 读取时文件没有映射，重新映射后检查是否超过上限
+     */
+    public void onMiss() {
+        misses.increment();
+        this.evictIfNecessary();
+    }
+
+    /**
+     * 映射的文件数超过上限时，按最近读取时间解除最早的已写满文件的映射
+     * 最后一个文件和持有堆外内存的文件还在写入，不解除
+     */
+    public synchronized void evictIfNecessary() {
+        int max = persistentConfig.getMaxMappedCommitLogFiles();
+        if (max <= 0) {
+            return;
+        }
+        int mapped = 0;
+        List<MappedFile> candidates = new ArrayList<>();
+        MappedFile last = organize.tail.prev;
+        Iterator<MappedFile> iterator = organize.iterator();
+        while (iterator.hasNext()) {
+            MappedFile mappedFile = iterator.next();
+            if (!mappedFile.isMapped()) {
+                continue;
+            }
+            mapped++;
+            if (mappedFile != last && !mappedFile.canWrite() && !mappedFile.ownDirectMemory()) {
+                candidates.add(mappedFile);
+            }
+        }
+        if (mapped <= max) {
+            return;
+        }
+        candidates.sort(Comparator.comparingLong(MappedFile::getLastAccess));
+        long deadline = System.currentTimeMillis() + persistentConfig.getUnmapDelay();
+        for (MappedFile mappedFile : candidates) {
+            if (mapped <= max) {
+                break;
+            }
+            ByteBuffer buffer = mappedFile.releaseMapping();
+            if (buffer == null) {
+                continue;
+            }
+            releasedRegions.offer(new ReleasedRegion(mappedFile, buffer, deadline));
+            unmaps.increment();
+            mapped--;
+            log.info("Release mapping of {}, {} files mapped now", mappedFile.getFileName(), mapped);
+        }
+    }
+
+    /**
+     * 释放到期并且文件没有引用的映射
+     * @param force 关闭时不再等待，直接释放
+     */
+    private void releaseExpiredRegions(boolean force) {
+        long now = System.currentTimeMillis();
+        Iterator<ReleasedRegion> iterator = releasedRegions.iterator();
+        while (iterator.hasNext()) {
+            ReleasedRegion region = iterator.next();
+            if (!force && region.deadline > now) {
+                break;
+            }
+            // 还有切片在等待发送，下一轮再检查
+            if (!force && region.owner.isReferenced()) {
+                continue;
+            }
+            iterator.remove();
+            MappedFile.unmap(region.buffer);
+        }
+    }
+
+    /**
+     * 当前映射的文件数
+     * @return
+     */
+    public int mappedCount() {
+        int mapped = 0;
+        Iterator<MappedFile> iterator = organize.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().isMapped()) {
+                mapped++;
+            }
+        }
+        return mapped;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getUnmaps() {
+        return unmaps.sum();
+    }
+
+    public int getPendingReleased() {
+        return releasedRegions.size();
+    }
+
+    public void setStop() {
+        this.isStop = true;
+        this.interrupt();
+        try {
+            this.join(3000);
+        } catch (InterruptedException e) {
+            log.warn("Wait for mapped region manager interrupted");
+        }
+        // 此时已经没有读请求，释放剩余的映射
+        this.releaseExpiredRegions(true);
+    }
+
+    static class ReleasedRegion {
+        private final MappedFile owner;
+        private final ByteBuffer buffer;
+        private final long deadline;
+
+        ReleasedRegion(MappedFile owner, ByteBuffer buffer, long deadline) {
+            this.owner = owner;
+            this.buffer = buffer;
+            this.deadline = deadline;
+        }
+    }
+}
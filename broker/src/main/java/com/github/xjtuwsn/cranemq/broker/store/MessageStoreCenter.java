@@ -5,15 +5,29 @@ import com.github.xjtuwsn.cranemq.broker.BrokerController;
 import com.github.xjtuwsn.cranemq.broker.store.cmtlog.CommitEntry;
 import com.github.xjtuwsn.cranemq.broker.store.cmtlog.CommitLog;
 import com.github.xjtuwsn.cranemq.broker.store.cmtlog.DelayMessageCommitListener;
+import com.github.xjtuwsn.cranemq.broker.store.cmtlog.MultiLaneCommitLog;
 import com.github.xjtuwsn.cranemq.broker.store.cmtlog.RecoveryListener;
+import com.github.xjtuwsn.cranemq.broker.store.checkpoint.CheckpointService;
+import com.github.xjtuwsn.cranemq.broker.store.checkpoint.StoreCheckpoint;
+import com.github.xjtuwsn.cranemq.broker.store.clean.CleanExpiredFileService;
+import com.github.xjtuwsn.cranemq.broker.store.comm.IndexReadResult;
 import com.github.xjtuwsn.cranemq.broker.store.comm.PutMessageResponse;
+import com.github.xjtuwsn.cranemq.broker.store.comm.RawReadResult;
+import com.github.xjtuwsn.cranemq.broker.store.comm.ReadResult;
+import com.github.xjtuwsn.cranemq.broker.store.comm.StoreBatchMessage;
 import com.github.xjtuwsn.cranemq.broker.store.comm.StoreInnerMessage;
 import com.github.xjtuwsn.cranemq.broker.store.comm.StoreResponseType;
+import com.github.xjtuwsn.cranemq.broker.store.dict.NameDictionary;
 import com.github.xjtuwsn.cranemq.broker.store.flush.AsyncFlushDiskService;
+import com.github.xjtuwsn.cranemq.broker.store.flush.DirtyFileSet;
 import com.github.xjtuwsn.cranemq.broker.store.flush.FlushDiskService;
 import com.github.xjtuwsn.cranemq.broker.store.flush.SyncFlushDiskService;
+import com.github.xjtuwsn.cranemq.broker.store.index.IndexService;
 import com.github.xjtuwsn.cranemq.broker.store.queue.ConsumeQueue;
 import com.github.xjtuwsn.cranemq.broker.store.queue.ConsumeQueueManager;
+import com.github.xjtuwsn.cranemq.broker.store.queue.QueueLoadProgress;
+import com.github.xjtuwsn.cranemq.broker.store.read.ColdReadService;
+import com.github.xjtuwsn.cranemq.broker.store.write.WriteStrategyType;
 import com.github.xjtuwsn.cranemq.broker.timer.DelayMessageTask;
 import com.github.xjtuwsn.cranemq.broker.timer.DelayTask;
 import com.github.xjtuwsn.cranemq.broker.timer.TimingWheel;
@@ -28,20 +42,36 @@ import com.github.xjtuwsn.cranemq.common.entity.Message;
 import com.github.xjtuwsn.cranemq.common.entity.MessageQueue;
 import com.github.xjtuwsn.cranemq.common.entity.QueueInfo;
 import com.github.xjtuwsn.cranemq.common.entity.ReadyMessage;
+import com.github.xjtuwsn.cranemq.common.remote.codec.MessageRecordCodec;
 import com.github.xjtuwsn.cranemq.common.route.QueueData;
-import com.github.xjtuwsn.cranemq.common.utils.BrokerUtil;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.lang.reflect.Field;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.function.IntFunction;
 
 /**
  * @project:dduomq
@@ -58,8 +88,8 @@ public class MessageStoreCenter implements GeneralStoreService {
     private static final Logger log = LoggerFactory.getLogger(MessageStoreCenter.class);
     private BrokerController brokerController;
     private PersistentConfig persistentConfig;
-    // commitLog管理类
-    private CommitLog commitLog;
+    // commitLog管理类，按通道写入
+    private MultiLaneCommitLog commitLog;
     // 消费队列管理
     private ConsumeQueueManager consumeQueueManager;
     // 刷盘服务
@@ -73,46 +103,217 @@ public class MessageStoreCenter implements GeneralStoreService {
     // 时间轮
     private TimingWheel<DelayTask> timingWheel;
 
+    // 消息key索引
+    private IndexService indexService;
+
+    // 过期文件清理
+    private CleanExpiredFileService cleanExpiredFileService;
+
+    // 检查点和异常关闭标记
+    private StoreCheckpoint storeCheckpoint;
+
+    // topic和tag名称字典
+    private NameDictionary nameDictionary;
+
+    // 定时写入检查点
+    private CheckpointService checkpointService;
+
+    // 崩溃恢复时需要补齐的延时消息，延时日志加载后再转发
+    private List<CommitEntry> recoveredDelayEntries = new ArrayList<>();
+
+    // 区分冷读和热读，未开启时为null，全部按热读处理
+    private ColdReadService coldReadService;
+
+    // 写入commitLog之后更新队列、索引和唤醒长轮询的线程，按队列分片，同一个队列按写入顺序处理
+    // 不占用组提交线程，组提交线程只负责写入
+    private ThreadPoolExecutor[] putDispatchers;
+
+    // 每个读线程一个索引读取结果，读消息时重复使用
+    private final ThreadLocal<IndexReadResult> indexReadResults =
+            ThreadLocal.withInitial(() -> new IndexReadResult(32));
+
     public MessageStoreCenter(BrokerController brokerController) {
         this.brokerController = brokerController;
         this.persistentConfig = brokerController.getPersistentConfig();
-        this.commitLog = new CommitLog(this.brokerController, this);
+        this.nameDictionary = new NameDictionary(persistentConfig);
+        this.commitLog = new MultiLaneCommitLog(this.brokerController, this, this.nameDictionary);
         this.consumeQueueManager = new ConsumeQueueManager(this.brokerController,
                 this.brokerController.getPersistentConfig());
+        this.indexService = new IndexService(persistentConfig);
+        if (persistentConfig.isEnableColdRead()) {
+            this.coldReadService = new ColdReadService(persistentConfig);
+        }
         // 根据刷盘策略不同初始化刷盘服务
         if (persistentConfig.getFlushDisk() == FlushDisk.ASYNC) {
             this.flushDiskService = new AsyncFlushDiskService(persistentConfig, commitLog,
-                    consumeQueueManager);
+                    consumeQueueManager, indexService);
         } else {
-            this.flushDiskService = new SyncFlushDiskService();
+            this.flushDiskService = new SyncFlushDiskService(persistentConfig, commitLog);
         }
-        if (persistentConfig.isEnableOutOfMemory()) {
+        if (persistentConfig.getCommitLogWriteStrategy() == WriteStrategyType.TRANSIENT_POOL) {
             this.transmitCommitLogService = new TransmitCommitLogService();
         }
         this.timingWheel = new TimingWheel<>();
         this.timingWheelLog = new TimingWheelLog(this.brokerController);
+        this.cleanExpiredFileService = new CleanExpiredFileService(this.brokerController, commitLog,
+                consumeQueueManager, indexService);
+        this.storeCheckpoint = new StoreCheckpoint(persistentConfig);
+        this.checkpointService = new CheckpointService(persistentConfig, storeCheckpoint, commitLog,
+                consumeQueueManager);
+        int number = Math.max(1, persistentConfig.getDispatchShardNumber());
+        this.putDispatchers = new ThreadPoolExecutor[number];
+        for (int i = 0; i < number; i++) {
+            String name = "PutDispatchThread-" + i;
+            this.putDispatchers[i] = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<>(persistentConfig.getPutDispatchQueueCapacity()), r -> {
+                        Thread thread = new Thread(r, name);
+                        thread.setDaemon(true);
+                        return thread;
+                    }, this::waitForDispatcher);
+        }
+    }
+
+    /**
+     * 消息写入的队列所在的分片，延时消息都写入延时队列
+     * @param innerMessage
+     * @return
+     */
+    private ThreadPoolExecutor putDispatcher(StoreInnerMessage innerMessage) {
+        if (putDispatchers.length == 1) {
+            return putDispatchers[0];
+        }
+        String topic = innerMessage.getDelay() != 0 ? MQConstant.DELAY_TOPIC_NAME : innerMessage.getTopic();
+        int queueId = innerMessage.getDelay() != 0 ? 0 : innerMessage.getQueueId();
+        return putDispatchers[Math.floorMod(topic.hashCode() * 31 + queueId, putDispatchers.length)];
+    }
+
+    /**
+     * 消息所在分片的分发队列是否已满，已满时不写入commitLog，直接返回繁忙，由生产者稍后重发
+     * @param innerMessage
+     * @return
+     */
+    private boolean isDispatcherBusy(StoreInnerMessage innerMessage) {
+        return this.putDispatcher(innerMessage).getQueue().remainingCapacity() == 0;
+    }
+
+    /**
+     * 检查之后队列仍然可能被并发写满，这时消息已经写入commitLog，不能丢弃，也不能换线程执行打乱队列顺序，
+     * 完成写入的线程等待队列出现空位
+     * @param task
+     * @param executor
+     */
+    private void waitForDispatcher(Runnable task, ThreadPoolExecutor executor) {
+        if (executor.isShutdown()) {
+            throw new RejectedExecutionException("Put dispatcher has been shutdown");
+        }
+        try {
+            executor.getQueue().put(task);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("Interrupted while waiting for put dispatcher", e);
+        }
     }
 
     /**
-     * 批量写入消息
+     * 批量写入消息，同步等待结果
      * @param innerMessages 待写入消息的内部封装列表
      * @return
      */
     public PutMessageResponse putMessage(List<StoreInnerMessage> innerMessages) {
+        return this.putUntilAccepted(() -> this.asyncPutMessage(innerMessages));
+    }
+
+    /**
+     * 单个消息的写入，同步等待结果
+     * @param innerMessage
+     * @return
+     */
+    public PutMessageResponse putMessage(StoreInnerMessage innerMessage) {
+        return this.putUntilAccepted(() -> this.asyncPutMessage(innerMessage));
+    }
+
+    /**
+     * 内部的同步写入，例如延时消息投递和消息重试，调用者本来就在等待结果，
+     * 组提交队列满时稍后重试，不能像网络请求那样让客户端重发
+     * @param put
+     * @return
+     */
+    private PutMessageResponse putUntilAccepted(Supplier<CompletableFuture<PutMessageResponse>> put) {
+        long deadline = System.currentTimeMillis() + persistentConfig.getBusyRetryTimeout();
+        PutMessageResponse response = put.get().join();
+        while (response.getResponseType() == StoreResponseType.SERVER_BUSY
+                && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            response = put.get().join();
+        }
+        return response;
+    }
+
+    /**
+     * 批量写入消息，写入、更新索引和刷盘完成后future完成，调用线程不阻塞
+     * @param innerMessages 待写入消息的内部封装列表
+     * @return
+     */
+    public CompletableFuture<PutMessageResponse> asyncPutMessage(List<StoreInnerMessage> innerMessages) {
         if (innerMessages == null || innerMessages.isEmpty()) {
-            return new PutMessageResponse(StoreResponseType.PARAMETER_ERROR);
+            return CompletableFuture.completedFuture(new PutMessageResponse(StoreResponseType.PARAMETER_ERROR));
+        }
+        for (StoreInnerMessage innerMessage : innerMessages) {
+            if (this.isDispatcherBusy(innerMessage)) {
+                return CompletableFuture.completedFuture(new PutMessageResponse(StoreResponseType.SERVER_BUSY));
+            }
         }
-        PutMessageResponse response = new PutMessageResponse();
-        // 分别调用putMessage，更新偏移
         for (StoreInnerMessage innerMessage : innerMessages) {
-            PutMessageResponse res = this.putMessage(innerMessage);
+            this.resolveNames(innerMessage);
+        }
+        // 整批作为一个请求交给组提交线程，保证同一批消息连续写入
+        return this.commitLog.asyncWriteMessages(innerMessages).thenCompose(responses -> {
+            // 每条消息在自己队列的分发线程上更新索引，同一队列只有一个线程写，索引顺序和commitLog一致
+            // 按批内顺序提交到分发线程，同一队列的多条消息按顺序写入
+            List<CompletableFuture<PutMessageResponse>> futures = new ArrayList<>(innerMessages.size());
+            for (int i = 0; i < innerMessages.size(); i++) {
+                StoreInnerMessage innerMessage = innerMessages.get(i);
+                PutMessageResponse written = responses.get(i);
+                futures.add(CompletableFuture.supplyAsync(() -> this.afterWrite(innerMessage, written),
+                        this.putDispatcher(innerMessage)).thenCompose(future -> future));
+            }
+            return CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]))
+                    .thenApply(v -> this.combineResponses(futures));
+        }).exceptionally(this::onPutError);
+    }
+
+    /**
+     * 合并一批消息各自的写入结果
+     * @param futures 已经完成的每条消息的结果
+     * @return
+     */
+    private PutMessageResponse combineResponses(List<CompletableFuture<PutMessageResponse>> futures) {
+        PutMessageResponse response = new PutMessageResponse();
+        StoreResponseType type = StoreResponseType.STORE_OK;
+        for (CompletableFuture<PutMessageResponse> future : futures) {
+            PutMessageResponse res = future.join();
+            // 繁忙时这些消息没有写入，需要告知生产者重发
+            if (res.getResponseType() == StoreResponseType.SERVER_BUSY) {
+                type = StoreResponseType.SERVER_BUSY;
+                continue;
+            }
             if (res.getResponseType() != StoreResponseType.STORE_OK) {
                 log.error("Store batch message error");
             }
+            // 刷盘超时需要告知生产者
+            if (res.getResponseType() == StoreResponseType.FLUSH_DISK_TIMEOUT
+                    && type != StoreResponseType.SERVER_BUSY) {
+                type = StoreResponseType.FLUSH_DISK_TIMEOUT;
+            }
             response.setSize(response.getSize() + res.getSize());
             response.setOffset(res.getOffset());
         }
-        response.setResponseType(StoreResponseType.STORE_OK);
+        response.setResponseType(type);
         return response;
     }
 
@@ -121,82 +322,183 @@ public class MessageStoreCenter implements GeneralStoreService {
      * @param innerMessage
      * @return
      */
-    public PutMessageResponse putMessage(StoreInnerMessage innerMessage) {
+    public CompletableFuture<PutMessageResponse> asyncPutMessage(StoreInnerMessage innerMessage) {
         if (innerMessage == null) {
             log.error("Null put message request");
-            return new PutMessageResponse(StoreResponseType.PARAMETER_ERROR);
+            return CompletableFuture.completedFuture(new PutMessageResponse(StoreResponseType.PARAMETER_ERROR));
+        }
+        if (this.isDispatcherBusy(innerMessage)) {
+            return CompletableFuture.completedFuture(new PutMessageResponse(StoreResponseType.SERVER_BUSY));
         }
-        long start = System.nanoTime();
+        this.resolveNames(innerMessage);
         // 调用commitlog，写入消息
-        PutMessageResponse response = this.commitLog.writeMessage(innerMessage);
-        long end1 = System.nanoTime();
+        return this.commitLog.asyncWriteMessages(Collections.singletonList(innerMessage))
+                .thenComposeAsync(responses -> this.afterWrite(innerMessage, responses.get(0)),
+                        this.putDispatcher(innerMessage))
+                .exceptionally(this::onPutError);
+    }
+
+    /**
+     * 提交写入之前查好topic和tag的字典编号，新名称在调用线程中登记，不占用组提交线程和commitLog写锁
+     * 批量记录保存字符串，不使用字典
+     * @param innerMessage
+     */
+    private void resolveNames(StoreInnerMessage innerMessage) {
+        if (persistentConfig.isEnableNameDictionary() && !(innerMessage instanceof StoreBatchMessage)) {
+            this.nameDictionary.resolve(innerMessage);
+        }
+    }
 
-        if (response.getResponseType() == StoreResponseType.PARAMETER_ERROR) {
-            log.error("Put message to CommitLog error");
+    private PutMessageResponse onPutError(Throwable e) {
+        log.error("Put message to CommitLog error", e);
+        return new PutMessageResponse(StoreResponseType.PARAMETER_ERROR);
+    }
 
+    /**
+     * 写入commitLog之后，进行刷盘，并在没有提交步骤时直接更新消费队列
+     * @param innerMessage
+     * @param response commitLog写入结果
+     * @return
+     */
+    private CompletableFuture<PutMessageResponse> afterWrite(StoreInnerMessage innerMessage,
+                                                             PutMessageResponse response) {
+        if (response.getResponseType() != StoreResponseType.STORE_OK) {
+            if (response.getResponseType() != StoreResponseType.SERVER_BUSY) {
+                log.error("Put message to CommitLog error");
+            }
+            return CompletableFuture.completedFuture(response);
         }
-        // 同步刷盘，立即刷盘
-        if (persistentConfig.getFlushDisk() == FlushDisk.SYNC) {
-            this.flushDiskService.flush(response.getMappedFile());
+        boolean syncFlush = persistentConfig.getFlushDisk() == FlushDisk.SYNC;
+        // 同步刷盘，登记commitLog的刷盘请求，由刷盘线程合并刷盘
+        CompletableFuture<StoreResponseType> logFlush = null;
+        if (syncFlush) {
+            int flushTo = (int) (response.getOffset() - response.getMappedFile().getFileFromOffset())
+                    + response.getSize();
+            logFlush = this.flushDiskService.asyncFlush(response.getMappedFile(), flushTo);
         }
+        PutMessageResponse result = response;
+        CompletableFuture<StoreResponseType> queueFlush = null;
         // 没有提交这一步骤，每次put完都要同步刷到consumequeue
-        if (!response.getMappedFile().ownDirectMemory()) {
-            PutMessageResponse putOffsetResp = null;
-            if (response.getResponseType() == StoreResponseType.STORE_OK) {
-                long offset = response.getOffset();
-                int size = response.getSize();
-                // 将刚写入的信息更新到队列索引中
-                putOffsetResp = this.consumeQueueManager.updateOffset(offset, innerMessage.getTopic(),
-                        innerMessage.getQueueId(), size, innerMessage.getDelay());
-            }
+        // 以写入时的状态为准，文件写满后会归还堆外内存
+        if (!response.isWaitCommit()) {
+            long offset = response.getOffset();
+            int size = response.getSize();
+            // 将刚写入的信息更新到队列索引中，批量记录中的每条消息各占一条索引
+            PutMessageResponse putOffsetResp = innerMessage instanceof StoreBatchMessage
+                    ? this.updateBatchOffset((StoreBatchMessage) innerMessage, offset)
+                    : this.consumeQueueManager.updateOffset(offset, innerMessage.getTopic(),
+                    innerMessage.getQueueId(), size, innerMessage.getDelay(), innerMessage.getTag());
             if (putOffsetResp == null) {
-                return new PutMessageResponse(StoreResponseType.PARAMETER_ERROR);
+                return CompletableFuture.completedFuture(new PutMessageResponse(StoreResponseType.PARAMETER_ERROR));
             }
+            this.indexService.putKey(innerMessage.getId(), offset, size);
             // 如果这个消息不是延迟消息，需要唤醒监听这个主题的长轮询连接
             if (innerMessage.getDelay() == 0) {
-                this.brokerController.getHoldRequestService().awakeNow(
-                        Arrays.asList(new Pair<>(innerMessage.getTopic(), innerMessage.getQueueId())));
+                this.brokerController.getHoldRequestService().awakeNow(innerMessage.getTopic(),
+                        innerMessage.getQueueId());
             }
             // 同步刷盘
-            if (putOffsetResp.getResponseType() == StoreResponseType.STORE_OK) {
-                if (persistentConfig.getFlushDisk() == FlushDisk.SYNC) {
-                    this.flushDiskService.flush(putOffsetResp.getMappedFile());
-                }
+            if (putOffsetResp.getResponseType() == StoreResponseType.STORE_OK && syncFlush) {
+                queueFlush = this.flushDiskService.asyncFlush(putOffsetResp.getMappedFile(),
+                        putOffsetResp.getQueueOffset() + persistentConfig.getQueueUnit());
             }
-
-            return putOffsetResp;
+            result = putOffsetResp;
         }
-
-
-        return response;
+        if (!syncFlush || result.getResponseType() != StoreResponseType.STORE_OK) {
+            return CompletableFuture.completedFuture(result);
+        }
+        // 刷盘完成后才完成，超时返回刷盘超时
+        PutMessageResponse finalResult = result;
+        return this.waitFlush(logFlush, queueFlush).thenApply(type -> {
+            if (type != StoreResponseType.STORE_OK) {
+                finalResult.setResponseType(type);
+            }
+            return finalResult;
+        });
     }
 
     /**
-     * 将CommitEntry，已经提交的信息转写到消费队列中
-     * @param entries
+     * 把批量记录中的每条消息写入消费队列，队列偏移指向记录内的消息
+     * @param batch
+     * @param offset 批量记录的起点
+     * @return 最后一条消息的写入结果，有消息写入失败返回null
      */
-    private void putOffsetToQueue(List<CommitEntry> entries) {
+    private PutMessageResponse updateBatchOffset(StoreBatchMessage batch, long offset) {
+        PutMessageResponse last = null;
+        List<Message> messages = batch.getMessages();
+        for (int i = 0; i < messages.size(); i++) {
+            last = this.consumeQueueManager.updateOffset(offset + batch.getPositions()[i], batch.getTopic(),
+                    batch.getQueueId(), batch.getSizes()[i], batch.getDelay(), messages.get(i).getTag());
+            if (last == null) {
+                return null;
+            }
+        }
+        return last;
+    }
 
-        List<Pair<String, Integer>> queue = new ArrayList<>();
+    /**
+     * 合并commitLog和消费队列的刷盘结果，超时返回刷盘超时
+     * @param logFlush
+     * @param queueFlush
+     * @return
+     */
+    private CompletableFuture<StoreResponseType> waitFlush(CompletableFuture<StoreResponseType> logFlush,
+                                                           CompletableFuture<StoreResponseType> queueFlush) {
+        CompletableFuture<StoreResponseType> flush = logFlush;
+        if (queueFlush != null) {
+            flush = logFlush.thenCombine(queueFlush, (logType, queueType) ->
+                    logType != StoreResponseType.STORE_OK ? logType : queueType);
+        }
+        return flush.orTimeout(persistentConfig.getSyncFlushTimeout(), TimeUnit.MILLISECONDS)
+                .exceptionally(e -> {
+                    log.warn("Wait sync flush disk timeout");
+                    return StoreResponseType.FLUSH_DISK_TIMEOUT;
+                }).thenApply(type -> {
+                    if (type != StoreResponseType.STORE_OK) {
+                        log.warn("Sync flush disk failed, {}", type);
+                    }
+                    return type;
+                });
+    }
 
-        for (CommitEntry entry : entries) {
-            String topic = entry.getTopic(), tag = entry.getTag();
-            long offset = entry.getOffset(), delay = entry.getDelay();
-            int size = entry.getSize(), queueId = entry.getQueueId();
-            if (delay == 0) {
-                queue.add(new Pair<>(topic, queueId));
+    /**
+     * 把一批已提交的消息转发到消费队列和key索引，由转发分片线程调用，同一个队列只会出现在一个分片中
+     * 每个队列只唤醒一次长轮询，同步刷盘时每个文件只登记一次刷盘请求
+     * @param batch 分片一次取出的所有提交信息
+     */
+    private void dispatchEntries(List<List<CommitEntry>> batch) {
+        Set<Pair<String, Integer>> awakeQueues = new LinkedHashSet<>();
+        boolean syncFlush = persistentConfig.getFlushDisk() == FlushDisk.SYNC;
+        Set<MappedFile> flushFiles = syncFlush ? Collections.newSetFromMap(new IdentityHashMap<>()) : null;
+        // 上一条唤醒登记的队列，连续属于同一个队列的消息不再重复创建
+        String lastTopic = null;
+        int lastQueueId = -1;
+        for (List<CommitEntry> entries : batch) {
+            for (CommitEntry entry : entries) {
+                // 更新消费队列
+                MappedFile queueFile = this.consumeQueueManager.dispatchOffset(entry.getOffset(),
+                        entry.getTopic(), entry.getQueueId(), entry.getSize(), entry.getDelay(), entry.getTag());
+                if (entry.getDelay() == 0
+                        && (entry.getQueueId() != lastQueueId || !entry.getTopic().equals(lastTopic))) {
+                    lastTopic = entry.getTopic();
+                    lastQueueId = entry.getQueueId();
+                    awakeQueues.add(new Pair<>(lastTopic, lastQueueId));
+                }
+                if (syncFlush && queueFile != null) {
+                    flushFiles.add(queueFile);
+                }
             }
-            // 更新消费队列
-            PutMessageResponse response = this.consumeQueueManager.updateOffset(offset, topic, queueId, size, delay);
-
-            // 同步刷盘
-            if (persistentConfig.getFlushDisk() == FlushDisk.SYNC) {
-                flushDiskService.flush(response.getMappedFile());
+            // key索引整批写入，只加一次锁
+            this.indexService.putKeys(entries);
+        }
+        // 同步刷盘，只登记请求不等待，写入者已经在等commitLog刷盘
+        if (syncFlush) {
+            for (MappedFile mappedFile : flushFiles) {
+                flushDiskService.flush(mappedFile);
             }
-
         }
         // 唤醒push请求
-        this.brokerController.getHoldRequestService().awakeNow(queue);
+        this.brokerController.getHoldRequestService().awakeNow(new ArrayList<>(awakeQueues));
     }
 
     /**
@@ -237,6 +539,10 @@ public class MessageStoreCenter implements GeneralStoreService {
         return queueNumber;
     }
 
+    public long getQueueMinOffset(String topic, int queueId) {
+        return consumeQueueManager.getQueueMinOffset(topic, queueId);
+    }
+
     public long getQueueCurWritePos(String topic, int queueId) {
         return consumeQueueManager.getQueueCurWritePos(topic, queueId);
     }
@@ -249,98 +555,310 @@ public class MessageStoreCenter implements GeneralStoreService {
      * @param length 读取消息数
      * @return 返回消息列表和下一次读的偏移
      */
-    public Pair<Pair<List<ReadyMessage>, Long>, AcquireResultType> read(String topic, int queueId, long offset, int length) {
+    public ReadResult read(String topic, int queueId, long offset, int length) {
+        return this.read(topic, queueId, offset, length, null);
+    }
+
+    /**
+     * 从commitLog中读指定的消息，先根据索引中的tag哈希过滤，冷读的处理和readRaw相同
+     * @param topic 主题
+     * @param queueId 队列id
+     * @param offset 起始队列偏移
+     * @param length 读取消息数
+     * @param tagHashes 订阅tag的哈希，为null不过滤
+     * @return 返回消息列表和下一次读的偏移，全部被过滤时消息列表为空，但偏移会前进，冷读时带上建议的拉取延迟
+     */
+    public ReadResult read(String topic, int queueId, long offset, int length, Set<Integer> tagHashes) {
         // 从队列中读到的，在commitLog中的偏移
-        List<Pair<Long, Integer>> commitLogData = new ArrayList<>();
+        IndexReadResult indexResult = this.readQueueIndex(topic, queueId, offset, length, tagHashes);
+        if (indexResult == null || indexResult.getNextOffset() == offset) {
+            return new ReadResult(AcquireResultType.NO_MESSAGE);
+        }
+        if (this.isColdRead(indexResult)) {
+            return this.readCold(indexResult, offset);
+        }
+        long nextOffset = indexResult.getNextOffset();
+        List<ReadyMessage> readyMessageList = new ArrayList<>(indexResult.size());
+        MappedFile mappedFileByIndex = null;
+        for (int i = 0; i < indexResult.size(); i++) {
+            long curOffset = indexResult.getCommitLogOffset(i);
+
+            // 根据索引找到偏移对应的mappedFile，连续的索引大多在同一个文件中
+            mappedFileByIndex = this.commitLogFileOf(curOffset, mappedFileByIndex);
+            if (mappedFileByIndex == null && commitLog.isRemoved(curOffset)) {
+                // 消息所在文件已经过期删除，跳过
+                continue;
+            }
+            if (mappedFileByIndex == null) {
+                 log.warn("Doesnot have this message, problely something wrong, " +
+                         "topic {}, queueId {}", topic, queueId);
+                nextOffset = indexResult.getQueueOffset(i);
+                break;
+            }
+            long queueOffset = indexResult.getQueueOffset(i);
+            // 计算总的偏移在当前页内的偏移
+            int offsetInpage = (int) (curOffset - mappedFileByIndex.getFileFromOffset());
+            // 读取偏移处对应的消息
+            StoreInnerMessage innerMessage = mappedFileByIndex.readSingleMessage(offsetInpage);
+            if (innerMessage == null) {
+                nextOffset = queueOffset;
+                break;
+            }
+            Message message = innerMessage.getMessage();
+            ReadyMessage readyMessage = new ReadyMessage(brokerController.getBrokerConfig().getBrokerName(),
+                    queueId, queueOffset, message, innerMessage.getRetry(),
+                    innerMessage.getBornTimestamp(), innerMessage.getStoreTimestamp());
+            readyMessageList.add(readyMessage);
+        }
+
+        return new ReadResult(readyMessageList, nextOffset, AcquireResultType.DONE);
+
+    }
 
-        AcquireResultType result = AcquireResultType.NO_MESSAGE;
+    /**
+     * 读取指定消息在commitLog中的原始记录，返回映射文件上的切片，用于零拷贝发送
+     * 切片所在的文件已经加了引用，调用者发送完成后必须调用结果的release
+     * 冷读时返回通过FileChannel读出的副本，消息数更少，冷读并发已满时不读，返回限流状态和建议的重试时间
+     * @param topic 主题
+     * @param queueId 队列id
+     * @param offset 起始队列偏移
+     * @param length 读取消息数
+     * @param tagHashes 订阅tag的哈希，为null不过滤
+     * @return 返回每条记录的队列偏移和记录，以及下一次读的偏移
+     */
+    public RawReadResult readRaw(String topic, int queueId, long offset, int length, Set<Integer> tagHashes) {
+        IndexReadResult indexResult = this.readQueueIndex(topic, queueId, offset, length, tagHashes);
+        if (indexResult == null || indexResult.getNextOffset() == offset) {
+            return new RawReadResult(AcquireResultType.NO_MESSAGE);
+        }
+        if (!this.isColdRead(indexResult)) {
+            return this.selectRecords(indexResult, null);
+        }
+        if (!coldReadService.tryAcquire()) {
+            RawReadResult throttled = new RawReadResult(Collections.emptyList(), Collections.emptyList(), offset,
+                    AcquireResultType.NO_MESSAGE);
+            throttled.setCold(true);
+            throttled.setThrottled(true);
+            throttled.setSuggestDelay(coldReadService.getBackoffMillis());
+            return throttled;
+        }
+        try {
+            // 记录由发送帧持有，直到写完，不能使用读线程复用的buffer
+            RawReadResult result = this.selectRecords(indexResult, ByteBuffer::allocate);
+            result.setCold(true);
+            result.setSuggestDelay(coldReadService.getBackoffMillis());
+            return result;
+        } finally {
+            coldReadService.release();
+        }
+    }
+
+    /**
+     * 冷读：通过FileChannel读出原始记录，再按客户端的格式解析，并发已满时不读，返回限流状态和建议的重试时间
+     * @param indexResult
+     * @param offset 起始队列偏移
+     * @return
+     */
+    private ReadResult readCold(IndexReadResult indexResult, long offset) {
+        if (!coldReadService.tryAcquire()) {
+            ReadResult throttled = new ReadResult(Collections.emptyList(), offset, AcquireResultType.NO_MESSAGE);
+            throttled.setCold(true);
+            throttled.setThrottled(true);
+            throttled.setSuggestDelay(coldReadService.getBackoffMillis());
+            return throttled;
+        }
+        try {
+            RawReadResult raw = this.selectRecords(indexResult, coldReadService.arena()::allocate);
+            List<Long> queueOffsets = raw.getQueueOffsets();
+            List<ByteBuffer> records = raw.getRecords();
+            List<ReadyMessage> readyMessageList = new ArrayList<>(queueOffsets.size());
+            ByteBuf in = Unpooled.wrappedBuffer(records.toArray(new ByteBuffer[0]));
+            MessageRecordCodec.DecodeContext context = new MessageRecordCodec.DecodeContext(nameDictionary::nameOf);
+            String brokerName = brokerController.getBrokerConfig().getBrokerName();
+            for (Long queueOffset : queueOffsets) {
+                readyMessageList.add(MessageRecordCodec.decode(in, brokerName, queueOffset, context));
+            }
+            ReadResult result = new ReadResult(readyMessageList, raw.getNextOffset(), AcquireResultType.DONE);
+            result.setCold(true);
+            result.setSuggestDelay(coldReadService.getBackoffMillis());
+            return result;
+        } finally {
+            coldReadService.release();
+        }
+    }
+
+    /**
+     * 按索引取出原始记录，热读返回映射文件上的切片并对文件加引用，冷读通过FileChannel读到分配的buffer中，并且减少消息数
+     * @param indexResult
+     * @param allocator 冷读时分配buffer，热读为null
+     * @return
+     */
+    private RawReadResult selectRecords(IndexReadResult indexResult, IntFunction<ByteBuffer> allocator) {
+        boolean cold = allocator != null;
+        int number = indexResult.size();
+        long nextOffset = indexResult.getNextOffset();
+        if (cold && number > coldReadService.getBatchLength()) {
+            number = coldReadService.getBatchLength();
+            nextOffset = indexResult.getQueueOffset(number);
+        }
+        List<ByteBuffer> records = new ArrayList<>(number);
+        List<Long> readOffsets = new ArrayList<>(number);
+        RawReadResult result = new RawReadResult(readOffsets, records, nextOffset, AcquireResultType.DONE);
+        long lastHeaderOffset = -1;
+        MappedFile mappedFileByIndex = null;
+        // 最近一个加了引用的文件，连续的记录大多在同一个文件中
+        MappedFile retained = null;
+        for (int i = 0; i < number; i++) {
+            long curOffset = indexResult.getCommitLogOffset(i);
+            mappedFileByIndex = this.commitLogFileOf(curOffset, mappedFileByIndex);
+            if (mappedFileByIndex == null && commitLog.isRemoved(curOffset)) {
+                // 消息所在文件已经过期删除，跳过
+                continue;
+            }
+            if (mappedFileByIndex == null) {
+                log.warn("Doesnot have this message, problely something wrong, commitLog offset {}", curOffset);
+                nextOffset = indexResult.getQueueOffset(i);
+                break;
+            }
+            int offsetInpage = (int) (curOffset - mappedFileByIndex.getFileFromOffset());
+            int size = indexResult.getSize(i);
+            // 先加引用再取切片，之后摘除的映射要等发送完成才释放
+            if (!cold && mappedFileByIndex != retained) {
+                result.retain(mappedFileByIndex);
+                retained = mappedFileByIndex;
+            }
+            ByteBuffer record;
+            if (cold) {
+                record = allocator.apply(size);
+                record = mappedFileByIndex.readFromChannel(offsetInpage, record) ? (ByteBuffer) record.flip() : null;
+            } else {
+                record = mappedFileByIndex.selectRecord(offsetInpage, size);
+            }
+            if (record == null) {
+                // 只推进到实际读到的位置
+                nextOffset = indexResult.getQueueOffset(i);
+                break;
+            }
+            // 批量记录中的消息需要带上记录头部才能解析，同一批连续的消息只带一次
+            int headerStart = cold ? MappedFile.batchHeaderStart(record, offsetInpage)
+                    : mappedFileByIndex.batchHeaderStart(offsetInpage);
+            long headerOffset = headerStart < 0 ? -1 : mappedFileByIndex.getFileFromOffset() + headerStart;
+            if (headerStart >= 0 && headerOffset != lastHeaderOffset) {
+                ByteBuffer header = cold ? mappedFileByIndex.readBatchHeaderFromChannel(headerStart,
+                        allocator.apply(offsetInpage - headerStart)) : mappedFileByIndex.selectBatchHeader(headerStart);
+                if (header == null) {
+                    nextOffset = indexResult.getQueueOffset(i);
+                    break;
+                }
+                records.add(header);
+            }
+            lastHeaderOffset = headerOffset;
+            records.add(record);
+            readOffsets.add(indexResult.getQueueOffset(i));
+        }
+        result.setNextOffset(nextOffset);
+        return result;
+    }
+
+    /**
+     * 按第一条消息离所在通道写入位置的距离判断是否是冷读
+     * @param indexResult
+     * @return
+     */
+    private boolean isColdRead(IndexReadResult indexResult) {
+        if (this.coldReadService == null || indexResult.size() == 0) {
+            return false;
+        }
+        long first = indexResult.getCommitLogOffset(0);
+        return this.coldReadService.isCold(first, commitLog.getMaxOffset(first));
+    }
 
+    /**
+     * 查找commitLog偏移所在的文件，落在上一次找到的文件中时直接复用，不再查文件表
+     * @param offset commitLog偏移
+     * @param last 上一条索引所在的文件，可以为null
+     * @return
+     */
+    private MappedFile commitLogFileOf(long offset, MappedFile last) {
+        if (last != null && last.contains(offset)) {
+            return last;
+        }
+        return commitLog.getMappedFileByOffset(offset);
+    }
+
+    /**
+     * 从消费队列读取索引，按tag过滤时最多扫描maxFilterScanNumber条
+     * 结果对象由读线程重复使用，调用者在返回前用完，不能保存
+     * @param topic 主题
+     * @param queueId 队列id
+     * @param offset 起始队列偏移
+     * @param length 读取消息数
+     * @param tagHashes 订阅tag的哈希，为null不过滤
+     * @return 匹配的索引和下一次读的偏移，队列不存在返回null
+     */
+    private IndexReadResult readQueueIndex(String topic, int queueId, long offset, int length,
+                                           Set<Integer> tagHashes) {
         // 获取到主题和id对应的消费队列
         ConsumeQueue consumeQueue = consumeQueueManager.getConsumeQueue(topic, queueId);
         if (consumeQueue == null) {
             log.error("No such consume queue");
-            return new Pair<>(null, result);
+            return null;
         }
+        consumeQueue.markAccess();
 
         // 获得消费队列的第一个mappedfile文件，用于根据偏移计算索引
         MappedFile firstMappedFile = consumeQueue.getFirstMappedFile();
         if (firstMappedFile == null) {
 //            log.error("Consume queue has zero file, {}, {}", topic, queueId);
-            return new Pair<>(null, result);
+            return null;
         }
 
-
-        String firstName = firstMappedFile.getFileName();
+        IndexReadResult result = this.indexReadResults.get();
+        result.reset(length);
+        int[] sortedTagHashes = this.sortedTagHashes(tagHashes);
         int queueUnit = persistentConfig.getQueueUnit();
         int maxQueueItemNumber = persistentConfig.getMaxQueueItemNumber();
-        int left = length;
-        for (int i = 0; i < length;) {
+        int left = tagHashes == null ? length : Math.max(length, persistentConfig.getMaxFilterScanNumber());
+        // 请求的偏移已经过期删除，从最早的有效偏移开始读
+        long current = Math.max(offset, consumeQueue.getMinOffset());
+        while (left > 0 && !result.isFull()) {
             // 根据偏移和头文件名计算当前该哪一个文件
-            int index = (int) ((offset + i) / maxQueueItemNumber);
-            MappedFile current = consumeQueue.getMappedFileByIndex(index);
-            if (current == null) {
+            int index = (int) (current / maxQueueItemNumber);
+            MappedFile mappedFile = consumeQueue.getMappedFileByIndex(index);
+            if (mappedFile == null) {
                 break;
             }
             // 计算在文件内的偏移
-            int start = (int) ((offset + i) % maxQueueItemNumber) * queueUnit;
+            int start = (int) (current % maxQueueItemNumber) * queueUnit;
             // 批量读取索引信息
-            List<Pair<Long, Integer>> list = current.readOffsetIndex(start, left);
-            if (list == null || list.size() == 0) {
+            int scanned = mappedFile.readOffsetIndex(start, left, current, sortedTagHashes, result);
+            if (scanned == 0) {
                 break;
             }
-            commitLogData.addAll(list);
-            int readed = list.size();
             // 更新剩余数量
-            left -= readed;
-            if (left == 0) {
-                break;
-            }
-            i = length - left;
+            current += scanned;
+            left -= scanned;
         }
+        result.setNextOffset(current);
+        return result;
+    }
 
-        if (commitLogData.size() == 0) {
-            return new Pair<>(null, result);
-        }
-        result = AcquireResultType.ERROR;
-        // 相同的步骤，计算commitLog的索引信息
-        MappedFile firstCommit = commitLog.getFirstMappedFile();
-
-        long nextOffset = offset + commitLogData.size();
-        if (firstCommit == null) {
-            return new Pair<>(null, result);
+    /**
+     * 订阅tag的哈希转成升序数组，扫描索引时二分查找，不装箱
+     * @param tagHashes
+     * @return 为null不过滤
+     */
+    private int[] sortedTagHashes(Set<Integer> tagHashes) {
+        if (tagHashes == null) {
+            return null;
         }
-        String firstCommitName = firstCommit.getFileName();
-        List<ReadyMessage> readyMessageList = new ArrayList<>();
-        for (int i = 0; i < Math.min(length, commitLogData.size()); i++) {
-            Pair<Long, Integer> pair = commitLogData.get(i);
-
-            long curOffset = pair.getKey();
-            int curSize = pair.getValue();
-
-            // 根据索引找到偏移对应的mappedFile
-            int mappedIndex = BrokerUtil.findMappedIndex(curOffset, firstCommitName,
-                    persistentConfig.getCommitLogMaxSize());
-            MappedFile mappedFileByIndex = commitLog.getMappedFileByIndex(mappedIndex);
-            if (mappedFileByIndex == null) {
-                 log.warn("Doesnot have this message, problely something wrong, " +
-                         "topic {}, queueId {}", topic, queueId);
-                break;
-            }
-            // 计算总的偏移在当前页内的偏移
-            int offsetInpage = BrokerUtil.offsetInPage(curOffset, persistentConfig.getCommitLogMaxSize());
-            // 读取偏移处对应的消息
-            StoreInnerMessage innerMessage = mappedFileByIndex.readSingleMessage(offsetInpage);
-            if (innerMessage == null) {
-                break;
-            }
-            Message message = innerMessage.getMessage();
-            readyMessageList.add(new ReadyMessage(brokerController.getBrokerConfig().getBrokerName(),
-                    queueId, offset + i, message, innerMessage.getRetry()));
+        int[] sorted = new int[tagHashes.size()];
+        int i = 0;
+        for (Integer tagHash : tagHashes) {
+            sorted[i++] = tagHash;
         }
-
-        result = AcquireResultType.DONE;
-        return new Pair<>(new Pair<>(readyMessageList, nextOffset), result);
-
+        Arrays.sort(sorted);
+        return sorted;
     }
 
     /**
@@ -349,20 +867,90 @@ public class MessageStoreCenter implements GeneralStoreService {
      * @return
      */
     public StoreInnerMessage readSingleMessage(long offset) {
-        MappedFile firstCommit = commitLog.getFirstMappedFile();
-        String firstCommitName = firstCommit.getFileName();
-        int mappedIndex = BrokerUtil.findMappedIndex(offset, firstCommitName,
-                persistentConfig.getCommitLogMaxSize());
-        MappedFile mappedFileByIndex = commitLog.getMappedFileByIndex(mappedIndex);
+        MappedFile mappedFileByIndex = commitLog.getMappedFileByOffset(offset);
         if (mappedFileByIndex == null) {
             log.warn("Doesnot have this message, problely something wrong");
             return null;
         }
-        int offsetInpage = BrokerUtil.offsetInPage(offset, persistentConfig.getCommitLogMaxSize());
+        int offsetInpage = (int) (offset - mappedFileByIndex.getFileFromOffset());
         StoreInnerMessage message = mappedFileByIndex.readSingleMessage(offsetInpage);
         return message;
     }
 
+    /**
+     * 根据commitLog偏移读取整条记录中的消息，批量记录返回整批
+     * @param offset 记录起点
+     * @return
+     */
+    public List<StoreInnerMessage> readMessages(long offset) {
+        MappedFile mappedFileByIndex = commitLog.getMappedFileByOffset(offset);
+        if (mappedFileByIndex == null) {
+            log.warn("Doesnot have this message, problely something wrong");
+            return null;
+        }
+        return mappedFileByIndex.readMessages((int) (offset - mappedFileByIndex.getFileFromOffset()));
+    }
+
+    /**
+     * 根据存储时间查找队列偏移，用于按时间重置消费进度
+     * @param topic 主题
+     * @param queueId 队列id
+     * @param timestamp 时间戳
+     * @return 第一条存储时间不早于timestamp的消息偏移，队列不存在返回-1
+     */
+    public long getQueueOffsetByTime(String topic, int queueId, long timestamp) {
+        ConsumeQueue consumeQueue = consumeQueueManager.getConsumeQueue(topic, queueId);
+        if (consumeQueue == null) {
+            return -1;
+        }
+        return consumeQueue.searchOffsetByTime(timestamp, this::readStoreTimestamp);
+    }
+
+    /**
+     * 读取commitLog中对应偏移消息的存储时间
+     * @param offset
+     * @return 消息不存在或者是旧格式返回-1
+     */
+    private long readStoreTimestamp(long offset) {
+        MappedFile mappedFileByIndex = commitLog.getMappedFileByOffset(offset);
+        if (mappedFileByIndex == null) {
+            return -1;
+        }
+        return mappedFileByIndex.readStoreTimestamp((int) (offset - mappedFileByIndex.getFileFromOffset()));
+    }
+
+    /**
+     * 根据消息key查询消息，key索引可能有哈希冲突，读出后再比对
+     * @param key 消息key
+     * @param maxNumber 最多返回数量
+     * @return
+     */
+    public List<StoreInnerMessage> queryMessageByKey(String key, int maxNumber) {
+        int limit = Math.min(maxNumber <= 0 ? persistentConfig.getMaxQueryNumber() : maxNumber,
+                persistentConfig.getMaxQueryNumber());
+        List<StoreInnerMessage> result = new ArrayList<>();
+        List<Pair<Long, Integer>> offsets = this.indexService.queryOffsets(key, limit);
+        for (Pair<Long, Integer> pair : offsets) {
+            List<StoreInnerMessage> messages = null;
+            try {
+                // 批量记录只有一条索引，读出整批
+                messages = this.readMessages(pair.getKey());
+            } catch (Exception e) {
+                // commitLog文件可能已经被删除
+                log.warn("Read message by key {} at offset {} error", key, pair.getKey());
+            }
+            if (messages == null) {
+                continue;
+            }
+            for (StoreInnerMessage message : messages) {
+                if (result.size() < limit && key.equals(message.getId())) {
+                    result.add(message);
+                }
+            }
+        }
+        return result;
+    }
+
     /**
      * 消费者主动拉取消息
      * @param mqSimplePullRequest
@@ -376,12 +964,12 @@ public class MessageStoreCenter implements GeneralStoreService {
         long offset = mqSimplePullRequest.getOffset();
         String topic = messageQueue.getTopic();
 
-        Pair<Pair<List<ReadyMessage>, Long>, AcquireResultType> result = read(topic, queueId, offset, length);
+        ReadResult result = read(topic, queueId, offset, length);
 
         MQSimplePullResponse response = new MQSimplePullResponse();
-        List<ReadyMessage> readyMessageList = result.getKey().getKey();
+        List<ReadyMessage> readyMessageList = result.getMessages();
 
-        long nextOffset = result.getKey().getValue();
+        long nextOffset = result.getResultType() == AcquireResultType.DONE ? result.getNextOffset() : offset;
         if (readyMessageList != null) {
             nextOffset += readyMessageList.size();
         }
@@ -423,6 +1011,72 @@ public class MessageStoreCenter implements GeneralStoreService {
     public Map<String, List<QueueInfo>> getAllQueueInfos() {
         return this.consumeQueueManager.allQueueInfos();
     }
+
+    public QueueLoadProgress getQueueLoadProgress() {
+        return this.consumeQueueManager.getLoadProgress();
+    }
+
+    public int getMappedQueueFileCount() {
+        return this.consumeQueueManager.mappedFileCount();
+    }
+
+    /**
+     * 消费队列已经映射的文件数和大小，空闲关闭的队列数和释放的映射数
+     * @return
+     */
+    public Map<String, Long> getQueueMappingMetrics() {
+        return this.consumeQueueManager.mappingMetrics();
+    }
+
+    /**
+     * commitLog映射内存的命中、未命中、解除映射次数和当前映射文件数，所有通道合计
+     * @return 没有限制映射数时为空
+     */
+    public Map<String, Long> getMappedRegionMetrics() {
+        Map<String, Long> map = new LinkedHashMap<>();
+        List<MappedRegionManager> regionManagers = this.commitLog.getRegionManagers();
+        if (regionManagers.isEmpty()) {
+            return map;
+        }
+        long hits = 0, misses = 0, unmaps = 0, mapped = 0, pendingReleased = 0;
+        for (MappedRegionManager regionManager : regionManagers) {
+            hits += regionManager.getHits();
+            misses += regionManager.getMisses();
+            unmaps += regionManager.getUnmaps();
+            mapped += regionManager.mappedCount();
+            pendingReleased += regionManager.getPendingReleased();
+        }
+        map.put("hits", hits);
+        map.put("misses", misses);
+        map.put("unmaps", unmaps);
+        map.put("mapped", mapped);
+        map.put("pendingReleased", pendingReleased);
+        return map;
+    }
+
+    /**
+     * 冷读次数、因并发上限没有读的次数和冷读距离
+     * @return 未开启时为空
+     */
+    public Map<String, Long> getColdReadMetrics() {
+        return this.coldReadService == null ? new LinkedHashMap<>() : this.coldReadService.metrics();
+    }
+
+    /**
+     * commitLog和消费队列的刷盘指标，包括待刷盘文件数、刷盘轮数、刷盘文件数、刷盘耗时和延迟，时间单位毫秒
+     * @return
+     */
+    public Map<String, Map<String, Long>> getFlushMetrics() {
+        Map<String, Map<String, Long>> map = new LinkedHashMap<>();
+        DirtyFileSet commitLogDirty = this.commitLog.getDirtyFiles();
+        DirtyFileSet queueDirty = this.consumeQueueManager.getDirtyFiles();
+        map.put(commitLogDirty.getName(), commitLogDirty.metrics());
+        map.put(queueDirty.getName(), queueDirty.metrics());
+        Map<String, Long> index = new LinkedHashMap<>();
+        index.put("unflushed", (long) this.indexService.unflushedCount());
+        map.put("index", index);
+        return map;
+    }
     @Override
     public void start() {
         // 向消费队列管理器中注册日志恢复监听器，用于启动时从消费队列中找到最大写入位移，然后将commitLog写指针重置
@@ -441,22 +1095,170 @@ public class MessageStoreCenter implements GeneralStoreService {
         });
         this.createDir();
         this.consumeQueueManager.start();
+        this.indexService.start();
+        // 恢复时解析记录需要字典
+        this.nameDictionary.load();
+        this.commitLog.load();
+        this.recover();
         this.commitLog.start();
         if (this.flushDiskService instanceof AsyncFlushDiskService) {
             ((AsyncFlushDiskService) flushDiskService).start();
             log.info("Async flush disk service start successfully");
+        } else if (this.flushDiskService instanceof SyncFlushDiskService) {
+            ((SyncFlushDiskService) flushDiskService).start();
+            log.info("Sync flush disk service start successfully");
         }
         if (this.transmitCommitLogService != null) {
             this.transmitCommitLogService.start();
         }
         this.timingWheelLog.start();
+        this.redispatchDelayEntries();
+        this.cleanExpiredFileService.start();
+        this.checkpointService.start();
+        // 启动完成，之后没有正常关闭都视为异常关闭
+        this.storeCheckpoint.markAbort();
+    }
+
+    /**
+     * 根据上次是否正常关闭选择恢复方式，每个通道分别恢复
+     * 正常关闭直接使用检查点记录的偏移，不需要扫描，没有检查点的旧存储或新增的通道沿用消费队列中记录的最大偏移
+     * 异常关闭从检查点开始向后检查记录，找到有效数据的末尾，并补齐没有转发到消费队列的消息
+     */
+    private void recover() {
+        this.storeCheckpoint.load();
+        // 减少通道数后多出的通道中的消息不会被恢复和读取，消费队列却还指向它们，拒绝启动
+        if (this.storeCheckpoint.laneNumber() > this.commitLog.laneNumber()) {
+            log.error("Checkpoint has {} commitLog lanes, but only {} lanes are configured, lane number can not be reduced",
+                    this.storeCheckpoint.laneNumber(), this.commitLog.laneNumber());
+            throw new IllegalStateException("CommitLog lane number can not be reduced from "
+                    + this.storeCheckpoint.laneNumber() + " to " + this.commitLog.laneNumber());
+        }
+        if (!this.storeCheckpoint.isLastShutdownClean()) {
+            this.recoverAbnormally();
+        } else {
+            for (CommitLog lane : this.commitLog.getLanes()) {
+                if (!this.storeCheckpoint.exists(lane.getLane())) {
+                    continue;
+                }
+                long offset = this.storeCheckpoint.getCommitLogOffset(lane.getLane());
+                lane.resetWritePosition(offset);
+                log.info("Last shutdown is clean, recover CommitLog lane {} from checkpoint {}", lane.getLane(), offset);
+            }
+        }
+        this.checkpointService.setDispatchedOffsets(this.commitLog.getMaxOffsets());
+    }
+
+    private void recoverAbnormally() {
+        long begin = System.currentTimeMillis();
+        int laneNumber = this.commitLog.laneNumber();
+        long[] from = new long[laneNumber];
+        long[] end = new long[laneNumber];
+        List<CommitEntry> entries = new ArrayList<>();
+        for (CommitLog lane : this.commitLog.getLanes()) {
+            int id = lane.getLane();
+            from[id] = lane.getMinOffset();
+            if (this.storeCheckpoint.exists(id)) {
+                from[id] = Math.max(from[id], Math.min(this.storeCheckpoint.getCommitLogOffset(id),
+                        this.storeCheckpoint.getConsumeQueueOffset(id)));
+            }
+            end[id] = lane.scanValidRecords(from[id], entries);
+            lane.truncateDirtyFiles(end[id]);
+            lane.resetWritePosition(end[id]);
+        }
+        this.consumeQueueManager.truncateDirty(offset -> {
+            int lane = MultiLaneCommitLog.laneOf(offset);
+            return lane < laneNumber && offset >= end[lane];
+        });
+        int redispatched = this.redispatch(entries, from);
+        this.consumeQueueManager.flush();
+        log.warn("Recover from abnormal shutdown, scan {} --> {}, {} valid records, {} redispatched, cost {} ms",
+                Arrays.toString(from), Arrays.toString(end), entries.size(), redispatched,
+                System.currentTimeMillis() - begin);
+    }
+
+    /**
+     * 把崩溃前没有转发到消费队列的消息重新转发，已经在队列中的跳过
+     * @param entries 检查通过的记录
+     * @param from 每个通道检查的起始偏移
+     * @return 重新转发的数量
+     */
+    private int redispatch(List<CommitEntry> entries, long[] from) {
+        Map<ConsumeQueue, Set<Long>> dispatched = new HashMap<>();
+        int count = 0;
+        for (CommitEntry entry : entries) {
+            boolean delay = entry.getDelay() != 0;
+            ConsumeQueue queue = delay ? this.consumeQueueManager.getConsumeQueue(MQConstant.DELAY_TOPIC_NAME, 0)
+                    : this.consumeQueueManager.getConsumeQueue(entry.getTopic(), entry.getQueueId());
+            if (queue == null) {
+                log.warn("Consume queue [topic: {}, queueId: {}] not found when recovery",
+                        entry.getTopic(), entry.getQueueId());
+                continue;
+            }
+            Set<Long> offsets = dispatched.computeIfAbsent(queue, q -> {
+                Set<Long> set = new HashSet<>();
+                q.collectRecentOffsets(offset -> {
+                    int lane = MultiLaneCommitLog.laneOf(offset);
+                    return lane < from.length && offset >= from[lane];
+                }, set);
+                return set;
+            });
+            if (offsets.contains(entry.getOffset())) {
+                // 已经转发到消费队列，但key索引在之后才写入，可能没来得及写
+                if (entry.getId() != null && !this.indexService.containsKey(entry.getId(), entry.getKeyOffset())) {
+                    this.indexService.putKey(entry.getId(), entry.getKeyOffset(), entry.getKeySize());
+                }
+                continue;
+            }
+            count++;
+            // 延时消息需要写延时日志，等延时日志加载完成后再转发
+            if (delay) {
+                this.recoveredDelayEntries.add(entry);
+                continue;
+            }
+            this.consumeQueueManager.updateOffset(entry.getOffset(), entry.getTopic(), entry.getQueueId(),
+                    entry.getSize(), 0, entry.getTag());
+            this.indexService.putKey(entry.getId(), entry.getKeyOffset(), entry.getKeySize());
+        }
+        return count;
+    }
+
+    private void redispatchDelayEntries() {
+        for (CommitEntry entry : this.recoveredDelayEntries) {
+            this.consumeQueueManager.updateOffset(entry.getOffset(), entry.getTopic(), entry.getQueueId(),
+                    entry.getSize(), entry.getDelay(), entry.getTag());
+            this.indexService.putKey(entry.getId(), entry.getKeyOffset(), entry.getKeySize());
+        }
+        this.recoveredDelayEntries.clear();
     }
 
     @Override
     public void close() {
+        this.cleanExpiredFileService.setStop();
         this.commitLog.close();
+        // 处理完已经写入的消息，队列和索引才完整
+        for (ExecutorService putDispatcher : this.putDispatchers) {
+            putDispatcher.shutdown();
+        }
+        for (ExecutorService putDispatcher : this.putDispatchers) {
+            try {
+                putDispatcher.awaitTermination(3, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                log.warn("Wait for put dispatcher interrupted");
+            }
+        }
+        // 转发完已经提交的消息，检查点才能记录最大偏移
+        if (this.transmitCommitLogService != null) {
+            this.transmitCommitLogService.shutdown();
+        }
+        if (this.flushDiskService instanceof SyncFlushDiskService) {
+            ((SyncFlushDiskService) flushDiskService).setStop();
+        }
+        this.checkpointService.shutdown();
         this.consumeQueueManager.close();
+        this.indexService.close();
         this.timingWheelLog.close();
+        this.nameDictionary.close();
+        this.storeCheckpoint.markClean();
     }
 
     private void createDir() {
@@ -481,6 +1283,10 @@ public class MessageStoreCenter implements GeneralStoreService {
             if (!delayFile.exists()) {
                 delayFile.mkdir();
             }
+            File indexFile = new File(persistentConfig.getIndexPath());
+            if (!indexFile.exists()) {
+                indexFile.mkdir();
+            }
             File configFile = new File(persistentConfig.getConfigPath());
             if (!configFile.exists()) {
                 configFile.mkdir();
@@ -494,6 +1300,14 @@ public class MessageStoreCenter implements GeneralStoreService {
         return timingWheelLog;
     }
 
+    public IndexService getIndexService() {
+        return indexService;
+    }
+
+    public NameDictionary getNameDictionary() {
+        return nameDictionary;
+    }
+
     public TransmitCommitLogService getTransmitCommitLogService() {
         return transmitCommitLogService;
     }
@@ -503,43 +1317,143 @@ public class MessageStoreCenter implements GeneralStoreService {
     }
 
     /**
-     * 负责将已提交的消息转送到对应队列
+     * 负责将已提交的消息转送到对应队列，按主题队列分成多个分片，每个分片一个线程，
+     * 同一个队列的消息总是由同一个分片按提交顺序写入，延时消息都写入延时队列，固定由延时队列所在的分片处理
      */
-    class TransmitCommitLogService extends Thread {
-        private final Logger log = LoggerFactory.getLogger(TransmitCommitLogService.class);
+    class TransmitCommitLogService {
+        private final DispatchShard[] shards;
 
-        private LinkedBlockingQueue<List<CommitEntry>> queue = new LinkedBlockingQueue<>(3000);
+        public TransmitCommitLogService() {
+            int number = Math.max(1, persistentConfig.getDispatchShardNumber());
+            this.shards = new DispatchShard[number];
+            for (int i = 0; i < number; i++) {
+                this.shards[i] = new DispatchShard(i);
+            }
+        }
+
+        public void start() {
+            for (DispatchShard shard : shards) {
+                shard.start();
+            }
+            log.info("TransmitCommitLogService start with {} dispatch shards", shards.length);
+        }
+
+        /**
+         * 停止所有分片，并转发剩余的提交信息
+         */
+        public void shutdown() {
+            for (DispatchShard shard : shards) {
+                shard.shutdown();
+            }
+        }
+
+        /**
+         * 按分片拆分提交信息，放入各分片的阻塞队列
+         * @param entries
+         */
+        public void putEntries(List<CommitEntry> entries) {
+            if (entries == null || entries.isEmpty()) {
+                return;
+            }
+            if (shards.length == 1) {
+                shards[0].putEntries(entries);
+                return;
+            }
+            List<CommitEntry>[] parts = new List[shards.length];
+            for (CommitEntry entry : entries) {
+                int shard = this.shardOf(entry);
+                if (parts[shard] == null) {
+                    parts[shard] = new ArrayList<>();
+                }
+                parts[shard].add(entry);
+            }
+            for (int i = 0; i < shards.length; i++) {
+                if (parts[i] != null) {
+                    shards[i].putEntries(parts[i]);
+                }
+            }
+        }
+
+        /**
+         * 消息实际写入的队列所在的分片
+         * @param entry
+         * @return
+         */
+        private int shardOf(CommitEntry entry) {
+            String topic = entry.getDelay() != 0 ? MQConstant.DELAY_TOPIC_NAME : entry.getTopic();
+            int queueId = entry.getDelay() != 0 ? 0 : entry.getQueueId();
+            return Math.floorMod(topic.hashCode() * 31 + queueId, shards.length);
+        }
+    }
+
+    /**
+     * 转发分片线程，一次取出队列中所有的提交信息一起转发
+     */
+    class DispatchShard extends Thread {
+        private final Logger log = LoggerFactory.getLogger(DispatchShard.class);
+
+        private final LinkedBlockingQueue<List<CommitEntry>> queue;
+
+        private final int batchSize;
+
+        private volatile boolean isStop = false;
+
+        public DispatchShard(int id) {
+            super("DispatchShard-" + id);
+            this.queue = new LinkedBlockingQueue<>(persistentConfig.getDispatchQueueCapacity());
+            this.batchSize = persistentConfig.getDispatchBatchSize();
+            this.setDaemon(true);
+        }
 
-        private boolean isStop = false;
         @Override
         public void run() {
+            List<List<CommitEntry>> batch = new ArrayList<>();
             while (!isStop) {
                 try {
-                    // 从阻塞队列中拿到提交的entry，写入
-                    List<CommitEntry> entries = queue.take();
-                    putOffsetToQueue(entries);
+                    // 从阻塞队列中拿到提交的entry，连同已经积压的一起写入
+                    List<CommitEntry> first = queue.poll(100, TimeUnit.MILLISECONDS);
+                    if (first == null) {
+                        continue;
+                    }
+                    batch.clear();
+                    batch.add(first);
+                    queue.drainTo(batch, batchSize - 1);
+                    dispatchEntries(batch);
                 } catch (InterruptedException e) {
-                    log.error("TransmitCommitLogService has been Interrupted");
+                    log.error("DispatchShard has been Interrupted");
+                } catch (Throwable t) {
+                    log.error("Dispatch commit entries error", t);
                 }
             }
         }
 
         /**
-         * 向阻塞队列中放入提交信息
-         * @param entries
+         * 停止线程，并转发队列中剩余的提交信息
          */
-        public void putEntries(List<CommitEntry> entries) {
-            if (entries != null) {
-                try {
-                    queue.put(entries);
-                } catch (InterruptedException e) {
-                    log.error("TransmitCommitLogService has been Interrupted");
-                }
+        public void shutdown() {
+            this.isStop = true;
+            try {
+                this.join(3000);
+            } catch (InterruptedException e) {
+                log.warn("Wait for dispatch shard interrupted");
+            }
+            List<List<CommitEntry>> rest = new ArrayList<>();
+            queue.drainTo(rest);
+            if (!rest.isEmpty()) {
+                dispatchEntries(rest);
             }
         }
 
-        public void setStop(boolean stop) {
-            isStop = stop;
+        /**
+         * 向阻塞队列中放入提交信息，队列满时阻塞提交线程
+         * @param entries
+         */
+        public void putEntries(List<CommitEntry> entries) {
+            try {
+                queue.put(entries);
+            } catch (InterruptedException e) {
+                log.error("DispatchShard has been Interrupted");
+            }
         }
     }
 }
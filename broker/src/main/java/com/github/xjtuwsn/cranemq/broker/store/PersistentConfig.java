@@ -1,5 +1,6 @@
 package com.github.xjtuwsn.cranemq.broker.store;
 
+import com.github.xjtuwsn.cranemq.broker.store.write.WriteStrategyType;
 import com.github.xjtuwsn.cranemq.common.config.FlushDisk;
 import lombok.*;
 
@@ -35,25 +36,120 @@ public class PersistentConfig {
     // 单个commitLog最大大小
     private int commitLogMaxSize = 1024 * 1024 * 1024; // 1GB
 
+    // 文件最长保留时间，超过后由过期清理服务删除
     private int maxLiveTime = 1000 * 60 * 60 * 24 * 3; // 3天
 
+    // commitLog最大总大小，超过后从最早的文件开始删除，0表示不限制
+    private long maxCommitLogTotalSize = 0;
+
+    // 磁盘使用率超过该值时，不管是否过期都从最早的文件开始删除
+    private double diskMaxUsedRatio = 0.85;
+
+    // 过期清理间隔
+    private long cleanInterval = 10 * 1000;
+
+    // 每轮最多删除的commitLog文件数，避免集中删除影响读写
+    private int maxDeleteFilesPerRound = 10;
+
+    // 文件摘除后延迟销毁的时间，等待正在读取该文件的请求结束
+    private long destroyDelay = 120 * 1000;
+
     private String commitLogPath = rootPath + "commitlog\\";
 
+    // commitLog通道数，每个主题队列固定写入其中一个通道，各通道的文件互相独立
+    private int commitLogLaneNumber = 1;
+
+    // 通道1及之后的目录，逗号分隔，可以放在不同的磁盘上，没有配置的通道放在commitLog目录旁边
+    private String commitLogLanePaths = "";
+
     private String consumerqueuePath = rootPath + "consumequeue\\";
 
     // 延时日志持久化路径
     private String delayLogPath = rootPath + "delaylog\\";
 
+    // 消息key索引目录
+    private String indexPath = rootPath + "index\\";
+
+    // 单个key索引文件哈希槽数
+    private int indexSlotNumber = 500000;
+
+    // 单个key索引文件最多索引数
+    private int maxIndexNumber = 2000000;
+
+    // 按key查询单次最多返回的消息数
+    private int maxQueryNumber = 32;
+
+    // 检查点文件，记录commitLog和消费队列已经刷盘的位置
+    private String checkpointPath = rootPath + "checkpoint";
+
+    // 异常关闭标记文件，启动时创建，正常关闭时删除
+    private String abortFilePath = rootPath + "abort";
+
+    // topic和tag名称字典文件
+    private String dictionaryPath = rootPath + "dictionary";
+
+    // 写入检查点间隔
+    private long checkpointInterval = 1000;
+
+    // 启动时并行加载消费队列的线程数
+    private int queueLoadParallelism = Runtime.getRuntime().availableProcessors();
+
+    // 启动时只映射每个队列的最后一个文件，之前的文件第一次读取时再映射
+    private boolean lazyMapQueueFile = true;
+
+    // 消费队列文件的初始映射大小，写不下时翻倍直到maxQueueSize，文件按映射大小占用空间
+    // 小于等于0或者不小于maxQueueSize时直接映射整个文件
+    private int initialQueueFileSize = 64 * 1024;
+
+    // 消费队列多久没有读写后解除映射并关闭文件，下一次读写时重新打开，小于等于0不关闭
+    private long queueIdleCloseTime = 10 * 60 * 1000;
+
+    // 检查空闲消费队列的间隔
+    private long queueIdleCheckInterval = 60 * 1000;
+
+    // 同时映射的commitLog文件数上限，超过时解除最久没有读取的已写满文件的映射，小于等于0不限制
+    private int maxMappedCommitLogFiles = 16;
+
+    // 解除映射后延迟释放的时间，等待正在读取旧映射的请求结束
+    private long unmapDelay = 30 * 1000;
+
+    // 检查映射文件数的间隔
+    private long mappedRegionCheckInterval = 1000;
+
+    // 正在写的commitLog文件之后预分配的文件数
+    private int preallocateFileNumber = 2;
+
+    // 预分配时逐页预热文件
+    private boolean warmMappedFile = true;
+
     private String defaultName = "dummy";
 
-    // 最大堆外借用内存数
-    private int maxOutOfMemoryPoolSize = 2;
+    // 堆外内存分片大小
+    private int outOfMemoryChunkSize = 64 * 1024 * 1024;
+
+    // 堆外内存总大小上限，分片按需申请
+    private long maxOutOfMemorySize = 512L * 1024 * 1024;
+
+    // 常驻的堆外内存分片数
+    private int minOutOfMemoryChunks = 2;
+
+    // 堆外内存空闲多久后释放多余的分片
+    private long outOfMemoryIdleTime = 60 * 1000;
 
     // 允许堆外内存
     private boolean enableOutOfMemory = true;
 
-    // 每个索引项长度
-    private int queueUnit = 8 + 4;
+    // commitLog写入方式，为null时开启堆外内存使用TRANSIENT_POOL，否则使用MMAP
+    private WriteStrategyType commitLogWriteStrategy;
+
+    // FILE_CHANNEL写入方式每个文件借用的buffer大小
+    private int channelWriteBufferSize = 4 * 1024 * 1024;
+
+    // FILE_CHANNEL写入方式使用堆外buffer，堆内buffer写入时JDK会再复制一次
+    private boolean channelWriteDirectBuffer = true;
+
+    // 每个索引项长度，commitLog偏移long + 消息长度int + tag哈希int
+    private int queueUnit = 8 + 4 + 4;
 
     // 单个队列索引文件索引数
     private int maxQueueItemNumber = 400000;
@@ -67,17 +163,120 @@ public class PersistentConfig {
     // 异步刷盘间隔
     private long flushDiskInterval = 500;
 
+    // 异步刷盘时消费队列的刷盘间隔，崩溃后可以从commitLog重建，不需要和commitLog一样频繁
+    private long flushConsumeQueueInterval = 1000;
+
+    // 异步刷盘时消息key索引的刷盘间隔
+    private long flushIndexInterval = 3000;
+
     // 刷盘策略，默认异步
     private FlushDisk flushDisk = FlushDisk.ASYNC;
 
+    // 同步刷盘等待超时时间
+    private long syncFlushTimeout = 5000;
+
     // 默认主题队列数量
     private int defaultQueueNumber = 4;
 
     // 单次拉取最大消息数
     private int maxSingleReadLength = 16;
 
+    // 长轮询拉取时直接发送commitLog中的原始记录，不再重新序列化
+    private boolean enableZeroCopyPull = true;
+
+    // 批量发送的消息整批写成一条批量记录，主题、队列和id只存一次
+    private boolean enableBatchRecord = true;
+
+    // 普通记录中的topic和tag保存为字典编号
+    private boolean enableNameDictionary = true;
+
+    // 字典最多保存的名称数，超过后新名称的记录保存字符串
+    private int maxDictionarySize = 65536;
+
+    // 落后较多的消费者改为冷读，通过FileChannel读取，限制并发和批量，避免把末尾热数据挤出页缓存
+    private boolean enableColdRead = true;
+
+    // 读取位置落后于commitLog写入位置超过该距离时按冷读处理，为0时按物理内存比例估算页缓存能容纳的范围
+    private long coldReadDistance = 0;
+
+    // 估算页缓存范围时使用的物理内存百分比
+    private int hotReadMemoryRatio = 40;
+
+    // 同时进行的冷读数，超过时本次不读，等待下一次唤醒
+    private int maxColdReadConcurrency = 2;
+
+    // 冷读单次拉取最大消息数
+    private int coldReadBatchLength = 4;
+
+    // 冷读之后建议消费者延迟下一次拉取的时间，毫秒
+    private long coldReadBackoffMillis = 100;
+
+    // 按tag过滤时，单次拉取最多扫描的索引数
+    private int maxFilterScanNumber = 2000;
+
     // 延迟消息日志，100MB
     private int delayMessageLogSize = 100 * 1024 * 1024;
 
+    // 组提交环形队列容量
+    private int groupCommitRingSize = 16384;
+
+    // 组提交单次最多合并的请求数
+    private int groupCommitBatchSize = 512;
+
+    // 内部同步写入遇到组提交队列满时的最长重试时间，网络请求不重试，直接返回繁忙
+    private long busyRetryTimeout = 3000;
+
+    // 已提交消息转发到消费队列的分片线程数，同一个队列固定由一个分片转发
+    private int dispatchShardNumber = Math.max(1, Math.min(8, Runtime.getRuntime().availableProcessors() / 2));
+
+    // 每个转发分片的提交信息队列容量
+    private int dispatchQueueCapacity = 3000;
+
+    // 转发分片单次最多合并的提交信息数
+    private int dispatchBatchSize = 64;
+
+    // 每个写入分发线程排队的消息数上限，已满时新消息不写入commitLog，直接返回繁忙
+    private int putDispatchQueueCapacity = 16384;
+
+    /**
+     * commitLog实际使用的写入方式
+     * @return
+     */
+    public WriteStrategyType getCommitLogWriteStrategy() {
+        if (commitLogWriteStrategy != null) {
+            return commitLogWriteStrategy;
+        }
+        return enableOutOfMemory ? WriteStrategyType.TRANSIENT_POOL : WriteStrategyType.MMAP;
+    }
+
+    /**
+     * 消费队列文件的初始映射大小，按索引项长度对齐
+     * @return 不需要增长时返回maxQueueSize
+     */
+    public int getInitialQueueFileSize() {
+        if (initialQueueFileSize <= 0 || initialQueueFileSize >= maxQueueSize) {
+            return maxQueueSize;
+        }
+        return Math.max(queueUnit, initialQueueFileSize / queueUnit * queueUnit);
+    }
+
+    /**
+     * 通道的commitLog目录，通道0就是commitLogPath
+     * @param lane 通道号
+     * @return
+     */
+    public String getCommitLogLanePath(int lane) {
+        if (lane == 0) {
+            return commitLogPath;
+        }
+        String[] paths = commitLogLanePaths == null || commitLogLanePaths.trim().isEmpty()
+                ? new String[0] : commitLogLanePaths.split(",");
+        if (lane - 1 < paths.length && !paths[lane - 1].trim().isEmpty()) {
+            return paths[lane - 1].trim();
+        }
+        // 默认目录：commitlog\\ --> commitlog1\\
+        char separator = commitLogPath.charAt(commitLogPath.length() - 1);
+        return commitLogPath.substring(0, commitLogPath.length() - 1) + lane + separator;
+    }
 
 }
@@ -0,0 +1,108 @@
+package com.github.xjtuwsn.cranemq.broker.store.checkpoint;
+
+import com.github.xjtuwsn.cranemq.broker.store.PersistentConfig;
+import com.github.xjtuwsn.cranemq.broker.store.cmtlog.MultiLaneCommitLog;
+import com.github.xjtuwsn.cranemq.broker.store.queue.ConsumeQueueManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+
+/**
+ * @project:dduomq
+ * @file:CheckpointService
+ * @author:dduo
+ * @create:2023/10/31-11:05
+ */
+
+/**
+ * 定时刷盘并写入检查点
+ * 消息写入commitLog之后才会转发到消费队列，本轮记录的commitLog偏移要到下一轮才作为消费队列的转发偏移，
+ * 崩溃恢复时从转发偏移开始重新检查并补齐消费队列，每个通道分别记录
+ * @author dduo
+ */
+public class CheckpointService extends Thread {
+    private static final Logger log = LoggerFactory.getLogger(CheckpointService.class);
+
+    private PersistentConfig persistentConfig;
+    private StoreCheckpoint storeCheckpoint;
+    private MultiLaneCommitLog commitLog;
+    private ConsumeQueueManager consumeQueueManager;
+
+    // 上一轮记录的每个通道的commitLog偏移
+    private long[] lastMaxOffsets;
+
+    private volatile boolean isStop = false;
+
+    public CheckpointService(PersistentConfig persistentConfig, StoreCheckpoint storeCheckpoint,
+                             MultiLaneCommitLog commitLog,
+                             ConsumeQueueManager consumeQueueManager) {
+        super("CheckpointService");
+        this.persistentConfig = persistentConfig;
+        this.storeCheckpoint = storeCheckpoint;
+        this.commitLog = commitLog;
+        this.consumeQueueManager = consumeQueueManager;
+        this.setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+        while (!isStop) {
+            try {
+                Thread.sleep(persistentConfig.getCheckpointInterval());
+            } catch (InterruptedException e) {
+                if (!isStop) {
+                    log.warn("CheckpointService has been Interrupted");
+                }
+            }
+            if (isStop) {
+                break;
+            }
+            try {
+                this.doCheckpoint();
+            } catch (Throwable t) {
+                log.error("Write checkpoint error", t);
+            }
+        }
+        log.info("CheckpointService has stopped");
+    }
+
+    private void doCheckpoint() {
+        // 先取偏移再刷盘，保证记录的偏移之前的数据已经落盘
+        long[] maxOffsets = commitLog.getMaxOffsets();
+        commitLog.flush();
+        consumeQueueManager.flush();
+        long[] dispatched = new long[maxOffsets.length];
+        for (int i = 0; i < maxOffsets.length; i++) {
+            dispatched[i] = Math.min(lastMaxOffsets[i], maxOffsets[i]);
+        }
+        storeCheckpoint.update(maxOffsets, dispatched);
+        this.lastMaxOffsets = maxOffsets;
+    }
+
+    /**
+     * 正常关闭，所有消息都已经转发，检查点直接记录当前的最大偏移
+     */
+    public void shutdown() {
+        this.isStop = true;
+        this.interrupt();
+        try {
+            this.join(3000);
+        } catch (InterruptedException e) {
+            log.warn("Wait for checkpoint service interrupted");
+        }
+        long[] maxOffsets = commitLog.getMaxOffsets();
+        commitLog.flush();
+        consumeQueueManager.flush();
+        storeCheckpoint.update(maxOffsets, maxOffsets);
+        log.info("Write checkpoint on shutdown, offset: {}", Arrays.toString(maxOffsets));
+    }
+
+    /**
+     * 恢复完成后设置已经转发的偏移
+     * @param dispatchedOffsets 每个通道已经转发的偏移
+     */
+    public void setDispatchedOffsets(long[] dispatchedOffsets) {
+        this.lastMaxOffsets = dispatchedOffsets;
+    }
+}
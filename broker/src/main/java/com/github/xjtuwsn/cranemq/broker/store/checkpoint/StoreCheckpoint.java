@@ -0,0 +1,197 @@
+package com.github.xjtuwsn.cranemq.broker.store.checkpoint;
+
+import com.github.xjtuwsn.cranemq.broker.store.PersistentConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32C;
+
+/**
+ * @project:dduomq
+ * @file:StoreCheckpoint
+ * @author:dduo
+ * @create:2023/10/31-10:40
+ */
+
+/**
+ * 存储检查点，按commitLog通道记录已经刷盘的偏移和已经转发到消费队列并刷盘的偏移
+ * 同时管理异常关闭标记，启动时创建，正常关闭时删除
+ * @author dduo
+ */
+public class StoreCheckpoint {
+    private static final Logger log = LoggerFactory.getLogger(StoreCheckpoint.class);
+    // 单通道的旧格式：commitLog偏移long + 消费队列偏移long + 写入时间long + 校验和int
+    private static final int LEGACY_LENGTH = 8 + 8 + 8 + 4;
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private File file;
+    private File abortFile;
+
+    // 每个通道这个偏移之前的commitLog已经刷盘，为空表示没有检查点
+    private volatile long[] commitLogOffsets = new long[0];
+    // 每个通道这个偏移之前的消息已经转发到消费队列并刷盘
+    private volatile long[] consumeQueueOffsets = new long[0];
+    private volatile long timestamp = 0;
+    // 上次是否正常关闭
+    private boolean lastShutdownClean = true;
+
+    public StoreCheckpoint(PersistentConfig persistentConfig) {
+        this.file = new File(persistentConfig.getCheckpointPath());
+        this.abortFile = new File(persistentConfig.getAbortFilePath());
+    }
+
+    /**
+     * 检查点长度：通道数int + 每个通道的两个偏移long + 写入时间long + 校验和int
+     * @param lanes
+     * @return
+     */
+    private static int checkpointLength(int lanes) {
+        return 4 + lanes * (8 + 8) + 8 + 4;
+    }
+
+    /**
+     * 读取检查点和异常关闭标记，检查点损坏视为不存在，旧格式的检查点作为通道0读取
+     */
+    public void load() {
+        this.lastShutdownClean = !abortFile.exists();
+        if (!file.exists()) {
+            return;
+        }
+        try {
+            byte[] data = Files.readAllBytes(file.toPath());
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            int lanes = 1;
+            if (data.length != LEGACY_LENGTH) {
+                lanes = data.length >= 4 ? buffer.getInt() : 0;
+                if (lanes <= 0 || data.length != checkpointLength(lanes)) {
+                    log.warn("Checkpoint file length {} is illegal, ignore it", data.length);
+                    return;
+                }
+            }
+            long[] commits = new long[lanes];
+            long[] queues = new long[lanes];
+            for (int i = 0; i < lanes; i++) {
+                commits[i] = buffer.getLong();
+                queues[i] = buffer.getLong();
+            }
+            long time = buffer.getLong();
+            if (crc(data, data.length - 4) != buffer.getInt()) {
+                log.warn("Checkpoint file checksum mismatch, ignore it");
+                return;
+            }
+            this.commitLogOffsets = commits;
+            this.consumeQueueOffsets = queues;
+            this.timestamp = time;
+            log.info("Load checkpoint, commitLog: {}, consumeQueue: {}, clean shutdown: {}",
+                    Arrays.toString(commits), Arrays.toString(queues), lastShutdownClean);
+        } catch (IOException e) {
+            log.error("Read checkpoint file error", e);
+        }
+    }
+
+    /**
+     * 写入新的检查点，先写临时文件再替换，写入中断不会破坏原检查点
+     * @param commitLogOffsets 每个通道的刷盘偏移
+     * @param consumeQueueOffsets 每个通道的转发偏移
+     */
+    public synchronized void update(long[] commitLogOffsets, long[] consumeQueueOffsets) {
+        long now = System.currentTimeMillis();
+        int lanes = commitLogOffsets.length;
+        int length = checkpointLength(lanes);
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        buffer.putInt(lanes);
+        for (int i = 0; i < lanes; i++) {
+            buffer.putLong(commitLogOffsets[i]);
+            buffer.putLong(consumeQueueOffsets[i]);
+        }
+        buffer.putLong(now);
+        buffer.putInt(crc(buffer.array(), length - 4));
+        buffer.flip();
+        File temp = new File(file.getPath() + TEMP_SUFFIX);
+        try {
+            try (FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(true);
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            this.commitLogOffsets = commitLogOffsets.clone();
+            this.consumeQueueOffsets = consumeQueueOffsets.clone();
+            this.timestamp = now;
+        } catch (IOException e) {
+            log.error("Write checkpoint file error", e);
+        }
+    }
+
+    private static int crc(byte[] data, int length) {
+        CRC32C crc32C = new CRC32C();
+        crc32C.update(data, 0, length);
+        return (int) crc32C.getValue();
+    }
+
+    /**
+     * 启动完成后创建异常关闭标记
+     */
+    public void markAbort() {
+        try {
+            if (!abortFile.exists()) {
+                abortFile.createNewFile();
+            }
+        } catch (IOException e) {
+            log.error("Create abort file error", e);
+        }
+    }
+
+    /**
+     * 正常关闭，删除异常关闭标记
+     */
+    public void markClean() {
+        if (abortFile.exists() && !abortFile.delete()) {
+            log.error("Delete abort file error");
+        }
+    }
+
+    public boolean exists() {
+        return commitLogOffsets.length > 0;
+    }
+
+    /**
+     * 通道是否有检查点，通道数增加后新通道没有
+     * @param lane
+     * @return
+     */
+    public boolean exists(int lane) {
+        return lane < commitLogOffsets.length;
+    }
+
+    public boolean isLastShutdownClean() {
+        return lastShutdownClean;
+    }
+
+    public int laneNumber() {
+        return commitLogOffsets.length;
+    }
+
+    public long getCommitLogOffset(int lane) {
+        return commitLogOffsets[lane];
+    }
+
+    public long getConsumeQueueOffset(int lane) {
+        return consumeQueueOffsets[lane];
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+}
@@ -0,0 +1,202 @@
+package com.github.xjtuwsn.cranemq.broker.store.clean;
+
+import com.github.xjtuwsn.cranemq.broker.BrokerController;
+import com.github.xjtuwsn.cranemq.broker.store.MappedFile;
+import com.github.xjtuwsn.cranemq.broker.store.PersistentConfig;
+import com.github.xjtuwsn.cranemq.broker.store.cmtlog.CommitLog;
+import com.github.xjtuwsn.cranemq.broker.store.cmtlog.MultiLaneCommitLog;
+import com.github.xjtuwsn.cranemq.broker.store.index.IndexFile;
+import com.github.xjtuwsn.cranemq.broker.store.index.IndexService;
+import com.github.xjtuwsn.cranemq.broker.store.queue.ConsumeQueueManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * @project:dduomq
+ * @file:CleanExpiredFileService
+ * @author:dduo
+ * @create:2023/10/30-15:20
+ */
+
+/**
+ * 过期文件清理服务，按保留时间、commitLog总大小和磁盘使用率删除每个通道最早的commitLog文件，
+ * 再删除索引全部指向已删除commitLog的消费队列文件和key索引文件，最后修正消费进度
+ * 文件先从链表中摘除，延迟一段时间后再解除映射并删除，commitLog文件还有零拷贝发送的引用时等引用释放后再删除
+ * @author dduo
+ */
+public class CleanExpiredFileService extends Thread {
+    private static final Logger log = LoggerFactory.getLogger(CleanExpiredFileService.class);
+
+    private BrokerController brokerController;
+    private PersistentConfig persistentConfig;
+    private MultiLaneCommitLog commitLog;
+    private ConsumeQueueManager consumeQueueManager;
+    private IndexService indexService;
+
+    // 已经摘除等待销毁的文件
+    private LinkedList<DestroyTask> destroyTasks = new LinkedList<>();
+    // 等待销毁的文件大小，计算磁盘使用率时视为已经释放
+    private long pendingSize = 0;
+
+    private volatile boolean isStop = false;
+
+    public CleanExpiredFileService(BrokerController brokerController, MultiLaneCommitLog commitLog,
+                                   ConsumeQueueManager consumeQueueManager, IndexService indexService) {
+        super("CleanExpiredFileService");
+        this.brokerController = brokerController;
+        this.persistentConfig = brokerController.getPersistentConfig();
+        this.commitLog = commitLog;
+        this.consumeQueueManager = consumeQueueManager;
+        this.indexService = indexService;
+        this.setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+        while (!isStop) {
+            try {
+                Thread.sleep(persistentConfig.getCleanInterval());
+            } catch (InterruptedException e) {
+                if (!isStop) {
+                    log.warn("CleanExpiredFileService has been Interrupted");
+                }
+            }
+            if (isStop) {
+                break;
+            }
+            try {
+                this.destroyExpiredTasks(false);
+                this.clean();
+            } catch (Throwable t) {
+                log.error("Clean expired file error", t);
+            }
+        }
+        log.info("CleanExpiredFileService has stopped");
+    }
+
+    /**
+     * 执行一轮清理
+     */
+    private void clean() {
+        for (CommitLog lane : commitLog.getLanes()) {
+            this.cleanLane(lane);
+        }
+        // commitLog没有删除文件时也检查，重启前删除的文件对应的队列文件可能还在
+        for (MappedFile mappedFile : consumeQueueManager.deleteExpiredFiles(commitLog::isRemoved)) {
+            this.addTask(mappedFile.fileLength(), null, mappedFile::destroy);
+        }
+        for (IndexFile indexFile : indexService.deleteExpiredFiles(commitLog::isRemoved)) {
+            this.addTask(indexFile.getFileSize(), null, indexFile::destroy);
+        }
+        brokerController.getOffsetManager().correctOffsets();
+    }
+
+    /**
+     * 删除一个通道最早的文件，总大小上限由各通道平分，磁盘使用率按通道所在的磁盘计算
+     * @param lane
+     */
+    private void cleanLane(CommitLog lane) {
+        long now = System.currentTimeMillis();
+        int deleted = 0;
+        while (deleted < persistentConfig.getMaxDeleteFilesPerRound()) {
+            MappedFile first = lane.getFirstMappedFile();
+            if (first == null || !lane.isSealed(first)) {
+                break;
+            }
+            boolean expired = now - first.lastModified() > persistentConfig.getMaxLiveTime();
+            boolean overSize = persistentConfig.getMaxCommitLogTotalSize() > 0
+                    && lane.totalFileSize() > persistentConfig.getMaxCommitLogTotalSize() / commitLog.laneNumber();
+            boolean diskFull = this.diskUsedRatio(lane.getLanePath()) > persistentConfig.getDiskMaxUsedRatio();
+            if (!expired && !overSize && !diskFull) {
+                break;
+            }
+            long length = first.fileLength();
+            if (!lane.removeFirstFile(first)) {
+                break;
+            }
+            log.info("CommitLog lane {} file {} removed, expired: {}, overSize: {}, diskFull: {}",
+                    lane.getLane(), first.getFileName(), expired, overSize, diskFull);
+            this.addTask(length, first, first::destroy);
+            deleted++;
+        }
+    }
+
+    /**
+     * 磁盘使用率，等待销毁的文件视为已经释放
+     * @param path commitLog通道目录
+     * @return
+     */
+    private double diskUsedRatio(String path) {
+        File dir = new File(path);
+        long total = dir.getTotalSpace();
+        if (total <= 0) {
+            return 0;
+        }
+        long used = total - dir.getUsableSpace() - pendingSize;
+        return (double) used / total;
+    }
+
+    /**
+     * 添加延迟销毁任务
+     * @param length 文件大小
+     * @param referenced 可能被零拷贝发送引用的文件，没有引用时才销毁，为null不检查
+     * @param action 销毁动作
+     */
+    private void addTask(long length, MappedFile referenced, Runnable action) {
+        destroyTasks.add(new DestroyTask(length, referenced, action,
+                System.currentTimeMillis() + persistentConfig.getDestroyDelay()));
+        pendingSize += length;
+    }
+
+    /**
+     * 销毁到期并且没有引用的文件
+     * @param force 关闭时不再等待，直接销毁
+     */
+    private void destroyExpiredTasks(boolean force) {
+        long now = System.currentTimeMillis();
+        Iterator<DestroyTask> iterator = destroyTasks.iterator();
+        while (iterator.hasNext()) {
+            DestroyTask task = iterator.next();
+            if (!force && task.deadline > now) {
+                break;
+            }
+            // 还有切片在等待发送，下一轮再检查
+            if (!force && task.referenced != null && task.referenced.isReferenced()) {
+                continue;
+            }
+            task.action.run();
+            pendingSize -= task.length;
+            iterator.remove();
+        }
+    }
+
+    public void setStop() {
+        this.isStop = true;
+        this.interrupt();
+        try {
+            this.join(3000);
+        } catch (InterruptedException e) {
+            log.warn("Wait for clean service interrupted");
+        }
+        // 此时已经没有读请求，销毁剩余的文件
+        this.destroyExpiredTasks(true);
+    }
+
+    static class DestroyTask {
+        private final long length;
+        private final MappedFile referenced;
+        private final Runnable action;
+        private final long deadline;
+
+        DestroyTask(long length, MappedFile referenced, Runnable action, long deadline) {
+            this.length = length;
+            this.referenced = referenced;
+            this.action = action;
+            this.deadline = deadline;
+        }
+    }
+}
@@ -24,7 +24,15 @@ public class CommitEntry {
 
     private long delay;
 
-    public CommitEntry(String topic, String fileName, int queueId, int offset, int size, String tag, long delay) {
+    // 消息id，用于写入key索引
+    private String id;
+
+    // key索引指向的位置和长度，批量记录中的消息指向整条记录
+    private long keyOffset;
+    private int keySize;
+
+    public CommitEntry(String topic, String fileName, int queueId, int offset, int size, String tag, long delay,
+                       String id) {
         this.topic = topic;
         this.queueId = queueId;
         this.offset = Long.valueOf(fileName) + offset;
@@ -32,6 +40,22 @@ public class CommitEntry {
         this.tag = tag;
         this.offsetInPage = offset;
         this.delay = delay;
+        this.id = id;
+        this.keyOffset = this.offset;
+        this.keySize = size;
+    }
+
+    public void setKey(long keyOffset, int keySize) {
+        this.keyOffset = keyOffset;
+        this.keySize = keySize;
+    }
+
+    public long getKeyOffset() {
+        return keyOffset;
+    }
+
+    public int getKeySize() {
+        return keySize;
     }
 
     public int getOffsetInPage() {
@@ -62,6 +86,10 @@ public class CommitEntry {
         return delay;
     }
 
+    public String getId() {
+        return id;
+    }
+
     @Override
     public String toString() {
         return "CommitEntry{" +
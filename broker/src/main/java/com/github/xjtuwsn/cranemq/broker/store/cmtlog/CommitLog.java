@@ -4,109 +4,125 @@ import com.github.xjtuwsn.cranemq.broker.BrokerController;
 import com.github.xjtuwsn.cranemq.broker.store.comm.*;
 import com.github.xjtuwsn.cranemq.broker.store.*;
 import com.github.xjtuwsn.cranemq.broker.store.pool.OutOfHeapMemoryPool;
+import com.github.xjtuwsn.cranemq.broker.store.pool.WriteBufferPool;
+import com.github.xjtuwsn.cranemq.broker.store.write.WriteStrategyType;
 import com.github.xjtuwsn.cranemq.common.command.RemoteCommand;
 import com.github.xjtuwsn.cranemq.common.utils.BrokerUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * @project:dduomq
  * @file:CommitLog
  * @author:dduo
  * @create:2023/10/03-10:19
- * commitLog主体实现类
+ * commitLog主体实现类，一个实例对应一个通道，通道号放在偏移的高位，文件名就是带通道号的起始偏移
  */
 public class CommitLog extends AbstractLinkedListOrganize implements GeneralStoreService {
     private static final Logger log = LoggerFactory.getLogger(CommitLog.class);
     private BrokerController brokerController;
 
     private OutOfHeapMemoryPool memoryPool;
+    // FILE_CHANNEL写入方式的buffer池，其他写入方式为null
+    private WriteBufferPool writeBufferPool;
 
     // 创建子文件线程
     private CreateMappedFileService createMappedFileService;
     // 提交线程
     private CommitService commitService;
+    // 组提交写入线程
+    private GroupCommitService groupCommitService;
     private ScheduledExecutorService commitScheduleService;
     private ScheduledExecutorService scanDirectMemoryService;
     private MessageStoreCenter messageStoreCenter;
+    // 限制映射的commitLog文件数，为null不限制
+    private MappedRegionManager regionManager;
+    // 通道号和该通道偏移的起点
+    private final int lane;
+    private final long laneBase;
+    // 通道的文件目录
+    private final String lanePath;
     private long recordOffset;
     private int recordSize;
     private long lastCommit;
 
-    public CommitLog(BrokerController brokerController, MessageStoreCenter messageStoreCenter) {
+    public CommitLog(BrokerController brokerController, MessageStoreCenter messageStoreCenter, int lane,
+                     OutOfHeapMemoryPool memoryPool, WriteBufferPool writeBufferPool) {
         this.messageStoreCenter = messageStoreCenter;
         this.brokerController = brokerController;
+        this.lane = lane;
+        this.laneBase = MultiLaneCommitLog.laneBase(lane);
+        this.lanePath = brokerController.getPersistentConfig().getCommitLogLanePath(lane);
+        this.recordOffset = this.laneBase;
         init();
-        if (brokerController.getPersistentConfig().isEnableOutOfMemory()) {
-            this.memoryPool = new OutOfHeapMemoryPool(brokerController.getPersistentConfig());
+        this.writeBufferPool = writeBufferPool;
+        if (this.isTransientPool()) {
+            // 内存池由所有通道共用
+            this.memoryPool = memoryPool;
             this.scanDirectMemoryService = new ScheduledThreadPoolExecutor(1);
             this.commitScheduleService = new ScheduledThreadPoolExecutor(2);
         }
+        if (brokerController.getPersistentConfig().getMaxMappedCommitLogFiles() > 0) {
+            this.regionManager = new MappedRegionManager(brokerController.getPersistentConfig(), this);
+        }
         this.createMappedFileService = new CreateMappedFileService();
         this.commitService = new CommitService();
+        this.groupCommitService = new GroupCommitService();
     }
-    @Override
-    public void start() {
-        if (this.memoryPool != null) {
-            this.memoryPool.init();
+    /**
+     * 加载所有文件，并根据消费队列中记录的最大偏移设置写指针，之后可以再由检查点恢复覆盖
+     */
+    public void load() {
+        File rootDir = new File(this.lanePath);
+        if (!rootDir.exists()) {
+            rootDir.mkdirs();
+        }
+        int fileSize = brokerController.getPersistentConfig().getCommitLogMaxSize();
+        int count = 0;
+        File[] files = rootDir.listFiles(File::isFile);
+        if (files == null) {
+            files = new File[0];
         }
-        File rootDir = new File(brokerController.getPersistentConfig().getCommitLogPath());
-        int index = 0;
-        File[] files = rootDir.listFiles();
         Arrays.sort(files, Comparator.comparing(File::getName));
         for (File file : files) {
-            MappedFile mappedFile = null;
-            // 只给最后两个文件对外内存，并开线程定期扫描
-            if (this.brokerController.getPersistentConfig().isEnableOutOfMemory() && index >= files.length - 2) {
-                mappedFile = new MappedFile(index, brokerController.getPersistentConfig().getCommitLogMaxSize(),
-                        file.getName(),
-                        this.brokerController.getPersistentConfig(), this.memoryPool);
-            } else {
-                mappedFile = new MappedFile(index, brokerController.getPersistentConfig().getCommitLogMaxSize(),
-                        file.getName(),
-                        this.brokerController.getPersistentConfig());
-            }
+            // 序号由文件名换算，前面的文件过期删除后偏移和序号的对应关系不变
+            int index = (int) ((Long.parseLong(file.getName()) - this.laneBase) / fileSize);
+            // 限制映射数时，之前的文件第一次读取时再映射，堆外内存在开始写入时再借用
+            boolean lazy = this.regionManager != null && count < files.length - 1;
+            MappedFile mappedFile = new MappedFile(index, brokerController.getPersistentConfig().getCommitLogMaxSize(),
+                    file.getName(), this.lanePath + file.getName(),
+                    this.brokerController.getPersistentConfig(), lazy);
+            mappedFile.setRegionManager(this.regionManager);
 
             this.insertBeforeTail(mappedFile);
-            index++;
+            count++;
         }
         // 重置之前保存的最大offset所对应文件的指针
         if (files.length > 0) {
-            int find = BrokerUtil.findMappedIndex(recordOffset, files[0].getName(),
-                    brokerController.getPersistentConfig().getCommitLogMaxSize());
-            int nextPos = BrokerUtil.offsetInPage(recordOffset,
-                    brokerController.getPersistentConfig().getCommitLogMaxSize()) + recordSize;
-            MappedFile mappedFile = mappedTable.get(find);
-            if (mappedFile != null) {
-                log.info("CommitLog file [index {}, name {}] recovery from {}", find, mappedFile.getFileName() ,nextPos);
-                mappedFile.setWritePointer(nextPos);
-                mappedFile.setCommitPointer(nextPos);
-                mappedFile.setFlushPointer(nextPos);
-                // 把当前位置之后的文件标为空
-                MappedFile cur = mappedFile.next;
-                while (cur != tail) {
-                    cur.setWritePointer(0);
-                    cur.setCommitPointer(0);
-                    cur.setFlushPointer(0);
-                    cur = cur.next;
-                }
-            }
-
-
+            this.resetWritePosition(recordOffset + recordSize);
         }
+    }
+
+    /**
+     * 启动提交、创建文件和组提交线程，需要在恢复完成之后调用
+     */
+    @Override
+    public void start() {
         // 定时扫描进行提交和查询是否需要归还堆外内存
-        if (brokerController.getPersistentConfig().isEnableOutOfMemory()) {
+        if (this.isTransientPool()) {
             this.commitService.start();
             this.commitScheduleService.scheduleAtFixedRate(() -> {
                 commit(true);
@@ -117,10 +133,15 @@ public class CommitLog extends AbstractLinkedListOrganize implements GeneralStor
             log.info("CommitService, CommitScheduleService and ScanDirectMemoryService start successfully");
         }
         this.createMappedFileService.start();
+        this.createMappedFileService.wakeup();
+        this.groupCommitService.start();
+        if (this.regionManager != null) {
+            this.regionManager.start();
+        }
     }
 
     /**
-     * 不需要堆外内存就归还，例如文件已经写满
+     * 不需要堆外内存就归还，例如文件已经写满，并收缩内存池
      */
     private void scanDirectMemory() {
         Iterator<MappedFile> iterator = this.iterator();
@@ -131,6 +152,8 @@ public class CommitLog extends AbstractLinkedListOrganize implements GeneralStor
                 log.info("MappedFile {} return 1 direct memeoy", mappedFile.getFileName());
             }
         }
+        // 空闲时释放多余的分片
+        this.memoryPool.trim();
     }
 
     /**
@@ -138,28 +161,288 @@ public class CommitLog extends AbstractLinkedListOrganize implements GeneralStor
      * @param offset
      * @param size
      */
-    public void recoveryFromQueue(long offset, int size) {
+    public synchronized void recoveryFromQueue(long offset, int size) {
         if (offset >= this.recordOffset) {
             this.recordOffset = offset;
             this.recordSize = size;
         }
     }
+    /**
+     * 把写指针设置到指定偏移，之前的文件标为满，之后的文件标为空
+     * @param offset commitLog偏移
+     */
+    public void resetWritePosition(long offset) {
+        int fileSize = brokerController.getPersistentConfig().getCommitLogMaxSize();
+        int find = (int) ((offset - this.laneBase) / fileSize);
+        int nextPos = BrokerUtil.offsetInPage(offset - this.laneBase, fileSize);
+        MappedFile mappedFile = mappedTable.get(find);
+        // 正好在文件边界上，下一个文件还没创建
+        if (mappedFile == null && nextPos == 0) {
+            find--;
+            nextPos = fileSize;
+            mappedFile = mappedTable.get(find);
+        }
+        if (mappedFile == null) {
+            return;
+        }
+        log.info("CommitLog lane {} file [index {}, name {}] recovery from {}", lane, find, mappedFile.getFileName(),
+                nextPos);
+        // 之前的文件都已经写满，可能被上一次重置标为空
+        MappedFile prev = mappedFile.prev;
+        while (prev != head) {
+            prev.setWritePointer(fileSize);
+            prev.setCommitPointer(fileSize);
+            prev.setFlushPointer(fileSize);
+            prev = prev.prev;
+        }
+        mappedFile.setWritePointer(nextPos);
+        mappedFile.setCommitPointer(nextPos);
+        mappedFile.setFlushPointer(nextPos);
+        // 把当前位置之后的文件标为空
+        MappedFile cur = mappedFile.next;
+        while (cur != tail) {
+            cur.setWritePointer(0);
+            cur.setCommitPointer(0);
+            cur.setFlushPointer(0);
+            cur = cur.next;
+        }
+    }
+
+    /**
+     * 崩溃恢复，从指定偏移开始向后检查每条记录的长度和校验和，直到遇到空白或者损坏的记录
+     * 文件末尾的空白说明下一条记录写在了下一个文件中
+     * @param from 开始检查的偏移，之前的记录已经转发并刷盘
+     * @param entries 检查通过的记录
+     * @return 有效数据的末尾偏移
+     */
+    public long scanValidRecords(long from, List<CommitEntry> entries) {
+        MappedFile mappedFile = this.getMappedFileByOffset(from);
+        int pos = mappedFile == null ? 0 : (int) (from - mappedFile.getFileFromOffset());
+        if (mappedFile == null) {
+            // 检查点之前的文件已经删除，从第一个文件开始
+            mappedFile = this.getFirstMappedFile();
+            pos = 0;
+            if (mappedFile == null || mappedFile.getFileFromOffset() < from) {
+                return from;
+            }
+        }
+        while (true) {
+            int size = mappedFile.checkRecord(pos);
+            if (size > 0) {
+                if (!mappedFile.readCommitEntries(pos, entries)) {
+                    break;
+                }
+                pos += size;
+                continue;
+            }
+            if (size == MappedFile.RECORD_CORRUPT) {
+                log.warn("Found corrupt record in CommitLog file {} at {}", mappedFile.getFileName(), pos);
+                break;
+            }
+            MappedFile next = mappedFile.next;
+            if (next == tail || next.checkRecord(0) <= 0) {
+                break;
+            }
+            mappedFile = next;
+            pos = 0;
+        }
+        return mappedFile.getFileFromOffset() + pos;
+    }
+
+    /**
+     * 崩溃恢复后清除有效数据之后的内容，删除之后的文件，避免之后的恢复扫描到旧数据
+     * @param offset 有效数据的末尾偏移
+     */
+    public void truncateDirtyFiles(long offset) {
+        MappedFile mappedFile = this.getMappedFileByOffset(offset);
+        if (mappedFile == null) {
+            return;
+        }
+        mappedFile.clearFrom((int) (offset - mappedFile.getFileFromOffset()));
+        MappedFile last;
+        while ((last = tail.prev) != mappedFile) {
+            if (!this.removeLast(last)) {
+                break;
+            }
+            log.info("Remove dirty CommitLog file {}", last.getFileName());
+            last.destroy();
+        }
+    }
+
+    /**
+     * 已经写入并且可读的最大偏移，开启堆外内存时只算已经提交的部分
+     * @return
+     */
+    public long getMaxOffset() {
+        MappedFile mappedFile = tail.prev;
+        // 跳过预创建的空文件
+        while (mappedFile != head && mappedFile.getReadPointer() == 0) {
+            mappedFile = mappedFile.prev;
+        }
+        if (mappedFile == head) {
+            return this.getMinOffset();
+        }
+        return mappedFile.getFileFromOffset() + mappedFile.getReadPointer();
+    }
+
+    /**
+     * 对所有文件刷盘
+     */
+    public void flush() {
+        Iterator<MappedFile> iterator = this.iterator();
+        while (iterator.hasNext()) {
+            MappedFile next = iterator.next();
+            if (next != null) {
+                next.doFlush();
+            }
+        }
+    }
+
+    /**
+     * 根据commitLog偏移找到所在文件
+     * @param offset
+     * @return 文件不存在或者已经过期删除返回null
+     */
+    public MappedFile getMappedFileByOffset(long offset) {
+        if (offset < this.laneBase) {
+            return null;
+        }
+        int index = (int) ((offset - this.laneBase) / brokerController.getPersistentConfig().getCommitLogMaxSize());
+        return this.mappedTable.get(index);
+    }
+
+    /**
+     * 当前保留的最小偏移，即第一个文件的起始偏移
+     * @return
+     */
+    public long getMinOffset() {
+        MappedFile first = this.getFirstMappedFile();
+        return first == null ? this.laneBase : first.getFileFromOffset();
+    }
+
+    /**
+     * 文件是否已经封存，正在写的文件和预创建的文件不能删除
+     * @param mappedFile
+     * @return
+     */
+    public boolean isSealed(MappedFile mappedFile) {
+        return !mappedFile.canWrite() && mappedFile.next != tail;
+    }
+
+    /**
+     * 摘除第一个文件，由过期清理服务调用，文件内容由调用者延迟销毁
+     * @param mappedFile
+     * @return
+     */
+    public boolean removeFirstFile(MappedFile mappedFile) {
+        if (!this.isSealed(mappedFile)) {
+            return false;
+        }
+        return this.removeFirst(mappedFile);
+    }
+
+    /**
+     * 所有文件占用的磁盘大小
+     * @return
+     */
+    public long totalFileSize() {
+        long total = 0;
+        Iterator<MappedFile> iterator = this.iterator();
+        while (iterator.hasNext()) {
+            total += iterator.next().fileLength();
+        }
+        return total;
+    }
+
+    /**
+     * 正在写的文件，即第一个没写满的文件，之后的都是预分配的文件
+     * @return
+     */
     private MappedFile getLastFile() {
         MappedFile last = tail.prev;
         if (last == head) {
             last = this.createMappedFileService.putCreateRequest(this.nextIndex());
-        } else if (last.prev != head && last.prev.canWrite()) {
-            last = last.prev;
+        } else {
+            while (last.prev != head && last.prev.canWrite()) {
+                last = last.prev;
+            }
         }
         last.markWrite();
         return last;
     }
     @Override
     public void close() {
+        // 先等待组提交线程写完剩余请求
+        this.groupCommitService.setStop();
+        try {
+            this.groupCommitService.join(3000);
+        } catch (InterruptedException e) {
+            log.warn("Wait for group commit service interrupted");
+        }
+        // 停止之后放入的请求不会再写入，返回繁忙，写线程超时没有退出时仍然由它写完
+        if (this.groupCommitService.isAlive()) {
+            log.warn("Group commit service does not stop in time");
+        } else {
+            this.groupCommitService.failRemaining();
+        }
+        this.createMappedFileService.setStop();
         this.commit(true);
         MappedFile lastFile = getLastFile();
         lastFile.doFlush();
         lastFile.returnMemory();
+        // 切换文件时没有刷盘的文件
+        this.flush();
+        if (this.regionManager != null) {
+            this.regionManager.setStop();
+        }
+    }
+
+    public MappedRegionManager getRegionManager() {
+        return regionManager;
+    }
+
+    public int getLane() {
+        return lane;
+    }
+
+    public String getLanePath() {
+        return lanePath;
+    }
+
+    /**
+     * 提交写入请求，由组提交线程统一写入
+     * @param innerMessages
+     * @return 每条消息的写入结果
+     */
+    public CompletableFuture<List<PutMessageResponse>> asyncWriteMessages(List<StoreInnerMessage> innerMessages) {
+        return this.groupCommitService.submit(innerMessages);
+    }
+
+    /**
+     * 为一批消息预留组提交队列中的位置，用于多个通道要么都接收、要么都不接收
+     * @return 预留的序号，队列已满返回-1
+     */
+    public long reserveWrite() {
+        return this.groupCommitService.reserve();
+    }
+
+    /**
+     * 在预留的位置提交写入请求
+     * @param sequence reserveWrite返回的序号
+     * @param innerMessages
+     * @return 每条消息的写入结果
+     */
+    public CompletableFuture<List<PutMessageResponse>> publishWrite(long sequence,
+                                                                   List<StoreInnerMessage> innerMessages) {
+        return this.groupCommitService.publish(sequence, innerMessages);
+    }
+
+    /**
+     * 放弃预留的位置，放入一个空请求，写线程直接跳过
+     * @param sequence reserveWrite返回的序号
+     */
+    public void cancelWrite(long sequence) {
+        this.groupCommitService.publish(sequence, Collections.emptyList());
     }
 
     /**
@@ -168,39 +451,94 @@ public class CommitLog extends AbstractLinkedListOrganize implements GeneralStor
      * @return
      */
     public PutMessageResponse writeMessage(StoreInnerMessage innerMessage) {
+        return this.writeMessages(Collections.singletonList(innerMessage)).get(0);
+    }
 
+    /**
+     * 向mappedfile写入一批消息，每个文件只加一次锁
+     * @param innerMessages
+     * @return
+     */
+    public List<PutMessageResponse> writeMessages(List<StoreInnerMessage> innerMessages) {
+        List<PutMessageResponse> responses = new ArrayList<>(innerMessages.size());
         MappedFile last = this.getLastFile();
-
-        // 先尝试进行写入
-        PutMessageResponse response = last.putMessage(innerMessage);
-        // 如果待写入的文件已经满了
-        while (response.getResponseType() == StoreResponseType.NO_ENOUGH_SPACE) {
-
-            // 提交当前文件
-            commit(true);
-
-            // 进行刷盘
-            last.doFlush();
-
-            // 标记为满
-            last.markFull();
-
-            // 归还堆外内存
-            last.returnMemory();
-
-            // 如果预创建了一个文件，则直接进行切换
-            if (last.next != tail) {
-                last = last.next;
+        // 只在写线程中借用堆外内存，避免和正在写映射的数据冲突，内存池不足时直接写映射
+        this.prepareWrite(last);
+        int from = 0;
+        while (from < innerMessages.size()) {
+            // 尽可能多的写入当前文件
+            int written = last.putMessages(innerMessages, from, responses);
+            from += written;
+            if (from == innerMessages.size()) {
+                break;
             }
-            else {
-                // 否则产生创建文件请求
-                last = this.createMappedFileService.putCreateRequest(this.nextIndex());
+            // 空文件都写不下，说明消息本身过大
+            if (written == 0 && last.getWrite() == 0) {
+                log.error("Message is too large for a single commitlog file, {}", innerMessages.get(from));
+                responses.add(new PutMessageResponse(StoreResponseType.PARAMETER_ERROR));
+                from++;
+                continue;
             }
-            // 对新文件写入
-            response = last.putMessage(innerMessage);
+            // 待写入的文件已经满了，切换到下一个文件
+            last = this.rollNextFile(last);
+        }
+        return responses;
+    }
+
+    /**
+     * 当前文件写满，封存并切换到下一个文件
+     * @param last
+     * @return
+     */
+    private MappedFile rollNextFile(MappedFile last) {
+        // 提交当前文件，只是写入页缓存
+        commit(true);
+
+        // 标记为满，不在写线程中刷盘，由刷盘服务完成
+        last.markSealed();
+
+        // 归还堆外内存
+        last.returnMemory();
+
+        // 切换到预分配的文件，预分配跟不上时同步创建
+        MappedFile next;
+        tailLock.lock();
+        try {
+            next = last.next;
+        } finally {
+            tailLock.unlock();
         }
-        log.info("Put message to commit, response is {}", response);
-        return response;
+        if (next == tail) {
+            next = this.createMappedFileService.putCreateRequest(this.nextIndex());
+        }
+        // 预分配的文件不占用堆外内存，开始写时再借用，借不到就直接写映射
+        this.prepareWrite(next);
+        next.markWrite();
+        this.createMappedFileService.wakeup();
+        return next;
+    }
+
+    /**
+     * 开始写文件前按写入方式借用buffer，只能由写线程调用
+     * @param mappedFile
+     */
+    private void prepareWrite(MappedFile mappedFile) {
+        if (mappedFile.ownDirectMemory()) {
+            return;
+        }
+        if (this.memoryPool != null) {
+            mappedFile.borrowMemory(this.memoryPool);
+        } else if (this.writeBufferPool != null) {
+            mappedFile.useChannelWrite(this.writeBufferPool);
+        }
+    }
+
+    /**
+     * 是否先写堆外内存再提交
+     * @return
+     */
+    private boolean isTransientPool() {
+        return brokerController.getPersistentConfig().getCommitLogWriteStrategy() == WriteStrategyType.TRANSIENT_POOL;
     }
 
     public boolean tryLock() {
@@ -251,156 +589,277 @@ public class CommitLog extends AbstractLinkedListOrganize implements GeneralStor
     }
 
     /**
-     * 创建commitLog 的子文件的线程
+     * 组提交线程，生产者线程把写入请求放入无锁环形队列，
+     * 该线程一次取出所有请求，对每个文件只加一次锁、只更新一次写指针，然后统一完成future
+     */
+    class GroupCommitService extends Thread {
+        private final Logger log = LoggerFactory.getLogger(GroupCommitService.class);
+        private final PutRequestRing ring;
+        private final int maxBatchSize;
+        // 合并多个请求的消息，只在组提交线程中使用
+        private final List<StoreInnerMessage> pending = new ArrayList<>();
+        private volatile boolean isStop = false;
+        // 写线程是否处于等待状态
+        private volatile boolean waiting = false;
+
+        public GroupCommitService() {
+            super("GroupCommitService-" + lane);
+            this.ring = new PutRequestRing(brokerController.getPersistentConfig().getGroupCommitRingSize());
+            this.maxBatchSize = brokerController.getPersistentConfig().getGroupCommitBatchSize();
+            this.setDaemon(true);
+        }
+
+        /**
+         * 放入写入请求，队列满或者已经停止时不等待，每条消息直接返回繁忙
+         * @param innerMessages
+         * @return
+         */
+        public CompletableFuture<List<PutMessageResponse>> submit(List<StoreInnerMessage> innerMessages) {
+            if (isStop) {
+                return CompletableFuture.completedFuture(busyResponses(innerMessages.size()));
+            }
+            PutMessageRequest request = new PutMessageRequest(innerMessages);
+            if (!ring.offer(request)) {
+                LockSupport.unpark(this);
+                return CompletableFuture.completedFuture(busyResponses(innerMessages.size()));
+            }
+            this.afterOffer();
+            return request.getFuture();
+        }
+
+        /**
+         * 预留一个位置，已经停止时不预留
+         * @return 预留的序号，队列已满或者已经停止返回-1
+         */
+        public long reserve() {
+            if (isStop) {
+                return -1;
+            }
+            long sequence = ring.reserve();
+            if (sequence < 0) {
+                LockSupport.unpark(this);
+            }
+            return sequence;
+        }
+
+        public CompletableFuture<List<PutMessageResponse>> publish(long sequence,
+                                                                   List<StoreInnerMessage> innerMessages) {
+            PutMessageRequest request = new PutMessageRequest(innerMessages);
+            ring.publish(sequence, request);
+            this.afterOffer();
+            return request.getFuture();
+        }
+
+        /**
+         * 唤醒写线程，如果放入时写线程已经退出，请求不会再被写入，直接返回繁忙
+         */
+        private void afterOffer() {
+            if (waiting) {
+                LockSupport.unpark(this);
+            }
+            if (isStop && !this.isAlive()) {
+                this.failRemaining();
+            }
+        }
+
+        /**
+         * 写线程退出后，队列中剩余的请求没有写入，全部返回繁忙，只能在写线程退出后调用
+         */
+        public synchronized void failRemaining() {
+            List<PutMessageRequest> remaining = new ArrayList<>();
+            ring.drainTo(remaining, Integer.MAX_VALUE);
+            for (PutMessageRequest request : remaining) {
+                request.getFuture().complete(busyResponses(request.size()));
+            }
+            if (!remaining.isEmpty()) {
+                log.warn("{} put requests are not written after group commit service stopped", remaining.size());
+            }
+        }
+
+        private List<PutMessageResponse> busyResponses(int size) {
+            List<PutMessageResponse> responses = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                responses.add(new PutMessageResponse(StoreResponseType.SERVER_BUSY));
+            }
+            return responses;
+        }
+
+        @Override
+        public void run() {
+            List<PutMessageRequest> batch = new ArrayList<>();
+            while (!isStop || !ring.isEmpty()) {
+                batch.clear();
+                ring.drainTo(batch, maxBatchSize);
+                if (batch.isEmpty()) {
+                    waiting = true;
+                    // 再次检查，避免丢失唤醒
+                    if (ring.isEmpty() && !isStop) {
+                        LockSupport.parkNanos(this, 1000 * 1000);
+                    }
+                    waiting = false;
+                    continue;
+                }
+                doGroupCommit(batch);
+            }
+            log.info("GroupCommitService has stopped");
+        }
+
+        /**
+         * 一次写入所有请求的消息
+         * @param batch
+         */
+        private void doGroupCommit(List<PutMessageRequest> batch) {
+            // 只有一个请求时直接写它的消息列表，否则合并到重复使用的列表中
+            List<StoreInnerMessage> all = batch.get(0).getInnerMessages();
+            if (batch.size() > 1) {
+                all = this.pending;
+                for (PutMessageRequest request : batch) {
+                    all.addAll(request.getInnerMessages());
+                }
+            }
+            List<PutMessageResponse> responses;
+            try {
+                // 只有放弃预留位置的空请求时不需要写
+                responses = all.isEmpty() ? Collections.emptyList() : writeMessages(all);
+            } catch (Throwable t) {
+                log.error("Group commit write error", t);
+                for (PutMessageRequest request : batch) {
+                    request.getFuture().completeExceptionally(t);
+                }
+                return;
+            } finally {
+                this.pending.clear();
+            }
+            if (batch.size() == 1) {
+                batch.get(0).getFuture().complete(responses);
+                return;
+            }
+            // 按照请求切分结果，并唤醒等待的生产者，每个请求拿到结果的视图，不复制
+            int from = 0;
+            for (PutMessageRequest request : batch) {
+                int to = from + request.size();
+                request.getFuture().complete(responses.subList(from, to));
+                from = to;
+            }
+        }
+
+        public void setStop() {
+            this.isStop = true;
+            LockSupport.unpark(this);
+        }
+    }
+
+    /**
+     * 预分配commitLog文件的线程，保持正在写的文件之后有preallocateFileNumber个已经创建并预热的文件，
+     * 写满时直接切换到下一个文件，只有预分配跟不上时才在写线程中同步创建
      */
     class CreateMappedFileService extends CreateServiceThread {
         private final Logger log = LoggerFactory.getLogger(CreateMappedFileService.class);
-        private AtomicLong lastCreateOffset = new AtomicLong(-1);
         public CreateMappedFileService() {
             super();
+            this.setName("CreateMappedFileService-" + lane);
+            this.setDaemon(true);
         }
         @Override
         protected boolean createLoop() {
             try {
-
-                // 不断从队列中取出创建请求
-                AsyncRequest request = this.requestQueue.poll(3000, TimeUnit.MILLISECONDS);
-                if (request == null) {
-                    return true;
-                }
-                if (request.getRequestType() == StoreRequestType.CREATE_MAPPED_FILE) {
-                    String fileName = request.getFileName();
-                    // 判断是否是原始请求
-                    AsyncRequest expect = this.requestTable.get(fileName);
-
-                    if (expect == null) {
-                        log.error("Request has timeouted");
-                        return true;
-                    }
-                    if (expect != request) {
-                        log.warn("Expected to be the same request");
-                        return true;
-                    }
-                    MappedFile mappedFile = null;
-                    // 根据是否允许堆外内存进行创建
-                    if (CommitLog.this.brokerController.getPersistentConfig().isEnableOutOfMemory()) {
-                        mappedFile = new MappedFile(request.getIndex(), request.getFileSize(), request.getFileName(),
-                                CommitLog.this.brokerController.getPersistentConfig(),
-                                CommitLog.this.memoryPool);
-                        log.info("Create with memory pool");
-                    } else {
-                        mappedFile = new MappedFile(request.getIndex(), request.getFileSize(), request.getFileName(),
-                                CommitLog.this.brokerController.getPersistentConfig());
-                        log.info("Create without memory pool");
-                    }
-                    // 重置新文件的指针
-                    mappedFile.setWritePointer(0);
-                    mappedFile.setCommitPointer(0);
-                    mappedFile.setFlushPointer(0);
-                    tailLock.lock();
-                    // 插入，并对预创建的文件进行标记
-                    MappedFile prev = tail.prev;
-                    if (prev != head && prev.canWrite()) {
-                        mappedFile.markPre();
-                    }
-                    insertBeforeTail(mappedFile);
-                    request.getCount().countDown();
-                    // 更新最新创建的文件
-                    lastCreateOffset.getAndSet(request.getIndex() *
-                            (long) brokerController.getPersistentConfig().getCommitLogMaxSize());
-                    tailLock.unlock();
-                    log.info("Now there are {} mappedfile.", mappedTable.size());
-                }
+                // 切换文件时唤醒，否则定时检查
+                this.requestQueue.poll(1000, TimeUnit.MILLISECONDS);
+                this.requestQueue.clear();
+                this.preallocate();
             } catch (InterruptedException e) {
-                log.error("InterruptedException");
+                if (!isStop) {
+                    log.warn("CreateMappedFileService has been Interrupted");
+                }
                 return false;
+            } catch (Throwable t) {
+                log.error("Preallocate commitlog file error", t);
             }
             return true;
         }
 
         /**
-         * 根据要创建的索引放入请求
-         * @param index
-         * @return
+         * 通知预分配线程补足文件
          */
-        @Override
-        protected MappedFile putCreateRequest(int index) {
-            if (index * (long) brokerController.getPersistentConfig().getCommitLogMaxSize() <= lastCreateOffset.get()) {
-                log.info("{} has been created", index);
-                return tail.prev;
-            }
-            log.info("Receive index {} for create", index);
-            int preCreate = 2;
-            int fileSize = CommitLog.this.brokerController.getPersistentConfig().getCommitLogMaxSize();
-
-            // 第一个文件
-            CountDownLatch count = new CountDownLatch(preCreate);
-            String firstFileName = BrokerUtil.makeFileName(index, fileSize);
-            AsyncRequest firstFile = new AsyncRequest(index, firstFileName, fileSize);
-
-            this.requestTable.put(firstFileName, firstFile);
-            int remainSize = Integer.MAX_VALUE;
-            // 如果允许借用内存
-            if (CommitLog.this.brokerController.getPersistentConfig().isEnableOutOfMemory()
-                    && CommitLog.this.memoryPool != null) {
-                remainSize = CommitLog.this.memoryPool.remainSize();
-                if (remainSize >= 1) {
-                    firstFile.setCount(count);
-                    this.requestQueue.offer(firstFile);
-                    remainSize--;
-                    preCreate--;
-                } else {
-                    this.requestTable.remove(firstFileName);
-                    log.error("No out of memeory left");
-                    return null;
-                }
+        public void wakeup() {
+            int fileSize = brokerController.getPersistentConfig().getCommitLogMaxSize();
+            this.requestQueue.offer(new AsyncRequest(StoreRequestType.CREATE_MAPPED_FILE, null, fileSize));
+        }
+
+        /**
+         * 补足正在写的文件之后的预分配文件
+         */
+        private synchronized void preallocate() {
+            int number = brokerController.getPersistentConfig().getPreallocateFileNumber();
+            while (!isStop && this.aheadNumber() < number) {
+                this.createFile(nextIndex(), brokerController.getPersistentConfig().isWarmMappedFile());
             }
+        }
 
-            // 第二个预创建的文件
-            String secondFileName = BrokerUtil.makeFileName(index + 1, fileSize);
-            AsyncRequest secondFile = new AsyncRequest(index + 1, secondFileName, fileSize);
-            this.requestTable.put(secondFileName, secondFile);
-
-            // 如果没有堆外内存，就不创建了
-            if (CommitLog.this.brokerController.getPersistentConfig().isEnableOutOfMemory()
-                    && CommitLog.this.memoryPool != null) {
-                if (remainSize >= 1) {
-                    this.requestQueue.offer(secondFile);
-                    secondFile.setCount(count);
-                    preCreate--;
-                    log.info("Pre Create request send success");
-                } else {
-                    this.requestTable.remove(secondFileName);
-                    count.countDown();
-                    log.warn("No out of memory left, so stop pre create");
-                }
+        /**
+         * 正在写的文件之后的空文件数，正在写的文件是第一个没写满的文件
+         * @return
+         */
+        private int aheadNumber() {
+            int writable = 0;
+            for (MappedFile mappedFile = tail.prev; mappedFile != head && mappedFile.canWrite();
+                 mappedFile = mappedFile.prev) {
+                writable++;
             }
+            return writable - 1;
+        }
 
-            try {
-                // 等待创建完成
-                count.await();
-                CommitLog.this.tailLock.lock();
-
-                MappedFile mappedFile = CommitLog.this.tail.prev;
-                // 返回不为预创建的最后一个文件
-                if (mappedFile.isPre()) {
-                    mappedFile = mappedFile.prev;
-                    this.requestTable.remove(secondFileName);
-                }
-                this.requestTable.remove(firstFileName);
-                CommitLog.this.tailLock.unlock();
-                return mappedFile;
-            } catch (InterruptedException e) {
-                log.error("Interrupted error");
+        /**
+         * 创建文件，设置好磁盘大小并按需预热后才放入链表，写线程不会拿到没准备好的文件
+         * @param index
+         * @param warm 是否逐页预热
+         * @return
+         */
+        private MappedFile createFile(int index, boolean warm) {
+            int fileSize = brokerController.getPersistentConfig().getCommitLogMaxSize();
+            String fileName = BrokerUtil.makeFileName(laneBase + index * (long) fileSize);
+            long start = System.nanoTime();
+            MappedFile mappedFile = new MappedFile(index, fileSize, fileName, lanePath + fileName,
+                    CommitLog.this.brokerController.getPersistentConfig());
+            mappedFile.setRegionManager(CommitLog.this.regionManager);
+            // 重置新文件的指针
+            mappedFile.setWritePointer(0);
+            mappedFile.setCommitPointer(0);
+            mappedFile.setFlushPointer(0);
+            if (warm) {
+                mappedFile.warm();
             }
+            insertBeforeTail(mappedFile);
+            log.info("Create commitlog file {}, warm: {}, cost {} ms, now there are {} mappedfile.", fileName,
+                    warm, (System.nanoTime() - start) / 1000000, mappedTable.size() - 2);
+            return mappedFile;
+        }
 
-            return null;
+        /**
+         * 预分配跟不上时在写线程中同步创建，正在预分配时等待其完成
+         * @param index
+         * @return
+         */
+        @Override
+        protected synchronized MappedFile putCreateRequest(int index) {
+            MappedFile exist = mappedTable.get(index);
+            if (exist != null) {
+                return exist;
+            }
+            log.warn("No preallocated commitlog file, create {} synchronously", index);
+            return this.createFile(index, false);
         }
 
         @Override
         protected MappedFile putCreateRequest(int index, String topic, int queueId) {
             return null;
         }
+
+        @Override
+        protected void setStop() {
+            super.setStop();
+            this.interrupt();
+        }
     }
 
     public BrokerController getBrokerController() {
@@ -0,0 +1,312 @@
+package com.github.xjtuwsn.cranemq.broker.store.cmtlog;
+
+import com.github.xjtuwsn.cranemq.broker.BrokerController;
+import com.github.xjtuwsn.cranemq.broker.store.GeneralStoreService;
+import com.github.xjtuwsn.cranemq.broker.store.MappedFile;
+import com.github.xjtuwsn.cranemq.broker.store.MappedRegionManager;
+import com.github.xjtuwsn.cranemq.broker.store.MessageStoreCenter;
+import com.github.xjtuwsn.cranemq.broker.store.comm.PutMessageResponse;
+import com.github.xjtuwsn.cranemq.broker.store.comm.StoreInnerMessage;
+import com.github.xjtuwsn.cranemq.broker.store.comm.StoreResponseType;
+import com.github.xjtuwsn.cranemq.broker.store.flush.DirtyFileSet;
+import com.github.xjtuwsn.cranemq.broker.store.dict.NameDictionary;
+import com.github.xjtuwsn.cranemq.broker.store.pool.OutOfHeapMemoryPool;
+import com.github.xjtuwsn.cranemq.broker.store.pool.WriteBufferPool;
+import com.github.xjtuwsn.cranemq.broker.store.write.WriteStrategyType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * @project:dduomq
+ * @file:MultiLaneCommitLog
+ * @author:dduo
+ * @create:2023/11/01-10:20
+ */
+
+/**
+ * 多通道commitLog，每个通道是一个独立的CommitLog，有自己的目录、文件和组提交线程，
+ * 不同通道的目录可以放在不同的磁盘上，写入时按主题和队列id固定选择通道，同一个队列的消息保持顺序
+ * 偏移的高位是通道号，低位是通道内的偏移，通道0的偏移和单通道时完全相同，旧数据不需要转换
+ * @author dduo
+ */
+public class MultiLaneCommitLog implements GeneralStoreService {
+    private static final Logger log = LoggerFactory.getLogger(MultiLaneCommitLog.class);
+
+    // 通道号在偏移中的位置，通道内偏移最大2^56
+    public static final int LANE_SHIFT = 56;
+    // 最多的通道数，保证偏移为正数
+    public static final int MAX_LANES = 127;
+
+    private BrokerController brokerController;
+    private CommitLog[] lanes;
+    // 所有通道共用的堆外内存池
+    private OutOfHeapMemoryPool memoryPool;
+    // 所有通道共用的FileChannel写入buffer池
+    private WriteBufferPool writeBufferPool;
+    // 所有通道共用的待刷盘文件集合
+    private DirtyFileSet dirtyFiles = new DirtyFileSet("commitlog");
+
+    public MultiLaneCommitLog(BrokerController brokerController, MessageStoreCenter messageStoreCenter,
+                              NameDictionary nameDictionary) {
+        this.brokerController = brokerController;
+        int number = brokerController.getPersistentConfig().getCommitLogLaneNumber();
+        if (number < 1 || number > MAX_LANES) {
+            throw new IllegalArgumentException("CommitLog lane number must be in [1, " + MAX_LANES + "]");
+        }
+        WriteStrategyType writeStrategy = brokerController.getPersistentConfig().getCommitLogWriteStrategy();
+        if (writeStrategy == WriteStrategyType.TRANSIENT_POOL) {
+            this.memoryPool = new OutOfHeapMemoryPool(brokerController.getPersistentConfig());
+        } else if (writeStrategy == WriteStrategyType.FILE_CHANNEL) {
+            // 每个通道同时只写一个文件，切换文件时前一个文件先归还
+            this.writeBufferPool = new WriteBufferPool(brokerController.getPersistentConfig(), number * 2);
+        }
+        this.lanes = new CommitLog[number];
+        for (int i = 0; i < number; i++) {
+            this.lanes[i] = new CommitLog(brokerController, messageStoreCenter, i, this.memoryPool,
+                    this.writeBufferPool);
+            this.lanes[i].setDirtyFileSet(this.dirtyFiles);
+            this.lanes[i].setNameDictionary(nameDictionary);
+        }
+    }
+
+    /**
+     * 通道偏移的起点
+     * @param lane
+     * @return
+     */
+    public static long laneBase(int lane) {
+        return (long) lane << LANE_SHIFT;
+    }
+
+    /**
+     * 偏移所在的通道
+     * @param offset
+     * @return
+     */
+    public static int laneOf(long offset) {
+        return (int) (offset >>> LANE_SHIFT);
+    }
+
+    /**
+     * 主题队列对应的通道，只和主题、队列id和通道数有关，重启后不变
+     * @param topic
+     * @param queueId
+     * @return
+     */
+    public int laneOf(String topic, int queueId) {
+        if (lanes.length == 1) {
+            return 0;
+        }
+        return Math.floorMod(topic.hashCode() * 31 + queueId, lanes.length);
+    }
+
+    public void load() {
+        if (this.memoryPool != null) {
+            this.memoryPool.init();
+        }
+        for (CommitLog lane : lanes) {
+            lane.load();
+        }
+        log.info("Load {} commitLog lanes", lanes.length);
+    }
+
+    @Override
+    public void start() {
+        for (CommitLog lane : lanes) {
+            lane.start();
+        }
+    }
+
+    @Override
+    public void close() {
+        for (CommitLog lane : lanes) {
+            lane.close();
+        }
+    }
+
+    /**
+     * 按通道拆分写入请求，同一个通道的消息作为一个请求交给该通道的组提交线程，
+     * 整批要么全部被各通道接收，要么全部返回繁忙
+     * @param innerMessages
+     * @return 和输入顺序相同的写入结果
+     */
+    public CompletableFuture<List<PutMessageResponse>> asyncWriteMessages(List<StoreInnerMessage> innerMessages) {
+        if (lanes.length == 1) {
+            return lanes[0].asyncWriteMessages(innerMessages);
+        }
+        int[] laneIds = new int[innerMessages.size()];
+        boolean single = true;
+        for (int i = 0; i < innerMessages.size(); i++) {
+            StoreInnerMessage innerMessage = innerMessages.get(i);
+            laneIds[i] = this.laneOf(innerMessage.getTopic(), innerMessage.getQueueId());
+            single &= laneIds[i] == laneIds[0];
+        }
+        // 通常一批消息发往同一个队列
+        if (single) {
+            return lanes[laneIds[0]].asyncWriteMessages(innerMessages);
+        }
+        List<List<StoreInnerMessage>> groups = new ArrayList<>(lanes.length);
+        for (int i = 0; i < lanes.length; i++) {
+            groups.add(new ArrayList<>());
+        }
+        for (int i = 0; i < innerMessages.size(); i++) {
+            groups.get(laneIds[i]).add(innerMessages.get(i));
+        }
+        // 先在涉及的每个通道预留位置，任意一个通道已满就全部放弃，整批返回繁忙，
+        // 不会出现一部分写入、一部分繁忙，生产者重发整批时产生重复消息
+        long[] sequences = new long[lanes.length];
+        for (int i = 0; i < lanes.length; i++) {
+            if (groups.get(i).isEmpty()) {
+                continue;
+            }
+            sequences[i] = lanes[i].reserveWrite();
+            if (sequences[i] < 0) {
+                for (int j = 0; j < i; j++) {
+                    if (!groups.get(j).isEmpty()) {
+                        lanes[j].cancelWrite(sequences[j]);
+                    }
+                }
+                List<PutMessageResponse> responses = new ArrayList<>(innerMessages.size());
+                for (int j = 0; j < innerMessages.size(); j++) {
+                    responses.add(new PutMessageResponse(StoreResponseType.SERVER_BUSY));
+                }
+                return CompletableFuture.completedFuture(responses);
+            }
+        }
+        CompletableFuture<List<PutMessageResponse>>[] futures = new CompletableFuture[lanes.length];
+        for (int i = 0; i < lanes.length; i++) {
+            futures[i] = groups.get(i).isEmpty() ? CompletableFuture.completedFuture(new ArrayList<>())
+                    : lanes[i].publishWrite(sequences[i], groups.get(i));
+        }
+        // 各通道的结果按原来的顺序合并
+        return CompletableFuture.allOf(futures).thenApply(v -> {
+            int[] cursors = new int[lanes.length];
+            List<PutMessageResponse> responses = new ArrayList<>(innerMessages.size());
+            for (int laneId : laneIds) {
+                responses.add(futures[laneId].join().get(cursors[laneId]++));
+            }
+            return responses;
+        });
+    }
+
+    /**
+     * 根据带通道号的偏移找到所在文件
+     * @param offset
+     * @return 通道不存在、文件不存在或者已经过期删除返回null
+     */
+    public MappedFile getMappedFileByOffset(long offset) {
+        CommitLog lane = this.laneFor(offset);
+        return lane == null ? null : lane.getMappedFileByOffset(offset);
+    }
+
+    /**
+     * 偏移对应的消息是否已经过期删除，即早于所在通道的最小偏移
+     * @param offset
+     * @return
+     */
+    public boolean isRemoved(long offset) {
+        CommitLog lane = this.laneFor(offset);
+        return lane == null || offset < lane.getMinOffset();
+    }
+
+    /**
+     * 根据消费队列中记录的偏移，设置对应通道的写指针
+     * @param offset
+     * @param size
+     */
+    public void recoveryFromQueue(long offset, int size) {
+        CommitLog lane = this.laneFor(offset);
+        if (lane == null) {
+            log.error("CommitLog offset {} belongs to lane {}, but there are only {} lanes",
+                    offset, laneOf(offset), lanes.length);
+            return;
+        }
+        lane.recoveryFromQueue(offset, size);
+    }
+
+    /**
+     * 每个通道已经写入并且可读的最大偏移
+     * @return
+     */
+    public long[] getMaxOffsets() {
+        long[] offsets = new long[lanes.length];
+        for (int i = 0; i < lanes.length; i++) {
+            offsets[i] = lanes[i].getMaxOffset();
+        }
+        return offsets;
+    }
+
+    /**
+     * 偏移所在通道已经写入并且可读的最大偏移
+     * @param offset
+     * @return
+     */
+    public long getMaxOffset(long offset) {
+        return lanes[laneOf(offset)].getMaxOffset();
+    }
+
+    /**
+     * 只对有数据没刷盘的文件刷盘
+     */
+    public void flush() {
+        dirtyFiles.flush();
+    }
+
+    public void commit(boolean force) {
+        for (CommitLog lane : lanes) {
+            lane.commit(force);
+        }
+    }
+
+    /**
+     * 所有通道文件占用的磁盘大小
+     * @return
+     */
+    public long totalFileSize() {
+        long total = 0;
+        for (CommitLog lane : lanes) {
+            total += lane.totalFileSize();
+        }
+        return total;
+    }
+
+    /**
+     * 所有通道的映射管理，没有限制映射数时为空
+     * @return
+     */
+    public List<MappedRegionManager> getRegionManagers() {
+        List<MappedRegionManager> managers = new ArrayList<>(lanes.length);
+        for (CommitLog lane : lanes) {
+            if (lane.getRegionManager() != null) {
+                managers.add(lane.getRegionManager());
+            }
+        }
+        return managers;
+    }
+
+    private CommitLog laneFor(long offset) {
+        int lane = laneOf(offset);
+        return offset < 0 || lane >= lanes.length ? null : lanes[lane];
+    }
+
+    public CommitLog getLane(int lane) {
+        return lanes[lane];
+    }
+
+    public List<CommitLog> getLanes() {
+        return Arrays.asList(lanes);
+    }
+
+    public DirtyFileSet getDirtyFiles() {
+        return dirtyFiles;
+    }
+
+    public int laneNumber() {
+        return lanes.length;
+    }
+}
@@ -0,0 +1,113 @@
+package com.github.xjtuwsn.cranemq.broker.store.cmtlog;
+
+import com.github.xjtuwsn.cranemq.broker.store.comm.PutMessageRequest;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * @project:dduomq
+ * @file:PutRequestRing
+ * @author:dduo
+ * @create:2023/10/27-14:20
+ */
+
+/**
+ * 多生产者单消费者的无锁环形队列
+ * 生产者通过CAS抢占尾部序号后写入槽位，唯一的写线程顺序取出
+ * @author dduo
+ */
+public class PutRequestRing {
+
+    private final int capacity;
+    private final int mask;
+    private final AtomicReferenceArray<PutMessageRequest> slots;
+    // 生产者抢占的序号
+    private final AtomicLong tail = new AtomicLong(0);
+    // 只有消费线程修改
+    private volatile long head = 0;
+
+    public PutRequestRing(int capacity) {
+        // 容量向上取整为2的幂，方便取模
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        this.capacity = size;
+        this.mask = size - 1;
+        this.slots = new AtomicReferenceArray<>(size);
+    }
+
+    /**
+     * 放入请求
+     * @param request
+     * @return 队列已满返回false
+     */
+    public boolean offer(PutMessageRequest request) {
+        long sequence = this.reserve();
+        if (sequence < 0) {
+            return false;
+        }
+        this.publish(sequence, request);
+        return true;
+    }
+
+    /**
+     * 只抢占一个槽位，之后必须调用publish写入，写入之前消费线程不会越过这个槽位
+     * @return 抢到的序号，队列已满返回-1
+     */
+    public long reserve() {
+        while (true) {
+            long t = tail.get();
+            if (t - head >= capacity) {
+                return -1;
+            }
+            if (tail.compareAndSet(t, t + 1)) {
+                return t;
+            }
+        }
+    }
+
+    /**
+     * 向抢占的槽位写入请求
+     * @param sequence reserve返回的序号
+     * @param request
+     */
+    public void publish(long sequence, PutMessageRequest request) {
+        slots.lazySet((int) (sequence & mask), request);
+    }
+
+    /**
+     * 取出当前所有已经发布的请求，只能由单个线程调用
+     * @param out 结果列表
+     * @param max 最多取出数量
+     * @return 取出的数量
+     */
+    public int drainTo(List<PutMessageRequest> out, int max) {
+        long h = head;
+        int number = 0;
+        while (number < max) {
+            int index = (int) (h & mask);
+            PutMessageRequest request = slots.get(index);
+            // 为空或者生产者抢到了序号但还没写入
+            if (request == null) {
+                break;
+            }
+            slots.lazySet(index, null);
+            out.add(request);
+            h++;
+            number++;
+        }
+        head = h;
+        return number;
+    }
+
+    public boolean isEmpty() {
+        return tail.get() == head;
+    }
+
+    public int size() {
+        return (int) (tail.get() - head);
+    }
+}
@@ -0,0 +1,17 @@
+package com.github.xjtuwsn.cranemq.broker.store.cmtlog;
+
+/**
+ * @project:dduomq
+ * @file:StoreTimestampReader
+ * @author:dduo
+ * @create:2023/10/30-10:12
+ */
+public interface StoreTimestampReader {
+
+    /**
+     * 读取commitLog中对应偏移消息的存储时间
+     * @param offset commitLog偏移
+     * @return 存储时间，消息不存在或没有时间戳返回-1
+     */
+    long readStoreTimestamp(long offset);
+}
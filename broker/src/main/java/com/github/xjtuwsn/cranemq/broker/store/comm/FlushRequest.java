@@ -0,0 +1,51 @@
+package com.github.xjtuwsn.cranemq.broker.store.comm;
+
+import com.github.xjtuwsn.cranemq.broker.store.MappedFile;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * @project:dduomq
+ * @file:FlushRequest
+ * @author:dduo
+ * @create:2023/10/28-10:36
+ * 同步刷盘请求，写入者等待文件刷盘指针到达指定位置
+ */
+public class FlushRequest {
+
+    private final MappedFile mappedFile;
+    // 需要刷到文件内的哪个位置
+    private final int flushTo;
+    // 超时的时间点
+    private final long deadline;
+
+    private final CompletableFuture<StoreResponseType> future;
+
+    public FlushRequest(MappedFile mappedFile, int flushTo, long timeoutMills) {
+        this.mappedFile = mappedFile;
+        this.flushTo = flushTo;
+        this.deadline = System.currentTimeMillis() + timeoutMills;
+        this.future = new CompletableFuture<>();
+    }
+
+    /**
+     * 只看刷盘指针，切换文件时封存的文件已经标记为满但还没有刷盘，不能把满当作已刷盘提前应答
+     * 刷盘指针只在force完成后前进，封存文件由刷盘服务刷完后指针才到达文件末尾
+     * @return
+     */
+    public boolean isFlushed() {
+        return mappedFile.getFlush() >= flushTo;
+    }
+
+    public boolean isExpired(long now) {
+        return now >= deadline;
+    }
+
+    public MappedFile getMappedFile() {
+        return mappedFile;
+    }
+
+    public CompletableFuture<StoreResponseType> getFuture() {
+        return future;
+    }
+}
@@ -0,0 +1,82 @@
+package com.github.xjtuwsn.cranemq.broker.store.comm;
+
+import java.util.Arrays;
+
+/**
+ * @project:dduomq
+ * @file:IndexReadResult
+ * @author:dduo
+ * @create:2023/10/29-10:18
+ * 消费队列索引的读取结果，过滤后队列偏移不再连续，需要和索引一起返回
+ * 索引直接读到基本类型数组中，不为每条索引创建对象，同一个读线程重复使用，容量不够时扩容
+ */
+public class IndexReadResult {
+
+    // 最多返回的索引数
+    private int maxNumber;
+    private int size;
+    // 每条索引在队列中的偏移
+    private long[] queueOffsets;
+    // commitLog中的偏移和长度
+    private long[] commitLogOffsets;
+    private int[] sizes;
+    // 下一次开始读的队列偏移
+    private long nextOffset;
+
+    public IndexReadResult(int maxNumber) {
+        this.queueOffsets = new long[maxNumber];
+        this.commitLogOffsets = new long[maxNumber];
+        this.sizes = new int[maxNumber];
+        this.reset(maxNumber);
+    }
+
+    /**
+     * 清空结果，开始新的一次读取
+     * @param maxNumber 最多返回的索引数
+     */
+    public void reset(int maxNumber) {
+        this.maxNumber = maxNumber;
+        this.size = 0;
+        this.nextOffset = 0;
+        if (this.sizes.length < maxNumber) {
+            this.queueOffsets = Arrays.copyOf(this.queueOffsets, maxNumber);
+            this.commitLogOffsets = Arrays.copyOf(this.commitLogOffsets, maxNumber);
+            this.sizes = Arrays.copyOf(this.sizes, maxNumber);
+        }
+    }
+
+    public void add(long queueOffset, long commitLogOffset, int size) {
+        this.queueOffsets[this.size] = queueOffset;
+        this.commitLogOffsets[this.size] = commitLogOffset;
+        this.sizes[this.size] = size;
+        this.size++;
+    }
+
+    public boolean isFull() {
+        return size >= maxNumber;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long getQueueOffset(int i) {
+        return queueOffsets[i];
+    }
+
+    public long getCommitLogOffset(int i) {
+        return commitLogOffsets[i];
+    }
+
+    public int getSize(int i) {
+        return sizes[i];
+    }
+
+    public long getNextOffset() {
+        return nextOffset;
+    }
+
+    public void setNextOffset(long nextOffset) {
+        this.nextOffset = nextOffset;
+    }
+}
@@ -0,0 +1,35 @@
+package com.github.xjtuwsn.cranemq.broker.store.comm;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * @project:dduomq
+ * @file:PutMessageRequest
+ * @author:dduo
+ * @create:2023/10/27-14:12
+ * 组提交的写入请求，一个请求包含一条或一批消息，写入完成后统一完成future
+ */
+public class PutMessageRequest {
+
+    private final List<StoreInnerMessage> innerMessages;
+
+    private final CompletableFuture<List<PutMessageResponse>> future;
+
+    public PutMessageRequest(List<StoreInnerMessage> innerMessages) {
+        this.innerMessages = innerMessages;
+        this.future = new CompletableFuture<>();
+    }
+
+    public List<StoreInnerMessage> getInnerMessages() {
+        return innerMessages;
+    }
+
+    public CompletableFuture<List<PutMessageResponse>> getFuture() {
+        return future;
+    }
+
+    public int size() {
+        return innerMessages.size();
+    }
+}
@@ -28,6 +28,9 @@ public class PutMessageResponse {
 
     private MappedFile mappedFile;
 
+    // 写入时文件是否持有堆外内存，是的话需要等提交后再转发到消费队列
+    private boolean waitCommit;
+
     public PutMessageResponse(StoreResponseType responseType, long offset, int size, MappedFile mappedFile) {
         this.responseType = responseType;
         this.offset = offset;
@@ -0,0 +1,119 @@
+package com.github.xjtuwsn.cranemq.broker.store.comm;
+
+import com.github.xjtuwsn.cranemq.broker.store.MappedFile;
+import com.github.xjtuwsn.cranemq.common.command.types.AcquireResultType;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * @project:dduomq
+ * @file:RawReadResult
+ * @author:dduo
+ * @create:2023/11/10-10:30
+ * 原始记录的读取结果，热读的记录是映射文件上的切片，读取时对切片所在的文件加引用，
+ * 发送完成后调用release释放，引用不为0的文件不会解除映射或者销毁。冷热和限流状态的含义和ReadResult相同
+ */
+public class RawReadResult {
+
+    // 每条记录在消费队列中的偏移，按tag过滤后不连续
+    private List<Long> queueOffsets;
+    // 记录，批量记录中的消息是头部和消息两个切片
+    private List<ByteBuffer> records;
+    // 下一次开始读的队列偏移
+    private long nextOffset;
+    private AcquireResultType resultType;
+    // 是否是冷读
+    private boolean cold;
+    // 冷读并发已满，这次没有读，消费者应该过一段时间再拉取
+    private boolean throttled;
+    // 建议消费者延迟下一次拉取的时间，毫秒，为0立即拉取
+    private long suggestDelay;
+    // 加了引用的文件，冷读的记录是副本，没有引用
+    private List<MappedFile> references = new ArrayList<>(1);
+    private final AtomicBoolean released = new AtomicBoolean(false);
+
+    public RawReadResult(AcquireResultType resultType) {
+        this(Collections.emptyList(), Collections.emptyList(), -1, resultType);
+    }
+
+    public RawReadResult(List<Long> queueOffsets, List<ByteBuffer> records, long nextOffset,
+                         AcquireResultType resultType) {
+        this.queueOffsets = queueOffsets;
+        this.records = records;
+        this.nextOffset = nextOffset;
+        this.resultType = resultType;
+    }
+
+    /**
+     * 对文件加引用，之后从它上面取的切片在release之前一直有效
+     * @param mappedFile
+     */
+    public void retain(MappedFile mappedFile) {
+        mappedFile.retain();
+        this.references.add(mappedFile);
+    }
+
+    /**
+     * 释放所有引用，重复调用只释放一次
+     */
+    public void release() {
+        if (!released.compareAndSet(false, true)) {
+            return;
+        }
+        for (MappedFile mappedFile : references) {
+            mappedFile.release();
+        }
+    }
+
+    public List<Long> getQueueOffsets() {
+        return queueOffsets;
+    }
+
+    public List<ByteBuffer> getRecords() {
+        return records;
+    }
+
+    public long getNextOffset() {
+        return nextOffset;
+    }
+
+    public void setNextOffset(long nextOffset) {
+        this.nextOffset = nextOffset;
+    }
+
+    public AcquireResultType getResultType() {
+        return resultType;
+    }
+
+    public boolean isCold() {
+        return cold;
+    }
+
+    public void setCold(boolean cold) {
+        this.cold = cold;
+    }
+
+    public boolean isThrottled() {
+        return throttled;
+    }
+
+    public void setThrottled(boolean throttled) {
+        this.throttled = throttled;
+    }
+
+    public long getSuggestDelay() {
+        return suggestDelay;
+    }
+
+    public void setSuggestDelay(long suggestDelay) {
+        this.suggestDelay = suggestDelay;
+    }
+
+    public boolean isEmpty() {
+        return records.isEmpty();
+    }
+}
@@ -0,0 +1,74 @@
+package com.github.xjtuwsn.cranemq.broker.store.comm;
+
+import com.github.xjtuwsn.cranemq.common.command.types.AcquireResultType;
+import com.github.xjtuwsn.cranemq.common.entity.ReadyMessage;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * @project:dduomq
+ * @file:ReadResult
+ * @author:dduo
+ * @create:2023/11/10-14:40
+ * 消息的读取结果，同时带回这次是否是冷读、是否因为冷读并发已满没有读，以及建议消费者延迟下一次拉取的时间
+ */
+public class ReadResult {
+
+    private List<ReadyMessage> messages;
+    // 下一次开始读的队列偏移
+    private long nextOffset;
+    private AcquireResultType resultType;
+    // 是否是冷读
+    private boolean cold;
+    // 冷读并发已满，这次没有读，消费者应该过一段时间再拉取
+    private boolean throttled;
+    // 建议消费者延迟下一次拉取的时间，毫秒，为0立即拉取
+    private long suggestDelay;
+
+    public ReadResult(AcquireResultType resultType) {
+        this(Collections.emptyList(), -1, resultType);
+    }
+
+    public ReadResult(List<ReadyMessage> messages, long nextOffset, AcquireResultType resultType) {
+        this.messages = messages;
+        this.nextOffset = nextOffset;
+        this.resultType = resultType;
+    }
+
+    public List<ReadyMessage> getMessages() {
+        return messages;
+    }
+
+    public long getNextOffset() {
+        return nextOffset;
+    }
+
+    public AcquireResultType getResultType() {
+        return resultType;
+    }
+
+    public boolean isCold() {
+        return cold;
+    }
+
+    public void setCold(boolean cold) {
+        this.cold = cold;
+    }
+
+    public boolean isThrottled() {
+        return throttled;
+    }
+
+    public void setThrottled(boolean throttled) {
+        this.throttled = throttled;
+    }
+
+    public long getSuggestDelay() {
+        return suggestDelay;
+    }
+
+    public void setSuggestDelay(long suggestDelay) {
+        this.suggestDelay = suggestDelay;
+    }
+}
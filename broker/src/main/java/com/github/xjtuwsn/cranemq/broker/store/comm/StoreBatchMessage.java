@@ -0,0 +1,93 @@
+package com.github.xjtuwsn.cranemq.broker.store.comm;
+
+import com.github.xjtuwsn.cranemq.common.entity.Message;
+import com.github.xjtuwsn.cranemq.common.entity.MessageQueue;
+import com.github.xjtuwsn.cranemq.common.remote.codec.CompressionType;
+
+import java.util.List;
+
+/**
+ * @project:dduomq
+ * @file:StoreBatchMessage
+ * @author:dduo
+ * @create:2023/11/03-09:40
+ */
+
+/**
+ * 生产者一次批量发送的消息，整批作为一条批量记录写入commitLog
+ * 主题、队列、消息id、产生时间整批共用，只在记录头部存一次，每条消息只保存tag和消息体
+ * 写入后记录每条消息在记录内的位置和长度，用于逐条转发到消费队列
+ * 生产者压缩过的批量消息，消息对象不带消息体，压缩后的消息体原样写入记录
+ * @author dduo
+ */
+public class StoreBatchMessage extends StoreInnerMessage {
+
+    private List<Message> messages;
+    // 每条消息相对记录起点的位置和长度，写入时填充
+    private int[] positions;
+    private int[] sizes;
+    private CompressionType compression = CompressionType.NONE;
+    private int rawLength;
+    private byte[] compressedBodies;
+
+    public StoreBatchMessage(List<Message> messages, MessageQueue messageQueue, String id) {
+        super(messages.get(0), messageQueue, id, 0);
+        this.messages = messages;
+    }
+
+    public StoreBatchMessage(List<Message> messages, MessageQueue messageQueue, String id,
+                             CompressionType compression, int rawLength, byte[] compressedBodies) {
+        this(messages, messageQueue, id);
+        this.compression = compression;
+        this.rawLength = rawLength;
+        this.compressedBodies = compressedBodies;
+    }
+
+    public boolean isCompressed() {
+        return compression != CompressionType.NONE;
+    }
+
+    public CompressionType getCompression() {
+        return compression;
+    }
+
+    public int getRawLength() {
+        return rawLength;
+    }
+
+    public byte[] getCompressedBodies() {
+        return compressedBodies;
+    }
+
+    public List<Message> getMessages() {
+        return messages;
+    }
+
+    public int count() {
+        return messages.size();
+    }
+
+    public int[] getPositions() {
+        return positions;
+    }
+
+    public int[] getSizes() {
+        return sizes;
+    }
+
+    public void setLayout(int[] positions, int[] sizes) {
+        this.positions = positions;
+        this.sizes = sizes;
+    }
+
+    @Override
+    public String toString() {
+        return "StoreBatchMessage{" +
+                "topic='" + getTopic() + '\'' +
+                ", id='" + getId() + '\'' +
+                ", queueId=" + getQueueId() +
+                ", count=" + messages.size() +
+                ", compression=" + compression +
+                '}';
+    }
+}
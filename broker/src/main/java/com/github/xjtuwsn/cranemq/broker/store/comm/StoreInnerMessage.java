@@ -23,21 +23,34 @@ public class StoreInnerMessage {
     private long delay;
 
     private int retry;
+
+    // 消息产生时间，生产者没有携带时为broker收到的时间
+    private long bornTimestamp;
+
+    // 写入commitLog的时间
+    private long storeTimestamp;
+
+    // topic和tag的字典编号，提交写入之前在调用线程中查好，组提交线程只使用结果，没有编号为-1
+    private int topicId = -1;
+    private int tagId = -1;
     public StoreInnerMessage(Message message, String id, long delay) {
         this.topic = message.getTopic();
         this.tag = message.getTag();
         this.body = message.getBody();
         this.id = id;
         this.delay = delay;
+        this.bornTimestamp = System.currentTimeMillis();
     }
 
     public StoreInnerMessage(Message message, MessageQueue messageQueue, String id, long delay) {
         this.messageQueue = messageQueue;
+        this.queueId = messageQueue.getQueueId();
         this.topic = message.getTopic();
         this.tag = message.getTag();
         this.body = message.getBody();
         this.id = id;
         this.delay = delay;
+        this.bornTimestamp = System.currentTimeMillis();
     }
 
     public StoreInnerMessage(String topic, String tag, String id, byte[] body, int retry, int queueId) {
@@ -73,6 +86,7 @@ public class StoreInnerMessage {
     }
     public void setMessageQueue(MessageQueue messageQueue) {
         this.messageQueue = messageQueue;
+        this.queueId = messageQueue.getQueueId();
     }
 
     public long getDelay() {
@@ -88,6 +102,9 @@ public class StoreInnerMessage {
 
     public void setTopic(String topic) {
         this.topic = topic;
+        // 之前查到的编号对应原来的topic
+        this.topicId = -1;
+        this.tagId = -1;
     }
 
     public void setDelay(long delay) {
@@ -98,6 +115,35 @@ public class StoreInnerMessage {
         this.retry = retry;
     }
 
+    public long getBornTimestamp() {
+        return bornTimestamp;
+    }
+
+    public void setBornTimestamp(long bornTimestamp) {
+        this.bornTimestamp = bornTimestamp;
+    }
+
+    public long getStoreTimestamp() {
+        return storeTimestamp;
+    }
+
+    public void setStoreTimestamp(long storeTimestamp) {
+        this.storeTimestamp = storeTimestamp;
+    }
+
+    public int getTopicId() {
+        return topicId;
+    }
+
+    public int getTagId() {
+        return tagId;
+    }
+
+    public void setNameIds(int topicId, int tagId) {
+        this.topicId = topicId;
+        this.tagId = tagId;
+    }
+
     @Override
     public String toString() {
         return "StoreInnerMessage{" +
@@ -107,6 +153,8 @@ public class StoreInnerMessage {
                 ", queueId=" + queueId +
                 ", delay=" + delay +
                 ", retry=" + retry +
+                ", bornTimestamp=" + bornTimestamp +
+                ", storeTimestamp=" + storeTimestamp +
                 '}';
     }
 }
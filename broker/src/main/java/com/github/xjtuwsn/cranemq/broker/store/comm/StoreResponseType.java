@@ -9,5 +9,7 @@ package com.github.xjtuwsn.cranemq.broker.store.comm;
 public enum StoreResponseType {
     PARAMETER_ERROR,
     NO_ENOUGH_SPACE,
-    STORE_OK
+    STORE_OK,
+    FLUSH_DISK_TIMEOUT,
+    SERVER_BUSY
 }
@@ -0,0 +1,71 @@
+package com.github.xjtuwsn.cranemq.broker.store.dict;
+
+import com.github.xjtuwsn.cranemq.common.constant.MQConstant;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * @project:dduomq
+ * @file:EncodedNames
+ * @author:dduo
+ * @create:2023/11/06-10:15
+ */
+
+/**
+ * 写入commitLog时字符串的编码，topic和tag取值有限，编码结果缓存起来重复使用
+ * 消息id每条都不同，纯ASCII时直接逐字节写入buffer，不生成中间的byte数组
+ * @author dduo
+ */
+public class EncodedNames {
+    // 缓存的名称数量上限，超过之后不再缓存，每次重新编码
+    private static final int MAX_CACHED = 4096;
+
+    private static final ConcurrentHashMap<String, byte[]> CACHE = new ConcurrentHashMap<>();
+
+    /**
+     * 获取topic或者tag编码后的字节，返回的数组是共享的，调用者不能修改
+     * @param name
+     * @return
+     * @throws UnsupportedEncodingException
+     */
+    public static byte[] encode(String name) throws UnsupportedEncodingException {
+        byte[] data = CACHE.get(name);
+        if (data != null) {
+            return data;
+        }
+        data = name.getBytes(MQConstant.CHARSETNAME);
+        if (CACHE.size() < MAX_CACHED) {
+            CACHE.putIfAbsent(name, data);
+        }
+        return data;
+    }
+
+    /**
+     * 字符串全部是ASCII字符时编码后的长度就是字符数
+     * @param value
+     * @return 编码后的长度，含有非ASCII字符返回-1
+     */
+    public static int asciiLength(String value) {
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            if (value.charAt(i) >= 0x80) {
+                return -1;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * 在buffer当前位置写入纯ASCII字符串，调用前需要用asciiLength确认
+     * @param buffer
+     * @param value
+     */
+    public static void putAscii(ByteBuffer buffer, String value) {
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            buffer.put((byte) value.charAt(i));
+        }
+    }
+}
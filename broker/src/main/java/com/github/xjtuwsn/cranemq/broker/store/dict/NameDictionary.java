@@ -0,0 +1,248 @@
+package com.github.xjtuwsn.cranemq.broker.store.dict;
+
+import com.github.xjtuwsn.cranemq.broker.store.PersistentConfig;
+import com.github.xjtuwsn.cranemq.broker.store.comm.StoreInnerMessage;
+import com.github.xjtuwsn.cranemq.common.constant.MQConstant;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32C;
+
+/**
+ * @project:dduomq
+ * @file:NameDictionary
+ * @author:dduo
+ * @create:2023/11/05-14:30
+ */
+
+/**
+ * topic和tag名称字典，把名称映射为从0开始递增的int编号，commitLog记录中只保存编号
+ * 字典文件只追加，每个名称一条：编号int + 名称长度int + 名称 + 校验和int
+ * 新名称在提交写入之前由调用线程登记，只写入文件不刷盘，commitLog刷盘前先刷字典，
+ * 所以使用该编号的记录落盘时字典一定已经落盘，多个新名称合并成一次刷盘
+ * @author dduo
+ */
+public class NameDictionary {
+    private static final Logger log = LoggerFactory.getLogger(NameDictionary.class);
+    // 没有编号，字典已满或者未启用
+    public static final int NO_ID = -1;
+    // 单个名称最大长度，topic和tag都不会超过
+    private static final int MAX_NAME_LENGTH = 4096;
+
+    private File file;
+    private volatile FileChannel channel;
+    // 字典大小上限，tag取值过多时新的名称不再编号，记录退回保存字符串
+    private int maxSize;
+
+    private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+    // 按编号保存名称，容量不够时翻倍，先写入名称再增加数量，读取时先读数量
+    private volatile String[] names = new String[16];
+    private volatile int count = 0;
+
+    // 已经写入文件的条目数和已经刷盘的条目数
+    private final AtomicLong written = new AtomicLong();
+    private volatile long flushed = 0;
+    // 刷盘锁，和登记新名称互不阻塞
+    private final Object flushLock = new Object();
+
+    public NameDictionary(PersistentConfig persistentConfig) {
+        this.file = new File(persistentConfig.getDictionaryPath());
+        this.maxSize = persistentConfig.getMaxDictionarySize();
+    }
+
+    /**
+     * 读取字典文件，末尾不完整或者校验失败的条目截断
+     */
+    public synchronized void load() {
+        try {
+            File parent = file.getParentFile();
+            if (parent != null && !parent.exists()) {
+                parent.mkdirs();
+            }
+            byte[] data = file.exists() ? Files.readAllBytes(file.toPath()) : new byte[0];
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            String[] loaded = new String[16];
+            int count = 0;
+            int valid = 0;
+            while (buffer.remaining() >= 4 + 4 + 4) {
+                int start = buffer.position();
+                int id = buffer.getInt();
+                int length = buffer.getInt();
+                if (id != count || length < 0 || length > MAX_NAME_LENGTH || buffer.remaining() < length + 4) {
+                    break;
+                }
+                byte[] name = new byte[length];
+                buffer.get(name);
+                if (crc(data, start, 4 + 4 + length) != buffer.getInt()) {
+                    break;
+                }
+                if (count == loaded.length) {
+                    loaded = Arrays.copyOf(loaded, count * 2);
+                }
+                loaded[count] = new String(name, MQConstant.CHARSETNAME);
+                this.ids.put(loaded[count], count);
+                count++;
+                valid = buffer.position();
+            }
+            this.names = loaded;
+            this.count = count;
+            this.written.set(count);
+            this.flushed = count;
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            if (valid < data.length) {
+                log.warn("Name dictionary has {} broken bytes at the end, truncate them", data.length - valid);
+                this.channel.truncate(valid);
+                this.channel.force(true);
+            }
+            this.channel.position(valid);
+            log.info("Load name dictionary, {} names", count);
+        } catch (IOException e) {
+            log.error("Load name dictionary error", e);
+        }
+    }
+
+    /**
+     * 在提交写入之前查好消息topic和tag的编号，新名称在这里登记，不占用commitLog的写锁
+     * @param innerMessage
+     */
+    public void resolve(StoreInnerMessage innerMessage) {
+        int topicId = this.idOf(innerMessage.getTopic());
+        int tagId = topicId == NO_ID ? NO_ID : this.idOf(innerMessage.getTag());
+        innerMessage.setNameIds(topicId, tagId);
+    }
+
+    /**
+     * 获取名称的编号，没有则新增
+     * @param name
+     * @return 编号，字典已满或写入失败返回NO_ID
+     */
+    public int idOf(String name) {
+        Integer id = this.ids.get(name);
+        if (id != null) {
+            return id;
+        }
+        return this.register(name);
+    }
+
+    /**
+     * 获取已有名称的编号，不新增
+     * @param name
+     * @return 编号，没有返回NO_ID
+     */
+    public int existingIdOf(String name) {
+        Integer id = this.ids.get(name);
+        return id == null ? NO_ID : id;
+    }
+
+    private synchronized int register(String name) {
+        Integer id = this.ids.get(name);
+        if (id != null) {
+            return id;
+        }
+        int newId = this.count;
+        if (this.channel == null || newId >= this.maxSize) {
+            return NO_ID;
+        }
+        try {
+            byte[] data = name.getBytes(MQConstant.CHARSETNAME);
+            if (data.length > MAX_NAME_LENGTH) {
+                return NO_ID;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(4 + 4 + data.length + 4);
+            buffer.putInt(newId);
+            buffer.putInt(data.length);
+            buffer.put(data);
+            buffer.putInt(crc(buffer.array(), 0, 4 + 4 + data.length));
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                this.channel.write(buffer);
+            }
+            this.written.incrementAndGet();
+
+            String[] current = this.names;
+            if (newId == current.length) {
+                current = Arrays.copyOf(current, current.length * 2);
+                this.names = current;
+            }
+            current[newId] = name;
+            this.count = newId + 1;
+            this.ids.put(name, newId);
+            return newId;
+        } catch (UnsupportedEncodingException e) {
+            return NO_ID;
+        } catch (IOException e) {
+            log.error("Write name dictionary error", e);
+            return NO_ID;
+        }
+    }
+
+    /**
+     * 根据编号获取名称
+     * @param id
+     * @return 编号不存在返回null
+     */
+    public String nameOf(int id) {
+        int size = this.count;
+        String[] current = this.names;
+        return id >= 0 && id < size ? current[id] : null;
+    }
+
+    public int size() {
+        return this.count;
+    }
+
+    /**
+     * 把已经登记的名称刷盘，commitLog刷盘之前调用，没有新名称时直接返回
+     */
+    public void flush() {
+        long target = this.written.get();
+        if (this.flushed >= target) {
+            return;
+        }
+        synchronized (this.flushLock) {
+            // 等锁期间其他线程可能已经刷到这里
+            if (this.flushed >= target) {
+                return;
+            }
+            FileChannel current = this.channel;
+            if (current == null) {
+                return;
+            }
+            try {
+                current.force(false);
+                this.flushed = target;
+            } catch (IOException e) {
+                log.error("Flush name dictionary error", e);
+            }
+        }
+    }
+
+    public synchronized void close() {
+        if (this.channel == null) {
+            return;
+        }
+        this.flush();
+        try {
+            this.channel.close();
+        } catch (IOException e) {
+            log.error("Close name dictionary error", e);
+        }
+        this.channel = null;
+    }
+
+    private static int crc(byte[] data, int start, int length) {
+        CRC32C crc32C = new CRC32C();
+        crc32C.update(data, start, length);
+        return (int) crc32C.getValue();
+    }
+}
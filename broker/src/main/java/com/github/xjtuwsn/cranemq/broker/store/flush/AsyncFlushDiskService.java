@@ -3,15 +3,14 @@ package com.github.xjtuwsn.cranemq.broker.store.flush;
 import com.github.xjtuwsn.cranemq.broker.store.AbstractLinkedListOrganize;
 import com.github.xjtuwsn.cranemq.broker.store.MappedFile;
 import com.github.xjtuwsn.cranemq.broker.store.PersistentConfig;
-import com.github.xjtuwsn.cranemq.broker.store.cmtlog.CommitLog;
-import com.github.xjtuwsn.cranemq.broker.store.queue.ConsumeQueue;
+import com.github.xjtuwsn.cranemq.broker.store.cmtlog.MultiLaneCommitLog;
+import com.github.xjtuwsn.cranemq.broker.store.comm.StoreResponseType;
+import com.github.xjtuwsn.cranemq.broker.store.index.IndexService;
 import com.github.xjtuwsn.cranemq.broker.store.queue.ConsumeQueueManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Collection;
-import java.util.Iterator;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * @project:dduomq
@@ -23,21 +22,35 @@ import java.util.concurrent.ConcurrentHashMap;
 public class AsyncFlushDiskService extends Thread implements FlushDiskService {
     private static final Logger log = LoggerFactory.getLogger(AsyncFlushDiskService.class);
 
-    private boolean isStop = false;
+    private volatile boolean isStop = false;
     private PersistentConfig persistentConfig;
-    private CommitLog commitLog;
+    private MultiLaneCommitLog commitLog;
     private ConsumeQueueManager consumeQueueManager;
-    public AsyncFlushDiskService(PersistentConfig persistentConfig, CommitLog commitLog,
-                                 ConsumeQueueManager consumeQueueManager) {
+    private IndexService indexService;
+    // 消费队列和索引上次刷盘的时间
+    private long lastQueueFlush;
+    private long lastIndexFlush;
+    public AsyncFlushDiskService(PersistentConfig persistentConfig, MultiLaneCommitLog commitLog,
+                                 ConsumeQueueManager consumeQueueManager, IndexService indexService) {
         this.persistentConfig = persistentConfig;
         this.commitLog = commitLog;
         this.consumeQueueManager = consumeQueueManager;
+        this.indexService = indexService;
     }
     @Override
     public void run() {
         while (!isStop) {
-            // 定时进行刷盘
-            flush();
+            // commitLog每轮都刷盘，消费队列和索引按各自的间隔刷盘
+            commitLog.flush();
+            long now = System.currentTimeMillis();
+            if (now - lastQueueFlush >= persistentConfig.getFlushConsumeQueueInterval()) {
+                consumeQueueManager.flush();
+                lastQueueFlush = now;
+            }
+            if (now - lastIndexFlush >= persistentConfig.getFlushIndexInterval()) {
+                indexService.flush();
+                lastIndexFlush = now;
+            }
             try {
                 Thread.sleep(persistentConfig.getFlushDiskInterval());
             } catch (InterruptedException e) {
@@ -52,26 +65,10 @@ public class AsyncFlushDiskService extends Thread implements FlushDiskService {
     @Override
     public void flush() {
         // 进行commitLog的刷盘
-        Iterator<MappedFile> commitLogIterator = commitLog.iterator();
-        while (commitLogIterator.hasNext()) {
-            MappedFile next = commitLogIterator.next();
-            if (next != null) {
-                next.doFlush();
-            }
-        }
+        commitLog.flush();
         // 进行所有消费队列的刷盘
-        Iterator<ConcurrentHashMap<Integer, ConsumeQueue>> allQueue = consumeQueueManager.iterator();
-        while (allQueue.hasNext()) {
-            ConcurrentHashMap<Integer, ConsumeQueue> next = allQueue.next();
-            Collection<ConsumeQueue> values = next.values();
-            for (ConsumeQueue queue : values) {
-                Iterator<MappedFile> queueIterator = queue.iterator();
-                while (queueIterator.hasNext()) {
-                    MappedFile next1 = queueIterator.next();
-                    next1.doFlush();
-                }
-            }
-        }
+        consumeQueueManager.flush();
+        indexService.flush();
     }
 
     @Override
@@ -79,6 +76,17 @@ public class AsyncFlushDiskService extends Thread implements FlushDiskService {
 
     }
 
+    /**
+     * 异步刷盘不需要等待
+     * @param mappedFile
+     * @param flushTo
+     * @return
+     */
+    @Override
+    public CompletableFuture<StoreResponseType> asyncFlush(MappedFile mappedFile, int flushTo) {
+        return CompletableFuture.completedFuture(StoreResponseType.STORE_OK);
+    }
+
     public void setStop() {
         isStop = true;
     }
@@ -0,0 +1,126 @@
+package com.github.xjtuwsn.cranemq.broker.store.flush;
+
+import com.github.xjtuwsn.cranemq.broker.store.MappedFile;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @project:dduomq
+ * @file:DirtyFileSet
+ * @author:dduo
+ * @create:2023/11/02-10:15
+ */
+
+/**
+ * 待刷盘文件集合，文件的写指针或提交指针越过刷盘指针时登记进来，刷盘时只处理登记过的文件，
+ * 不再遍历所有文件。每个文件通过自身的标记保证最多登记一次，刷盘前先清除标记，刷盘期间的新写入会重新登记
+ * @author dduo
+ */
+public class DirtyFileSet {
+    private static final Logger log = LoggerFactory.getLogger(DirtyFileSet.class);
+
+    private final String name;
+    private final ConcurrentLinkedQueue<MappedFile> files = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pending = new AtomicInteger(0);
+
+    private final LongAdder rounds = new LongAdder();
+    private final LongAdder flushedFiles = new LongAdder();
+    // 最近一轮和历史最大的刷盘耗时
+    private volatile long lastCost;
+    private volatile long maxCost;
+    // 最近一轮和历史最大的刷盘延迟，即最早登记的文件等待了多久才刷盘
+    private volatile long lastLag;
+    private volatile long maxLag;
+
+    public DirtyFileSet(String name) {
+        this.name = name;
+    }
+
+    /**
+     * 登记文件，由文件在标记成功后调用
+     * @param mappedFile
+     */
+    public void add(MappedFile mappedFile) {
+        pending.incrementAndGet();
+        files.offer(mappedFile);
+    }
+
+    /**
+     * 对当前登记的所有文件刷盘，调用返回时在调用之前登记的文件都已经刷盘
+     * 加锁保证检查点等调用者不会在其他线程刷到一半时返回
+     * @return 刷盘的文件数
+     */
+    public synchronized int flush() {
+        List<MappedFile> batch = new ArrayList<>();
+        MappedFile mappedFile;
+        // 刷盘前不会清除标记，一个文件在这里最多出现一次
+        while ((mappedFile = files.poll()) != null) {
+            pending.decrementAndGet();
+            batch.add(mappedFile);
+        }
+        if (batch.isEmpty()) {
+            return 0;
+        }
+        long start = System.currentTimeMillis();
+        long oldest = start;
+        for (MappedFile file : batch) {
+            oldest = Math.min(oldest, file.getDirtyTime());
+            file.clearDirty();
+            try {
+                file.doFlush();
+            } catch (Throwable t) {
+                // 文件可能已经过期销毁
+                log.warn("Flush {} file {} error: {}", name, file.getFileName(), t.toString());
+                continue;
+            }
+            // 清除标记之后写入的数据可能已经一起刷盘，没有刷到的重新登记
+            if (file.needFlush()) {
+                file.markDirty();
+            }
+        }
+        long end = System.currentTimeMillis();
+        this.recordRound(batch.size(), end - start, end - oldest);
+        return batch.size();
+    }
+
+    private void recordRound(int number, long cost, long lag) {
+        rounds.increment();
+        flushedFiles.add(number);
+        this.lastCost = cost;
+        this.lastLag = lag;
+        if (cost > maxCost) {
+            this.maxCost = cost;
+        }
+        if (lag > maxLag) {
+            this.maxLag = lag;
+        }
+    }
+
+    /**
+     * 刷盘指标
+     * @return
+     */
+    public Map<String, Long> metrics() {
+        Map<String, Long> map = new LinkedHashMap<>();
+        map.put("pending", (long) pending.get());
+        map.put("rounds", rounds.sum());
+        map.put("flushedFiles", flushedFiles.sum());
+        map.put("lastCost", lastCost);
+        map.put("maxCost", maxCost);
+        map.put("lastLag", lastLag);
+        map.put("maxLag", maxLag);
+        return map;
+    }
+
+    public String getName() {
+        return name;
+    }
+}
@@ -1,6 +1,9 @@
 package com.github.xjtuwsn.cranemq.broker.store.flush;
 
 import com.github.xjtuwsn.cranemq.broker.store.MappedFile;
+import com.github.xjtuwsn.cranemq.broker.store.comm.StoreResponseType;
+
+import java.util.concurrent.CompletableFuture;
 
 /**
  * @project:dduomq
@@ -14,4 +17,12 @@ public interface FlushDiskService {
 
     void flush(MappedFile mappedFile);
 
+    /**
+     * 提交刷盘请求，返回刷盘结果
+     * @param mappedFile 要刷盘的文件
+     * @param flushTo 需要刷到文件内的位置
+     * @return
+     */
+    CompletableFuture<StoreResponseType> asyncFlush(MappedFile mappedFile, int flushTo);
+
 }
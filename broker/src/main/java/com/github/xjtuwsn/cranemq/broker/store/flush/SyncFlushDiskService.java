@@ -1,29 +1,142 @@
 package com.github.xjtuwsn.cranemq.broker.store.flush;
 
 import com.github.xjtuwsn.cranemq.broker.store.MappedFile;
+import com.github.xjtuwsn.cranemq.broker.store.PersistentConfig;
+import com.github.xjtuwsn.cranemq.broker.store.cmtlog.MultiLaneCommitLog;
+import com.github.xjtuwsn.cranemq.broker.store.comm.FlushRequest;
+import com.github.xjtuwsn.cranemq.broker.store.comm.StoreResponseType;
+import com.github.xjtuwsn.cranemq.broker.store.write.WriteStrategyType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
 /**
  * @project:dduomq
  * @file:SyncFlushDiskService
  * @author:dduo
  * @create:2023/10/06-11:01
- * 同步刷盘服务
+ * 同步刷盘服务，写入者登记刷盘请求并等待，刷盘线程一次force覆盖所有等待的请求
  */
-public class SyncFlushDiskService implements FlushDiskService {
+public class SyncFlushDiskService extends Thread implements FlushDiskService {
     private static final Logger log = LoggerFactory.getLogger(SyncFlushDiskService.class);
+
+    private volatile boolean isStop = false;
+    private PersistentConfig persistentConfig;
+    private MultiLaneCommitLog commitLog;
+    // 等待刷盘的请求
+    private LinkedBlockingQueue<FlushRequest> requestQueue = new LinkedBlockingQueue<>();
+
+    public SyncFlushDiskService(PersistentConfig persistentConfig, MultiLaneCommitLog commitLog) {
+        super("SyncFlushDiskService");
+        this.persistentConfig = persistentConfig;
+        this.commitLog = commitLog;
+        this.setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+        List<FlushRequest> batch = new ArrayList<>();
+        while (!isStop) {
+            try {
+                FlushRequest first = requestQueue.poll(10, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.clear();
+                batch.add(first);
+                // 取出所有正在等待的请求，一起刷盘
+                requestQueue.drainTo(batch);
+                if (doGroupFlush(batch)) {
+                    // 还有没刷完的请求，稍等提交
+                    Thread.sleep(1);
+                }
+            } catch (InterruptedException e) {
+                log.warn("Sync flush disk service has been Interrupted");
+            }
+        }
+        // 退出前把剩下的请求刷完
+        batch.clear();
+        requestQueue.drainTo(batch);
+        doGroupFlush(batch);
+    }
+
+    /**
+     * 对一组请求涉及的文件各刷一次盘，然后唤醒所有满足条件的写入者
+     * @param batch
+     * @return 是否有请求需要重试
+     */
+    private boolean doGroupFlush(List<FlushRequest> batch) {
+        if (batch.isEmpty()) {
+            return false;
+        }
+        // 开启堆外内存时，数据需要先提交到文件才能刷盘
+        if (persistentConfig.getCommitLogWriteStrategy() == WriteStrategyType.TRANSIENT_POOL) {
+            commitLog.commit(true);
+        }
+        Set<MappedFile> files = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (FlushRequest request : batch) {
+            files.add(request.getMappedFile());
+        }
+        for (MappedFile mappedFile : files) {
+            mappedFile.doFlush();
+        }
+        long now = System.currentTimeMillis();
+        boolean retry = false;
+        for (FlushRequest request : batch) {
+            if (request.isFlushed()) {
+                request.getFuture().complete(StoreResponseType.STORE_OK);
+            } else if (request.isExpired(now)) {
+                request.getFuture().complete(StoreResponseType.FLUSH_DISK_TIMEOUT);
+            } else {
+                requestQueue.offer(request);
+                retry = true;
+            }
+        }
+        return retry;
+    }
+
     @Override
     public void flush() {
 
     }
 
+    /**
+     * 只登记刷盘请求，不等待结果
+     * @param mappedFile
+     */
     @Override
     public void flush(MappedFile mappedFile) {
         if (mappedFile == null) {
             log.error("Flush disg get null mappedfile");
             return;
         }
-        mappedFile.doFlush();
+        this.asyncFlush(mappedFile, mappedFile.getWrite());
+    }
+
+    @Override
+    public CompletableFuture<StoreResponseType> asyncFlush(MappedFile mappedFile, int flushTo) {
+        if (mappedFile == null) {
+            log.error("Flush disg get null mappedfile");
+            return CompletableFuture.completedFuture(StoreResponseType.PARAMETER_ERROR);
+        }
+        FlushRequest request = new FlushRequest(mappedFile, flushTo, persistentConfig.getSyncFlushTimeout());
+        if (request.isFlushed()) {
+            request.getFuture().complete(StoreResponseType.STORE_OK);
+            return request.getFuture();
+        }
+        this.requestQueue.offer(request);
+        return request.getFuture();
+    }
+
+    public void setStop() {
+        this.isStop = true;
     }
 }
@@ -0,0 +1,221 @@
+package com.github.xjtuwsn.cranemq.broker.store.index;
+
+import cn.hutool.core.lang.Pair;
+import com.github.xjtuwsn.cranemq.broker.store.MappedFile;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+/**
+ * @project:dduomq
+ * @file:IndexFile
+ * @author:dduo
+ * @create:2023/10/29-15:40
+ */
+
+/**
+ * 消息key的哈希索引文件，文件头 + 固定数量的哈希槽 + 顺序追加的索引项
+ * 每个槽位保存最新一条索引项的序号，索引项之间通过上一条的序号链接
+ * @author dduo
+ */
+public class IndexFile {
+    private static final Logger log = LoggerFactory.getLogger(IndexFile.class);
+
+    // 文件头：起始commitLog偏移long + 结束commitLog偏移long + 已用槽位int + 索引数int
+    private static final int HEADER_SIZE = 8 + 8 + 4 + 4;
+    // 槽位：最新索引项序号int，0表示空
+    private static final int SLOT_SIZE = 4;
+    // 索引项：key哈希int + commitLog偏移long + 消息长度int + 同槽位上一条索引序号int
+    private static final int ENTRY_SIZE = 4 + 8 + 4 + 4;
+
+    private final int slotNumber;
+    private final int maxIndexNumber;
+    private final int fileSize;
+    private final String fileName;
+    private final File file;
+
+    private RandomAccessFile randomAccessFile;
+    private FileChannel fileChannel;
+    private MappedByteBuffer mappedByteBuffer;
+
+    private volatile long beginOffset;
+    private volatile long endOffset;
+    private int slotUsed;
+    private volatile int indexCount;
+    // 最近一次刷盘时的索引数
+    private volatile int flushedCount;
+
+    public IndexFile(String fullPath, int slotNumber, int maxIndexNumber) throws IOException {
+        this.slotNumber = slotNumber;
+        this.maxIndexNumber = maxIndexNumber;
+        this.fileSize = HEADER_SIZE + slotNumber * SLOT_SIZE + maxIndexNumber * ENTRY_SIZE;
+        this.file = new File(fullPath);
+        this.fileName = file.getName();
+        this.randomAccessFile = new RandomAccessFile(file, "rw");
+        this.fileChannel = randomAccessFile.getChannel();
+        this.mappedByteBuffer = fileChannel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+        this.loadHeader();
+    }
+
+    private void loadHeader() {
+        this.beginOffset = mappedByteBuffer.getLong(0);
+        this.endOffset = mappedByteBuffer.getLong(8);
+        this.slotUsed = mappedByteBuffer.getInt(16);
+        this.indexCount = mappedByteBuffer.getInt(20);
+        this.flushedCount = this.indexCount;
+    }
+
+    private void writeHeader() {
+        mappedByteBuffer.putLong(0, beginOffset);
+        mappedByteBuffer.putLong(8, endOffset);
+        mappedByteBuffer.putInt(16, slotUsed);
+        mappedByteBuffer.putInt(20, indexCount);
+    }
+
+    /**
+     * 写入一条索引，只能由一个线程调用
+     * @param key 消息key
+     * @param offset commitLog偏移
+     * @param size 消息长度
+     * @return 文件写满返回false
+     */
+    public boolean put(String key, long offset, int size) {
+        if (isFull()) {
+            return false;
+        }
+        int hash = keyHash(key);
+        int slotPos = HEADER_SIZE + (hash % slotNumber) * SLOT_SIZE;
+        int prev = mappedByteBuffer.getInt(slotPos);
+        // 序号从1开始，0表示槽位为空
+        int index = indexCount + 1;
+        int entryPos = entryPosition(index);
+
+        // 先写索引项，再更新槽位，读线程看到槽位时索引项已经写完
+        mappedByteBuffer.putInt(entryPos, hash);
+        mappedByteBuffer.putLong(entryPos + 4, offset);
+        mappedByteBuffer.putInt(entryPos + 12, size);
+        mappedByteBuffer.putInt(entryPos + 16, prev);
+        mappedByteBuffer.putInt(slotPos, index);
+
+        if (prev == 0) {
+            slotUsed++;
+        }
+        if (indexCount == 0) {
+            beginOffset = offset;
+        }
+        endOffset = offset;
+        indexCount = index;
+        this.writeHeader();
+        return true;
+    }
+
+    /**
+     * 查找key对应的索引，由新到旧
+     * @param key 消息key
+     * @param maxNumber 最多返回数量
+     * @param result commitLog偏移和消息长度，可能包含哈希冲突的消息，需要读出后再比对
+     */
+    public void select(String key, int maxNumber, List<Pair<Long, Integer>> result) {
+        int hash = keyHash(key);
+        int slotPos = HEADER_SIZE + (hash % slotNumber) * SLOT_SIZE;
+        int index = mappedByteBuffer.getInt(slotPos);
+        int count = indexCount;
+        // 链上的序号一定递减，防止文件损坏时死循环
+        int last = count + 1;
+        while (index > 0 && index < last && result.size() < maxNumber) {
+            int entryPos = entryPosition(index);
+            if (mappedByteBuffer.getInt(entryPos) == hash) {
+                result.add(new Pair<>(mappedByteBuffer.getLong(entryPos + 4), mappedByteBuffer.getInt(entryPos + 12)));
+            }
+            last = index;
+            index = mappedByteBuffer.getInt(entryPos + 16);
+        }
+    }
+
+    private int entryPosition(int index) {
+        return HEADER_SIZE + slotNumber * SLOT_SIZE + (index - 1) * ENTRY_SIZE;
+    }
+
+    private int keyHash(String key) {
+        return key.hashCode() & Integer.MAX_VALUE;
+    }
+
+    public boolean isFull() {
+        return indexCount >= maxIndexNumber;
+    }
+
+    /**
+     * 刷盘，上次刷盘之后没有新索引时跳过
+     * @return 是否执行了刷盘
+     */
+    public boolean flush() {
+        int count = this.indexCount;
+        if (count == this.flushedCount) {
+            return false;
+        }
+        this.mappedByteBuffer.force();
+        this.flushedCount = count;
+        return true;
+    }
+
+    /**
+     * 还没有刷盘的索引数
+     * @return
+     */
+    public int unflushedCount() {
+        return this.indexCount - this.flushedCount;
+    }
+
+    public void close() {
+        try {
+            this.flush();
+            this.fileChannel.close();
+            this.randomAccessFile.close();
+        } catch (IOException e) {
+            log.error("Close index file {} error", fileName, e);
+        }
+    }
+
+    /**
+     * 关闭并删除文件，调用前需要等待正在进行的查询结束
+     * @return
+     */
+    public boolean destroy() {
+        try {
+            this.fileChannel.close();
+            this.randomAccessFile.close();
+        } catch (IOException e) {
+            log.error("Close index file {} error", fileName, e);
+        }
+        MappedFile.unmap(this.mappedByteBuffer);
+        boolean deleted = this.file.delete();
+        log.info("Destroy index file {}, result {}", fileName, deleted);
+        return deleted;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public long getBeginOffset() {
+        return beginOffset;
+    }
+
+    public long getEndOffset() {
+        return endOffset;
+    }
+
+    public int getIndexCount() {
+        return indexCount;
+    }
+
+    public int getFileSize() {
+        return fileSize;
+    }
+}
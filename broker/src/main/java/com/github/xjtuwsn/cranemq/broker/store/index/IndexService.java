@@ -0,0 +1,211 @@
+package com.github.xjtuwsn.cranemq.broker.store.index;
+
+import cn.hutool.core.lang.Pair;
+import com.github.xjtuwsn.cranemq.broker.store.GeneralStoreService;
+import com.github.xjtuwsn.cranemq.broker.store.PersistentConfig;
+import com.github.xjtuwsn.cranemq.broker.store.cmtlog.CommitEntry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongPredicate;
+
+/**
+ * @project:dduomq
+ * @file:IndexService
+ * @author:dduo
+ * @create:2023/10/29-16:22
+ */
+
+/**
+ * 消息key索引管理，和消费队列一起在消息转发时写入
+ * @author dduo
+ */
+public class IndexService implements GeneralStoreService {
+    private static final Logger log = LoggerFactory.getLogger(IndexService.class);
+
+    private PersistentConfig persistentConfig;
+    // 按创建顺序排列的索引文件
+    private CopyOnWriteArrayList<IndexFile> indexFiles = new CopyOnWriteArrayList<>();
+    // 写入线程可能不止一个，写入时加锁
+    private ReentrantLock writeLock = new ReentrantLock();
+
+    public IndexService(PersistentConfig persistentConfig) {
+        this.persistentConfig = persistentConfig;
+    }
+
+    @Override
+    public void start() {
+        File root = new File(persistentConfig.getIndexPath());
+        if (!root.exists()) {
+            root.mkdirs();
+        }
+        File[] files = root.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, Comparator.comparing(File::getName));
+        for (File file : files) {
+            try {
+                indexFiles.add(new IndexFile(file.getPath(), persistentConfig.getIndexSlotNumber(),
+                        persistentConfig.getMaxIndexNumber()));
+            } catch (IOException e) {
+                log.error("Load index file {} error", file.getName(), e);
+            }
+        }
+        log.info("Load {} index files", indexFiles.size());
+    }
+
+    /**
+     * 写入消息key的索引
+     * @param key 消息key
+     * @param offset commitLog偏移
+     * @param size 消息长度
+     */
+    public void putKey(String key, long offset, int size) {
+        if (key == null || key.isEmpty()) {
+            return;
+        }
+        writeLock.lock();
+        try {
+            IndexFile last = indexFiles.isEmpty() ? null : indexFiles.get(indexFiles.size() - 1);
+            if (last == null || last.isFull()) {
+                if (last != null) {
+                    last.flush();
+                }
+                last = this.createIndexFile();
+                if (last == null) {
+                    return;
+                }
+            }
+            last.put(key, offset, size);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * 批量写入已提交消息的key，整批只加一次锁
+     * @param entries
+     */
+    public void putKeys(List<CommitEntry> entries) {
+        writeLock.lock();
+        try {
+            for (CommitEntry entry : entries) {
+                this.putKey(entry.getId(), entry.getKeyOffset(), entry.getKeySize());
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private IndexFile createIndexFile() {
+        // 前面的文件可能已经过期删除，序号接着最后一个文件
+        long seq = indexFiles.isEmpty() ? 0
+                : Long.parseLong(indexFiles.get(indexFiles.size() - 1).getFileName()) + 1;
+        String fileName = String.format("%020d", seq);
+        try {
+            IndexFile indexFile = new IndexFile(persistentConfig.getIndexPath() + fileName,
+                    persistentConfig.getIndexSlotNumber(), persistentConfig.getMaxIndexNumber());
+            indexFiles.add(indexFile);
+            log.info("Create new index file {}", fileName);
+            return indexFile;
+        } catch (IOException e) {
+            log.error("Create index file {} error", fileName, e);
+            return null;
+        }
+    }
+
+    /**
+     * 根据key查找消息位置，从最新的文件开始找
+     * @param key 消息key
+     * @param maxNumber 最多返回数量
+     * @return commitLog偏移和消息长度
+     */
+    public List<Pair<Long, Integer>> queryOffsets(String key, int maxNumber) {
+        List<Pair<Long, Integer>> result = new ArrayList<>();
+        if (key == null || key.isEmpty()) {
+            return result;
+        }
+        // 取快照，过期删除不会影响这次遍历
+        IndexFile[] files = indexFiles.toArray(new IndexFile[0]);
+        for (int i = files.length - 1; i >= 0 && result.size() < maxNumber; i--) {
+            files[i].select(key, maxNumber, result);
+        }
+        return result;
+    }
+
+    /**
+     * key是否已经有指向指定偏移的索引，崩溃恢复时用于补齐转发后没来得及写入的key
+     * @param key 消息key
+     * @param offset commitLog偏移
+     * @return
+     */
+    public boolean containsKey(String key, long offset) {
+        for (Pair<Long, Integer> pair : this.queryOffsets(key, persistentConfig.getMaxQueryNumber())) {
+            if (pair.getKey() == offset) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 删除索引全部指向已删除commitLog的文件，至少保留最后一个文件
+     * 多个通道时只按最后一条索引所在的通道判断，其他通道中较早的消息可能提前查不到
+     * @param removed 偏移是否早于所在通道保留的最小偏移
+     * @return 被摘除的文件，由调用者延迟销毁
+     */
+    public List<IndexFile> deleteExpiredFiles(LongPredicate removed) {
+        List<IndexFile> expired = new ArrayList<>();
+        writeLock.lock();
+        try {
+            while (indexFiles.size() > 1 && removed.test(indexFiles.get(0).getEndOffset())) {
+                IndexFile indexFile = indexFiles.remove(0);
+                expired.add(indexFile);
+                log.info("Index file {} expired", indexFile.getFileName());
+            }
+        } finally {
+            writeLock.unlock();
+        }
+        return expired;
+    }
+
+    /**
+     * 写满的文件在切换时已经刷盘，只需要刷最后一个正在写的文件
+     * @return 是否执行了刷盘
+     */
+    public boolean flush() {
+        IndexFile last = this.lastFile();
+        return last != null && last.flush();
+    }
+
+    /**
+     * 最后一个文件中还没有刷盘的索引数
+     * @return
+     */
+    public int unflushedCount() {
+        IndexFile last = this.lastFile();
+        return last == null ? 0 : last.unflushedCount();
+    }
+
+    private IndexFile lastFile() {
+        // 取快照，不和写入线程争锁
+        IndexFile[] files = indexFiles.toArray(new IndexFile[0]);
+        return files.length == 0 ? null : files[files.length - 1];
+    }
+
+    @Override
+    public void close() {
+        for (IndexFile indexFile : indexFiles) {
+            indexFile.close();
+        }
+    }
+}
@@ -1,41 +1,54 @@
 package com.github.xjtuwsn.cranemq.broker.store.pool;
 
+import com.github.xjtuwsn.cranemq.broker.store.MappedFile;
 import com.github.xjtuwsn.cranemq.broker.store.PersistentConfig;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.nio.ByteBuffer;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @project:dduomq
  * @file:OutOfHeapMemoryPool
  * @author:dduo
  * @create:2023/10/04-10:17
- * 堆外内存池
+ * 堆外内存池，由固定大小的分片组成，写入时按顺序写满一个分片再借下一个
+ * 分片按需申请，总大小不超过上限，长时间空闲时释放到最小数量
  */
 public class OutOfHeapMemoryPool {
     private static final Logger log = LoggerFactory.getLogger(OutOfHeapMemoryPool.class);
 
-    private final int maxQueueSize;
     private final PersistentConfig persistentConfig;
-
-    private LinkedBlockingQueue<ByteBuffer> queue;
+    // 分片大小，不超过commitLog文件大小
+    private final int chunkSize;
+    // 最多申请的分片数
+    private final int maxChunks;
+    // 常驻的分片数
+    private final int minChunks;
+    // 已经申请的分片数
+    private final AtomicInteger allocated = new AtomicInteger(0);
+    // 空闲的分片，后进先出，最近用过的分片更可能还在缓存中
+    private final ConcurrentLinkedDeque<ByteBuffer> freeChunks = new ConcurrentLinkedDeque<>();
+    // 最近一次空闲分片不足的时间
+    private volatile long lastBusyTime = System.currentTimeMillis();
 
     public OutOfHeapMemoryPool(PersistentConfig persistentConfig) {
         this.persistentConfig = persistentConfig;
-        this.maxQueueSize = this.persistentConfig.getMaxOutOfMemoryPoolSize();
-        this.queue = new LinkedBlockingQueue<>(this.maxQueueSize);
-        log.info("New memory pool, size is {}", this.maxQueueSize);
+        this.chunkSize = Math.min(persistentConfig.getOutOfMemoryChunkSize(), persistentConfig.getCommitLogMaxSize());
+        this.maxChunks = Math.max(1, (int) (persistentConfig.getMaxOutOfMemorySize() / this.chunkSize));
+        this.minChunks = Math.min(this.maxChunks, persistentConfig.getMinOutOfMemoryChunks());
+        log.info("New memory pool, chunk size is {}, max chunks is {}", this.chunkSize, this.maxChunks);
     }
 
     /**
-     * 申请堆外内存
+     * 申请常驻的分片
      */
     public void init() {
-        for (int i = 0; i < this.maxQueueSize; i++) {
-            ByteBuffer byteBuffer = ByteBuffer.allocateDirect(this.persistentConfig.getCommitLogMaxSize());
-            this.queue.offer(byteBuffer);
+        for (int i = 0; i < this.minChunks; i++) {
+            this.allocated.incrementAndGet();
+            this.freeChunks.offer(ByteBuffer.allocateDirect(this.chunkSize));
         }
         log.info("Finish memory pool initialize");
     }
@@ -44,13 +57,11 @@ public class OutOfHeapMemoryPool {
      * 销毁内存池
      */
     public void destory() {
-        while (!this.queue.isEmpty()) {
-            ByteBuffer byteBuffer = this.queue.poll();
-            if (byteBuffer != null) {
-                byteBuffer.clear();
-            }
+        ByteBuffer byteBuffer;
+        while ((byteBuffer = this.freeChunks.poll()) != null) {
+            this.allocated.decrementAndGet();
+            MappedFile.unmap(byteBuffer);
         }
-        this.queue.clear();
     }
 
     /**
@@ -58,24 +69,70 @@ public class OutOfHeapMemoryPool {
      * @param byteBuffer
      */
     public void returnMemory(ByteBuffer byteBuffer) {
-        byteBuffer.position(0);
-        byteBuffer.limit(this.persistentConfig.getCommitLogMaxSize());
-        this.queue.offer(byteBuffer);
+        byteBuffer.clear();
+        this.freeChunks.offerFirst(byteBuffer);
     }
 
     /**
-     * 借用
-     * @return
+     * 借用一个分片，没有空闲的分片时在上限内申请新的
+     * @return 达到上限返回null，由调用者直接写映射
      */
     public ByteBuffer borrowMemmory() {
-        ByteBuffer poll = this.queue.poll();
-        if (poll == null) {
-            log.warn("No enough direct memory");
+        ByteBuffer poll = this.freeChunks.pollFirst();
+        if (poll != null) {
+            return poll;
+        }
+        this.lastBusyTime = System.currentTimeMillis();
+        while (true) {
+            int current = this.allocated.get();
+            if (current >= this.maxChunks) {
+                log.debug("No enough direct memory");
+                return null;
+            }
+            if (this.allocated.compareAndSet(current, current + 1)) {
+                log.info("Thread {} allocate direct memory chunk, {} chunks now",
+                        Thread.currentThread().getName(), current + 1);
+                return ByteBuffer.allocateDirect(this.chunkSize);
+            }
+        }
+    }
+
+    /**
+     * 空闲一段时间后释放多余的分片，只保留常驻的分片
+     */
+    public void trim() {
+        if (System.currentTimeMillis() - this.lastBusyTime < persistentConfig.getOutOfMemoryIdleTime()) {
+            return;
+        }
+        int released = 0;
+        while (this.allocated.get() > this.minChunks) {
+            // 从尾部取最久没用的分片
+            ByteBuffer byteBuffer = this.freeChunks.pollLast();
+            if (byteBuffer == null) {
+                break;
+            }
+            this.allocated.decrementAndGet();
+            MappedFile.unmap(byteBuffer);
+            released++;
+        }
+        if (released > 0) {
+            log.info("Release {} idle direct memory chunks, {} chunks now", released, this.allocated.get());
         }
-        log.info("Thread {} borrow a pool", Thread.currentThread().getName());
-        return poll;
     }
+
+    /**
+     * 还能借用的分片数
+     * @return
+     */
     public int remainSize() {
-        return this.queue.size();
+        return this.freeChunks.size() + this.maxChunks - this.allocated.get();
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public int getAllocated() {
+        return allocated.get();
     }
 }
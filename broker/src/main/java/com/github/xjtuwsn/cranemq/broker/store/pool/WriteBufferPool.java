@@ -0,0 +1,81 @@
+package com.github.xjtuwsn.cranemq.broker.store.pool;
+
+import com.github.xjtuwsn.cranemq.broker.store.MappedFile;
+import com.github.xjtuwsn.cranemq.broker.store.PersistentConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @project:dduomq
+ * @file:WriteBufferPool
+ * @author:dduo
+ * @create:2023/11/08-10:50
+ * FileChannel写入方式使用的buffer池，每个正在写的文件借用一个，写满后归还
+ * 可以使用堆外或者堆内buffer，堆内buffer写文件通道时由JDK复制到临时的堆外buffer
+ */
+public class WriteBufferPool {
+    private static final Logger log = LoggerFactory.getLogger(WriteBufferPool.class);
+
+    private final int bufferSize;
+    private final boolean direct;
+    // 最多申请的buffer数
+    private final int maxBuffers;
+    private final AtomicInteger allocated = new AtomicInteger(0);
+    private final ConcurrentLinkedDeque<ByteBuffer> freeBuffers = new ConcurrentLinkedDeque<>();
+
+    /**
+     * @param persistentConfig
+     * @param maxBuffers 同时写入的文件数
+     */
+    public WriteBufferPool(PersistentConfig persistentConfig, int maxBuffers) {
+        this.bufferSize = Math.min(persistentConfig.getChannelWriteBufferSize(), persistentConfig.getCommitLogMaxSize());
+        this.direct = persistentConfig.isChannelWriteDirectBuffer();
+        this.maxBuffers = Math.max(1, maxBuffers);
+        log.info("New write buffer pool, buffer size is {}, direct {}, max buffers is {}", bufferSize, direct,
+                this.maxBuffers);
+    }
+
+    /**
+     * 借用一个buffer
+     * @return 达到上限返回null，由调用者直接写映射
+     */
+    public ByteBuffer borrowBuffer() {
+        ByteBuffer buffer = this.freeBuffers.pollFirst();
+        if (buffer != null) {
+            return buffer;
+        }
+        while (true) {
+            int current = this.allocated.get();
+            if (current >= this.maxBuffers) {
+                return null;
+            }
+            if (this.allocated.compareAndSet(current, current + 1)) {
+                return direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+            }
+        }
+    }
+
+    /**
+     * 归还
+     * @param buffer
+     */
+    public void returnBuffer(ByteBuffer buffer) {
+        buffer.clear();
+        this.freeBuffers.offerFirst(buffer);
+    }
+
+    /**
+     * 释放空闲的buffer
+     */
+    public void destroy() {
+        ByteBuffer buffer;
+        while ((buffer = this.freeBuffers.poll()) != null) {
+            this.allocated.decrementAndGet();
+            MappedFile.unmap(buffer);
+        }
+    }
+}
@@ -1,7 +1,9 @@
 package com.github.xjtuwsn.cranemq.broker.store.queue;
 
+import cn.hutool.core.lang.Pair;
 import com.github.xjtuwsn.cranemq.broker.store.*;
 import com.github.xjtuwsn.cranemq.broker.store.cmtlog.RecoveryListener;
+import com.github.xjtuwsn.cranemq.broker.store.cmtlog.StoreTimestampReader;
 import com.github.xjtuwsn.cranemq.broker.store.comm.AsyncRequest;
 import com.github.xjtuwsn.cranemq.broker.store.comm.PutMessageResponse;
 import com.github.xjtuwsn.cranemq.broker.store.comm.StoreRequestType;
@@ -11,12 +13,22 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongPredicate;
 
 /**
  * @project:dduomq
@@ -27,6 +39,16 @@ import java.util.concurrent.locks.ReentrantLock;
  */
 public class ConsumeQueue extends AbstractLinkedListOrganize implements GeneralStoreService {
     private static final Logger log = LoggerFactory.getLogger(ConsumeQueue.class);
+    // 旧格式的索引项长度，commitLog偏移long + 消息长度int，没有tag哈希
+    private static final int LEGACY_QUEUE_UNIT = 8 + 4;
+    // 升级时的临时文件后缀
+    private static final String UPGRADE_SUFFIX = ".upgrade";
+    // 每个队列目录下记录索引格式版本的文件，没有这个文件的目录是旧格式
+    private static final String VERSION_FILE = "version";
+    // 带tag哈希的索引格式版本，旧格式是1
+    private static final int QUEUE_FORMAT_VERSION = 2;
+    // 崩溃恢复时向前回看的索引数，并发转发的索引顺序和commitLog顺序可能略有不同
+    private static final int RECOVERY_LOOK_BACK = 1024;
     private int queueId;
     private String topic;
     private String fullPath;
@@ -34,6 +56,18 @@ public class ConsumeQueue extends AbstractLinkedListOrganize implements GeneralS
     private CreateRequestListener createListener;
 
     private RecoveryListener recoveryListener;
+
+    // 队列中最早的有效偏移，之前的文件或者索引指向的消息已经过期删除
+    private volatile long minOffset = 0;
+
+    // 稀疏时间索引，文件序号：文件第一条消息的存储时间，第一条写入后不再变化，按需读取后缓存
+    private ConcurrentHashMap<Integer, Long> firstTimestampTable = new ConcurrentHashMap<>();
+
+    // 最近一次读写的时间，长时间没有读写的队列解除映射并关闭文件
+    private volatile long lastAccess = System.currentTimeMillis();
+
+    // 文件扩大映射后替换掉的原映射交给它延迟释放
+    private IdleQueueService idleQueueService;
     // TODO 消费者队列实现
     public ConsumeQueue(int queueId, String topic, PersistentConfig persistentConfig) {
         this.queueId = queueId;
@@ -46,21 +80,147 @@ public class ConsumeQueue extends AbstractLinkedListOrganize implements GeneralS
     public void start() {
         File queueRoot = new File(fullPath);
         File[] mapped = queueRoot.listFiles();
-        Arrays.sort(mapped, Comparator.comparing(File::getName));
-        int length = mapped.length;
-        int index = 0;
-        for (File mappedFiles : mapped) {
+        // 倒序升级，升级后的文件名更大，不会和还没升级的旧文件重名
+        Arrays.sort(mapped, Comparator.comparing(File::getName).reversed());
+        // 按目录中的版本文件判断格式，不根据文件长度猜测
+        boolean legacy = this.readFormatVersion(queueRoot) < QUEUE_FORMAT_VERSION;
+        List<File> files = new ArrayList<>();
+        for (File file : mapped) {
+            if (file.getName().equals(VERSION_FILE)) {
+                continue;
+            }
+            // 上次升级中断留下的临时文件，原文件还在，删掉重新升级
+            if (file.getName().endsWith(UPGRADE_SUFFIX)) {
+                file.delete();
+                continue;
+            }
+            File upgraded = legacy ? this.upgradeLegacyFile(file) : file;
+            // 上次升级在删除旧文件前中断，新旧文件会升级到同一个文件
+            if (!files.contains(upgraded)) {
+                files.add(upgraded);
+            }
+        }
+        // 所有文件升级完成后才写入版本，升级中断时下次启动继续升级，新建的空目录直接写入当前版本
+        if (legacy) {
+            this.writeFormatVersion(queueRoot);
+        }
+        files.sort(Comparator.comparing(File::getName));
+        int length = files.size();
+        int count = 0;
+        for (File mappedFiles : files) {
+            // 序号由文件名换算，前面的文件过期删除后队列偏移和序号的对应关系不变
+            int index = (int) (Long.parseLong(mappedFiles.getName()) / persistentConfig.getMaxQueueSize());
+            // 只有最后一个文件需要写入和恢复，之前的文件第一次读取时再映射
+            boolean lazy = persistentConfig.isLazyMapQueueFile() && count != length - 1;
             MappedFile mappedFile = new MappedFile(index, persistentConfig.getMaxQueueSize(), mappedFiles.getName(),
-                    fullPath + mappedFiles.getName(), persistentConfig);
+                    fullPath + mappedFiles.getName(), persistentConfig, lazy,
+                    persistentConfig.getInitialQueueFileSize());
             this.mappedTable.put(index, mappedFile);
             this.insertBeforeTail(mappedFile);
 
             // 对于一个队列的所有mappedFile，如果是最后一个，那么将存储有最大的commitLog偏移，进行读取恢复commitLog
-            if (index == length - 1) {
+            if (count == length - 1) {
                 this.binarySearchLastCommit(mappedFile);
             }
 
-            index++;
+            count++;
+        }
+        MappedFile first = getFirstMappedFile();
+        if (first != null) {
+            this.minOffset = (long) first.getIndex() * persistentConfig.getMaxQueueItemNumber();
+        }
+    }
+
+    /**
+     * 读取队列目录的索引格式版本
+     * @param queueRoot
+     * @return 没有版本文件时是旧格式，返回1
+     */
+    private int readFormatVersion(File queueRoot) {
+        File versionFile = new File(queueRoot, VERSION_FILE);
+        if (!versionFile.exists()) {
+            return 1;
+        }
+        try {
+            return Integer.parseInt(new String(Files.readAllBytes(versionFile.toPath())).trim());
+        } catch (IOException | NumberFormatException e) {
+            log.error("Read consumequeue version of [topic: {}, queueId: {}] error", topic, queueId, e);
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * 写入当前的索引格式版本
+     * @param queueRoot
+     */
+    private void writeFormatVersion(File queueRoot) {
+        try {
+            Files.write(new File(queueRoot, VERSION_FILE).toPath(),
+                    String.valueOf(QUEUE_FORMAT_VERSION).getBytes(), StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE, StandardOpenOption.SYNC);
+        } catch (IOException e) {
+            log.error("Write consumequeue version of [topic: {}, queueId: {}] error", topic, queueId, e);
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * 将旧格式的索引文件升级为带tag哈希的格式，旧索引没有tag信息，填充为未知哈希
+     * 先写临时文件再替换，升级中断不会破坏原文件
+     * 文件名是起始位置，按新的文件大小重新命名
+     * 只对没有版本文件的目录调用，旧格式文件创建时就是完整长度，
+     * 长度不同的是上次升级中断前已经升级完成的文件
+     * @param file
+     * @return 升级后的文件
+     */
+    private File upgradeLegacyFile(File file) {
+        int itemNumber = persistentConfig.getMaxQueueItemNumber();
+        long legacySize = (long) LEGACY_QUEUE_UNIT * itemNumber;
+        if (file.length() != legacySize) {
+            return file;
+        }
+        long index = Long.parseLong(file.getName()) / legacySize;
+        File target = new File(file.getParent(),
+                BrokerUtil.makeFileName((int) index, persistentConfig.getMaxQueueSize()));
+        File temp = new File(file.getPath() + UPGRADE_SUFFIX);
+        int count = 0;
+        try {
+            try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+                 FileChannel out = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+                         StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                ByteBuffer legacy = ByteBuffer.allocate(LEGACY_QUEUE_UNIT * itemNumber);
+                while (legacy.hasRemaining() && in.read(legacy) >= 0) {
+                }
+                legacy.flip();
+                ByteBuffer upgraded = ByteBuffer.allocate(persistentConfig.getMaxQueueSize());
+                while (legacy.remaining() >= LEGACY_QUEUE_UNIT) {
+                    long offset = legacy.getLong();
+                    int size = legacy.getInt();
+                    if (offset == 0 && size == 0) {
+                        break;
+                    }
+                    upgraded.putLong(offset);
+                    upgraded.putInt(size);
+                    upgraded.putInt(BrokerUtil.UNKNOWN_TAG_HASH);
+                    count++;
+                }
+                upgraded.clear();
+                while (upgraded.hasRemaining()) {
+                    out.write(upgraded);
+                }
+                out.force(true);
+            }
+            Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            if (!target.equals(file)) {
+                Files.deleteIfExists(file.toPath());
+            }
+            log.info("Consumequeue [topic: {}, queueId: {}, name: {}] upgraded to {}, {} items",
+                    topic, queueId, file.getName(), target.getName(), count);
+            return target;
+        } catch (IOException e) {
+            log.error("Upgrade consumequeue file {} error", file.getName(), e);
+            throw new RuntimeException(e);
         }
     }
 
@@ -71,7 +231,8 @@ public class ConsumeQueue extends AbstractLinkedListOrganize implements GeneralS
     private void binarySearchLastCommit(MappedFile mappedFile) {
         ByteBuffer buffer = mappedFile.getWriteBuffer().slice();
         int cell = persistentConfig.getQueueUnit();
-        int l = 0, r = persistentConfig.getMaxQueueItemNumber();
+        // 文件可能只映射了一部分，映射之外没有写过
+        int l = 0, r = buffer.capacity() / cell;
         while (l < r) {
             int mid = l + r >> 1;
             int pos = mid * cell;
@@ -98,42 +259,283 @@ public class ConsumeQueue extends AbstractLinkedListOrganize implements GeneralS
         long offset = buffer.getLong();
         int size = buffer.getInt();
 
-        // 将当前文件的指针放在最后一个位置
-        int newPos = pos + cell;
+        // 将当前文件的指针放在最后一个位置，文件中没有索引，或者最后一条索引在崩溃时只写了一半，从这条开始写
+        int newPos = size == 0 ? pos : pos + cell;
         mappedFile.setWritePointer(newPos);
         mappedFile.setCommitPointer(newPos);
         mappedFile.setFlushPointer(newPos);
         log.info("Consumequeue [topic: {}, queueId: {}, name: {}], recovery from pos: {}",
                 topic, queueId, mappedFile.getFileName(), newPos);
         // 同时通知commitLog更新最大偏移
-        this.recoveryListener.onUpdateOffset(offset, size);
+        if (size > 0) {
+            this.recoveryListener.onUpdateOffset(offset, size);
+        }
+    }
+
+    /**
+     * 崩溃恢复时删除队列末尾指向commitLog有效数据之后的索引，只处理最后一个文件
+     * @param dirty 偏移是否在所在通道的有效数据之后
+     * @return 删除的索引数
+     */
+    public int truncateDirty(LongPredicate dirty) {
+        MappedFile mappedFile = getLastMappedFile();
+        if (mappedFile == null) {
+            return 0;
+        }
+        int queueUnit = persistentConfig.getQueueUnit();
+        int pos = mappedFile.getWrite();
+        while (pos >= queueUnit) {
+            Pair<Long, Integer> index = mappedFile.readSingleOffsetIndex(pos - queueUnit);
+            if (index == null || !dirty.test(index.getKey())) {
+                break;
+            }
+            pos -= queueUnit;
+        }
+        int removed = (mappedFile.getWrite() - pos) / queueUnit;
+        if (removed > 0) {
+            mappedFile.clearFrom(pos);
+            mappedFile.setWritePointer(pos);
+            mappedFile.setCommitPointer(pos);
+            mappedFile.setFlushPointer(pos);
+            log.info("Consumequeue [topic: {}, queueId: {}] truncate {} dirty items", topic, queueId, removed);
+        }
+        return removed;
+    }
+
+    /**
+     * 崩溃恢复时收集队列末尾已经转发的commitLog偏移，避免重复转发
+     * 从末尾向前找，连续回看一定数量都早于起始偏移后停止
+     * @param rescanned 偏移是否不早于所在通道重新转发的起始偏移
+     * @param offsets 结果
+     */
+    public void collectRecentOffsets(LongPredicate rescanned, Set<Long> offsets) {
+        int queueUnit = persistentConfig.getQueueUnit();
+        int older = 0;
+        MappedFile mappedFile = getLastMappedFile();
+        while (mappedFile != null && mappedFile != head) {
+            int pos = Math.min(mappedFile.getWrite(), persistentConfig.getMaxQueueSize()) - queueUnit;
+            for (; pos >= 0; pos -= queueUnit) {
+                Pair<Long, Integer> index = mappedFile.readSingleOffsetIndex(pos);
+                if (index == null) {
+                    continue;
+                }
+                if (rescanned.test(index.getKey())) {
+                    offsets.add(index.getKey());
+                    older = 0;
+                } else if (++older >= RECOVERY_LOOK_BACK) {
+                    return;
+                }
+            }
+            mappedFile = mappedFile.prev;
+        }
     }
 
     /**
      * 像当前队列写入消息
      * @param offset commitLog对应偏移
      * @param size 消息长度
+     * @param tagHash 消息tag的哈希
      * @return
      */
-    public PutMessageResponse updateQueueOffset(long offset, int size) {
+    public PutMessageResponse updateQueueOffset(long offset, int size, int tagHash) {
+        this.lastAccess = System.currentTimeMillis();
         MappedFile mappedFile = getLastMappedFile();
         if (mappedFile == null) {
-            log.info("{}, {}", offset, size);
             mappedFile = this.createListener.onRequireCreate(topic, queueId, this.nextIndex());
             log.info("Create queue file success, mapped file is {}", mappedFile);
         }
 
         // 写入消息
-        PutMessageResponse response = mappedFile.putOffsetIndex(offset, size);
-        log.info("update queueoffset result: {}", response);
+        PutMessageResponse response = mappedFile.putOffsetIndex(offset, size, tagHash);
         // 没有足够的空间，新建
         if (response.getResponseType() == StoreResponseType.NO_ENOUGH_SPACE) {
             mappedFile = this.createListener.onRequireCreate(topic, queueId, this.nextIndex());
-            response = mappedFile.putOffsetIndex(offset, size);
+            response = mappedFile.putOffsetIndex(offset, size, tagHash);
         }
         return response;
     }
 
+    /**
+     * 向当前队列写入消息，只返回写入的文件，转发线程使用，不创建响应对象
+     * @param offset commitLog对应偏移
+     * @param size 消息长度
+     * @param tagHash 消息tag的哈希
+     * @return 写入的文件，参数错误返回null
+     */
+    public MappedFile appendQueueOffset(long offset, int size, int tagHash) {
+        this.lastAccess = System.currentTimeMillis();
+        MappedFile mappedFile = getLastMappedFile();
+        if (mappedFile == null) {
+            mappedFile = this.createListener.onRequireCreate(topic, queueId, this.nextIndex());
+            log.info("Create queue file success, mapped file is {}", mappedFile);
+        }
+        int pos = mappedFile.appendOffsetIndex(offset, size, tagHash);
+        // 没有足够的空间，新建
+        if (pos == MappedFile.NO_ENOUGH_ROOM) {
+            mappedFile = this.createListener.onRequireCreate(topic, queueId, this.nextIndex());
+            pos = mappedFile.appendOffsetIndex(offset, size, tagHash);
+        }
+        return pos < 0 ? null : mappedFile;
+    }
+
+    /**
+     * 根据存储时间查找队列偏移，先按每个文件第一条消息的时间找到文件，再在文件内二分
+     * @param timestamp 时间戳
+     * @param reader 从commitLog读取存储时间
+     * @return 第一条存储时间不早于timestamp的消息偏移，都早于则返回队列末尾
+     */
+    public long searchOffsetByTime(long timestamp, StoreTimestampReader reader) {
+        MappedFile firstMappedFile = getFirstMappedFile();
+        MappedFile lastMappedFile = getLastMappedFile();
+        if (firstMappedFile == null) {
+            return 0;
+        }
+        int maxQueueItemNumber = persistentConfig.getMaxQueueItemNumber();
+        // 找到最后一个第一条消息早于timestamp的文件
+        int l = firstMappedFile.getIndex(), r = lastMappedFile.getIndex();
+        int target = -1;
+        while (l <= r) {
+            int mid = l + r >>> 1;
+            if (this.firstTimestamp(mid, reader) < timestamp) {
+                target = mid;
+                l = mid + 1;
+            } else {
+                r = mid - 1;
+            }
+        }
+        if (target == -1) {
+            return (long) firstMappedFile.getIndex() * maxQueueItemNumber;
+        }
+        MappedFile mappedFile = getMappedFileByIndex(target);
+        int queueUnit = persistentConfig.getQueueUnit();
+        int count = Math.min(mappedFile.getWrite() / queueUnit, maxQueueItemNumber);
+        // 文件内找第一条不早于timestamp的消息
+        l = 0;
+        r = count;
+        while (l < r) {
+            int mid = l + r >>> 1;
+            if (this.entryTimestamp(mappedFile, mid, reader) < timestamp) {
+                l = mid + 1;
+            } else {
+                r = mid;
+            }
+        }
+        // 文件内的消息都早于timestamp，从下一个文件开头开始
+        if (l == count && mappedFile != lastMappedFile) {
+            return (long) (target + 1) * maxQueueItemNumber;
+        }
+        return (long) target * maxQueueItemNumber + l;
+    }
+
+    private long firstTimestamp(int index, StoreTimestampReader reader) {
+        Long cached = firstTimestampTable.get(index);
+        if (cached != null) {
+            return cached;
+        }
+        MappedFile mappedFile = getMappedFileByIndex(index);
+        if (mappedFile == null) {
+            return -1;
+        }
+        long timestamp = this.entryTimestamp(mappedFile, 0, reader);
+        if (timestamp >= 0) {
+            firstTimestampTable.put(index, timestamp);
+        }
+        return timestamp;
+    }
+
+    private long entryTimestamp(MappedFile mappedFile, int item, StoreTimestampReader reader) {
+        Pair<Long, Integer> index = mappedFile.readSingleOffsetIndex(item * persistentConfig.getQueueUnit());
+        if (index == null) {
+            return -1;
+        }
+        return reader.readStoreTimestamp(index.getKey());
+    }
+
+    /**
+     * 删除索引全部指向已删除commitLog的文件，至少保留最后一个文件
+     * @param removed 偏移是否早于所在通道保留的最小偏移
+     * @return 被摘除的文件，由调用者延迟销毁
+     */
+    public List<MappedFile> deleteExpiredFiles(LongPredicate removed) {
+        List<MappedFile> expired = new ArrayList<>();
+        int queueUnit = persistentConfig.getQueueUnit();
+        MappedFile first;
+        while ((first = getFirstMappedFile()) != null && first != getLastMappedFile()) {
+            int count = Math.min(first.getWrite() / queueUnit, persistentConfig.getMaxQueueItemNumber());
+            Pair<Long, Integer> last = count == 0 ? null : first.readSingleOffsetIndex((count - 1) * queueUnit);
+            if (last != null && !removed.test(last.getKey())) {
+                break;
+            }
+            if (!this.removeFirst(first)) {
+                break;
+            }
+            this.firstTimestampTable.remove(first.getIndex());
+            expired.add(first);
+            log.info("Consumequeue [topic: {}, queueId: {}, name: {}] expired", topic, queueId, first.getFileName());
+        }
+        this.correctMinOffset(removed);
+        return expired;
+    }
+
+    /**
+     * 在第一个文件中二分查找第一条指向保留的commitLog的索引，普通队列只写入一个通道，偏移单调递增
+     * @param removed
+     */
+    private void correctMinOffset(LongPredicate removed) {
+        MappedFile first = getFirstMappedFile();
+        if (first == null) {
+            return;
+        }
+        int queueUnit = persistentConfig.getQueueUnit();
+        int l = 0, r = Math.min(first.getWrite() / queueUnit, persistentConfig.getMaxQueueItemNumber());
+        while (l < r) {
+            int mid = l + r >>> 1;
+            Pair<Long, Integer> index = first.readSingleOffsetIndex(mid * queueUnit);
+            if (index != null && removed.test(index.getKey())) {
+                l = mid + 1;
+            } else {
+                r = mid;
+            }
+        }
+        long offset = (long) first.getIndex() * persistentConfig.getMaxQueueItemNumber() + l;
+        if (offset > this.minOffset) {
+            this.minOffset = offset;
+        }
+    }
+
+    public long getMinOffset() {
+        return minOffset;
+    }
+
+    /**
+     * 读取队列时记录访问时间
+     */
+    public void markAccess() {
+        this.lastAccess = System.currentTimeMillis();
+    }
+
+    public long getLastAccess() {
+        return lastAccess;
+    }
+
+    /**
+     * 解除队列所有文件的映射并关闭文件，之后的读写重新打开
+     * @return 摘除的映射，由调用者延迟释放
+     */
+    public List<MappedByteBuffer> closeIdle() {
+        List<MappedByteBuffer> released = new ArrayList<>();
+        for (MappedFile cur = head.next; cur != tail; cur = cur.next) {
+            MappedByteBuffer buffer = cur.releaseIdle();
+            if (buffer != null) {
+                released.add(buffer);
+            }
+        }
+        if (!released.isEmpty()) {
+            log.info("Consumequeue [topic: {}, queueId: {}] idle, release {} mappings", topic, queueId, released.size());
+        }
+        return released;
+    }
+
     public MappedFile getLastMappedFile() {
         MappedFile mappedFile = tail.prev;
         if (mappedFile == head) {
@@ -148,14 +550,14 @@ public class ConsumeQueue extends AbstractLinkedListOrganize implements GeneralS
             return 0;
         }
         return lastMappedFile.getWrite() / persistentConfig.getQueueUnit()
-                + (long) (this.mappedTable.size() - 3) * persistentConfig.getMaxQueueItemNumber();
+                + (long) lastMappedFile.getIndex() * persistentConfig.getMaxQueueItemNumber();
     }
     public long currentTotalWritePos() {
         MappedFile lastMappedFile = getLastMappedFile();
         if (lastMappedFile == null) {
             return 0;
         }
-        return lastMappedFile.getWrite() + (long) (this.mappedTable.size() - 3) * persistentConfig.getMaxQueueSize();
+        return lastMappedFile.getWrite() + (long) lastMappedFile.getIndex() * persistentConfig.getMaxQueueSize();
     }
 
     public long currentTotalFlushPos() {
@@ -163,7 +565,7 @@ public class ConsumeQueue extends AbstractLinkedListOrganize implements GeneralS
         if (lastMappedFile == null) {
             return 0;
         }
-        return lastMappedFile.getFlush() + (long) (this.mappedTable.size() - 3) * persistentConfig.getMaxQueueSize();
+        return lastMappedFile.getFlush() + (long) lastMappedFile.getIndex() * persistentConfig.getMaxQueueSize();
     }
 
     public long currentTotalMessages() {
@@ -172,7 +574,47 @@ public class ConsumeQueue extends AbstractLinkedListOrganize implements GeneralS
             return 0;
         }
         return lastMappedFile.getWrite() / persistentConfig.getQueueUnit()
-                + (long) (this.mappedTable.size() - 3) * persistentConfig.getMaxQueueItemNumber();
+                + (long) lastMappedFile.getIndex() * persistentConfig.getMaxQueueItemNumber();
+    }
+
+    /**
+     * 队列的文件数
+     * @return
+     */
+    public int fileCount() {
+        int count = 0;
+        for (MappedFile cur = head.next; cur != tail; cur = cur.next) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * 已经映射的文件数，延迟映射的文件第一次读取后才计入
+     * @return
+     */
+    public int mappedFileCount() {
+        int count = 0;
+        for (MappedFile cur = head.next; cur != tail; cur = cur.next) {
+            if (cur.isMapped()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 已经映射的总大小
+     * @return
+     */
+    public long mappedBytes() {
+        long bytes = 0;
+        for (MappedFile cur = head.next; cur != tail; cur = cur.next) {
+            if (cur.isMapped()) {
+                bytes += cur.getMappedSize();
+            }
+        }
+        return bytes;
     }
 
     public long lastModified() {
@@ -182,6 +624,24 @@ public class ConsumeQueue extends AbstractLinkedListOrganize implements GeneralS
         }
         return lastMappedFile.lastModified();
     }
+    /**
+     * 加入链表的文件都由空闲队列服务延迟释放扩大映射后替换掉的映射
+     * @param mappedFile
+     */
+    @Override
+    protected void insertBeforeTail(MappedFile mappedFile) {
+        mappedFile.setIdleQueueService(this.idleQueueService);
+        super.insertBeforeTail(mappedFile);
+    }
+
+    /**
+     * 设置空闲队列服务，需要在加载文件之前调用
+     * @param idleQueueService
+     */
+    public void setIdleQueueService(IdleQueueService idleQueueService) {
+        this.idleQueueService = idleQueueService;
+    }
+
     public boolean appendMappedFile(MappedFile mappedFile) {
         if (mappedFile == null) {
             return false;
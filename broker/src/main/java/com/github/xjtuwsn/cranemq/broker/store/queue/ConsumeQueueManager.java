@@ -11,6 +11,7 @@ import com.github.xjtuwsn.cranemq.broker.store.cmtlog.RecoveryListener;
 import com.github.xjtuwsn.cranemq.broker.store.comm.AsyncRequest;
 import com.github.xjtuwsn.cranemq.broker.store.comm.PutMessageResponse;
 import com.github.xjtuwsn.cranemq.broker.store.comm.StoreRequestType;
+import com.github.xjtuwsn.cranemq.broker.store.flush.DirtyFileSet;
 import com.github.xjtuwsn.cranemq.common.constant.MQConstant;
 import com.github.xjtuwsn.cranemq.common.entity.QueueInfo;
 import com.github.xjtuwsn.cranemq.common.route.QueueData;
@@ -22,10 +23,10 @@ import org.slf4j.LoggerFactory;
 import java.io.File;
 import java.text.SimpleDateFormat;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongPredicate;
 
 /**
  * @project:dduomq
@@ -45,10 +46,18 @@ public class ConsumeQueueManager implements GeneralStoreService {
     private RecoveryListener recoveryListener;
 
     private DelayMessageCommitListener delayMessageCommitListener;
+
+    // 启动加载进度
+    private QueueLoadProgress loadProgress = new QueueLoadProgress();
+    // 所有队列共用的待刷盘文件集合
+    private DirtyFileSet dirtyFiles = new DirtyFileSet("consumequeue");
+    // 关闭空闲队列、延迟释放摘除和替换掉的映射的线程
+    private IdleQueueService idleQueueService;
     public ConsumeQueueManager(BrokerController brokerController, PersistentConfig persistentConfig) {
         this.brokerController = brokerController;
         this.persistentConfig = persistentConfig;
         this.createQueueService = new CreateQueueService();
+        this.idleQueueService = new IdleQueueService(persistentConfig, this);
     }
     @Override
     public void start() {
@@ -57,10 +66,7 @@ public class ConsumeQueueManager implements GeneralStoreService {
             rootDir.mkdir();
         }
         File[] topicFiles = rootDir.listFiles();
-        for (File topicDir : topicFiles) {
-            loadTopicQueueFile(topicDir);
-
-        }
+        this.parallelLoad(topicFiles);
         // 创建默认队列和延时队列
         if (!queueTable.containsKey(MQConstant.DEFAULT_TOPIC_NAME)) {
             this.createQueue(MQConstant.DEFAULT_TOPIC_NAME, 4, 4);
@@ -69,35 +75,99 @@ public class ConsumeQueueManager implements GeneralStoreService {
             this.createQueue(MQConstant.DELAY_TOPIC_NAME, 1, 1);
         }
         this.createQueueService.start();
+        this.idleQueueService.start();
         log.info("ConsumeQueue Manager start successfylly");
     }
 
+    /**
+     * 每个主题一个任务，在fork-join线程池中并行加载
+     * @param topicFiles
+     */
+    private void parallelLoad(File[] topicFiles) {
+        loadProgress.begin(topicFiles.length);
+        AtomicInteger threadIndex = new AtomicInteger(0);
+        ForkJoinPool pool = new ForkJoinPool(Math.max(1, persistentConfig.getQueueLoadParallelism()),
+                p -> {
+                    ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+                    thread.setName("QueueLoadThread-" + threadIndex.getAndIncrement());
+                    return thread;
+                }, null, false);
+        try {
+            List<Callable<Void>> tasks = new ArrayList<>(topicFiles.length);
+            for (File topicDir : topicFiles) {
+                tasks.add(() -> {
+                    loadTopicQueueFile(topicDir);
+                    loadProgress.topicLoaded();
+                    return null;
+                });
+            }
+            for (Future<Void> future : pool.invokeAll(tasks)) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    log.error("Load consume queue error", e.getCause());
+                    throw new RuntimeException(e.getCause());
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+        loadProgress.finish();
+        log.info("Finish load consume queue, {}", loadProgress);
+    }
+
     /**
      * 将commitlog信息写入队列
      * @param offset 原日志偏移
      * @param topic 主题
      * @param queueId
-     * @param size
+     * @param delay 延时时间
+     * @param tag 消息tag，哈希写入索引
      * @param delay 延时时间
      * @return
      */
-    public PutMessageResponse updateOffset(long offset, String topic, int queueId, int size, long delay) {
+    public PutMessageResponse updateOffset(long offset, String topic, int queueId, int size, long delay, String tag) {
+        int tagHash = BrokerUtil.tagHashCode(tag);
         // 如果不是延时消息，直接调用对应队列写入
         if (delay == 0) {
             ConsumeQueue queue = queueTable.get(topic).get(queueId);
-            log.info("Select consume queue {}", queue);
-            return queue.updateQueueOffset(offset, size);
+            return queue.updateQueueOffset(offset, size, tagHash);
         }
         // 延时消息，则将主题改为延时队列，写入到延时队列中，并且通知监听器延时消息存储完毕
         String newTopic = MQConstant.DELAY_TOPIC_NAME;
         ConsumeQueue queue = queueTable.get(newTopic).get(0);
-        PutMessageResponse response = queue.updateQueueOffset(offset, size);
+        PutMessageResponse response;
+        // 多个commitLog通道的写线程可能同时写延时队列
+        synchronized (queue) {
+            response = queue.updateQueueOffset(offset, size, tagHash);
+        }
         long delayQueueOffset = response.getQueueOffset();
         this.delayMessageCommitListener.onCommit(offset, delayQueueOffset, topic, queueId, delay);
         return response;
 
     }
 
+    /**
+     * 转发已提交的消息，普通消息直接写入队列，不创建响应对象，延时消息同updateOffset
+     * @param offset 原日志偏移
+     * @param topic 主题
+     * @param queueId
+     * @param size
+     * @param delay 延时时间
+     * @param tag 消息tag
+     * @return 写入的队列文件，写入失败返回null
+     */
+    public MappedFile dispatchOffset(long offset, String topic, int queueId, int size, long delay, String tag) {
+        if (delay != 0) {
+            PutMessageResponse response = this.updateOffset(offset, topic, queueId, size, delay, tag);
+            return response == null ? null : response.getMappedFile();
+        }
+        ConsumeQueue queue = queueTable.get(topic).get(queueId);
+        return queue.appendQueueOffset(offset, size, BrokerUtil.tagHashCode(tag));
+    }
+
     /**
      * 从磁盘加载队列
      * @param topicDir
@@ -111,6 +181,8 @@ public class ConsumeQueueManager implements GeneralStoreService {
             if (StrUtil.isNumeric(queueIdStr)) {
                 int queueId = Integer.parseInt(queueIdStr);
                 ConsumeQueue consumeQueue = new ConsumeQueue(queueId, topic, this.persistentConfig);
+                consumeQueue.setDirtyFileSet(this.dirtyFiles);
+                consumeQueue.setIdleQueueService(this.idleQueueService);
                 queueConcurrentHashMap.put(queueId, consumeQueue);
                 // 为每个队列注册监听器
                 consumeQueue.registerCreateListener(new CreateRequestListener() {
@@ -121,6 +193,7 @@ public class ConsumeQueueManager implements GeneralStoreService {
                 });
                 consumeQueue.registerUpdateOffsetListener(this.recoveryListener);
                 consumeQueue.start();
+                loadProgress.queueLoaded(consumeQueue.fileCount());
             }
         }
     }
@@ -186,6 +259,94 @@ public class ConsumeQueueManager implements GeneralStoreService {
         }
         return consumeQueue.currentLastOffset();
     }
+    /**
+     * 队列中最早的有效偏移
+     * @param topic
+     * @param queueId
+     * @return 队列不存在返回-1
+     */
+    public long getQueueMinOffset(String topic, int queueId) {
+        ConsumeQueue consumeQueue = getConsumeQueue(topic, queueId);
+        if (consumeQueue == null) {
+            return -1;
+        }
+        return consumeQueue.getMinOffset();
+    }
+
+    /**
+     * 删除所有队列中索引全部指向已删除commitLog的文件
+     * @param removed 偏移是否早于所在通道保留的最小偏移
+     * @return 被摘除的文件，由调用者延迟销毁
+     */
+    public List<MappedFile> deleteExpiredFiles(LongPredicate removed) {
+        List<MappedFile> expired = new ArrayList<>();
+        for (ConcurrentHashMap<Integer, ConsumeQueue> queueMap : queueTable.values()) {
+            for (ConsumeQueue queue : queueMap.values()) {
+                expired.addAll(queue.deleteExpiredFiles(removed));
+            }
+        }
+        return expired;
+    }
+
+    /**
+     * 崩溃恢复时删除所有队列末尾指向commitLog有效数据之后的索引
+     * @param dirty 偏移是否在所在通道的有效数据之后
+     */
+    public void truncateDirty(LongPredicate dirty) {
+        for (ConcurrentHashMap<Integer, ConsumeQueue> queueMap : queueTable.values()) {
+            for (ConsumeQueue queue : queueMap.values()) {
+                queue.truncateDirty(dirty);
+            }
+        }
+    }
+
+    /**
+     * 对所有队列中有数据没刷盘的文件刷盘
+     */
+    public void flush() {
+        dirtyFiles.flush();
+    }
+
+    public DirtyFileSet getDirtyFiles() {
+        return dirtyFiles;
+    }
+
+    public QueueLoadProgress getLoadProgress() {
+        return loadProgress;
+    }
+
+    /**
+     * 所有队列已经映射的文件数
+     * @return
+     */
+    public int mappedFileCount() {
+        int count = 0;
+        for (ConcurrentHashMap<Integer, ConsumeQueue> queueMap : queueTable.values()) {
+            for (ConsumeQueue queue : queueMap.values()) {
+                count += queue.mappedFileCount();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 已经映射的文件数和映射大小，以及空闲关闭的队列数和释放的映射数
+     * @return
+     */
+    public Map<String, Long> mappingMetrics() {
+        Map<String, Long> map = this.idleQueueService.metrics();
+        long mapped = 0, mappedBytes = 0;
+        for (ConcurrentHashMap<Integer, ConsumeQueue> queueMap : queueTable.values()) {
+            for (ConsumeQueue queue : queueMap.values()) {
+                mapped += queue.mappedFileCount();
+                mappedBytes += queue.mappedBytes();
+            }
+        }
+        map.put("mapped", mapped);
+        map.put("mappedBytes", mappedBytes);
+        return map;
+    }
+
     public Map<String, QueueData> getAllQueueData() {
         Map<String, QueueData> map = new HashMap<>();
         for (Map.Entry<String, ConcurrentHashMap<Integer, ConsumeQueue>> entry : queueTable.entrySet()) {
@@ -222,6 +383,7 @@ public class ConsumeQueueManager implements GeneralStoreService {
     }
     @Override
     public void close() {
+        this.idleQueueService.setStop();
         for (Map<Integer, ConsumeQueue> consumeQueueMap : queueTable.values()) {
             for (ConsumeQueue queue : consumeQueueMap.values()) {
                 queue.close();
@@ -260,8 +422,9 @@ public class ConsumeQueueManager implements GeneralStoreService {
                 }
                 String fullPath = BrokerUtil.getQueuePath(persistentConfig.getConsumerqueuePath(), request.getTopic(),
                         request.getQueueId(), request.getFileName());
+                // 新文件从较小的映射开始，写不下时再扩大
                 MappedFile mappedFile = new MappedFile(request.getIndex(), request.getFileSize(), request.getFileName(),
-                        fullPath, persistentConfig);
+                        fullPath, persistentConfig, false, persistentConfig.getInitialQueueFileSize());
                 ConsumeQueue consumeQueue = queueTable.get(request.getTopic()).get(request.getQueueId());
                 if (consumeQueue.appendMappedFile(mappedFile)) {
                     if (!lastCreateOffset.containsKey(request.getTopic())) {
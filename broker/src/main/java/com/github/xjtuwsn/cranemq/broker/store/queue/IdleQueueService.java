@@ -0,0 +1,165 @@
+package com.github.xjtuwsn.cranemq.broker.store.queue;
+
+import com.github.xjtuwsn.cranemq.broker.store.MappedFile;
+import com.github.xjtuwsn.cranemq.broker.store.PersistentConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @project:dduomq
+ * @file:IdleQueueService
+ * @author:dduo
+ * @create:2023/11/09-14:20
+ */
+
+/**
+ * 定期检查消费队列，长时间没有读写的队列解除所有文件的映射并关闭文件，下一次读写时重新打开
+ * 主题很多但大部分空闲时，映射数和打开的文件数只和活跃队列数有关
+ * 读请求不加锁，拿到的buffer可能已经被摘除，摘除的映射延迟一段时间后再释放，
+ * 队列文件扩大映射后被替换的映射也交给这里延迟释放，不关闭空闲队列时仍然负责释放
+ * @author dduo
+ */
+public class IdleQueueService extends Thread {
+    private static final Logger log = LoggerFactory.getLogger(IdleQueueService.class);
+
+    private PersistentConfig persistentConfig;
+    private ConsumeQueueManager consumeQueueManager;
+    // 已经摘除等待释放的映射
+    private ConcurrentLinkedQueue<ReleasedRegion> releasedRegions = new ConcurrentLinkedQueue<>();
+
+    // 关闭的队列数、空闲关闭释放的映射数和扩大映射后替换掉的映射数
+    private LongAdder closedQueues = new LongAdder();
+    private LongAdder releasedMappings = new LongAdder();
+    private LongAdder supersededMappings = new LongAdder();
+
+    private volatile boolean isStop = false;
+
+    public IdleQueueService(PersistentConfig persistentConfig, ConsumeQueueManager consumeQueueManager) {
+        super("IdleQueueService");
+        this.persistentConfig = persistentConfig;
+        this.consumeQueueManager = consumeQueueManager;
+        this.setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+        while (!isStop) {
+            try {
+                Thread.sleep(persistentConfig.getQueueIdleCheckInterval());
+            } catch (InterruptedException e) {
+                if (!isStop) {
+                    log.warn("IdleQueueService has been Interrupted");
+                }
+            }
+            if (isStop) {
+                break;
+            }
+            try {
+                if (persistentConfig.getQueueIdleCloseTime() > 0) {
+                    this.closeIdleQueues();
+                }
+                this.releaseExpiredRegions(false);
+            } catch (Throwable t) {
+                log.error("Close idle queue error", t);
+            }
+        }
+        log.info("IdleQueueService has stopped");
+    }
+
+    /**
+     * 关闭超过空闲时间没有读写的队列
+     */
+    private void closeIdleQueues() {
+        long now = System.currentTimeMillis();
+        long idleTime = persistentConfig.getQueueIdleCloseTime();
+        long deadline = now + persistentConfig.getUnmapDelay();
+        Iterator<ConcurrentHashMap<Integer, ConsumeQueue>> iterator = consumeQueueManager.iterator();
+        while (iterator.hasNext()) {
+            for (ConsumeQueue queue : iterator.next().values()) {
+                if (now - queue.getLastAccess() < idleTime) {
+                    continue;
+                }
+                List<MappedByteBuffer> released = queue.closeIdle();
+                if (released.isEmpty()) {
+                    continue;
+                }
+                for (MappedByteBuffer buffer : released) {
+                    releasedRegions.offer(new ReleasedRegion(buffer, deadline));
+                }
+                closedQueues.increment();
+                releasedMappings.add(released.size());
+            }
+        }
+    }
+
+    /**
+     * 扩大映射后替换掉的原映射，正在读的请求可能还在使用，延迟释放
+     * @param buffer
+     */
+    public void deferRelease(ByteBuffer buffer) {
+        releasedRegions.offer(new ReleasedRegion(buffer,
+                System.currentTimeMillis() + persistentConfig.getUnmapDelay()));
+        supersededMappings.increment();
+    }
+
+    /**
+     * 释放到期的映射
+     * @param force 关闭时不再等待，直接释放
+     */
+    private void releaseExpiredRegions(boolean force) {
+        long now = System.currentTimeMillis();
+        ReleasedRegion region;
+        while ((region = releasedRegions.peek()) != null) {
+            if (!force && region.deadline > now) {
+                break;
+            }
+            releasedRegions.poll();
+            MappedFile.unmap(region.buffer);
+        }
+    }
+
+    /**
+     * 关闭的队列数、释放的映射数、替换掉的映射数和等待释放的映射数
+     * @return
+     */
+    public Map<String, Long> metrics() {
+        Map<String, Long> map = new LinkedHashMap<>();
+        map.put("closedQueues", closedQueues.sum());
+        map.put("releasedMappings", releasedMappings.sum());
+        map.put("supersededMappings", supersededMappings.sum());
+        map.put("pendingReleased", (long) releasedRegions.size());
+        return map;
+    }
+
+    public void setStop() {
+        this.isStop = true;
+        this.interrupt();
+        try {
+            this.join(3000);
+        } catch (InterruptedException e) {
+            log.warn("Wait for idle queue service interrupted");
+        }
+        // 此时已经没有读请求，释放剩余的映射
+        this.releaseExpiredRegions(true);
+    }
+
+    static class ReleasedRegion {
+        private final ByteBuffer buffer;
+        private final long deadline;
+
+        ReleasedRegion(ByteBuffer buffer, long deadline) {
+            this.buffer = buffer;
+            this.deadline = deadline;
+        }
+    }
+}
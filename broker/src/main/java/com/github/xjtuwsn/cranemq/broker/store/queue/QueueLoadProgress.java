@@ -0,0 +1,87 @@
+package com.github.xjtuwsn.cranemq.broker.store.queue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @project:dduomq
+ * @file:QueueLoadProgress
+ * @author:dduo
+ * @create:2023/10/31-10:15
+ */
+
+/**
+ * 启动时消费队列的加载进度，加载线程更新，web和日志读取
+ * @author dduo
+ */
+public class QueueLoadProgress {
+    // 需要加载的主题数
+    private volatile int totalTopics = 0;
+    // 已经加载的主题数
+    private final AtomicInteger loadedTopics = new AtomicInteger(0);
+    // 已经加载的队列数
+    private final AtomicInteger loadedQueues = new AtomicInteger(0);
+    // 已经加载的文件数，包括还没映射的文件
+    private final AtomicInteger loadedFiles = new AtomicInteger(0);
+    private volatile long startTime = 0;
+    private volatile long endTime = 0;
+
+    public void begin(int totalTopics) {
+        this.totalTopics = totalTopics;
+        this.startTime = System.currentTimeMillis();
+    }
+
+    public void topicLoaded() {
+        this.loadedTopics.incrementAndGet();
+    }
+
+    public void queueLoaded(int files) {
+        this.loadedQueues.incrementAndGet();
+        this.loadedFiles.addAndGet(files);
+    }
+
+    public void finish() {
+        this.endTime = System.currentTimeMillis();
+    }
+
+    public boolean isFinished() {
+        return endTime != 0;
+    }
+
+    /**
+     * 加载耗时，还没结束时为到现在的耗时
+     * @return 毫秒
+     */
+    public long getElapsed() {
+        if (startTime == 0) {
+            return 0;
+        }
+        return (endTime != 0 ? endTime : System.currentTimeMillis()) - startTime;
+    }
+
+    public int getTotalTopics() {
+        return totalTopics;
+    }
+
+    public int getLoadedTopics() {
+        return loadedTopics.get();
+    }
+
+    public int getLoadedQueues() {
+        return loadedQueues.get();
+    }
+
+    public int getLoadedFiles() {
+        return loadedFiles.get();
+    }
+
+    @Override
+    public String toString() {
+        return "QueueLoadProgress{" +
+                "topics=" + loadedTopics.get() + "/" + totalTopics +
+                ", queues=" + loadedQueues.get() +
+                ", files=" + loadedFiles.get() +
+                ", elapsed=" + getElapsed() + "ms" +
+                ", finished=" + isFinished() +
+                '}';
+    }
+}
@@ -0,0 +1,162 @@
+package com.github.xjtuwsn.cranemq.broker.store.read;
+
+import com.github.xjtuwsn.cranemq.broker.store.PersistentConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @project:dduomq
+ * @file:ColdReadService
+ * @author:dduo
+ * @create:2023/11/07-15:20
+ */
+
+/**
+ * 区分热读和冷读，读取位置离commitLog写入位置较近的是热读，照常读映射内存
+ * 离得较远的是追赶旧数据的冷读，通过FileChannel按位置读到读线程复用的buffer中，不映射旧文件，
+ * 同时限制并发数和单次消息数，读完建议消费者延迟下一次拉取，减少对实时消费者和写入的影响
+ * @author dduo
+ */
+public class ColdReadService {
+    private static final Logger log = LoggerFactory.getLogger(ColdReadService.class);
+    // 读线程保留的buffer上限，更大的读取临时分配，用完丢弃
+    private static final int MAX_POOLED_SIZE = 4 * 1024 * 1024;
+    private static final int INITIAL_POOLED_SIZE = 64 * 1024;
+
+    // 超过该距离按冷读处理
+    private final long coldDistance;
+    private final int batchLength;
+    private final long backoffMillis;
+    private final Semaphore permits;
+    // 每个读线程一个buffer，每次冷读从头使用
+    private final ThreadLocal<ReadArena> arenas = ThreadLocal.withInitial(ReadArena::new);
+
+    private final LongAdder coldReads = new LongAdder();
+    private final LongAdder throttled = new LongAdder();
+
+    public ColdReadService(PersistentConfig persistentConfig) {
+        this.coldDistance = persistentConfig.getColdReadDistance() > 0 ? persistentConfig.getColdReadDistance()
+                : residentEstimate(persistentConfig.getHotReadMemoryRatio());
+        this.batchLength = persistentConfig.getColdReadBatchLength();
+        this.backoffMillis = persistentConfig.getColdReadBackoffMillis();
+        this.permits = new Semaphore(persistentConfig.getMaxColdReadConcurrency());
+        log.info("Cold read distance {} bytes, concurrency {}, batch {}", coldDistance,
+                persistentConfig.getMaxColdReadConcurrency(), batchLength);
+    }
+
+    /**
+     * 按物理内存的比例估算页缓存能容纳多少最近写入的数据，拿不到物理内存时不区分冷热
+     * @param ratio 百分比
+     * @return
+     */
+    private static long residentEstimate(int ratio) {
+        OperatingSystemMXBean bean = ManagementFactory.getOperatingSystemMXBean();
+        if (bean instanceof com.sun.management.OperatingSystemMXBean) {
+            long total = ((com.sun.management.OperatingSystemMXBean) bean).getTotalPhysicalMemorySize();
+            if (total > 0) {
+                return total / 100 * ratio;
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * 是否是冷读
+     * @param commitLogOffset 要读的第一条消息在commitLog中的偏移
+     * @param maxOffset 所在通道当前的写入位置
+     * @return
+     */
+    public boolean isCold(long commitLogOffset, long maxOffset) {
+        return maxOffset - commitLogOffset > coldDistance;
+    }
+
+    /**
+     * 获取冷读许可，达到并发上限时返回false，本次不读
+     * @return
+     */
+    public boolean tryAcquire() {
+        if (permits.tryAcquire()) {
+            coldReads.increment();
+            return true;
+        }
+        throttled.increment();
+        return false;
+    }
+
+    public void release() {
+        permits.release();
+    }
+
+    /**
+     * 冷读开始，重复使用读线程的buffer，之前分配出去的数据随之失效
+     * @return
+     */
+    public ReadArena arena() {
+        ReadArena arena = arenas.get();
+        arena.reset();
+        return arena;
+    }
+
+    public int getBatchLength() {
+        return batchLength;
+    }
+
+    public long getBackoffMillis() {
+        return backoffMillis;
+    }
+
+    public long getColdDistance() {
+        return coldDistance;
+    }
+
+    /**
+     * 冷读次数、因并发上限没有读的次数
+     * @return
+     */
+    public Map<String, Long> metrics() {
+        Map<String, Long> map = new LinkedHashMap<>();
+        map.put("coldReads", coldReads.sum());
+        map.put("throttled", throttled.sum());
+        map.put("distance", coldDistance);
+        return map;
+    }
+
+    /**
+     * 读线程复用的堆内buffer，按顺序切分给一次冷读中的每条记录，不够时换更大的buffer
+     */
+    public static class ReadArena {
+        private ByteBuffer buffer = ByteBuffer.allocate(INITIAL_POOLED_SIZE);
+
+        private void reset() {
+            buffer.clear();
+        }
+
+        /**
+         * 分配一段buffer，返回的buffer剩余空间就是size
+         * @param size
+         * @return
+         */
+        public ByteBuffer allocate(int size) {
+            if (buffer.remaining() < size) {
+                int capacity = Math.max(buffer.capacity() * 2, size);
+                if (capacity > MAX_POOLED_SIZE) {
+                    return ByteBuffer.allocate(size);
+                }
+                // 之前分配出去的数据还在旧buffer上，不用复制
+                buffer = ByteBuffer.allocate(capacity);
+            }
+            ByteBuffer slice = buffer.slice();
+            slice.limit(size);
+            buffer.position(buffer.position() + size);
+            return slice;
+        }
+    }
+}
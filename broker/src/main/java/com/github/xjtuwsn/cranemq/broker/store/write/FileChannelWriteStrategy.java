@@ -0,0 +1,115 @@
+package com.github.xjtuwsn.cranemq.broker.store.write;
+
+import com.github.xjtuwsn.cranemq.broker.store.MappedFile;
+import com.github.xjtuwsn.cranemq.broker.store.pool.WriteBufferPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * @project:dduomq
+ * @file:FileChannelWriteStrategy
+ * @author:dduo
+ * @create:2023/11/08-11:05
+ */
+
+/**
+ * 先写池中的buffer，每批写完后在写线程中用FileChannel按位置写入文件，写指针移动时数据已经在页缓存中，不需要提交
+ * 写入不经过映射内存，不会因为缺页阻塞写线程；buffer写不下时先写出已有的数据再从头复用，
+ * 空buffer都写不下的大消息，或者借不到buffer时直接写映射
+ * @author dduo
+ */
+public class FileChannelWriteStrategy implements WriteStrategy {
+    private static final Logger log = LoggerFactory.getLogger(FileChannelWriteStrategy.class);
+
+    private final MappedFile mappedFile;
+    private final WriteBufferPool bufferPool;
+    // 借用的buffer，只由写线程使用
+    private ByteBuffer buffer;
+
+    public FileChannelWriteStrategy(MappedFile mappedFile, WriteBufferPool bufferPool) {
+        this.mappedFile = mappedFile;
+        this.bufferPool = bufferPool;
+    }
+
+    @Override
+    public WriteSegment begin(int pos) {
+        if (this.buffer == null) {
+            this.buffer = this.bufferPool.borrowBuffer();
+        }
+        if (this.buffer == null) {
+            return this.mappedSegment(pos);
+        }
+        this.buffer.clear();
+        return new WriteSegment(this.buffer, pos, pos, true);
+    }
+
+    @Override
+    public WriteSegment next(WriteSegment current, int pos, boolean chunk) {
+        this.complete(current, pos);
+        if (!chunk || this.buffer == null) {
+            return this.mappedSegment(pos);
+        }
+        this.buffer.clear();
+        return new WriteSegment(this.buffer, pos, pos, true);
+    }
+
+    @Override
+    public void complete(WriteSegment current, int pos) {
+        if (!current.isPooled() || pos == current.getStart()) {
+            return;
+        }
+        ByteBuffer data = current.getBuffer().duplicate();
+        data.limit(pos - current.getBase());
+        data.position(current.getStart() - current.getBase());
+        try {
+            FileChannel fileChannel = mappedFile.getFileChannel();
+            int position = current.getBase() + data.position();
+            while (data.hasRemaining()) {
+                position += fileChannel.write(data, position);
+            }
+        } catch (IOException e) {
+            // 写文件通道失败时把没写完的部分写到映射内存，写入结果不变
+            log.error("Write file channel of {} error, write mapped buffer instead", mappedFile.getFileName(), e);
+            ByteBuffer mapped = mappedFile.getWriteBuffer().duplicate();
+            mapped.position(current.getBase() + data.position());
+            mapped.put(data);
+        }
+    }
+
+    private WriteSegment mappedSegment(int pos) {
+        return new WriteSegment(mappedFile.getWriteBuffer().slice(), 0, pos, false);
+    }
+
+    @Override
+    public boolean waitCommit() {
+        return false;
+    }
+
+    @Override
+    public int commit(int commit, int write) {
+        return write;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        // 大消息可能直接写了映射，通道刷盘同样会写回映射产生的脏页
+        mappedFile.getFileChannel().force(false);
+    }
+
+    @Override
+    public boolean holdsBuffer() {
+        return true;
+    }
+
+    @Override
+    public void release() {
+        if (this.buffer != null) {
+            this.bufferPool.returnBuffer(this.buffer);
+            this.buffer = null;
+        }
+    }
+}
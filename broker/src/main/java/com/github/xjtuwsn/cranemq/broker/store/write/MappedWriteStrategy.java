@@ -0,0 +1,63 @@
+package com.github.xjtuwsn.cranemq.broker.store.write;
+
+import com.github.xjtuwsn.cranemq.broker.store.MappedFile;
+
+/**
+ * @project:dduomq
+ * @file:MappedWriteStrategy
+ * @author:dduo
+ * @create:2023/11/08-10:25
+ */
+
+/**
+ * 直接写映射内存，写完即可读，刷盘时强制映射内存落盘
+ * 也是其他写入方式归还buffer之后的默认方式
+ * @author dduo
+ */
+public class MappedWriteStrategy implements WriteStrategy {
+
+    private final MappedFile mappedFile;
+
+    public MappedWriteStrategy(MappedFile mappedFile) {
+        this.mappedFile = mappedFile;
+    }
+
+    @Override
+    public WriteSegment begin(int pos) {
+        return new WriteSegment(mappedFile.getWriteBuffer().slice(), 0, pos, false);
+    }
+
+    @Override
+    public WriteSegment next(WriteSegment current, int pos, boolean chunk) {
+        // 映射内存就是整个文件，不会出现分段写不下
+        return current;
+    }
+
+    @Override
+    public void complete(WriteSegment current, int pos) {
+    }
+
+    @Override
+    public boolean waitCommit() {
+        return false;
+    }
+
+    @Override
+    public int commit(int commit, int write) {
+        return write;
+    }
+
+    @Override
+    public void flush() {
+        mappedFile.getWriteBuffer().force();
+    }
+
+    @Override
+    public boolean holdsBuffer() {
+        return false;
+    }
+
+    @Override
+    public void release() {
+    }
+}
@@ -0,0 +1,129 @@
+package com.github.xjtuwsn.cranemq.broker.store.write;
+
+import com.github.xjtuwsn.cranemq.broker.store.MappedFile;
+import com.github.xjtuwsn.cranemq.broker.store.pool.OutOfHeapMemoryPool;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentLinkedDeque;
+
+/**
+ * @project:dduomq
+ * @file:TransientPoolWriteStrategy
+ * @author:dduo
+ * @create:2023/11/08-10:35
+ */
+
+/**
+ * 先写堆外内存池的分片，由提交线程按顺序写入文件通道，提交之后才能读取
+ * 一个分片写满再借下一个，内存池不足时这一段直接写映射，只移动提交指针
+ * @author dduo
+ */
+public class TransientPoolWriteStrategy implements WriteStrategy {
+
+    private final MappedFile mappedFile;
+    private final OutOfHeapMemoryPool memoryPool;
+    // 按文件位置排列的分段，已经提交的分片归还后移除
+    private final ConcurrentLinkedDeque<WriteSegment> segments = new ConcurrentLinkedDeque<>();
+
+    /**
+     * @param mappedFile
+     * @param memoryPool
+     * @param buffer 已经借到的第一个分片
+     * @param pos 从该位置开始写分片
+     */
+    public TransientPoolWriteStrategy(MappedFile mappedFile, OutOfHeapMemoryPool memoryPool, ByteBuffer buffer,
+                                      int pos) {
+        this.mappedFile = mappedFile;
+        this.memoryPool = memoryPool;
+        this.segments.offerLast(new WriteSegment(buffer, pos, pos, true));
+    }
+
+    @Override
+    public WriteSegment begin(int pos) {
+        WriteSegment segment = this.segments.peekLast();
+        // 上一批因为内存池不足直接写映射，再尝试借用分片
+        if (!segment.isPooled()) {
+            segment = this.next(segment, pos, true);
+        }
+        return segment;
+    }
+
+    @Override
+    public WriteSegment next(WriteSegment current, int pos, boolean chunk) {
+        ByteBuffer buffer = chunk ? this.memoryPool.borrowMemmory() : null;
+        if (buffer == null && !current.isPooled()) {
+            return current;
+        }
+        WriteSegment segment = buffer != null ? new WriteSegment(buffer, pos, pos, true)
+                : new WriteSegment(mappedFile.getWriteBuffer().slice(), 0, pos, false);
+        // 先结束当前分段再加入新分段，提交线程按顺序看到连续的分段
+        current.setEnd(pos);
+        this.segments.offerLast(segment);
+        return segment;
+    }
+
+    @Override
+    public void complete(WriteSegment current, int pos) {
+    }
+
+    @Override
+    public boolean waitCommit() {
+        return true;
+    }
+
+    @Override
+    public int commit(int commit, int write) throws IOException {
+        FileChannel fileChannel = mappedFile.getFileChannel();
+        // 按顺序提交每个分段，直接写映射的分段已经在页缓存中，只移动提交指针
+        for (WriteSegment segment : this.segments) {
+            if (commit >= write) {
+                break;
+            }
+            int end = segment.getEnd() < 0 ? write : Math.min(segment.getEnd(), write);
+            if (end <= commit) {
+                continue;
+            }
+            if (segment.isPooled()) {
+                ByteBuffer buffer = segment.getBuffer().duplicate();
+                buffer.limit(end - segment.getBase());
+                buffer.position(commit - segment.getBase());
+                int position = commit;
+                while (buffer.hasRemaining()) {
+                    position += fileChannel.write(buffer, position);
+                }
+            }
+            commit = end;
+        }
+        // 归还已经写完并且提交完的分片
+        WriteSegment first;
+        while ((first = this.segments.peekFirst()) != null && first.getEnd() >= 0 && first.getEnd() <= commit) {
+            this.segments.pollFirst();
+            if (first.isPooled()) {
+                this.memoryPool.returnMemory(first.getBuffer());
+            }
+        }
+        return commit;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        mappedFile.getFileChannel().force(false);
+    }
+
+    @Override
+    public boolean holdsBuffer() {
+        return true;
+    }
+
+    @Override
+    public void release() {
+        WriteSegment segment;
+        while ((segment = this.segments.pollFirst()) != null) {
+            if (segment.isPooled()) {
+                this.memoryPool.returnMemory(segment.getBuffer());
+            }
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package com.github.xjtuwsn.cranemq.broker.store.write;
+
+import java.nio.ByteBuffer;
+
+/**
+ * @project:dduomq
+ * @file:WriteSegment
+ * @author:dduo
+ * @create:2023/11/08-10:10
+ */
+
+/**
+ * 文件中连续的一段写入，写在池中借用的buffer或者映射内存上
+ * @author dduo
+ */
+public class WriteSegment {
+    // 写入的buffer
+    private final ByteBuffer buffer;
+    // buffer中位置0对应的文件位置，写映射时为0
+    private final int base;
+    // 这一段的起始文件位置
+    private final int start;
+    // 是否是池中借用的buffer，否则是映射内存
+    private final boolean pooled;
+    // 这一段的结束位置，还在写时为-1
+    private volatile int end = -1;
+
+    public WriteSegment(ByteBuffer buffer, int base, int start, boolean pooled) {
+        this.buffer = buffer;
+        this.base = base;
+        this.start = start;
+        this.pooled = pooled;
+    }
+
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    public int getBase() {
+        return base;
+    }
+
+    public int getStart() {
+        return start;
+    }
+
+    public boolean isPooled() {
+        return pooled;
+    }
+
+    public int getEnd() {
+        return end;
+    }
+
+    public void setEnd(int end) {
+        this.end = end;
+    }
+}
@@ -0,0 +1,73 @@
+package com.github.xjtuwsn.cranemq.broker.store.write;
+
+import java.io.IOException;
+
+/**
+ * @project:dduomq
+ * @file:WriteStrategy
+ * @author:dduo
+ * @create:2023/11/08-10:15
+ */
+
+/**
+ * commitLog文件的写入方式，决定消息先写到哪里、什么时候写入文件、怎么刷盘
+ * 写入相关的方法只由持有写锁的写线程调用，提交由持有提交锁的提交线程调用
+ * @author dduo
+ */
+public interface WriteStrategy {
+
+    /**
+     * 开始一批写入
+     * @param pos 文件写指针
+     * @return 本批写入的分段
+     */
+    WriteSegment begin(int pos);
+
+    /**
+     * 当前分段写不下一条消息时换下一个分段
+     * @param current 当前分段
+     * @param pos 文件写指针
+     * @param chunk 为false说明空的分段都写不下，改为直接写映射
+     * @return 新的分段
+     */
+    WriteSegment next(WriteSegment current, int pos, boolean chunk);
+
+    /**
+     * 一批写完，写指针移动之前调用
+     * @param current 当前分段
+     * @param pos 写完之后的文件位置
+     */
+    void complete(WriteSegment current, int pos);
+
+    /**
+     * 写入的数据是否要等提交之后才能读取
+     * @return
+     */
+    boolean waitCommit();
+
+    /**
+     * 把已经写入但没有提交的数据写入文件
+     * @param commit 当前提交指针
+     * @param write 当前写指针
+     * @return 新的提交指针
+     * @throws IOException
+     */
+    int commit(int commit, int write) throws IOException;
+
+    /**
+     * 把文件中的数据刷到磁盘
+     * @throws IOException
+     */
+    void flush() throws IOException;
+
+    /**
+     * 是否持有池中的buffer，文件写满后需要归还
+     * @return
+     */
+    boolean holdsBuffer();
+
+    /**
+     * 归还借用的buffer，调用前已经提交完所有数据
+     */
+    void release();
+}
@@ -0,0 +1,27 @@
+package com.github.xjtuwsn.cranemq.broker.store.write;
+
+/**
+ * @project:dduomq
+ * @file:WriteStrategyType
+ * @author:dduo
+ * @create:2023/11/08-10:05
+ */
+
+/**
+ * commitLog的写入方式，不同存储介质上表现不同，由配置选择
+ * @author dduo
+ */
+public enum WriteStrategyType {
+    /**
+     * 直接写映射内存
+     */
+    MMAP,
+    /**
+     * 先写堆外内存池的分片，由提交线程写入文件通道
+     */
+    TRANSIENT_POOL,
+    /**
+     * 先写池中的buffer，每批写完后用FileChannel按位置写入文件
+     */
+    FILE_CHANNEL
+}
@@ -0,0 +1,30 @@
+package com.github.xjtuwsn.cranemq.broker.web.controller;
+
+import com.github.xjtuwsn.cranemq.broker.web.service.MessageService;
+import com.github.xjtuwsn.cranemq.common.entity.Message;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.Resource;
+import java.util.List;
+
+/**
+ * @project:dduomq
+ * @file:MessageController
+ * @author:dduo
+ * @create:2023/10/29-17:28
+ */
+@RestController
+@RequestMapping("/message")
+public class MessageController {
+
+    @Resource
+    private MessageService messageService;
+
+    @RequestMapping("/key")
+    public List<Message> queryByKey(@RequestParam("key") String key,
+                                    @RequestParam(value = "max", defaultValue = "0") int max) {
+        return messageService.queryByKey(key, max);
+    }
+}
@@ -26,4 +26,9 @@ public class QueueController {
     public Map<String, List<QueueInfo>> listQueues() {
         return queueService.listQueues();
     }
+
+    @RequestMapping("/load")
+    public Map<String, Object> loadProgress() {
+        return queueService.loadProgress();
+    }
 }
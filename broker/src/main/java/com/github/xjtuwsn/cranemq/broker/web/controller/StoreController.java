@@ -0,0 +1,37 @@
+package com.github.xjtuwsn.cranemq.broker.web.controller;
+
+import com.github.xjtuwsn.cranemq.broker.web.service.StoreService;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.Resource;
+import java.util.Map;
+
+/**
+ * @project:dduomq
+ * @file:StoreController
+ * @author:dduo
+ * @create:2023/10/31-15:29
+ */
+@RestController
+@RequestMapping("/store")
+public class StoreController {
+
+    @Resource
+    private StoreService storeService;
+
+    @RequestMapping("/mapped")
+    public Map<String, Long> mappedRegionMetrics() {
+        return storeService.mappedRegionMetrics();
+    }
+
+    @RequestMapping("/queue-mapped")
+    public Map<String, Long> queueMappingMetrics() {
+        return storeService.queueMappingMetrics();
+    }
+
+    @RequestMapping("/flush")
+    public Map<String, Map<String, Long>> flushMetrics() {
+        return storeService.flushMetrics();
+    }
+}
@@ -0,0 +1,34 @@
+package com.github.xjtuwsn.cranemq.broker.web.service;
+
+import com.github.xjtuwsn.cranemq.broker.BrokerController;
+import com.github.xjtuwsn.cranemq.broker.store.comm.StoreInnerMessage;
+import com.github.xjtuwsn.cranemq.common.entity.Message;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @project:dduomq
+ * @file:MessageService
+ * @author:dduo
+ * @create:2023/10/29-17:30
+ */
+@Service
+@DependsOn(value = "brokerController")
+public class MessageService {
+    @Resource
+    private BrokerController brokerController;
+
+    public List<Message> queryByKey(String key, int maxNumber) {
+        List<StoreInnerMessage> innerMessages = brokerController.getMessageStoreCenter()
+                .queryMessageByKey(key, maxNumber);
+        List<Message> messages = new ArrayList<>();
+        for (StoreInnerMessage innerMessage : innerMessages) {
+            messages.add(new Message(innerMessage.getTopic(), innerMessage.getTag(), innerMessage.getBody()));
+        }
+        return messages;
+    }
+}
@@ -1,11 +1,14 @@
 package com.github.xjtuwsn.cranemq.broker.web.service;
 
 import com.github.xjtuwsn.cranemq.broker.BrokerController;
+import com.github.xjtuwsn.cranemq.broker.store.MessageStoreCenter;
+import com.github.xjtuwsn.cranemq.broker.store.queue.QueueLoadProgress;
 import com.github.xjtuwsn.cranemq.common.entity.QueueInfo;
 import org.springframework.context.annotation.DependsOn;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.Resource;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -24,4 +27,22 @@ public class QueueService {
     public Map<String, List<QueueInfo>> listQueues() {
         return brokerController.getMessageStoreCenter().getAllQueueInfos();
     }
+
+    /**
+     * 消费队列启动加载进度和已经映射的文件数
+     * @return
+     */
+    public Map<String, Object> loadProgress() {
+        MessageStoreCenter messageStoreCenter = brokerController.getMessageStoreCenter();
+        QueueLoadProgress progress = messageStoreCenter.getQueueLoadProgress();
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("totalTopics", progress.getTotalTopics());
+        map.put("loadedTopics", progress.getLoadedTopics());
+        map.put("loadedQueues", progress.getLoadedQueues());
+        map.put("loadedFiles", progress.getLoadedFiles());
+        map.put("mappedFiles", messageStoreCenter.getMappedQueueFileCount());
+        map.put("elapsed", progress.getElapsed());
+        map.put("finished", progress.isFinished());
+        return map;
+    }
 }
@@ -0,0 +1,33 @@
+package com.github.xjtuwsn.cranemq.broker.web.service;
+
+import com.github.xjtuwsn.cranemq.broker.BrokerController;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.Resource;
+import java.util.Map;
+
+/**
+ * @project:dduomq
+ * @file:StoreService
+ * @author:dduo
+ * @create:2023/10/31-15:30
+ */
+@Service
+@DependsOn(value = "brokerController")
+public class StoreService {
+    @Resource
+    private BrokerController brokerController;
+
+    public Map<String, Long> mappedRegionMetrics() {
+        return brokerController.getMessageStoreCenter().getMappedRegionMetrics();
+    }
+
+    public Map<String, Long> queueMappingMetrics() {
+        return brokerController.getMessageStoreCenter().getQueueMappingMetrics();
+    }
+
+    public Map<String, Map<String, Long>> flushMetrics() {
+        return brokerController.getMessageStoreCenter().getFlushMetrics();
+    }
+}
@@ -24,6 +24,8 @@ public class PullResult {
     private long nextOffset;
 
     private List<ReadyMessage> messages;
+    // broker建议的下一次拉取延迟，毫秒
+    private long suggestDelay;
 
     public PullResult(AcquireResultType acquireResultType) {
         this.acquireResultType = AcquireResultType.ERROR;
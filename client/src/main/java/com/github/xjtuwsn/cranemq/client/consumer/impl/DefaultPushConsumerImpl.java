@@ -137,8 +137,10 @@ public class DefaultPushConsumerImpl {
         BrokerQueueSnapShot snapShot = request.getSnapShot();
         Header header = new Header(RequestType.PULL_MESSAGE, RpcType.ASYNC, TopicUtil.generateUniqueID());
 
+        // 带上订阅的tag，由broker根据索引过滤
+        SubscriptionInfo subscriptionInfo = topicTags.get(queue.getTopic());
         PayLoad payLoad = new MQPullMessageRequest(this.clientId, group, queue, request.getOffset(),
-                offsetManager.readOffset(queue, group));
+                offsetManager.readOffset(queue, group), subscriptionInfo == null ? null : subscriptionInfo.getTag());
         RemoteCommand remoteCommand = new RemoteCommand(header, payLoad);
         FutureCommand futureCommand = new FutureCommand(remoteCommand);
         WrapperFutureCommand wrappered = new WrapperFutureCommand(futureCommand, queue.getTopic());
@@ -162,15 +164,27 @@ public class DefaultPushConsumerImpl {
                         long nextOffset = pullResult.getNextOffset();
                         request.setOffset(nextOffset);
                         List<ReadyMessage> messages = pullResult.getMessages();
-                        snapShot.putMessage(messages);
-                        if (consumeMessageService != null) {
+                        snapShot.putMessage(messages, nextOffset);
+                        // 全部被过滤，直接拉取下一批
+                        if (consumeMessageService != null && !messages.isEmpty()) {
 
                             consumeMessageService.submit(queue, snapShot, messages);
                         }
-                        // clientInstance.getPullMessageService().putRequestDelay(request, 200);
-                        clientInstance.getPullMessageService().putRequestNow(request);
+                        // broker正在冷读落后的数据，按建议延迟下一次拉取
+                        if (pullResult.getSuggestDelay() > 0) {
+                            clientInstance.getPullMessageService().putRequestDelay(request,
+                                    pullResult.getSuggestDelay());
+                        } else {
+                            clientInstance.getPullMessageService().putRequestNow(request);
+                        }
                         break;
                     case NO_MESSAGE:
+                        // broker的冷读并发已满，按建议的时间之后再拉取
+                        if (pullResult.getSuggestDelay() > 0) {
+                            clientInstance.getPullMessageService().putRequestDelay(request,
+                                    pullResult.getSuggestDelay());
+                            break;
+                        }
                     case OFFSET_INVALID:
                     case ERROR:
                         // 失败的情况，也进行重新拉取
@@ -214,12 +228,19 @@ public class DefaultPushConsumerImpl {
             return;
         }
         List<ReadyMessage> messages = pullResult.getMessages();
+        if (messages == null) {
+            pullResult.setMessages(new ArrayList<>());
+            return;
+        }
+        if (info == null) {
+            return;
+        }
         Set<String> tag = info.getTag();
         List<ReadyMessage> collect = messages.stream().filter(e -> {
             if (tag.contains("*")) {
                 return true;
             }
-            return tag.contains(e);
+            return tag.contains(e.getTag());
         }).collect(Collectors.toList());
         // log.info("Before filter array is {}", messages);
         // log.info("After filter array is {}", collect);
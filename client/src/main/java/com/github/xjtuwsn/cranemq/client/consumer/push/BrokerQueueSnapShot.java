@@ -53,6 +53,39 @@ public class BrokerQueueSnapShot {
 
     }
 
+    /**
+     * 向快照中加入消息，并记录这批拉取的下一个偏移
+     * broker按tag过滤后偏移不连续，全部消费完时应提交到下一个偏移，而不是最后一条消息之后
+     * @param readyMessages
+     * @param nextOffset
+     */
+    public void putMessage(List<ReadyMessage> readyMessages, long nextOffset) {
+        try {
+            messageLock.writeLock().lock();
+            for (ReadyMessage readyMessage : readyMessages) {
+                this.messages.put(readyMessage.getOffset(), readyMessage);
+            }
+            maxOffset = Math.max(maxOffset, nextOffset - 1);
+        } catch (Exception e) {
+            log.error("Put treemap occurs exception");
+        } finally {
+            messageLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 快照中最小的未消费偏移
+     * @return 没有未消费消息返回-1
+     */
+    public long firstOffset() {
+        try {
+            messageLock.readLock().lock();
+            return this.messages.isEmpty() ? -1L : this.messages.firstKey();
+        } finally {
+            messageLock.readLock().unlock();
+        }
+    }
+
     /**
      * 从快照中删除消费完成的消息，并返回头部偏移
      * @param messages
@@ -89,8 +89,9 @@ public class OrderedConsumeMessageService extends AbstractReputMessageService {
                     }
                     synchronized (lock) {
                         // 获得锁的线程比较当前消息的偏移是否和期望偏移一致
+                        // broker按tag过滤后偏移不连续，以快照中最小的未消费偏移作为期望偏移
                         long curOffset = messages.get(0).getOffset();
-                        long expectOffset = this.defaultPushConsumer.getOffsetManager().readOffset(messageQueue, group);
+                        long expectOffset = snapShot.firstOffset();
                         // 一致的话跳出循环
                         if (curOffset == expectOffset || expectOffset == -1) {
                             break;
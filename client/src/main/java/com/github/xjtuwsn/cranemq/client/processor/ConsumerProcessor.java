@@ -102,6 +102,7 @@ public class ConsumerProcessor extends AbstractClientProcessor {
         result.setAcquireResultType(mqPullMessageResponse.getAcquireResultType());
         // 设置拉取结果对象的下一个偏移量
         result.setNextOffset(mqPullMessageResponse.getNextOffset());
+        result.setSuggestDelay(mqPullMessageResponse.getSuggestDelay());
         // 如果包装的未来命令对象存在拉取回调函数
         if (wrappered.getPullCallback() != null) {
             // 在异步钩子服务中执行拉取回调函数的 onSuccess 方法
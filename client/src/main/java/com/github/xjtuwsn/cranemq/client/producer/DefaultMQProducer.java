@@ -3,6 +3,7 @@ package com.github.xjtuwsn.cranemq.client.producer;
 import cn.hutool.core.util.StrUtil;
 import com.github.xjtuwsn.cranemq.client.producer.balance.LoadBalanceStrategy;
 import com.github.xjtuwsn.cranemq.client.producer.result.SendResult;
+import com.github.xjtuwsn.cranemq.common.remote.codec.CompressionType;
 import com.github.xjtuwsn.cranemq.common.remote.enums.RegistryType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -47,6 +48,12 @@ public class DefaultMQProducer implements MQProducer {
     // 默认重试次数
     private int maxRetryTime = MQConstant.MAX_RETRY_TIMES;
 
+    // 批量消息的压缩方式，NONE不压缩
+    private CompressionType compressionType = CompressionType.ZSTD;
+
+    // 批量消息体总长度达到该值才压缩，字节
+    private int compressThreshold = 4 * 1024;
+
     private DefaultMQProducerImpl defaultMQProducerImpl;
 
     private LoadBalanceStrategy loadBalanceStrategy;
@@ -242,6 +249,22 @@ public class DefaultMQProducer implements MQProducer {
         this.maxRetryTime = maxRetryTime;
     }
 
+    public CompressionType getCompressionType() {
+        return compressionType;
+    }
+
+    public void setCompressionType(CompressionType compressionType) {
+        this.compressionType = compressionType;
+    }
+
+    public int getCompressThreshold() {
+        return compressThreshold;
+    }
+
+    public void setCompressThreshold(int compressThreshold) {
+        this.compressThreshold = compressThreshold;
+    }
+
     public String getGroup() {
         return group;
     }
@@ -9,6 +9,8 @@ import com.github.xjtuwsn.cranemq.client.producer.balance.LoadBalanceStrategy;
 import com.github.xjtuwsn.cranemq.client.producer.result.SendResult;
 import com.github.xjtuwsn.cranemq.common.command.*;
 import com.github.xjtuwsn.cranemq.common.command.payloads.req.MQBachProduceRequest;
+import com.github.xjtuwsn.cranemq.common.remote.codec.CompressionType;
+import com.github.xjtuwsn.cranemq.common.remote.codec.MessageRecordCodec;
 import com.github.xjtuwsn.cranemq.common.remote.enums.RegistryType;
 import com.github.xjtuwsn.cranemq.common.utils.TopicUtil;
 import org.slf4j.Logger;
@@ -242,16 +244,23 @@ public class DefaultMQProducerImpl implements MQProducerInner {
             header.setCommandType(RequestType.MESSAGE_BATCH_PRODUCE_REAUEST);
         }
         PayLoad payLoad = null;
+        long bornTimestamp = System.currentTimeMillis();
         if (messages.length == 1) {
+            MQProduceRequest produceRequest;
             if (delay > 0) {
                 // 如果有延迟发送时间，设置请求类型为延迟消息生产请求
                 header.setCommandType(RequestType.DELAY_MESSAGE_PRODUCE_REQUEST);
-                payLoad = new MQProduceRequest(messages[0], delay);
+                produceRequest = new MQProduceRequest(messages[0], delay);
             } else {
-                payLoad = new MQProduceRequest(messages[0]);
+                produceRequest = new MQProduceRequest(messages[0]);
             }
+            produceRequest.setBornTimestamp(bornTimestamp);
+            payLoad = produceRequest;
         } else {
-            payLoad = new MQBachProduceRequest(Arrays.asList(messages));
+            MQBachProduceRequest bachProduceRequest = new MQBachProduceRequest(Arrays.asList(messages));
+            bachProduceRequest.setBornTimestamp(bornTimestamp);
+            this.compressBodies(bachProduceRequest);
+            payLoad = bachProduceRequest;
         }
         // 创建远程命令
         RemoteCommand remoteCommand = new RemoteCommand(header, payLoad);
@@ -265,6 +274,45 @@ public class DefaultMQProducerImpl implements MQProducerInner {
         return wrappered;
     }
 
+    /**
+     * 同一主题的批量消息达到阈值时把消息体打包整体压缩，broker原样保存压缩后的数据
+     * 压缩后没有变小则按原样发送
+     * @param request 批量请求
+     */
+    private void compressBodies(MQBachProduceRequest request) {
+        CompressionType type = this.defaultMQProducer.getCompressionType();
+        if (type == null || type == CompressionType.NONE) {
+            return;
+        }
+        List<Message> messages = request.getMessages();
+        String topic = messages.get(0).getTopic();
+        int length = 0;
+        for (Message message : messages) {
+            if (!topic.equals(message.getTopic()) || message.getBody() == null) {
+                return;
+            }
+            length += message.getBody().length;
+        }
+        if (length < this.defaultMQProducer.getCompressThreshold()) {
+            return;
+        }
+        type = type.available();
+        byte[] raw = MessageRecordCodec.packBodies(messages);
+        byte[] compressed = type.compress(raw);
+        if (compressed.length >= raw.length) {
+            return;
+        }
+        // 不修改用户的消息对象
+        List<Message> headers = new ArrayList<>(messages.size());
+        for (Message message : messages) {
+            headers.add(new Message(message.getTopic(), message.getTag(), null));
+        }
+        request.setMessages(headers);
+        request.setCompression(type);
+        request.setRawLength(raw.length);
+        request.setCompressedBodies(compressed);
+    }
+
     /**
      * 关闭生产者
      * @throws CraneClientException 当注销生产者失败时抛出异常
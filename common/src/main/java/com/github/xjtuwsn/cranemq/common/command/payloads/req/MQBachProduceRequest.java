@@ -2,6 +2,7 @@ package com.github.xjtuwsn.cranemq.common.command.payloads.req;
 
 import com.github.xjtuwsn.cranemq.common.command.PayLoad;
 import com.github.xjtuwsn.cranemq.common.entity.MessageQueue;
+import com.github.xjtuwsn.cranemq.common.remote.codec.CompressionType;
 import lombok.*;
 import com.github.xjtuwsn.cranemq.common.entity.Message;
 
@@ -22,6 +23,19 @@ public class MQBachProduceRequest implements PayLoad {
     private List<Message> messages;
     private MessageQueue writeQueue;
 
+    // 消息产生时间
+    private long bornTimestamp;
+
+    // 消息体整体压缩时，messages中的消息不带消息体
+    private CompressionType compression = CompressionType.NONE;
+    // 打包后压缩前的长度
+    private int rawLength;
+    private byte[] compressedBodies;
+
+    public boolean isCompressed() {
+        return compressedBodies != null;
+    }
+
     public MQBachProduceRequest(List<Message> messages) {
         this.messages = messages;
     }
@@ -23,6 +23,9 @@ public class MQProduceRequest implements PayLoad, Serializable {
     private MessageQueue writeQueue;
 
     private long delay;
+
+    // 消息产生时间
+    private long bornTimestamp;
     public MQProduceRequest(Message message) {
         this.message = message;
     }
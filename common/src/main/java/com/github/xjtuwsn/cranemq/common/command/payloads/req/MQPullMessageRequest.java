@@ -4,6 +4,8 @@ import com.github.xjtuwsn.cranemq.common.command.PayLoad;
 import com.github.xjtuwsn.cranemq.common.entity.MessageQueue;
 import lombok.*;
 
+import java.util.Set;
+
 /**
  * @project:dduomq
  * @file:MQPushMessageRequest
@@ -21,6 +23,13 @@ public class MQPullMessageRequest implements PayLoad {
     private MessageQueue messageQueue;
     private long offset;
     private long commitOffset;
+    // 订阅的tag，broker根据索引中的tag哈希过滤，为空表示全部
+    private Set<String> tags;
+
+    public MQPullMessageRequest(String clientId, String groupName, MessageQueue messageQueue, long offset,
+                                long commitOffset) {
+        this(clientId, groupName, messageQueue, offset, commitOffset, null);
+    }
     public String getTopic() {
         return messageQueue.getTopic();
     }
@@ -0,0 +1,25 @@
+package com.github.xjtuwsn.cranemq.common.command.payloads.req;
+
+import com.github.xjtuwsn.cranemq.common.command.PayLoad;
+import lombok.*;
+
+import java.io.Serializable;
+
+/**
+ * @project:dduomq
+ * @file:MQQueryMessageRequest
+ * @author:dduo
+ * @create:2023/10/29-17:05
+ */
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+@Getter
+@Setter
+@ToString
+public class MQQueryMessageRequest implements PayLoad, Serializable {
+    // 消息key，即发送时的消息id
+    private String key;
+    // 最多返回数量
+    private int maxNumber;
+}
@@ -0,0 +1,25 @@
+package com.github.xjtuwsn.cranemq.common.command.payloads.req;
+
+import com.github.xjtuwsn.cranemq.common.command.PayLoad;
+import lombok.*;
+
+import java.io.Serializable;
+
+/**
+ * @project:dduomq
+ * @file:MQResetOffsetRequest
+ * @author:dduo
+ * @create:2023/10/30-11:02
+ */
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+@Getter
+@Setter
+@ToString
+public class MQResetOffsetRequest implements PayLoad, Serializable {
+    private String topic;
+    private String group;
+    // 重置到该时间之后写入的第一条消息
+    private long timestamp;
+}
@@ -23,6 +23,13 @@ public class MQPullMessageResponse implements PayLoad {
     private String groupName;
     private List<ReadyMessage> messages;
     private long nextOffset;
+    // 建议消费者延迟下一次拉取的时间，毫秒，为0立即拉取
+    private long suggestDelay;
+
+    public MQPullMessageResponse(AcquireResultType acquireResultType, String groupName,
+                                 List<ReadyMessage> messages, long nextOffset) {
+        this(acquireResultType, groupName, messages, nextOffset, 0);
+    }
 
     public int getMessageCount() {
         if (messages == null) {
@@ -0,0 +1,24 @@
+package com.github.xjtuwsn.cranemq.common.command.payloads.resp;
+
+import com.github.xjtuwsn.cranemq.common.command.PayLoad;
+import com.github.xjtuwsn.cranemq.common.entity.Message;
+import lombok.*;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * @project:dduomq
+ * @file:MQQueryMessageResponse
+ * @author:dduo
+ * @create:2023/10/29-17:08
+ */
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+@Getter
+@Setter
+public class MQQueryMessageResponse implements PayLoad, Serializable {
+    private String key;
+    private List<Message> messages;
+}
@@ -0,0 +1,25 @@
+package com.github.xjtuwsn.cranemq.common.command.payloads.resp;
+
+import com.github.xjtuwsn.cranemq.common.command.PayLoad;
+import lombok.*;
+
+import java.io.Serializable;
+import java.util.Map;
+
+/**
+ * @project:dduomq
+ * @file:MQResetOffsetResponse
+ * @author:dduo
+ * @create:2023/10/30-11:05
+ */
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+@Getter
+@Setter
+public class MQResetOffsetResponse implements PayLoad, Serializable {
+    private String topic;
+    private String group;
+    // 队列id：重置后的偏移
+    private Map<Integer, Long> offsets;
+}
@@ -23,6 +23,10 @@ public enum RequestType implements Type {
     RECORD_OFFSET,
     LOCK_REQUEST,
     UPDATE_TOPIC_REQUEST,
-    SEND_MESSAGE_BACK
+    SEND_MESSAGE_BACK,
+    // 根据key查询消息
+    QUERY_MESSAGE_REQUEST,
+    // 按时间重置消费进度
+    RESET_OFFSET_REQUEST
 
 }
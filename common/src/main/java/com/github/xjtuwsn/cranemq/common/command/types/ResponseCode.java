@@ -11,5 +11,7 @@ public class ResponseCode {
     public static final int DEFAULT_ERROR = 400;
     public static final int SERVER_ERROR = 401;
     public static final int NO_ITEM = 402;
+    public static final int FLUSH_TIMEOUT = 403;
+    public static final int SERVER_BUSY = 404;
 
 }
@@ -16,5 +16,7 @@ public enum ResponseType implements Type {
     SIMPLE_PULL_RESPONSE,
     NOTIFY_CHAGED_RESPONSE,
     PULL_RESPONSE,
-    LOCK_RESPONSE
+    LOCK_RESPONSE,
+    QUERY_MESSAGE_RESPONSE,
+    RESET_OFFSET_RESPONSE
 }
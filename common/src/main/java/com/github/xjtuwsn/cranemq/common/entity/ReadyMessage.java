@@ -18,6 +18,10 @@ public class ReadyMessage extends Message {
     private int queueId;
     private long offset;
     private int retry;
+    // 消息产生时间
+    private long bornTimestamp;
+    // 消息写入broker的时间
+    private long storeTimestamp;
     public ReadyMessage(String brokerName, int queueId, long offset, Message message, int retry) {
         super(message);
         this.brokerName = brokerName;
@@ -26,6 +30,13 @@ public class ReadyMessage extends Message {
         this.retry = retry;
     }
 
+    public ReadyMessage(String brokerName, int queueId, long offset, Message message, int retry,
+                        long bornTimestamp, long storeTimestamp) {
+        this(brokerName, queueId, offset, message, retry);
+        this.bornTimestamp = bornTimestamp;
+        this.storeTimestamp = storeTimestamp;
+    }
+
     public boolean matchs(String topic, String tag) {
         if (!topic.equals(this.getTopic()) || !"*".equals(tag) && !tag.equals(this.getTag())) {
             return false;
@@ -41,6 +52,7 @@ public class ReadyMessage extends Message {
                 ", queueId=" + queueId +
                 ", offset=" + offset +
                 ", retry=" + retry +
+                ", storeTimestamp=" + storeTimestamp +
                 '}';
     }
 }
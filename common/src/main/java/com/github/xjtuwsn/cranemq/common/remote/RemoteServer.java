@@ -1,10 +1,16 @@
 package com.github.xjtuwsn.cranemq.common.remote;
 
 import com.github.xjtuwsn.cranemq.common.remote.enums.HandlerType;
+import com.github.xjtuwsn.cranemq.common.command.Header;
 import com.github.xjtuwsn.cranemq.common.command.RemoteCommand;
+import com.github.xjtuwsn.cranemq.common.command.payloads.resp.MQProduceResponse;
 import com.github.xjtuwsn.cranemq.common.command.types.RequestType;
+import com.github.xjtuwsn.cranemq.common.command.types.ResponseCode;
+import com.github.xjtuwsn.cranemq.common.command.types.ResponseType;
+import com.github.xjtuwsn.cranemq.common.command.types.RpcType;
 import com.github.xjtuwsn.cranemq.common.remote.codec.NettyDecoder;
 import com.github.xjtuwsn.cranemq.common.remote.codec.NettyEncoder;
+import com.github.xjtuwsn.cranemq.common.remote.codec.RawPullFrameEncoder;
 import com.github.xjtuwsn.cranemq.common.remote.event.ChannelEventListener;
 import com.github.xjtuwsn.cranemq.common.remote.event.ConnectionEvent;
 import com.github.xjtuwsn.cranemq.common.remote.processor.BaseProcessor;
@@ -24,6 +30,7 @@ import org.slf4j.LoggerFactory;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -75,6 +82,7 @@ public class RemoteServer implements RemoteService {
                         ChannelPipeline pipeline = socketChannel.pipeline();
                         pipeline.addLast(new NettyDecoder(RemoteCommand.class, new Hessian1Serializer()))
                                 .addLast(new NettyEncoder(RemoteCommand.class, new Hessian1Serializer()))
+                                .addLast(new RawPullFrameEncoder(new Hessian1Serializer()))
                                 .addLast(new ConnectionManagerHandler(RemoteServer.this))
                                 .addLast(new NettyServerHandler());
                     }
@@ -166,6 +174,13 @@ public class RemoteServer implements RemoteService {
                     break;
                 case SEND_MESSAGE_BACK:
                     doSendBackProcess(channelHandlerContext, request);
+                    break;
+                case QUERY_MESSAGE_REQUEST:
+                    doQueryMessageProcess(channelHandlerContext, request);
+                    break;
+                case RESET_OFFSET_REQUEST:
+                    doResetOffsetProcess(channelHandlerContext, request);
+                    break;
                 default:
                     break;
             }
@@ -173,11 +188,29 @@ public class RemoteServer implements RemoteService {
         private void doProducerMessageProcess(ChannelHandlerContext ctx, RemoteCommand remoteCommand) {
             ExecutorService pool = getThreadPool(HandlerType.PRODUCER_REQUEST);
             if (pool != null) {
-                pool.execute(() -> {
-                    serverProcessor.processProduceMessage(ctx, remoteCommand);
-                });
+                try {
+                    pool.execute(() -> {
+                        serverProcessor.processProduceMessage(ctx, remoteCommand);
+                    });
+                } catch (RejectedExecutionException e) {
+                    // 线程池已满，直接告知生产者服务端繁忙，而不是静默丢弃
+                    log.warn("Producer request pool is full, reject request {}",
+                            remoteCommand.getHeader().getCorrelationId());
+                    replyBusy(ctx, remoteCommand);
+                }
             }
         }
+
+        private void replyBusy(ChannelHandlerContext ctx, RemoteCommand remoteCommand) {
+            Header header = remoteCommand.getHeader();
+            if (header.getRpcType() == RpcType.ONE_WAY) {
+                return;
+            }
+            Header responseHeader = new Header(ResponseType.PRODUCE_MESSAGE_RESPONSE, header.getRpcType(),
+                    header.getCorrelationId());
+            responseHeader.onFailure(ResponseCode.SERVER_BUSY);
+            ctx.writeAndFlush(new RemoteCommand(responseHeader, new MQProduceResponse("")));
+        }
         private void doCreateTopicProcess(ChannelHandlerContext ctx, RemoteCommand remoteCommand) {
             ExecutorService pool = getThreadPool(HandlerType.CREATE_TOPIC);
             if (pool != null) {
@@ -262,6 +295,24 @@ public class RemoteServer implements RemoteService {
                 });
             }
         }
+
+        private void doQueryMessageProcess(ChannelHandlerContext ctx, RemoteCommand remoteCommand) {
+            ExecutorService pool = getThreadPool(HandlerType.SIMPLE_PULL);
+            if (pool != null) {
+                pool.execute(() -> {
+                    serverProcessor.processQueryMessageRequest(ctx, remoteCommand);
+                });
+            }
+        }
+
+        private void doResetOffsetProcess(ChannelHandlerContext ctx, RemoteCommand remoteCommand) {
+            ExecutorService pool = getThreadPool(HandlerType.RECORD_OFFSET);
+            if (pool != null) {
+                pool.execute(() -> {
+                    serverProcessor.processResetOffsetRequest(ctx, remoteCommand);
+                });
+            }
+        }
     }
 
     // TODO 连接与断联、心跳等发布事件
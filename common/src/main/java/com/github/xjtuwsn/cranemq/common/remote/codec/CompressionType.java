@@ -0,0 +1,151 @@
+package com.github.xjtuwsn.cranemq.common.remote.codec;
+
+import com.github.luben.zstd.Zstd;
+import com.github.xjtuwsn.cranemq.common.exception.CraneClientException;
+
+import java.io.ByteArrayOutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * @project:dduomq
+ * @file:CompressionType
+ * @author:dduo
+ * @create:2023/11/04-10:20
+ */
+
+/**
+ * 批量消息体的压缩方式，编号写在批量记录头部，broker原样保存，由消费者解压
+ * zstd依赖本地库，本地库不可用时生产者退回到JDK自带的Deflater
+ * @author dduo
+ */
+public enum CompressionType {
+    NONE((byte) 0) {
+        @Override
+        public byte[] compress(byte[] data) {
+            return data;
+        }
+
+        @Override
+        public byte[] decompress(byte[] data, int rawLength) {
+            return data;
+        }
+    },
+    ZSTD((byte) 1) {
+        @Override
+        public byte[] compress(byte[] data) {
+            return Zstd.compress(data, ZSTD_LEVEL);
+        }
+
+        @Override
+        public byte[] decompress(byte[] data, int rawLength) {
+            byte[] raw = Zstd.decompress(data, rawLength);
+            if (raw.length != rawLength) {
+                throw new CraneClientException("Zstd decompress length mismatch");
+            }
+            return raw;
+        }
+    },
+    DEFLATE((byte) 2) {
+        @Override
+        public byte[] compress(byte[] data) {
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            try {
+                deflater.setInput(data);
+                deflater.finish();
+                ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 4 + 64);
+                byte[] buffer = new byte[8 * 1024];
+                while (!deflater.finished()) {
+                    out.write(buffer, 0, deflater.deflate(buffer));
+                }
+                return out.toByteArray();
+            } finally {
+                deflater.end();
+            }
+        }
+
+        @Override
+        public byte[] decompress(byte[] data, int rawLength) {
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(data);
+                byte[] raw = new byte[rawLength];
+                int read = 0;
+                while (read < rawLength) {
+                    int n = inflater.inflate(raw, read, rawLength - read);
+                    if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        break;
+                    }
+                    read += n;
+                }
+                if (read != rawLength) {
+                    throw new CraneClientException("Deflate decompress length mismatch");
+                }
+                return raw;
+            } catch (DataFormatException e) {
+                throw new CraneClientException("Deflate data corrupt", e);
+            } finally {
+                inflater.end();
+            }
+        }
+    };
+
+    // 生产端CPU更敏感，使用最快的级别，json这类数据压缩率仍然很高
+    private static final int ZSTD_LEVEL = 1;
+
+    private final byte code;
+
+    CompressionType(byte code) {
+        this.code = code;
+    }
+
+    public byte getCode() {
+        return code;
+    }
+
+    public abstract byte[] compress(byte[] data);
+
+    /**
+     * 解压
+     * @param data 压缩后的数据
+     * @param rawLength 压缩前的长度
+     * @return
+     */
+    public abstract byte[] decompress(byte[] data, int rawLength);
+
+    /**
+     * 当前环境实际可用的压缩方式，zstd本地库加载失败时使用Deflater
+     * @return
+     */
+    public CompressionType available() {
+        if (this == ZSTD && !ZstdHolder.AVAILABLE) {
+            return DEFLATE;
+        }
+        return this;
+    }
+
+    public static CompressionType of(byte code) {
+        for (CompressionType type : values()) {
+            if (type.code == code) {
+                return type;
+            }
+        }
+        throw new CraneClientException("Unknown compression type " + code);
+    }
+
+    /**
+     * 第一次用到zstd时才尝试加载本地库
+     */
+    private static class ZstdHolder {
+        private static final boolean AVAILABLE = load();
+
+        private static boolean load() {
+            try {
+                return Zstd.compressBound(1) > 0;
+            } catch (Throwable e) {
+                return false;
+            }
+        }
+    }
+}
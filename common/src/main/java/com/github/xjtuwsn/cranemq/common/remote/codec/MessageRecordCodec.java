@@ -0,0 +1,254 @@
+package com.github.xjtuwsn.cranemq.common.remote.codec;
+
+import com.github.xjtuwsn.cranemq.common.constant.MQConstant;
+import com.github.xjtuwsn.cranemq.common.entity.Message;
+import com.github.xjtuwsn.cranemq.common.entity.ReadyMessage;
+import io.netty.buffer.ByteBuf;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.function.IntFunction;
+
+/**
+ * @project:dduomq
+ * @file:MessageRecordCodec
+ * @author:dduo
+ * @create:2023/10/28-16:05
+ * commitLog中消息记录的格式，客户端直接按该格式解析broker发送的原始记录
+ * 总长度int + topic长度int + topic + tag长度int + tag + body长度int + body + id长度int + id + retry + 队列号int
+ * + 产生时间long + 存储时间long，旧格式的记录没有时间
+ * 批量记录中的消息由记录头部和消息本身两段组成：
+ * 总长度int + 批量标记int + 校验和int + topic长度int + topic + id长度int + id + retry + 队列号int
+ * + 产生时间long + 存储时间long + 延时时间long + 消息数int，之后是到头部的距离int(负数) + tag长度int + tag
+ * + body长度int + body
+ * 压缩的批量记录在消息数之后是压缩方式byte + 原始长度int + 压缩长度int + 压缩后的消息体 + 位置表，
+ * 消息本身只有到头部的距离int(负数) + tag长度int + tag，消息体按位置表中的序号从解压结果中取
+ * 同一帧中同一批量记录的连续消息只发送一次头部，没有头部的消息使用上一个头部
+ * 普通记录的topic和tag可以保存为broker名称字典中的编号，topic长度的位置写编号标记，之后是topic编号int + tag编号int，
+ * 编号对应的名称随拉取帧发送，同一连接上只发送一次
+ */
+public class MessageRecordCodec {
+
+    private static final Charset CHARSET = Charset.forName(MQConstant.CHARSETNAME);
+
+    // 批量记录在普通记录topic长度的位置写入的标记，普通记录的长度不会是负数
+    public static final int BATCH_MAGIC = 0xBA7C0001;
+    // 消息体整体压缩的批量记录
+    public static final int COMPRESSED_BATCH_MAGIC = 0xBA7C0002;
+    // topic和tag保存为字典编号的普通记录
+    public static final int NAME_ID_MAGIC = 0xBA7C0003;
+
+    public static boolean isBatch(int magic) {
+        return magic == BATCH_MAGIC || magic == COMPRESSED_BATCH_MAGIC;
+    }
+
+    /**
+     * 从读指针处解析一条记录，解析完读指针移动到下一条记录
+     * @param in 原始记录
+     * @param brokerName 来源broker
+     * @param offset 该消息在消费队列中的偏移
+     * @param context 同一帧中上一个批量记录头部和连接上收到的名称
+     * @return
+     */
+    public static ReadyMessage decode(ByteBuf in, String brokerName, long offset, DecodeContext context) {
+        int start = in.readerIndex();
+        // 没有头部的批量消息
+        if (in.getInt(start) < 0) {
+            return decodeBatchItem(in, context, brokerName, offset);
+        }
+        int total = in.readInt();
+        if (isBatch(in.getInt(in.readerIndex()))) {
+            context.readHeader(in);
+            return decodeBatchItem(in, context, brokerName, offset);
+        }
+
+        String topic, tag;
+        if (in.getInt(in.readerIndex()) == NAME_ID_MAGIC) {
+            in.skipBytes(4);
+            topic = context.name(in.readInt());
+            tag = context.name(in.readInt());
+        } else {
+            topic = readString(in);
+            tag = readString(in);
+        }
+
+        int bodySize = in.readInt();
+        byte[] body = new byte[bodySize];
+        in.readBytes(body);
+
+        // 消息id客户端用不到，跳过
+        int idSize = in.readInt();
+        in.skipBytes(idSize);
+
+        int retry = in.readInt();
+        int queueId = in.readInt();
+        long bornTimestamp = 0, storeTimestamp = 0;
+        if (in.readerIndex() - start + 8 + 8 <= total) {
+            bornTimestamp = in.readLong();
+            storeTimestamp = in.readLong();
+        }
+        in.readerIndex(start + total);
+
+        return new ReadyMessage(brokerName, queueId, offset, new Message(topic, tag, body), retry,
+                bornTimestamp, storeTimestamp);
+    }
+
+    /**
+     * 解析批量记录中的一条消息，记录头部已经在上下文中
+     * @param in 读指针在到头部的距离处
+     * @param context
+     * @param brokerName
+     * @param offset
+     * @return
+     */
+    private static ReadyMessage decodeBatchItem(ByteBuf in, DecodeContext context, String brokerName, long offset) {
+        if (context.topic == null) {
+            throw new IllegalStateException("Batch item without header");
+        }
+        int position = -in.readInt();
+        String tag = readString(in);
+        byte[] body;
+        if (context.compression == CompressionType.NONE) {
+            body = new byte[in.readInt()];
+            in.readBytes(body);
+        } else {
+            body = context.body(position);
+        }
+        return new ReadyMessage(brokerName, context.queueId, offset, new Message(context.topic, tag, body),
+                context.retry, context.bornTimestamp, context.storeTimestamp);
+    }
+
+    /**
+     * 批量消息的消息体依次打包成 body长度int + body，整体压缩
+     * @param messages
+     * @return
+     */
+    public static byte[] packBodies(List<Message> messages) {
+        int length = 0;
+        for (Message message : messages) {
+            length += 4 + message.getBody().length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        for (Message message : messages) {
+            buffer.putInt(message.getBody().length);
+            buffer.put(message.getBody());
+        }
+        return buffer.array();
+    }
+
+    /**
+     * 拆分解压后的消息体
+     * @param raw
+     * @param count 消息数
+     * @return
+     */
+    public static byte[][] unpackBodies(byte[] raw, int count) {
+        ByteBuffer buffer = ByteBuffer.wrap(raw);
+        byte[][] bodies = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            bodies[i] = new byte[buffer.getInt()];
+            buffer.get(bodies[i]);
+        }
+        return bodies;
+    }
+
+    /**
+     * 记录中引用的名称编号，用于随帧发送编号对应的名称
+     * @param record 一条记录或者批量记录的一段，不改变读写位置
+     * @param ids
+     */
+    public static void collectNameIds(ByteBuffer record, Set<Integer> ids) {
+        int start = record.position();
+        if (record.remaining() >= 4 + 4 + 4 + 4 && record.getInt(start) > 0
+                && record.getInt(start + 4) == NAME_ID_MAGIC) {
+            ids.add(record.getInt(start + 8));
+            ids.add(record.getInt(start + 12));
+        }
+    }
+
+    private static String readString(ByteBuf in) {
+        int size = in.readInt();
+        String value = in.toString(in.readerIndex(), size, CHARSET);
+        in.skipBytes(size);
+        return value;
+    }
+
+    /**
+     * 解析一帧时保存最近的批量记录头部，压缩的消息体在第一次取用时才解压，同一批只解压一次
+     * 名称字典由连接持有，跨帧共用
+     */
+    public static class DecodeContext {
+        // 名称编号到名称，客户端是连接上收到的名称，broker冷读时直接查字典
+        private final IntFunction<String> names;
+        private String topic;
+        private int retry;
+        private int queueId;
+        private long bornTimestamp;
+        private long storeTimestamp;
+        private int count;
+        private CompressionType compression;
+        private int rawLength;
+        private byte[] compressed;
+        // 每条消息相对记录起点的位置
+        private int[] positions;
+        private byte[][] bodies;
+
+        public DecodeContext(IntFunction<String> names) {
+            this.names = names;
+        }
+
+        private String name(int id) {
+            String name = this.names.apply(id);
+            if (name == null) {
+                throw new IllegalStateException("Unknown name id " + id);
+            }
+            return name;
+        }
+
+        /**
+         * 读取批量记录头部
+         * @param in 读指针在批量标记处
+         */
+        private void readHeader(ByteBuf in) {
+            int magic = in.readInt();
+            // 校验和
+            in.skipBytes(4);
+            this.topic = readString(in);
+            in.skipBytes(in.readInt());
+            this.retry = in.readInt();
+            this.queueId = in.readInt();
+            this.bornTimestamp = in.readLong();
+            this.storeTimestamp = in.readLong();
+            // 延时时间
+            in.skipBytes(8);
+            this.count = in.readInt();
+            this.bodies = null;
+            if (magic != COMPRESSED_BATCH_MAGIC) {
+                this.compression = CompressionType.NONE;
+                return;
+            }
+            this.compression = CompressionType.of(in.readByte());
+            this.rawLength = in.readInt();
+            this.compressed = new byte[in.readInt()];
+            in.readBytes(this.compressed);
+            this.positions = new int[this.count];
+            for (int i = 0; i < this.count; i++) {
+                this.positions[i] = in.readInt();
+            }
+        }
+
+        private byte[] body(int position) {
+            int index = Arrays.binarySearch(this.positions, position);
+            if (index < 0) {
+                throw new IllegalStateException("Batch item position " + position + " not found");
+            }
+            if (this.bodies == null) {
+                this.bodies = unpackBodies(this.compression.decompress(this.compressed, this.rawLength), this.count);
+            }
+            return this.bodies[index];
+        }
+    }
+}
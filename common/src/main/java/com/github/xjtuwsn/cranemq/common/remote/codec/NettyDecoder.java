@@ -1,17 +1,27 @@
 package com.github.xjtuwsn.cranemq.common.remote.codec;
 
+import com.github.xjtuwsn.cranemq.common.command.RemoteCommand;
+import com.github.xjtuwsn.cranemq.common.command.payloads.resp.MQPullMessageResponse;
+import com.github.xjtuwsn.cranemq.common.constant.MQConstant;
+import com.github.xjtuwsn.cranemq.common.entity.ReadyMessage;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.ByteToMessageDecoder;
 import com.github.xjtuwsn.cranemq.common.remote.serialize.Serializer;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class NettyDecoder extends ByteToMessageDecoder {
 
     private Class<?> genericClass;
     private Serializer serializer;
 
+    // 这个连接上收到的名称编号，解码器每个连接一个
+    private final Map<Integer, String> names = new HashMap<>();
+
     public NettyDecoder(Class<?> genericClass, final Serializer serializer) {
         this.genericClass = genericClass;
         this.serializer = serializer;
@@ -32,18 +42,59 @@ public class NettyDecoder extends ByteToMessageDecoder {
         }
         in.markReaderIndex();
         int dataLength = in.readInt();
+        // 最高位标志原始记录帧
+        boolean raw = (dataLength & RawPullFrame.RAW_FLAG) != 0;
+        dataLength &= ~RawPullFrame.RAW_FLAG;
 
-        if (dataLength < 0) {
-            ctx.close();
-        }
         if (in.readableBytes() < dataLength) {
             in.resetReaderIndex();
             return;
         }
+        if (raw) {
+            out.add(decodeRawFrame(in.readSlice(dataLength)));
+            return;
+        }
         byte[] data = new byte[dataLength];
         in.readBytes(data);
 
         Object obj = serializer.deserialize(data, genericClass);
         out.add(obj);
     }
-}
\ No newline at end of file
+
+    /**
+     * 解析原始记录帧，将记录还原为消息放入拉取响应中
+     * @param frame
+     * @return
+     * @throws Exception
+     */
+    private Object decodeRawFrame(ByteBuf frame) throws Exception {
+        byte[] header = new byte[frame.readInt()];
+        frame.readBytes(header);
+        RemoteCommand command = (RemoteCommand) serializer.deserialize(header, RemoteCommand.class);
+
+        byte[] nameData = new byte[frame.readShort()];
+        frame.readBytes(nameData);
+        String brokerName = new String(nameData, MQConstant.CHARSETNAME);
+        int count = frame.readInt();
+        long[] queueOffsets = new long[count];
+        for (int i = 0; i < count; i++) {
+            queueOffsets[i] = frame.readLong();
+        }
+        int nameCount = frame.readInt();
+        for (int i = 0; i < nameCount; i++) {
+            int id = frame.readInt();
+            byte[] name = new byte[frame.readInt()];
+            frame.readBytes(name);
+            this.names.put(id, new String(name, MQConstant.CHARSETNAME));
+        }
+
+        List<ReadyMessage> messages = new ArrayList<>(count);
+        MessageRecordCodec.DecodeContext context = new MessageRecordCodec.DecodeContext(this.names::get);
+        for (int i = 0; i < count; i++) {
+            messages.add(MessageRecordCodec.decode(frame, brokerName, queueOffsets[i], context));
+        }
+        MQPullMessageResponse response = (MQPullMessageResponse) command.getPayLoad();
+        response.setMessages(messages);
+        return command;
+    }
+}
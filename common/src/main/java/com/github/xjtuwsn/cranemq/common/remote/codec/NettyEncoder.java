@@ -15,6 +15,17 @@ public class NettyEncoder extends MessageToByteEncoder<Object> {
         this.serializer = serializer;
     }
 
+    /**
+     * 只处理指定类型，其余消息交给后面的编码器
+     * @param msg
+     * @return
+     * @throws Exception
+     */
+    @Override
+    public boolean acceptOutboundMessage(Object msg) throws Exception {
+        return genericClass.isInstance(msg);
+    }
+
     /**
      * 在消息进行发送之后进行序列化
      * @param ctx
@@ -0,0 +1,66 @@
+package com.github.xjtuwsn.cranemq.common.remote.codec;
+
+import com.github.xjtuwsn.cranemq.common.command.RemoteCommand;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.function.IntFunction;
+
+/**
+ * @project:dduomq
+ * @file:RawPullFrame
+ * @author:dduo
+ * @create:2023/10/28-16:12
+ * 零拷贝拉取响应，消息不再经过序列化，直接发送commitLog中的原始记录
+ * 帧格式：长度int(最高位为标志) + 头长度int + 头 + broker名长度short + broker名 + 消息数int + 各消息队列偏移long
+ * + 名称数int + 各名称(编号int + 长度int + 名称) + 记录，记录中引用的名称编号在同一连接上第一次出现时才发送
+ */
+public class RawPullFrame {
+
+    // 长度字段最高位置1表示原始记录帧
+    public static final int RAW_FLAG = 0x80000000;
+
+    // 不带消息的响应命令，消息由记录解析后填入
+    private RemoteCommand command;
+
+    private String brokerName;
+    // 每条记录在消费队列中的偏移，按tag过滤后不连续
+    private List<Long> queueOffsets;
+    // 映射文件上的记录切片，批量记录中的消息是头部和消息两个切片，同一批连续的消息只带一次头部
+    private List<ByteBuffer> records;
+    // 根据编号查找名称，记录中没有名称编号时可以为空
+    private IntFunction<String> names;
+
+    public RawPullFrame(RemoteCommand command, String brokerName, List<Long> queueOffsets, List<ByteBuffer> records) {
+        this(command, brokerName, queueOffsets, records, null);
+    }
+
+    public RawPullFrame(RemoteCommand command, String brokerName, List<Long> queueOffsets, List<ByteBuffer> records,
+                        IntFunction<String> names) {
+        this.command = command;
+        this.brokerName = brokerName;
+        this.queueOffsets = queueOffsets;
+        this.records = records;
+        this.names = names;
+    }
+
+    public RemoteCommand getCommand() {
+        return command;
+    }
+
+    public String getBrokerName() {
+        return brokerName;
+    }
+
+    public List<Long> getQueueOffsets() {
+        return queueOffsets;
+    }
+
+    public List<ByteBuffer> getRecords() {
+        return records;
+    }
+
+    public IntFunction<String> getNames() {
+        return names;
+    }
+}
@@ -0,0 +1,116 @@
+package com.github.xjtuwsn.cranemq.common.remote.codec;
+
+import com.github.xjtuwsn.cranemq.common.constant.MQConstant;
+import com.github.xjtuwsn.cranemq.common.remote.serialize.Serializer;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.MessageToMessageEncoder;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * @project:dduomq
+ * @file:RawPullFrameEncoder
+ * @author:dduo
+ * @create:2023/10/28-16:20
+ */
+public class RawPullFrameEncoder extends MessageToMessageEncoder<RawPullFrame> {
+
+    private Serializer serializer;
+
+    // 已经在这个连接上发送过的名称编号，编码器每个连接一个，只在事件循环线程中使用
+    private final Set<Integer> sentNames = new HashSet<>();
+
+    public RawPullFrameEncoder(Serializer serializer) {
+        this.serializer = serializer;
+    }
+
+    /**
+     * 只序列化很小的头部，记录直接包装映射文件的切片，组合后一起发送
+     * @param ctx
+     * @param frame
+     * @param out
+     * @throws Exception
+     */
+    @Override
+    protected void encode(ChannelHandlerContext ctx, RawPullFrame frame, List<Object> out) throws Exception {
+        byte[] header = serializer.serialize(frame.getCommand());
+        byte[] brokerName = frame.getBrokerName().getBytes(MQConstant.CHARSETNAME);
+        List<ByteBuffer> records = frame.getRecords();
+
+        List<Long> queueOffsets = frame.getQueueOffsets();
+        List<Integer> nameIds = new ArrayList<>();
+        List<byte[]> nameData = new ArrayList<>();
+        int nameLength = this.newNames(frame, nameIds, nameData);
+        int headLength = 4 + header.length + 2 + brokerName.length + 4 + 8 * queueOffsets.size() + 4 + nameLength;
+        int recordLength = 0;
+        for (ByteBuffer record : records) {
+            recordLength += record.remaining();
+        }
+        ByteBuf head = ctx.alloc().buffer(4 + headLength);
+        head.writeInt((headLength + recordLength) | RawPullFrame.RAW_FLAG);
+        head.writeInt(header.length);
+        head.writeBytes(header);
+        head.writeShort(brokerName.length);
+        head.writeBytes(brokerName);
+        // 批量记录中的消息由头部和消息两段组成，记录段数可能多于消息数
+        head.writeInt(queueOffsets.size());
+        for (Long queueOffset : queueOffsets) {
+            head.writeLong(queueOffset);
+        }
+        head.writeInt(nameIds.size());
+        for (int i = 0; i < nameIds.size(); i++) {
+            head.writeInt(nameIds.get(i));
+            head.writeInt(nameData.get(i).length);
+            head.writeBytes(nameData.get(i));
+        }
+
+        CompositeByteBuf composite = ctx.alloc().compositeBuffer(records.size() + 1);
+        composite.addComponent(true, head);
+        for (ByteBuffer record : records) {
+            // 包装不会复制数据
+            composite.addComponent(true, Unpooled.wrappedBuffer(record));
+        }
+        out.add(composite);
+    }
+
+    /**
+     * 找出记录中引用的、还没有在这个连接上发送过的名称
+     * @param frame
+     * @param nameIds 需要发送的编号
+     * @param nameData 对应的名称
+     * @return 名称部分的长度，不含名称数
+     * @throws Exception
+     */
+    private int newNames(RawPullFrame frame, List<Integer> nameIds, List<byte[]> nameData) throws Exception {
+        if (frame.getNames() == null) {
+            return 0;
+        }
+        Set<Integer> ids = new HashSet<>();
+        for (ByteBuffer record : frame.getRecords()) {
+            MessageRecordCodec.collectNameIds(record, ids);
+        }
+        int length = 0;
+        for (Integer id : ids) {
+            if (this.sentNames.contains(id)) {
+                continue;
+            }
+            String name = frame.getNames().apply(id);
+            if (name == null) {
+                continue;
+            }
+            byte[] data = name.getBytes(MQConstant.CHARSETNAME);
+            nameIds.add(id);
+            nameData.add(data);
+            this.sentNames.add(id);
+            length += 4 + 4 + data.length;
+        }
+        return length;
+    }
+}
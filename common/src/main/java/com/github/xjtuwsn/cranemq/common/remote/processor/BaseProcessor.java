@@ -50,6 +50,10 @@ public interface BaseProcessor {
 
     default void processSendBackRequest(ChannelHandlerContext ctx, RemoteCommand remoteCommand) {}
 
+    default void processQueryMessageRequest(ChannelHandlerContext ctx, RemoteCommand remoteCommand) {}
+
+    default void processResetOffsetRequest(ChannelHandlerContext ctx, RemoteCommand remoteCommand) {}
+
     // ---------------------- Registry ----------------------
 
     default void processQueryRouteRequest(ChannelHandlerContext ctx, RemoteCommand remoteCommand) {}
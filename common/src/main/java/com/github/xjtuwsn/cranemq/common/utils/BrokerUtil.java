@@ -19,6 +19,9 @@ import java.util.UUID;
  */
 public class BrokerUtil {
     private static final Logger log = LoggerFactory.getLogger(BrokerUtil.class);
+
+    // 旧格式索引没有tag哈希，升级时用该值填充，过滤时一律放行
+    public static final int UNKNOWN_TAG_HASH = Integer.MIN_VALUE;
     public static void parseConfigFile(Properties properties, Object object) {
         Method[] methods = object.getClass().getMethods();
         for (Method method : methods) {
@@ -71,7 +74,10 @@ public class BrokerUtil {
     }
 
     public static String makeFileName(int index, int fileSize) {
-        long offset = index * (long) fileSize;
+        return makeFileName(index * (long) fileSize);
+    }
+
+    public static String makeFileName(long offset) {
         StringBuilder sb = new StringBuilder(String.valueOf(offset));
         int left = MQConstant.COMMITLOG_FILENAME_LENGTH - sb.length();
         StringBuilder padding = new StringBuilder();
@@ -111,6 +117,17 @@ public class BrokerUtil {
     public static String holdRequestKey(String topic, String group, String clientId) {
         return topic + "@" + group + "@" + clientId;
     }
+    /**
+     * 消息tag的哈希，写入消费队列索引用于broker端过滤
+     * @param tag
+     * @return
+     */
+    public static int tagHashCode(String tag) {
+        if (tag == null) {
+            return 0;
+        }
+        return tag.hashCode();
+    }
     public static String logId() {
         return UUID.randomUUID().toString().replaceAll("-", "").substring(0, 16);
     }
@@ -0,0 +1,241 @@
+package com.github.xjtuwsn.cranemq.test.performance;
+
+import com.github.xjtuwsn.cranemq.broker.BrokerController;
+import com.github.xjtuwsn.cranemq.broker.push.HoldRequestService;
+import com.github.xjtuwsn.cranemq.broker.store.MappedFile;
+import com.github.xjtuwsn.cranemq.broker.store.MessageStoreCenter;
+import com.github.xjtuwsn.cranemq.broker.store.PersistentConfig;
+import com.github.xjtuwsn.cranemq.broker.store.comm.PutMessageResponse;
+import com.github.xjtuwsn.cranemq.broker.store.comm.StoreInnerMessage;
+import com.github.xjtuwsn.cranemq.broker.store.comm.StoreResponseType;
+import com.github.xjtuwsn.cranemq.broker.store.dict.NameDictionary;
+import com.github.xjtuwsn.cranemq.common.config.BrokerConfig;
+import com.github.xjtuwsn.cranemq.common.entity.Message;
+import com.github.xjtuwsn.cranemq.common.entity.MessageQueue;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @project:dduomq
+ * @file:StoreAllocationTest
+ * @author:dduo
+ * @create:2023/11/06-15:40
+ */
+
+/**
+ * 测量写入commitLog和消费队列时每条消息分配的堆内存，超过上限直接失败
+ * 文件层只测存储层的写入，不经过网络和组提交线程，写满后把写指针拨回开头重复写同一个文件，
+ * commitLog每条消息只允许分配返回给调用者的写入结果，消费队列写入不允许分配
+ * 完整写入路径从asyncPutMessage到拿到结果，统计所有线程的分配，包括组提交线程和分发线程
+ * @author dduo
+ */
+public class StoreAllocationTest {
+    private static final int FILE_SIZE = 32 * 1024 * 1024;
+    private static final int BATCH = 64;
+    private static final int WARM_UP = 200_000;
+    private static final int MEASURE = 1_000_000;
+    // 每条消息允许分配的字节数，写入结果对象约40字节，加上每批一次的buffer视图
+    private static final long COMMIT_LOG_LIMIT = 64;
+    private static final long CONSUME_QUEUE_LIMIT = 1;
+    private static final int PUT_WARM_UP = 50_000;
+    private static final int PUT_MEASURE = 200_000;
+    // 完整写入路径每条消息允许分配的字节数，约520字节，剩下的是组提交请求、各阶段的future、
+    // 分发线程的任务节点、commitLog和消费队列的写入结果
+    private static final long PUT_PATH_LIMIT = 640;
+
+    private static final com.sun.management.ThreadMXBean THREAD_BEAN =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args) throws Exception {
+        File root = Files.createTempDirectory("dduomq-alloc").toFile();
+        boolean passed;
+        try {
+            PersistentConfig config = new PersistentConfig();
+            config.setDictionaryPath(root.getPath() + File.separator + "dictionary");
+
+            // 不使用字典，topic和tag写字符串
+            long plain = commitLog(config, root, null);
+            NameDictionary dictionary = new NameDictionary(config);
+            dictionary.load();
+            long named = commitLog(config, root, dictionary);
+            dictionary.close();
+            long queue = consumeQueue(config, root);
+            long put = putPath(root);
+
+            System.out.println("CommitLog with strings " + plain + " bytes/message");
+            System.out.println("CommitLog with dictionary " + named + " bytes/message");
+            System.out.println("Consume queue " + queue + " bytes/message");
+            System.out.println("asyncPutMessage to response " + put + " bytes/message");
+            passed = plain <= COMMIT_LOG_LIMIT && named <= COMMIT_LOG_LIMIT && queue <= CONSUME_QUEUE_LIMIT
+                    && put <= PUT_PATH_LIMIT;
+        } finally {
+            delete(root);
+        }
+        if (!passed) {
+            System.err.println("Store write path allocates too much");
+        }
+        // 存储关闭后刷盘、清理等后台线程不是守护线程，测量完成后直接退出
+        System.exit(passed ? 0 : 1);
+    }
+
+    private static long commitLog(PersistentConfig config, File root, NameDictionary dictionary) {
+        MappedFile mappedFile = new MappedFile(0, FILE_SIZE, "00000000000000000000",
+                root.getPath() + File.separator + "commitlog", config);
+        mappedFile.setWritePointer(0);
+        mappedFile.setNameDictionary(dictionary);
+        MessageQueue queue = new MessageQueue("allocation-topic", "broker", 0);
+        List<StoreInnerMessage> messages = new ArrayList<>(BATCH);
+        for (int i = 0; i < BATCH; i++) {
+            Message message = new Message("allocation-topic", "tag" + (i % 4), new byte[256]);
+            StoreInnerMessage innerMessage = new StoreInnerMessage(message, queue,
+                    String.format("%032x", i), 0);
+            innerMessage.setBornTimestamp(System.currentTimeMillis());
+            messages.add(innerMessage);
+        }
+        List<PutMessageResponse> responses = new ArrayList<>(BATCH);
+
+        writeCommitLog(mappedFile, messages, responses, WARM_UP);
+        long start = THREAD_BEAN.getCurrentThreadAllocatedBytes();
+        writeCommitLog(mappedFile, messages, responses, MEASURE);
+        long allocated = THREAD_BEAN.getCurrentThreadAllocatedBytes() - start;
+        mappedFile.destroy();
+        return allocated / MEASURE;
+    }
+
+    private static void writeCommitLog(MappedFile mappedFile, List<StoreInnerMessage> messages,
+                                       List<PutMessageResponse> responses, int total) {
+        for (int written = 0; written < total; ) {
+            responses.clear();
+            int count = mappedFile.putMessages(messages, 0, responses);
+            if (count < messages.size()) {
+                mappedFile.setWritePointer(0);
+            }
+            written += count;
+        }
+    }
+
+    private static long consumeQueue(PersistentConfig config, File root) {
+        MappedFile mappedFile = new MappedFile(0, config.getMaxQueueSize(), "00000000000000000000",
+                root.getPath() + File.separator + "consumequeue", config);
+        mappedFile.setWritePointer(0);
+
+        writeConsumeQueue(mappedFile, WARM_UP);
+        long start = THREAD_BEAN.getCurrentThreadAllocatedBytes();
+        writeConsumeQueue(mappedFile, MEASURE);
+        long allocated = THREAD_BEAN.getCurrentThreadAllocatedBytes() - start;
+        mappedFile.destroy();
+        return allocated / MEASURE;
+    }
+
+    private static void writeConsumeQueue(MappedFile mappedFile, int total) {
+        for (int i = 0; i < total; i++) {
+            if (mappedFile.appendOffsetIndex(i * 320L, 320, i) == MappedFile.NO_ENOUGH_ROOM) {
+                mappedFile.setWritePointer(0);
+                i--;
+            }
+        }
+    }
+
+    private static long putPath(File root) {
+        String path = root.getPath() + File.separator + "broker" + File.separator;
+        PersistentConfig config = new PersistentConfig();
+        config.setCranePath(path);
+        config.setRootPath(path + "store" + File.separator);
+        config.setConfigPath(path + "config" + File.separator);
+        config.setConsumerOffsetPath(path + "config" + File.separator + "offset.json");
+        config.setCommitLogPath(config.getRootPath() + "commitlog" + File.separator);
+        config.setConsumerqueuePath(config.getRootPath() + "consumequeue" + File.separator);
+        config.setDelayLogPath(config.getRootPath() + "delaylog" + File.separator);
+        config.setIndexPath(config.getRootPath() + "index" + File.separator);
+        config.setCheckpointPath(config.getRootPath() + "checkpoint");
+        config.setAbortFilePath(config.getRootPath() + "abort");
+        config.setDictionaryPath(config.getRootPath() + "dictionary");
+        for (String dir : Arrays.asList(config.getCommitLogPath(), config.getConsumerqueuePath(),
+                config.getConfigPath())) {
+            new File(dir).mkdirs();
+        }
+        BrokerConfig brokerConfig = new BrokerConfig();
+        brokerConfig.setBrokerName("allocation-broker");
+        StoreOnlyController brokerController = new StoreOnlyController(brokerConfig, config);
+        MessageStoreCenter store = brokerController.getMessageStoreCenter();
+        store.start();
+        try {
+            // 没有时按默认队列数创建
+            store.getQueueNumber("allocation-topic");
+            MessageQueue queue = new MessageQueue("allocation-topic", "allocation-broker", 0);
+            StoreInnerMessage innerMessage = new StoreInnerMessage(
+                    new Message("allocation-topic", "tag", new byte[256]), queue, String.format("%032x", 0), 0);
+            innerMessage.setBornTimestamp(System.currentTimeMillis());
+
+            put(store, innerMessage, PUT_WARM_UP);
+            long start = allThreadsAllocatedBytes();
+            put(store, innerMessage, PUT_MEASURE);
+            long allocated = allThreadsAllocatedBytes() - start;
+            return allocated / PUT_MEASURE;
+        } finally {
+            store.close();
+        }
+    }
+
+    private static void put(MessageStoreCenter store, StoreInnerMessage innerMessage, int total) {
+        for (int i = 0; i < total; i++) {
+            PutMessageResponse response = store.asyncPutMessage(innerMessage).join();
+            if (response.getResponseType() != StoreResponseType.STORE_OK) {
+                throw new AssertionError("Put message failed, " + response.getResponseType());
+            }
+        }
+    }
+
+    /**
+     * 所有存活线程分配的字节数之和，写入经过调用线程、组提交线程和分发线程
+     * @return
+     */
+    private static long allThreadsAllocatedBytes() {
+        long total = 0;
+        for (long bytes : THREAD_BEAN.getThreadAllocatedBytes(THREAD_BEAN.getAllThreadIds())) {
+            if (bytes > 0) {
+                total += bytes;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * 只创建存储和长轮询服务，不启动网络和注册中心
+     */
+    private static class StoreOnlyController extends BrokerController {
+        private final MessageStoreCenter messageStoreCenter;
+        private final HoldRequestService holdRequestService;
+
+        public StoreOnlyController(BrokerConfig brokerConfig, PersistentConfig persistentConfig) {
+            super(brokerConfig, persistentConfig);
+            this.holdRequestService = new HoldRequestService(this);
+            this.messageStoreCenter = new MessageStoreCenter(this);
+        }
+
+        @Override
+        public MessageStoreCenter getMessageStoreCenter() {
+            return messageStoreCenter;
+        }
+
+        @Override
+        public HoldRequestService getHoldRequestService() {
+            return holdRequestService;
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,132 @@
+package com.github.xjtuwsn.cranemq.test.performance;
+
+import com.github.xjtuwsn.cranemq.broker.store.MappedFile;
+import com.github.xjtuwsn.cranemq.broker.store.PersistentConfig;
+import com.github.xjtuwsn.cranemq.broker.store.comm.PutMessageResponse;
+import com.github.xjtuwsn.cranemq.broker.store.comm.StoreInnerMessage;
+import com.github.xjtuwsn.cranemq.broker.store.pool.OutOfHeapMemoryPool;
+import com.github.xjtuwsn.cranemq.broker.store.pool.WriteBufferPool;
+import com.github.xjtuwsn.cranemq.broker.store.write.WriteStrategyType;
+import com.github.xjtuwsn.cranemq.common.entity.Message;
+import com.github.xjtuwsn.cranemq.common.entity.MessageQueue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @project:dduomq
+ * @file:WriteStrategyBenchmark
+ * @author:dduo
+ * @create:2023/11/08-16:20
+ */
+
+/**
+ * 比较commitLog三种写入方式的吞吐量，每种组合写满一个新文件，取多轮中的最好结果
+ * 不经过网络和组提交线程，提交和刷盘在写线程中同步完成
+ * 可以传入文件目录，把文件放到要测试的磁盘上，默认使用临时目录
+ * @author dduo
+ */
+public class WriteStrategyBenchmark {
+    private static final int FILE_SIZE = 64 * 1024 * 1024;
+    private static final int BATCH = 32;
+    private static final int ROUNDS = 3;
+    // 刷盘模式下每写这么多字节提交并刷盘一次，近似同步刷盘时的组提交
+    private static final int FLUSH_INTERVAL = 1024 * 1024;
+    private static final int[] MESSAGE_SIZES = {128, 1024, 16 * 1024};
+
+    public static void main(String[] args) throws Exception {
+        File root = args.length > 0 ? new File(args[0]) : Files.createTempDirectory("dduomq-write").toFile();
+        root.mkdirs();
+        PersistentConfig config = new PersistentConfig();
+        config.setCommitLogMaxSize(FILE_SIZE);
+        config.setOutOfMemoryChunkSize(16 * 1024 * 1024);
+        OutOfHeapMemoryPool memoryPool = new OutOfHeapMemoryPool(config);
+        memoryPool.init();
+        WriteBufferPool bufferPool = new WriteBufferPool(config, 2);
+        try {
+            System.out.printf("%-16s%-10s%-8s%12s%12s%n", "strategy", "size", "flush", "MB/s", "msg/s");
+            for (boolean flush : new boolean[]{false, true}) {
+                for (int size : MESSAGE_SIZES) {
+                    for (WriteStrategyType type : WriteStrategyType.values()) {
+                        long best = Long.MAX_VALUE;
+                        int count = 0;
+                        for (int i = 0; i < ROUNDS; i++) {
+                            long start = System.nanoTime();
+                            count = writeFile(config, root, type, memoryPool, bufferPool, size, flush);
+                            best = Math.min(best, System.nanoTime() - start);
+                        }
+                        double seconds = best / 1e9;
+                        System.out.printf("%-16s%-10d%-8s%12.1f%12.0f%n", type, size, flush,
+                                FILE_SIZE / 1024.0 / 1024.0 / seconds, count / seconds);
+                    }
+                }
+            }
+        } finally {
+            memoryPool.destory();
+            bufferPool.destroy();
+            if (args.length == 0) {
+                File[] files = root.listFiles();
+                if (files != null) {
+                    for (File file : files) {
+                        file.delete();
+                    }
+                }
+                root.delete();
+            }
+        }
+    }
+
+    /**
+     * 用指定方式写满一个新文件，返回写入的消息数
+     */
+    private static int writeFile(PersistentConfig config, File root, WriteStrategyType type,
+                                 OutOfHeapMemoryPool memoryPool, WriteBufferPool bufferPool,
+                                 int size, boolean flush) {
+        MappedFile mappedFile = new MappedFile(0, FILE_SIZE, "00000000000000000000",
+                root.getPath() + File.separator + "commitlog", config);
+        mappedFile.setWritePointer(0);
+        if (type == WriteStrategyType.TRANSIENT_POOL) {
+            mappedFile.borrowMemory(memoryPool);
+        } else if (type == WriteStrategyType.FILE_CHANNEL) {
+            mappedFile.useChannelWrite(bufferPool);
+        }
+        List<StoreInnerMessage> messages = messages(size);
+        List<PutMessageResponse> responses = new ArrayList<>(BATCH);
+        int total = 0;
+        long sinceFlush = 0;
+        while (true) {
+            responses.clear();
+            int count = mappedFile.putMessages(messages, 0, responses);
+            total += count;
+            sinceFlush += (long) count * size;
+            if (flush && sinceFlush >= FLUSH_INTERVAL) {
+                mappedFile.doCommit(true);
+                mappedFile.doFlush();
+                sinceFlush = 0;
+            }
+            if (count < messages.size()) {
+                break;
+            }
+        }
+        // 提交剩余数据后刷盘，所有方式都以数据落盘结束
+        mappedFile.doCommit(true);
+        mappedFile.doFlush();
+        mappedFile.destroy();
+        return total;
+    }
+
+    private static List<StoreInnerMessage> messages(int size) {
+        MessageQueue queue = new MessageQueue("write-topic", "broker", 0);
+        List<StoreInnerMessage> messages = new ArrayList<>(BATCH);
+        for (int i = 0; i < BATCH; i++) {
+            Message message = new Message("write-topic", "tag", new byte[size]);
+            StoreInnerMessage innerMessage = new StoreInnerMessage(message, queue,
+                    String.format("%032x", i), 0);
+            innerMessage.setBornTimestamp(System.currentTimeMillis());
+            messages.add(innerMessage);
+        }
+        return messages;
+    }
+}